@@ -0,0 +1,136 @@
+package com.mediaprocessing.benchmarks;
+
+import com.azure.ai.vision.imageanalysis.models.ImageAnalysisResult;
+import com.azure.ai.vision.imageanalysis.models.VisualFeatures;
+import com.azure.core.util.BinaryData;
+import com.azure.json.JsonProviders;
+import com.azure.json.JsonReader;
+import com.mediaprocessing.common.service.AnalysisBackend;
+import com.mediaprocessing.common.service.OnnxAnalysisBackend;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tagging with the in-process {@link OnnxAnalysisBackend} against a stand-in
+ * for Computer Vision. Each operation submits {@code batch} images at once
+ * and waits for all their tags, so images per second are the throughput
+ * score times the batch, and the sampled time is the latency of a batch.
+ * The local backend runs one warm session that batches up to {@code batch}
+ * images. The remote stand-in answers every image after
+ * {@code remoteLatencyMillis} without using the network, so it shows the
+ * round-trip floor rather than the service's rate limits.
+ * <p>
+ * The local backend needs a model: run with
+ * {@code -p modelPath=model.onnx -p labelsPath=labels.txt}. Without one, the
+ * local cases fail in setup and only the remote ones are measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g", "-Djava.awt.headless=true"})
+public class AnalysisBackendBenchmark {
+
+    private static final List<VisualFeatures> FEATURES = List.of(VisualFeatures.TAGS);
+
+    @Param({"local", "remote"})
+    public String backend;
+
+    @Param({"1", "8"})
+    public int batch;
+
+    @Param({"150"})
+    public int remoteLatencyMillis;
+
+    @Param({""})
+    public String modelPath;
+
+    @Param({""})
+    public String labelsPath;
+
+    private AnalysisBackend analysisBackend;
+    private List<BinaryData> images;
+
+    @Setup
+    public void setUp() throws Exception {
+        if ("local".equals(backend)) {
+            if (modelPath.isBlank() || labelsPath.isBlank()) {
+                throw new IllegalStateException("Set -p modelPath and -p labelsPath to benchmark the local backend");
+            }
+            analysisBackend = new OnnxAnalysisBackend(Paths.get(modelPath), Paths.get(labelsPath), 1, batch,
+                    Duration.ofMillis(5));
+        } else {
+            analysisBackend = new StubRemoteBackend(Duration.ofMillis(remoteLatencyMillis));
+        }
+
+        byte[] image = MediaCorpus.image(MediaCorpus.Resolution.SD, "jpg");
+        images = new ArrayList<>(batch);
+        for (int i = 0; i < batch; i++) {
+            images.add(BinaryData.fromBytes(image));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        if (analysisBackend instanceof AutoCloseable) {
+            ((AutoCloseable) analysisBackend).close();
+        }
+    }
+
+    @Benchmark
+    public List<ImageAnalysisResult> tagBatch() {
+        return Flux.fromIterable(images)
+                .flatMapSequential(image -> analysisBackend.analyze(image, FEATURES), images.size())
+                .collectList()
+                .block();
+    }
+
+    /**
+     * Answers like Computer Vision after a fixed round trip, without using
+     * a thread while it waits, as the async client does.
+     */
+    private static final class StubRemoteBackend implements AnalysisBackend {
+        private static final String RESPONSE = "{\"modelVersion\":\"stub\",\"metadata\":{\"width\":640,\"height\":480},"
+                + "\"tagsResult\":{\"values\":[{\"name\":\"outdoor\",\"confidence\":0.9}]}}";
+
+        private final Duration latency;
+        private final ImageAnalysisResult result;
+
+        StubRemoteBackend(Duration latency) throws Exception {
+            this.latency = latency;
+            try (JsonReader reader = JsonProviders.createReader(RESPONSE)) {
+                this.result = ImageAnalysisResult.fromJson(reader);
+            }
+        }
+
+        @Override
+        public Set<VisualFeatures> getSupportedFeatures() {
+            return Set.of(VisualFeatures.TAGS);
+        }
+
+        @Override
+        public Mono<ImageAnalysisResult> analyze(BinaryData imageData, List<VisualFeatures> features) {
+            return Mono.delay(latency).thenReturn(result);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.mediaprocessing.benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compares two JMH JSON result files, e.g. from the base and head commits of
+ * a change:
+ * <pre>
+ * java -cp benchmarks.jar com.mediaprocessing.benchmarks.BenchmarkComparison base.json head.json [threshold%]
+ * </pre>
+ * Prints the change of the primary score and of allocation per operation for
+ * every benchmark in both files, and exits with 1 if any got worse by more
+ * than the threshold (default 10%) and by more than the score error.
+ */
+public final class BenchmarkComparison {
+
+    private static final String ALLOCATION_METRIC = "gc.alloc.rate.norm";
+
+    private BenchmarkComparison() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BenchmarkComparison <base.json> <head.json> [threshold%]");
+            System.exit(2);
+        }
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) / 100 : 0.10;
+        Map<String, JsonNode> base = load(new File(args[0]));
+        Map<String, JsonNode> head = load(new File(args[1]));
+
+        int regressions = 0;
+        System.out.printf("%-90s %14s %14s %8s %10s%n", "Benchmark", "Base", "Head", "Change", "Alloc");
+        for (Map.Entry<String, JsonNode> entry : head.entrySet()) {
+            JsonNode baseResult = base.get(entry.getKey());
+            if (baseResult == null) {
+                continue;
+            }
+            JsonNode headResult = entry.getValue();
+            JsonNode basePrimary = baseResult.path("primaryMetric");
+            JsonNode headPrimary = headResult.path("primaryMetric");
+            double baseScore = basePrimary.path("score").asDouble();
+            double headScore = headPrimary.path("score").asDouble();
+            // Throughput is better higher, every time mode better lower
+            boolean higherIsBetter = "thrpt".equals(headResult.path("mode").asText());
+            double change = relativeChange(baseScore, headScore);
+            double worse = higherIsBetter ? -change : change;
+            double error = headPrimary.path("scoreError").asDouble(0) + basePrimary.path("scoreError").asDouble(0);
+            boolean regressed = worse > threshold && Math.abs(headScore - baseScore) > error;
+
+            Double allocationChange = null;
+            JsonNode baseAllocation = allocation(baseResult);
+            JsonNode headAllocation = allocation(headResult);
+            if (baseAllocation != null && headAllocation != null) {
+                allocationChange = relativeChange(baseAllocation.path("score").asDouble(),
+                        headAllocation.path("score").asDouble());
+                regressed |= allocationChange > threshold;
+            }
+
+            if (regressed) {
+                regressions++;
+            }
+            System.out.printf("%-90s %14.3f %14.3f %+7.1f%% %+9.1f%%%s%n",
+                    entry.getKey(), baseScore, headScore, change * 100,
+                    allocationChange != null ? allocationChange * 100 : 0.0,
+                    regressed ? "  REGRESSION" : "");
+        }
+
+        System.out.printf("%d regression(s) over %.0f%%%n", regressions, threshold * 100);
+        System.exit(regressions > 0 ? 1 : 0);
+    }
+
+    /**
+     * Results keyed by benchmark, mode and parameters.
+     */
+    private static Map<String, JsonNode> load(File file) throws IOException {
+        Map<String, JsonNode> results = new LinkedHashMap<>();
+        for (JsonNode result : new ObjectMapper().readTree(file)) {
+            StringBuilder key = new StringBuilder(result.path("benchmark").asText()
+                    .replace("com.mediaprocessing.benchmarks.", ""));
+            key.append(" [").append(result.path("mode").asText());
+            Map<String, String> params = new TreeMap<>();
+            Iterator<Map.Entry<String, JsonNode>> fields = result.path("params").fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> param = fields.next();
+                params.put(param.getKey(), param.getValue().asText());
+            }
+            params.forEach((name, value) -> key.append(", ").append(name).append('=').append(value));
+            results.put(key.append(']').toString(), result);
+        }
+        return results;
+    }
+
+    private static JsonNode allocation(JsonNode result) {
+        Iterator<Map.Entry<String, JsonNode>> metrics = result.path("secondaryMetrics").fields();
+        while (metrics.hasNext()) {
+            Map.Entry<String, JsonNode> metric = metrics.next();
+            // Older JMH versions prefix secondary metric names with a dot
+            if (metric.getKey().endsWith(ALLOCATION_METRIC)) {
+                return metric.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static double relativeChange(double base, double head) {
+        return base == 0 ? 0 : (head - base) / base;
+    }
+}
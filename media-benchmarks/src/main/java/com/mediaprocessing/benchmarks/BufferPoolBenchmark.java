@@ -0,0 +1,59 @@
+package com.mediaprocessing.benchmarks;
+
+import com.mediaprocessing.common.service.ImageProcessingService;
+import com.mediaprocessing.common.service.RasterBufferPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The pooled filter paths with and without {@link RasterBufferPool} reuse, on
+ * several threads as in a busy worker. Compare {@code gc.alloc.rate.norm}
+ * between the two {@code pooled} values.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g", "-Djava.awt.headless=true"})
+public class BufferPoolBenchmark {
+
+    @Param({"true", "false"})
+    public boolean pooled;
+
+    private ImageProcessingService service;
+    private byte[] image;
+
+    @Setup
+    public void setUp() {
+        // A pool that retains nothing allocates every buffer, like the code before pooling
+        service = new ImageProcessingService(pooled
+                ? new RasterBufferPool(512L * 1024 * 1024, 4)
+                : new RasterBufferPool(0, 1));
+        image = MediaCorpus.image(MediaCorpus.Resolution.FHD, "png");
+    }
+
+    @Benchmark
+    public byte[] grayscale() throws IOException {
+        return service.applyFilter(image, "grayscale");
+    }
+
+    @Benchmark
+    public byte[] sepia() throws IOException {
+        return service.applyFilter(image, "sepia");
+    }
+}
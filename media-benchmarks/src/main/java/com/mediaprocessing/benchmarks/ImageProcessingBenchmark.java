@@ -0,0 +1,90 @@
+package com.mediaprocessing.benchmarks;
+
+import com.mediaprocessing.common.service.ImageProcessingService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every {@link ImageProcessingService} operation on the corpus images.
+ * Throughput and sampled latency (with percentiles) are measured together.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g", "-Djava.awt.headless=true"})
+public class ImageProcessingBenchmark {
+
+    @Param({"SD", "FHD", "UHD"})
+    public MediaCorpus.Resolution resolution;
+
+    @Param({"jpg", "png"})
+    public String format;
+
+    private ImageProcessingService service;
+    private byte[] image;
+
+    @Setup
+    public void setUp() {
+        service = new ImageProcessingService();
+        image = MediaCorpus.image(resolution, format);
+    }
+
+    @Benchmark
+    public byte[] thumbnail() throws IOException {
+        return service.generateThumbnail(image, 200, 200);
+    }
+
+    @Benchmark
+    public byte[] thumbnailWebp() throws IOException {
+        return service.generateThumbnail(image, 200, 200, "webp", -1);
+    }
+
+    @Benchmark
+    public byte[] watermark() throws IOException {
+        return service.addWatermark(image, "Benchmark");
+    }
+
+    @Benchmark
+    public byte[] resize() throws IOException {
+        return service.resizeImage(image, 1280, 720);
+    }
+
+    @Benchmark
+    public byte[] filterGrayscale() throws IOException {
+        return service.applyFilter(image, "grayscale");
+    }
+
+    @Benchmark
+    public byte[] filterSepia() throws IOException {
+        return service.applyFilter(image, "sepia");
+    }
+
+    @Benchmark
+    public byte[] filterBlur() throws IOException {
+        return service.applyFilter(image, "blur");
+    }
+
+    @Benchmark
+    public byte[] convertToWebp() throws IOException {
+        return service.convertFormat(image, "webp");
+    }
+
+    @Benchmark
+    public byte[] convertToJpeg() throws IOException {
+        return service.convertFormat(image, "jpg");
+    }
+}
@@ -0,0 +1,202 @@
+package com.mediaprocessing.benchmarks;
+
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Java2DFrameConverter;
+
+import javax.imageio.ImageIO;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ShortBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Synthetic images and videos for the benchmarks, generated from a fixed seed
+ * so every run and every commit measures the same content. Images are a
+ * gradient with overlapping shapes, text and sensor-like noise, so they
+ * compress roughly like photos rather than flat test patterns. Videos move the
+ * same kind of scene, cut to a new one every {@value #SCENE_SECONDS} seconds,
+ * and carry a sine tone as audio track. Generated media is cached per JVM.
+ */
+public final class MediaCorpus {
+
+    public static final long SEED = 20240601L;
+
+    private static final int FRAME_RATE = 30;
+    private static final int SCENE_SECONDS = 2;
+    private static final int SAMPLE_RATE = 44100;
+
+    private static final Map<String, byte[]> CACHE = new ConcurrentHashMap<>();
+
+    /**
+     * Image and video resolutions covered by the benchmarks.
+     */
+    public enum Resolution {
+        SD(640, 480),
+        HD(1280, 720),
+        FHD(1920, 1080),
+        UHD(3840, 2160);
+
+        private final int width;
+        private final int height;
+
+        Resolution(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+    }
+
+    private MediaCorpus() {
+    }
+
+    /**
+     * An encoded image ("jpg", "png" or "webp") at the given resolution.
+     */
+    public static byte[] image(Resolution resolution, String format) {
+        return CACHE.computeIfAbsent("image:" + resolution + ":" + format,
+                key -> encode(render(resolution.getWidth(), resolution.getHeight(), new Random(SEED), 0), format));
+    }
+
+    /**
+     * An H.264/AAC MP4 of the given length at {@value #FRAME_RATE} fps.
+     */
+    public static byte[] video(Resolution resolution, int seconds) {
+        return CACHE.computeIfAbsent("video:" + resolution + ":" + seconds, key -> encodeVideo(resolution, seconds));
+    }
+
+    private static BufferedImage render(int width, int height, Random random, int phase) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = image.createGraphics();
+        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g2d.setPaint(new GradientPaint(0, 0, randomColor(random), width, height, randomColor(random)));
+        g2d.fillRect(0, 0, width, height);
+
+        // Shapes drift with the phase so consecutive frames differ like camera motion
+        int shapes = 24;
+        for (int i = 0; i < shapes; i++) {
+            g2d.setColor(new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256), 96 + random.nextInt(160)));
+            int size = width / 20 + random.nextInt(width / 5);
+            int x = Math.floorMod(random.nextInt(width) + phase * (random.nextInt(9) - 4), width);
+            int y = Math.floorMod(random.nextInt(height) + phase * (random.nextInt(9) - 4), height);
+            switch (i % 3) {
+                case 0:
+                    g2d.fillOval(x - size / 2, y - size / 2, size, size);
+                    break;
+                case 1:
+                    g2d.fillRect(x - size / 2, y - size / 3, size, size * 2 / 3);
+                    break;
+                default:
+                    g2d.setStroke(new BasicStroke(2 + random.nextInt(8)));
+                    g2d.drawLine(x, y, x + random.nextInt(width / 3), y + random.nextInt(height / 3));
+            }
+        }
+        g2d.setColor(Color.WHITE);
+        g2d.setFont(new Font(Font.SANS_SERIF, Font.BOLD, Math.max(12, height / 18)));
+        g2d.drawString("Media benchmark corpus", width / 12, height - height / 10);
+        g2d.dispose();
+
+        // Low-amplitude noise, the part real photos have and flat fills don't
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                int noise = random.nextInt(13) - 6;
+                int r = clamp(((row[x] >> 16) & 0xFF) + noise);
+                int g = clamp(((row[x] >> 8) & 0xFF) + noise);
+                int b = clamp((row[x] & 0xFF) + noise);
+                row[x] = (r << 16) | (g << 8) | b;
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return image;
+    }
+
+    private static byte[] encode(BufferedImage image, String format) {
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            if (!ImageIO.write(image, format, outputStream)) {
+                throw new IllegalArgumentException("No image writer available for format: " + format);
+            }
+            return outputStream.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static byte[] encodeVideo(Resolution resolution, int seconds) {
+        Path output = null;
+        try {
+            output = Files.createTempFile("corpus", ".mp4");
+            FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(
+                    output.toFile(), resolution.getWidth(), resolution.getHeight(), 1);
+            recorder.setFormat("mp4");
+            recorder.setVideoCodec(avcodec.AV_CODEC_ID_H264);
+            recorder.setVideoOption("preset", "veryfast");
+            recorder.setVideoOption("crf", "23");
+            recorder.setFrameRate(FRAME_RATE);
+            recorder.setGopSize(FRAME_RATE * SCENE_SECONDS);
+            recorder.setAudioCodec(avcodec.AV_CODEC_ID_AAC);
+            recorder.setSampleRate(SAMPLE_RATE);
+            recorder.setAudioBitrate(128000);
+            recorder.start();
+
+            Java2DFrameConverter converter = new Java2DFrameConverter();
+            int samplesPerFrame = SAMPLE_RATE / FRAME_RATE;
+            short[] samples = new short[samplesPerFrame];
+            long sample = 0;
+            try {
+                for (int frame = 0; frame < seconds * FRAME_RATE; frame++) {
+                    // Same seed within a scene, so only the phase moves the shapes
+                    int scene = frame / (FRAME_RATE * SCENE_SECONDS);
+                    int phase = frame % (FRAME_RATE * SCENE_SECONDS);
+                    recorder.record(converter.convert(render(resolution.getWidth(), resolution.getHeight(),
+                            new Random(SEED + scene), phase)));
+
+                    for (int i = 0; i < samplesPerFrame; i++, sample++) {
+                        samples[i] = (short) (8000 * Math.sin(2 * Math.PI * (440 + 110 * scene) * sample / SAMPLE_RATE));
+                    }
+                    recorder.recordSamples(SAMPLE_RATE, 1, ShortBuffer.wrap(samples));
+                }
+            } finally {
+                recorder.stop();
+                recorder.release();
+                converter.close();
+            }
+            return Files.readAllBytes(output);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            if (output != null) {
+                output.toFile().delete();
+            }
+        }
+    }
+
+    private static Color randomColor(Random random) {
+        return new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256));
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+}
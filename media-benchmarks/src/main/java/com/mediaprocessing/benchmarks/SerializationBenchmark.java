@@ -0,0 +1,155 @@
+package com.mediaprocessing.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mediaprocessing.common.model.ProcessingRequest;
+import com.mediaprocessing.common.model.ProcessingRequestCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ProcessingRequest} queue messages: JSON, Base64-encoded into the
+ * queue message as {@code MediaService} sends them, against the compact
+ * format, one request at a time and as a batch of {@value #BATCH_SIZE}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    static final int BATCH_SIZE = 100;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private ProcessingRequest request;
+    private List<ProcessingRequest> batch;
+    private String json;
+    private String message;
+    private byte[] compact;
+    private String compactMessage;
+    private List<String> jsonBatchMessages;
+    private List<String> compactBatchMessages;
+
+    @Setup
+    public void setUp() throws IOException {
+        request = request("0b7f6a52-54c4-4c3e-9d39-2f0f8a0c1d7e");
+        json = objectMapper.writeValueAsString(request);
+        message = Base64.getEncoder().encodeToString(json.getBytes(StandardCharsets.UTF_8));
+        compact = ProcessingRequestCodec.encode(request);
+        compactMessage = Base64.getEncoder().encodeToString(compact);
+
+        batch = new ArrayList<>();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch.add(request(new UUID(0x0b7f6a5254c44c3eL, i).toString()));
+        }
+        jsonBatchMessages = encodeJsonBatch();
+        compactBatchMessages = encodeCompactBatch();
+    }
+
+    private static ProcessingRequest request(String mediaId) {
+        return ProcessingRequest.builder()
+                .mediaId(mediaId)
+                .blobName(mediaId + "-holiday-video.mp4")
+                .containerName("media")
+                .processingType(ProcessingRequest.ProcessingType.VIDEO_COMPRESS)
+                .parameters(Map.of("profile", "medium", "maxHeight", "720"))
+                .enqueuedAt(1717200000000L)
+                .traceContext(Map.of("traceparent", "00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01"))
+                .build();
+    }
+
+    @Benchmark
+    public String writeJson() throws IOException {
+        return objectMapper.writeValueAsString(request);
+    }
+
+    @Benchmark
+    public ProcessingRequest readJson() throws IOException {
+        return objectMapper.readValue(json, ProcessingRequest.class);
+    }
+
+    @Benchmark
+    public String encodeMessage() throws IOException {
+        return Base64.getEncoder().encodeToString(
+                objectMapper.writeValueAsString(request).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public ProcessingRequest decodeMessage() throws IOException {
+        return objectMapper.readValue(Base64.getDecoder().decode(message), ProcessingRequest.class);
+    }
+
+    @Benchmark
+    public byte[] writeCompact() {
+        return ProcessingRequestCodec.encode(request);
+    }
+
+    @Benchmark
+    public List<ProcessingRequest> readCompact() throws IOException {
+        return ProcessingRequestCodec.decode(compact);
+    }
+
+    @Benchmark
+    public String encodeCompactMessage() {
+        return Base64.getEncoder().encodeToString(ProcessingRequestCodec.encode(request));
+    }
+
+    @Benchmark
+    public List<ProcessingRequest> decodeCompactMessage() throws IOException {
+        return ProcessingRequestCodec.decode(Base64.getDecoder().decode(compactMessage));
+    }
+
+    @Benchmark
+    public List<String> encodeJsonBatch() throws IOException {
+        List<String> messages = new ArrayList<>(batch.size());
+        for (ProcessingRequest item : batch) {
+            messages.add(Base64.getEncoder().encodeToString(objectMapper.writeValueAsBytes(item)));
+        }
+        return messages;
+    }
+
+    @Benchmark
+    public List<ProcessingRequest> decodeJsonBatch() throws IOException {
+        List<ProcessingRequest> requests = new ArrayList<>(jsonBatchMessages.size());
+        for (String item : jsonBatchMessages) {
+            requests.add(objectMapper.readValue(Base64.getDecoder().decode(item), ProcessingRequest.class));
+        }
+        return requests;
+    }
+
+    @Benchmark
+    public List<String> encodeCompactBatch() {
+        List<String> messages = new ArrayList<>();
+        for (byte[] body : ProcessingRequestCodec.encodeBatches(batch)) {
+            messages.add(Base64.getEncoder().encodeToString(body));
+        }
+        return messages;
+    }
+
+    @Benchmark
+    public List<ProcessingRequest> decodeCompactBatch() throws IOException {
+        List<ProcessingRequest> requests = new ArrayList<>(batch.size());
+        for (String item : compactBatchMessages) {
+            requests.addAll(ProcessingRequestCodec.decode(Base64.getDecoder().decode(item)));
+        }
+        return requests;
+    }
+}
@@ -0,0 +1,80 @@
+package com.mediaprocessing.benchmarks;
+
+import com.azure.ai.vision.imageanalysis.models.VisualFeatures;
+import com.mediaprocessing.common.service.AnalysisInputNormalizer;
+import com.mediaprocessing.common.service.ContentModerationService;
+import com.mediaprocessing.common.service.MediaMetadataProber;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The work done inline on every upload before any rendition: header probing,
+ * content moderation with the skin-tone heuristic, and downscaling for
+ * Computer Vision.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g", "-Djava.awt.headless=true"})
+public class UploadPathBenchmark {
+
+    @Param({"SD", "FHD", "UHD"})
+    public MediaCorpus.Resolution resolution;
+
+    private MediaMetadataProber prober;
+    private ContentModerationService moderationService;
+    private AnalysisInputNormalizer normalizer;
+    private byte[] image;
+    private byte[] video;
+
+    @Setup
+    public void setUp() {
+        prober = new MediaMetadataProber();
+        moderationService = new ContentModerationService(0.5);
+        // Same limits as the AzureAiConfig defaults
+        normalizer = new AnalysisInputNormalizer(prober, 2_000_000, 10_000_000);
+        image = MediaCorpus.image(resolution, "jpg");
+        video = MediaCorpus.video(MediaCorpus.Resolution.SD, VideoProcessingBenchmark.VIDEO_SECONDS);
+    }
+
+    @Benchmark
+    public Map<String, String> probeImage() {
+        return prober.probe(image);
+    }
+
+    @Benchmark
+    public Map<String, String> probeVideo() {
+        return prober.probe(video);
+    }
+
+    @Benchmark
+    public Map<String, Object> moderateImage() throws IOException {
+        return moderationService.moderateImage(image);
+    }
+
+    @Benchmark
+    public AnalysisInputNormalizer.NormalizedImage normalizeForTags() {
+        return normalizer.normalize(image, List.of(VisualFeatures.TAGS));
+    }
+
+    @Benchmark
+    public AnalysisInputNormalizer.NormalizedImage normalizeForRead() {
+        return normalizer.normalize(image, List.of(VisualFeatures.READ));
+    }
+}
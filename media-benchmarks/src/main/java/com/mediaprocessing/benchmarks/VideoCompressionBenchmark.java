@@ -0,0 +1,51 @@
+package com.mediaprocessing.benchmarks;
+
+import com.mediaprocessing.common.model.EncodingProfile;
+import com.mediaprocessing.common.service.VideoProcessingService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code compressVideo} for each encoding profile, the most CPU-bound video
+ * path and the one whose presets are tuned.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g", "-Djava.awt.headless=true"})
+public class VideoCompressionBenchmark {
+
+    @Param({"SD", "HD"})
+    public MediaCorpus.Resolution resolution;
+
+    @Param({"PREVIEW", "LOW", "MEDIUM", "HIGH", "ARCHIVE"})
+    public EncodingProfile profile;
+
+    private VideoProcessingService service;
+    private byte[] video;
+
+    @Setup
+    public void setUp() {
+        service = new VideoProcessingService();
+        video = MediaCorpus.video(resolution, VideoProcessingBenchmark.VIDEO_SECONDS);
+    }
+
+    @Benchmark
+    public byte[] compress() throws IOException {
+        return service.compressVideo(video, profile);
+    }
+}
@@ -0,0 +1,78 @@
+package com.mediaprocessing.benchmarks;
+
+import com.mediaprocessing.common.service.VideoProcessingService;
+import org.jcodec.api.JCodecException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every {@link VideoProcessingService} operation except compression, which
+ * {@link VideoCompressionBenchmark} covers per profile. A call takes seconds,
+ * so each is timed as a single shot.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g", "-Djava.awt.headless=true"})
+public class VideoProcessingBenchmark {
+
+    static final int VIDEO_SECONDS = 6;
+
+    @Param({"SD", "HD"})
+    public MediaCorpus.Resolution resolution;
+
+    private VideoProcessingService service;
+    private byte[] video;
+
+    @Setup
+    public void setUp() {
+        service = new VideoProcessingService();
+        video = MediaCorpus.video(resolution, VIDEO_SECONDS);
+    }
+
+    @Benchmark
+    public byte[] thumbnail() throws IOException, JCodecException {
+        return service.extractThumbnail(video);
+    }
+
+    @Benchmark
+    public byte[] watermark() throws IOException {
+        return service.addWatermarkToVideo(video, "Benchmark");
+    }
+
+    @Benchmark
+    public byte[] audio() throws IOException {
+        return service.extractAudio(video);
+    }
+
+    @Benchmark
+    public byte[] preview() throws IOException {
+        return service.createPreviewClip(video, 3);
+    }
+
+    @Benchmark
+    public Map<String, byte[]> hls() throws IOException {
+        return service.createHlsPackage(video, List.of(360, 720), 2);
+    }
+
+    @Benchmark
+    public Map<String, byte[]> sprite() throws IOException {
+        return service.createSpriteSheets(video, 1, 160, 5, 5);
+    }
+}
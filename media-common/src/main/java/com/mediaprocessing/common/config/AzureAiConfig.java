@@ -1,5 +1,6 @@
 package com.mediaprocessing.common.config;
 
+import com.azure.ai.vision.imageanalysis.ImageAnalysisAsyncClient;
 import com.azure.ai.vision.imageanalysis.ImageAnalysisClient;
 import com.azure.ai.vision.imageanalysis.ImageAnalysisClientBuilder;
 import com.azure.ai.textanalytics.TextAnalyticsClient;
@@ -17,6 +18,18 @@ public class AzureAiConfig {
     private String textAnalyticsKey;
     private String formRecognizerEndpoint;
     private String formRecognizerKey;
+    // Overall budget for one image analysis, across all its feature calls
+    private long analysisDeadlineMillis = 10000;
+    // A call still running after this long is raced against a duplicate; 0 disables hedging
+    private long hedgeDelayMillis = 3000;
+    // Images are downscaled to at most this many pixels before analysis; READ gets the larger limit
+    private long analysisMaxPixels = 2_000_000;
+    private long readMaxPixels = 10_000_000;
+    // Video analysis: distinct frames analyzed at once, cap on distinct frames,
+    // and how many of the 64 perceptual-hash bits may differ for frames to count as the same
+    private int videoFrameConcurrency = 4;
+    private int videoMaxFrames = 50;
+    private int videoHashThreshold = 10;
     
     public ImageAnalysisClient createImageAnalysisClient() {
         return new ImageAnalysisClientBuilder()
@@ -25,6 +38,13 @@ public class AzureAiConfig {
                 .buildClient();
     }
     
+    public ImageAnalysisAsyncClient createImageAnalysisAsyncClient() {
+        return new ImageAnalysisClientBuilder()
+                .endpoint(computerVisionEndpoint)
+                .credential(new AzureKeyCredential(computerVisionKey))
+                .buildAsyncClient();
+    }
+    
     public TextAnalyticsClient createTextAnalyticsClient() {
         return new TextAnalyticsClientBuilder()
                 .endpoint(textAnalyticsEndpoint)
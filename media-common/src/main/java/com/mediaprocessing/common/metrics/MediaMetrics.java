@@ -0,0 +1,149 @@
+package com.mediaprocessing.common.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Micrometer meters for the processing paths. Everything is registered on the
+ * global registry: Spring Boot adds its registries to it in the web app, and
+ * the functions add the one named by their {@code MetricsRegistry} setting.
+ * With no registry added, recording is a no-op.
+ * <p>
+ * Timers publish histograms up to {@value #MAX_EXPECTED_MINUTES} minutes, so
+ * latency percentiles can be aggregated across instances. Tags are given as
+ * alternating keys and values.
+ */
+public final class MediaMetrics {
+
+    public static final String SUCCESS = "success";
+    public static final String ERROR = "error";
+
+    private static final long MAX_EXPECTED_MINUTES = 10;
+    private static final long KB = 1024;
+    private static final long MB = 1024 * KB;
+
+    /**
+     * A unit of work that may throw a checked exception.
+     */
+    @FunctionalInterface
+    public interface Operation<T, E extends Exception> {
+        T run() throws E;
+    }
+
+    private MediaMetrics() {
+    }
+
+    public static MeterRegistry registry() {
+        return Metrics.globalRegistry;
+    }
+
+    /**
+     * Runs {@code operation} and records its duration under {@code name},
+     * tagged with an {@code outcome} of success or error.
+     */
+    public static <T, E extends Exception> T time(String name, Operation<T, E> operation, String... tags) throws E {
+        Timer.Sample sample = Timer.start(registry());
+        String outcome = ERROR;
+        try {
+            T result = operation.run();
+            outcome = SUCCESS;
+            return result;
+        } finally {
+            stop(sample, name, withTag(tags, "outcome", outcome));
+        }
+    }
+
+    public static Timer.Sample start() {
+        return Timer.start(registry());
+    }
+
+    public static void stop(Timer.Sample sample, String name, String... tags) {
+        sample.stop(timer(name, tags));
+    }
+
+    public static void record(String name, Duration duration, String... tags) {
+        timer(name, tags).record(duration);
+    }
+
+    public static void bytes(String name, long bytes, String... tags) {
+        DistributionSummary.builder(name)
+                .baseUnit("bytes")
+                .tags(tags)
+                .publishPercentileHistogram()
+                .minimumExpectedValue((double) KB)
+                .maximumExpectedValue((double) (4096 * MB))
+                .register(registry())
+                .record(bytes);
+    }
+
+    public static void count(String name, String... tags) {
+        Counter.builder(name).tags(tags).register(registry()).increment();
+    }
+
+    /**
+     * Exposes every numeric entry of a component's stats map as a gauge named
+     * {@code prefix.entry}, e.g. {@code media.governor.heap.used} for
+     * {@code heapUsed}. The map is read on each scrape.
+     */
+    public static void registerStats(String prefix, Supplier<Map<String, Object>> stats, String... tags) {
+        registerStats(registry(), prefix, stats, tags);
+    }
+
+    public static void registerStats(MeterRegistry registry, String prefix, Supplier<Map<String, Object>> stats,
+                                     String... tags) {
+        for (Map.Entry<String, Object> entry : stats.get().entrySet()) {
+            if (!(entry.getValue() instanceof Number)) {
+                continue;
+            }
+            String key = entry.getKey();
+            String name = prefix + "." + key.replaceAll("([a-z0-9])([A-Z])", "$1.$2").toLowerCase();
+            Gauge.builder(name, stats, supplier -> {
+                        Object value = supplier.get().get(key);
+                        return value instanceof Number ? ((Number) value).doubleValue() : Double.NaN;
+                    })
+                    .tags(tags)
+                    .strongReference(true)
+                    .register(registry);
+        }
+    }
+
+    /**
+     * Coarse size class for tagging, so series stay few whatever the input.
+     */
+    public static String sizeBucket(long bytes) {
+        if (bytes < 100 * KB) {
+            return "<100KB";
+        } else if (bytes < MB) {
+            return "100KB-1MB";
+        } else if (bytes < 10 * MB) {
+            return "1-10MB";
+        } else if (bytes < 100 * MB) {
+            return "10-100MB";
+        }
+        return ">100MB";
+    }
+
+    private static Timer timer(String name, String... tags) {
+        return Timer.builder(name)
+                .tags(tags)
+                .publishPercentileHistogram()
+                .maximumExpectedValue(Duration.ofMinutes(MAX_EXPECTED_MINUTES))
+                .register(registry());
+    }
+
+    private static String[] withTag(String[] tags, String key, String value) {
+        String[] all = new String[tags.length + 2];
+        System.arraycopy(tags, 0, all, 0, tags.length);
+        all[tags.length] = key;
+        all[tags.length + 1] = value;
+        return all;
+    }
+}
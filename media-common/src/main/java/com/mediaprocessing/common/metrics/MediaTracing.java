@@ -0,0 +1,178 @@
+package com.mediaprocessing.common.metrics;
+
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.common.AttributesBuilder;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.api.trace.propagation.W3CTraceContextPropagator;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.Scope;
+import io.opentelemetry.context.propagation.TextMapGetter;
+import io.opentelemetry.context.propagation.TextMapPropagator;
+import io.opentelemetry.exporter.logging.otlp.OtlpJsonLoggingSpanExporter;
+import io.opentelemetry.exporter.otlp.http.trace.OtlpHttpSpanExporter;
+import io.opentelemetry.sdk.resources.Resource;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.export.BatchSpanProcessor;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * OpenTelemetry spans for the processing paths. Until {@link #configure}
+ * installs an exporter every call is a no-op, so the services trace
+ * unconditionally and the web app and functions decide whether spans go
+ * anywhere.
+ * <p>
+ * The trace context crosses the queue inside {@code ProcessingRequest}, so a
+ * function's spans join the trace of the upload or API call that queued the
+ * work. Attributes are given as alternating keys and values, like metric tags.
+ */
+@Slf4j
+public final class MediaTracing {
+
+    public static final String BYTES_IN = "media.bytes.in";
+    public static final String BYTES_OUT = "media.bytes.out";
+    public static final String FRAMES = "media.frames";
+
+    private static final String INSTRUMENTATION_NAME = "com.mediaprocessing";
+
+    // Fixed rather than taken from the SDK, so a message can be read before the exporter is configured
+    private static final TextMapPropagator PROPAGATOR = W3CTraceContextPropagator.getInstance();
+
+    private static final TextMapGetter<Map<String, String>> MAP_GETTER = new TextMapGetter<>() {
+        @Override
+        public Iterable<String> keys(Map<String, String> carrier) {
+            return carrier.keySet();
+        }
+
+        @Override
+        public String get(Map<String, String> carrier, String key) {
+            return carrier != null ? carrier.get(key) : null;
+        }
+    };
+
+    private static volatile Tracer tracer = OpenTelemetry.noop().getTracer(INSTRUMENTATION_NAME);
+    private static boolean configured;
+
+    private MediaTracing() {
+    }
+
+    /**
+     * Installs an SDK exporting to {@code exporter}: "otlp" (OTLP over HTTP to
+     * {@code endpoint}, e.g. a local collector's
+     * {@code http://localhost:4318/v1/traces}), "logging" (OTLP JSON, one line
+     * per batch, logged by {@code OtlpJsonLoggingSpanExporter}, which a
+     * collector's file receiver can read) or "none". Only the first call in a
+     * JVM installs anything; returns false if this one did not.
+     */
+    public static synchronized boolean configure(String exporter, String endpoint, String serviceName) {
+        if (configured) {
+            log.debug("Tracing already configured, ignoring exporter '{}' for {}", exporter, serviceName);
+            return false;
+        }
+        SpanExporter spanExporter;
+        switch (exporter.toLowerCase()) {
+            case "otlp":
+                spanExporter = OtlpHttpSpanExporter.builder().setEndpoint(endpoint).build();
+                break;
+            case "logging":
+                spanExporter = OtlpJsonLoggingSpanExporter.create();
+                break;
+            case "none":
+                return false;
+            default:
+                log.warn("Unknown tracing exporter '{}', spans are not exported", exporter);
+                return false;
+        }
+        SdkTracerProvider tracerProvider = SdkTracerProvider.builder()
+                .setResource(Resource.getDefault().merge(Resource.create(
+                        Attributes.of(AttributeKey.stringKey("service.name"), serviceName))))
+                .addSpanProcessor(BatchSpanProcessor.builder(spanExporter).build())
+                .build();
+        // Flush spans still batched when the worker or app shuts down
+        Runtime.getRuntime().addShutdownHook(new Thread(tracerProvider::close, "tracing-shutdown"));
+        tracer = tracerProvider.get(INSTRUMENTATION_NAME);
+        configured = true;
+        log.info("Exporting traces for {} via {}", serviceName, exporter);
+        return true;
+    }
+
+    /**
+     * Runs {@code operation} in an internal span named {@code name}, a child
+     * of the current span, marking the span as an error if it throws.
+     */
+    public static <T, E extends Exception> T trace(String name, MediaMetrics.Operation<T, E> operation,
+                                                   String... attributes) throws E {
+        Span span = start(name, SpanKind.INTERNAL, Context.current(), attributes);
+        try (Scope ignored = span.makeCurrent()) {
+            return operation.run();
+        } catch (Exception e) {
+            fail(span, e);
+            throw e;
+        } finally {
+            span.end();
+        }
+    }
+
+    /**
+     * Starts a span under {@code parent} for callers that need the span
+     * across a boundary, such as a queue send; the caller makes it current
+     * and ends it.
+     */
+    public static Span start(String name, SpanKind kind, Context parent, String... attributes) {
+        AttributesBuilder builder = Attributes.builder();
+        for (int i = 0; i + 1 < attributes.length; i += 2) {
+            builder.put(attributes[i], attributes[i + 1]);
+        }
+        return tracer.spanBuilder(name)
+                .setSpanKind(kind)
+                .setParent(parent)
+                .setAllAttributes(builder.build())
+                .startSpan();
+    }
+
+    /**
+     * Marks {@code span} as failed by {@code error}.
+     */
+    public static void fail(Span span, Throwable error) {
+        span.recordException(error);
+        span.setStatus(StatusCode.ERROR, String.valueOf(error.getMessage()));
+    }
+
+    /**
+     * Adds a numeric attribute, such as a byte or frame count, to the current span.
+     */
+    public static void attribute(String key, long value) {
+        Span.current().setAttribute(key, value);
+    }
+
+    public static void attribute(String key, String value) {
+        Span.current().setAttribute(key, value);
+    }
+
+    /**
+     * The current trace context as W3C headers, to carry in a queue message.
+     */
+    public static Map<String, String> inject() {
+        Map<String, String> carrier = new HashMap<>();
+        PROPAGATOR.inject(Context.current(), carrier, Map::put);
+        return carrier;
+    }
+
+    /**
+     * The context carried by a message, or the root context if it has none.
+     */
+    public static Context extract(Map<String, String> carrier) {
+        if (carrier == null || carrier.isEmpty()) {
+            return Context.root();
+        }
+        return PROPAGATOR.extract(Context.root(), carrier, MAP_GETTER);
+    }
+}
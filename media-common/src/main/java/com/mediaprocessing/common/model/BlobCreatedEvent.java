@@ -0,0 +1,65 @@
+package com.mediaprocessing.common.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.OffsetDateTime;
+
+/**
+ * A {@code Microsoft.Storage.BlobCreated} notification in the Event Grid
+ * schema, as pushed by Event Grid or written to the upload event queue.
+ * Only the fields the dispatcher uses are mapped.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class BlobCreatedEvent {
+
+    public static final String BLOB_CREATED = "Microsoft.Storage.BlobCreated";
+    public static final String CONTAINER_PREFIX = "/blobServices/default/containers/";
+    public static final String BLOB_SEPARATOR = "/blobs/";
+
+    private String id;
+    private String eventType;
+    // CONTAINER_PREFIX + container + BLOB_SEPARATOR + blob name
+    private String subject;
+    // ISO-8601, when the blob was committed
+    private String eventTime;
+    private BlobData data;
+
+    @Data
+    @Builder
+    @NoArgsConstructor
+    @AllArgsConstructor
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class BlobData {
+        private String api;
+        private String url;
+        private String contentType;
+        private long contentLength;
+        @JsonProperty("eTag")
+        private String etag;
+    }
+
+    /**
+     * The container, from the subject, which unlike the URL does not vary
+     * with the endpoint and is not percent-encoded.
+     */
+    public String containerName() {
+        return subject.substring(CONTAINER_PREFIX.length(), subject.indexOf(BLOB_SEPARATOR));
+    }
+
+    public String blobName() {
+        return subject.substring(subject.indexOf(BLOB_SEPARATOR) + BLOB_SEPARATOR.length());
+    }
+
+    public long eventTimeMillis() {
+        return eventTime != null ? OffsetDateTime.parse(eventTime).toInstant().toEpochMilli() : 0;
+    }
+}
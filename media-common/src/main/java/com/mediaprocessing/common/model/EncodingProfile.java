@@ -0,0 +1,50 @@
+package com.mediaprocessing.common.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.Map;
+
+/**
+ * Named video encoding profiles used by {@code VideoProcessingService.compressVideo}.
+ * Each profile trades encoder CPU time against output size: faster presets and
+ * higher CRF values encode quicker but produce larger or lower-quality files.
+ */
+@Getter
+@AllArgsConstructor
+public enum EncodingProfile {
+    // codec, preset, crf, maxBitrate (VBV, 0 = unconstrained), threads (0 = auto), gopSeconds, maxHeight (0 = source)
+    PREVIEW(Codec.H264, "ultrafast", 30, 500000, 0, 1, 360),
+    LOW(Codec.H264, "veryfast", 28, 800000, 0, 2, 480),
+    MEDIUM(Codec.H264, "medium", 23, 2000000, 0, 2, 720),
+    HIGH(Codec.H264, "slow", 20, 5000000, 0, 2, 1080),
+    ARCHIVE(Codec.H265, "medium", 26, 0, 0, 4, 0);
+
+    private final Codec codec;
+    private final String preset;
+    private final int crf;
+    private final int maxBitrate;
+    private final int threads;
+    private final int gopSeconds;
+    private final int maxHeight;
+
+    public enum Codec {
+        H264,
+        H265
+    }
+
+    /**
+     * Resolves a profile from request parameters: {@code profile} takes precedence,
+     * then the legacy {@code quality} (low/medium/high), defaulting to {@link #MEDIUM}.
+     *
+     * @throws IllegalArgumentException if the named profile does not exist
+     */
+    public static EncodingProfile fromParameters(Map<String, String> parameters) {
+        String name = parameters.getOrDefault("profile", parameters.getOrDefault("quality", "medium"));
+        try {
+            return valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown encoding profile: " + name);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.mediaprocessing.common.model;
+
+import lombok.Getter;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * The ladder and segment length of an HLS package made by
+ * {@code VideoProcessingService.createHlsPackage}. Rendition heights are
+ * de-duplicated and kept tallest first, so no two rungs write the same
+ * playlist. Out-of-range values are rejected here, before any video is
+ * decoded.
+ */
+@Getter
+public class HlsSpec {
+
+    private static final int MAX_SEGMENT_SECONDS = 60;
+    private static final int MAX_HEIGHT = 4320;
+
+    private final List<Integer> renditionHeights;
+    private final int segmentSeconds;
+
+    /**
+     * @throws IllegalArgumentException if there are no heights, or a height or the segment length is out of range
+     */
+    public HlsSpec(List<Integer> renditionHeights, int segmentSeconds) {
+        if (renditionHeights == null || renditionHeights.isEmpty()) {
+            throw new IllegalArgumentException("HLS needs at least one rendition height");
+        }
+        for (int height : renditionHeights) {
+            if (height < 2 || height > MAX_HEIGHT) {
+                throw new IllegalArgumentException("HLS rendition heights must be between 2 and " + MAX_HEIGHT + ": " + height);
+            }
+        }
+        if (segmentSeconds < 1 || segmentSeconds > MAX_SEGMENT_SECONDS) {
+            throw new IllegalArgumentException("HLS segmentSeconds must be between 1 and " + MAX_SEGMENT_SECONDS
+                    + ": " + segmentSeconds);
+        }
+        this.renditionHeights = renditionHeights.stream()
+                .distinct()
+                .sorted(Comparator.reverseOrder())
+                .collect(Collectors.toUnmodifiableList());
+        this.segmentSeconds = segmentSeconds;
+    }
+
+    /**
+     * Reads the comma-separated {@code renditions} (default
+     * 1080,720,480,360) and {@code segmentSeconds} (default 4) from request
+     * parameters.
+     *
+     * @throws IllegalArgumentException if a value is not a number or out of range
+     */
+    public static HlsSpec fromParameters(Map<String, String> parameters) {
+        String renditions = parameters != null ? parameters.getOrDefault("renditions", "1080,720,480,360") : "1080,720,480,360";
+        String segmentSeconds = parameters != null ? parameters.getOrDefault("segmentSeconds", "4") : "4";
+        try {
+            return new HlsSpec(
+                    Arrays.stream(renditions.split(","))
+                            .map(String::trim)
+                            .filter(height -> !height.isEmpty())
+                            .map(Integer::valueOf)
+                            .collect(Collectors.toList()),
+                    Integer.parseInt(segmentSeconds.trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed HLS parameters: renditions=" + renditions
+                    + ", segmentSeconds=" + segmentSeconds);
+        }
+    }
+}
@@ -25,6 +25,9 @@ public class MediaItem {
     private List<String> processedUrls;
     private Map<String, String> metadata;
     private Map<String, Object> aiAnalysis;
+    // Set at upload; items flagged by the moderation model get no thumbnails or renditions until cleared
+    private Double moderationScore;
+    private boolean moderationFlagged;
     
     public enum MediaType {
         IMAGE,
@@ -17,6 +17,10 @@ public class ProcessingRequest {
     private String containerName;
     private ProcessingType processingType;
     private Map<String, String> parameters;
+    // Epoch millis when the request was queued, for measuring queue lag
+    private Long enqueuedAt;
+    // W3C trace context of the span that queued the request, e.g. traceparent
+    private Map<String, String> traceContext;
     
     public enum ProcessingType {
         THUMBNAIL,
@@ -29,10 +33,38 @@ public class ProcessingRequest {
         VIDEO_COMPRESS,
         AUDIO_EXTRACT,
         VIDEO_PREVIEW,
+        VIDEO_HLS,
+        VIDEO_SPRITE,
         IMAGE_ANALYSIS,
         FACE_DETECTION,
         OBJECT_RECOGNITION,
         TEXT_EXTRACTION,
-        CONTENT_MODERATION
+        CONTENT_MODERATION,
+        VIDEO_ANALYSIS;
+        
+        /**
+         * True for types that generate a derived image, video or audio file,
+         * which flagged content does not get.
+         */
+        public boolean isRendition() {
+            switch (this) {
+                case IMAGE_ANALYSIS:
+                case FACE_DETECTION:
+                case OBJECT_RECOGNITION:
+                case TEXT_EXTRACTION:
+                case CONTENT_MODERATION:
+                case VIDEO_ANALYSIS:
+                    return false;
+                default:
+                    return true;
+            }
+        }
+        
+        /**
+         * True for types that only apply to videos.
+         */
+        public boolean isVideo() {
+            return name().startsWith("VIDEO_") || this == AUDIO_EXTRACT;
+        }
     }
 }
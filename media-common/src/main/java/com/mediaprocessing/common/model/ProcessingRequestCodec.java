@@ -0,0 +1,309 @@
+package com.mediaprocessing.common.model;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and writes queue messages holding {@link ProcessingRequest}s, either
+ * as the JSON the queue has always carried or in a compact binary envelope of
+ * one or more requests. A compact message starts with {@link #MAGIC}, which
+ * never starts UTF-8 text, so both can share the queue and consumers accept
+ * either. Types are written as enum ordinals and common strings as indexes
+ * into {@link #TOKENS}; both are part of {@link #VERSION}, so new types and
+ * tokens may only be appended, and anything else needs a new version.
+ * <p>
+ * Layout: magic, version, request count, then for each request a byte of
+ * field flags followed by the present fields. Counts, lengths, ordinals and
+ * tokens are unsigned varints, {@code enqueuedAt} is 8 bytes big-endian and
+ * literal strings are UTF-8 after their length.
+ */
+public final class ProcessingRequestCodec {
+
+    public static final byte MAGIC = (byte) 0xFF;
+    public static final int VERSION = 1;
+    // Queue messages are at most 64 KB of Base64 text
+    public static final int MAX_MESSAGE_BYTES = 48 * 1024;
+
+    // Append only: a token's position is its code in version 1
+    static final List<String> TOKENS = List.of(
+            "media", "processed", "thumbnails",
+            "profile", "quality", "format", "width", "height", "text", "position", "opacity",
+            "interval", "duration", "renditions", "segmentSeconds", "tileWidth", "rows", "columns",
+            "grayscale", "effort", "features", "tags", "deadlineMs", "uploadThumbnail",
+            "true", "false", "low", "medium", "high", "jpg", "png", "webp",
+            "traceparent", "tracestate");
+
+    private static final Map<String, Integer> TOKEN_CODES = new HashMap<>();
+    private static final ProcessingRequest.ProcessingType[] TYPES = ProcessingRequest.ProcessingType.values();
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final ObjectReader JSON_READER = OBJECT_MAPPER.readerFor(ProcessingRequest.class);
+
+    private static final int MEDIA_ID = 1;
+    private static final int BLOB_NAME = 1 << 1;
+    private static final int CONTAINER_NAME = 1 << 2;
+    private static final int PROCESSING_TYPE = 1 << 3;
+    private static final int PARAMETERS = 1 << 4;
+    private static final int ENQUEUED_AT = 1 << 5;
+    private static final int TRACE_CONTEXT = 1 << 6;
+
+    static {
+        for (int i = 0; i < TOKENS.size(); i++) {
+            TOKEN_CODES.put(TOKENS.get(i), i + 1);
+        }
+    }
+
+    private ProcessingRequestCodec() {
+    }
+
+    /**
+     * The requests in a message body, compact or JSON.
+     *
+     * @throws IllegalArgumentException for a malformed compact message or an unknown version
+     */
+    public static List<ProcessingRequest> decode(byte[] message) throws IOException {
+        if (!isCompact(message)) {
+            ProcessingRequest request = JSON_READER.readValue(message);
+            return List.of(request);
+        }
+        ByteBuffer in = ByteBuffer.wrap(message);
+        try {
+            in.get();
+            int version = readVarint(in);
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported queue message version " + version);
+            }
+            int count = readVarint(in);
+            List<ProcessingRequest> requests = new ArrayList<>(Math.min(count, message.length));
+            for (int i = 0; i < count; i++) {
+                requests.add(readRequest(in));
+            }
+            return requests;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated queue message of " + message.length + " bytes");
+        }
+    }
+
+    public static boolean isCompact(byte[] message) {
+        return message.length > 0 && message[0] == MAGIC;
+    }
+
+    public static String toJson(ProcessingRequest request) throws IOException {
+        return OBJECT_MAPPER.writeValueAsString(request);
+    }
+
+    /**
+     * One request in a compact envelope of its own.
+     */
+    public static byte[] encode(ProcessingRequest request) {
+        byte[] encoded = encodeRequest(request);
+        return envelope(List.of(encoded), 3 + encoded.length);
+    }
+
+    /**
+     * Packs requests, in order, into as few compact messages of at most
+     * {@link #MAX_MESSAGE_BYTES} as they fit in.
+     *
+     * @throws IllegalArgumentException if one request alone does not fit
+     */
+    public static List<byte[]> encodeBatches(List<ProcessingRequest> requests) {
+        List<byte[]> messages = new ArrayList<>();
+        List<byte[]> batch = new ArrayList<>();
+        // Magic, version and the largest count varint that can fit
+        int header = 2 + varintLength(MAX_MESSAGE_BYTES);
+        int size = header;
+        for (ProcessingRequest request : requests) {
+            byte[] encoded = encodeRequest(request);
+            if (header + encoded.length > MAX_MESSAGE_BYTES) {
+                throw new IllegalArgumentException("Processing request for " + request.getBlobName()
+                        + " takes " + encoded.length + " bytes, over the queue message limit");
+            }
+            if (size + encoded.length > MAX_MESSAGE_BYTES) {
+                messages.add(envelope(batch, size));
+                batch = new ArrayList<>();
+                size = header;
+            }
+            batch.add(encoded);
+            size += encoded.length;
+        }
+        if (!batch.isEmpty()) {
+            messages.add(envelope(batch, size));
+        }
+        return messages;
+    }
+
+    private static byte[] envelope(List<byte[]> requests, int size) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+        out.write(MAGIC);
+        writeVarint(out, VERSION);
+        writeVarint(out, requests.size());
+        for (byte[] request : requests) {
+            out.writeBytes(request);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] encodeRequest(ProcessingRequest request) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+        int flags = (request.getMediaId() != null ? MEDIA_ID : 0)
+                | (request.getBlobName() != null ? BLOB_NAME : 0)
+                | (request.getContainerName() != null ? CONTAINER_NAME : 0)
+                | (request.getProcessingType() != null ? PROCESSING_TYPE : 0)
+                | (request.getParameters() != null ? PARAMETERS : 0)
+                | (request.getEnqueuedAt() != null ? ENQUEUED_AT : 0)
+                | (request.getTraceContext() != null ? TRACE_CONTEXT : 0);
+        out.write(flags);
+        if (request.getMediaId() != null) {
+            writeString(out, request.getMediaId());
+        }
+        if (request.getBlobName() != null) {
+            writeString(out, request.getBlobName());
+        }
+        if (request.getContainerName() != null) {
+            writeToken(out, request.getContainerName());
+        }
+        if (request.getProcessingType() != null) {
+            writeVarint(out, request.getProcessingType().ordinal());
+        }
+        if (request.getParameters() != null) {
+            writeMap(out, request.getParameters());
+        }
+        if (request.getEnqueuedAt() != null) {
+            out.writeBytes(ByteBuffer.allocate(Long.BYTES).putLong(request.getEnqueuedAt()).array());
+        }
+        if (request.getTraceContext() != null) {
+            writeMap(out, request.getTraceContext());
+        }
+        return out.toByteArray();
+    }
+
+    private static ProcessingRequest readRequest(ByteBuffer in) {
+        int flags = in.get() & 0xFF;
+        if ((flags & ~0x7F) != 0) {
+            throw new IllegalArgumentException("Unknown processing request fields " + flags);
+        }
+        ProcessingRequest request = new ProcessingRequest();
+        if ((flags & MEDIA_ID) != 0) {
+            request.setMediaId(readString(in));
+        }
+        if ((flags & BLOB_NAME) != 0) {
+            request.setBlobName(readString(in));
+        }
+        if ((flags & CONTAINER_NAME) != 0) {
+            request.setContainerName(readToken(in));
+        }
+        if ((flags & PROCESSING_TYPE) != 0) {
+            int ordinal = readVarint(in);
+            if (ordinal >= TYPES.length) {
+                throw new IllegalArgumentException("Unknown processing type " + ordinal);
+            }
+            request.setProcessingType(TYPES[ordinal]);
+        }
+        if ((flags & PARAMETERS) != 0) {
+            request.setParameters(readMap(in));
+        }
+        if ((flags & ENQUEUED_AT) != 0) {
+            request.setEnqueuedAt(in.getLong());
+        }
+        if ((flags & TRACE_CONTEXT) != 0) {
+            request.setTraceContext(readMap(in));
+        }
+        return request;
+    }
+
+    private static void writeMap(ByteArrayOutputStream out, Map<String, String> map) {
+        writeVarint(out, map.size());
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            if (entry.getKey() == null || entry.getValue() == null) {
+                throw new IllegalArgumentException("Null key or value in processing request: " + map);
+            }
+            writeToken(out, entry.getKey());
+            writeToken(out, entry.getValue());
+        }
+    }
+
+    private static Map<String, String> readMap(ByteBuffer in) {
+        int size = readVarint(in);
+        Map<String, String> map = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            map.put(readToken(in), readToken(in));
+        }
+        return map;
+    }
+
+    // 0 and a literal string, or the position of a token plus one
+    private static void writeToken(ByteArrayOutputStream out, String value) {
+        Integer code = TOKEN_CODES.get(value);
+        if (code != null) {
+            writeVarint(out, code);
+        } else {
+            writeVarint(out, 0);
+            writeString(out, value);
+        }
+    }
+
+    private static String readToken(ByteBuffer in) {
+        int code = readVarint(in);
+        if (code == 0) {
+            return readString(in);
+        } else if (code > TOKENS.size()) {
+            throw new IllegalArgumentException("Unknown token " + code);
+        }
+        return TOKENS.get(code - 1);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.writeBytes(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = readVarint(in);
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("String of " + length + " bytes past the end of the message");
+        }
+        String value = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private static int varintLength(int value) {
+        int length = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+}
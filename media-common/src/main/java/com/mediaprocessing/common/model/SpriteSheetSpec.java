@@ -0,0 +1,79 @@
+package com.mediaprocessing.common.model;
+
+import lombok.Getter;
+
+import java.util.Map;
+
+/**
+ * Layout of the scrub-preview sprite sheets made by
+ * {@code VideoProcessingService.createSpriteSheets}: one tile every
+ * {@code intervalSeconds}, {@code tileWidth} pixels wide, packed
+ * {@code columns} by {@code rows} to a sheet. Out-of-range values are
+ * rejected here, so a bad request fails before any video is decoded.
+ */
+@Getter
+public class SpriteSheetSpec {
+
+    // Widest sheet; the height is checked against the source's aspect ratio when it is known
+    public static final int MAX_SHEET_SIDE = 8192;
+
+    private static final int MAX_INTERVAL_SECONDS = 3600;
+    private static final int MAX_TILE_WIDTH = 1920;
+    private static final int MAX_TILES_PER_SIDE = 50;
+
+    private final int intervalSeconds;
+    private final int tileWidth;
+    private final int columns;
+    private final int rows;
+
+    /**
+     * @throws IllegalArgumentException if a value is out of range
+     */
+    public SpriteSheetSpec(int intervalSeconds, int tileWidth, int columns, int rows) {
+        this.intervalSeconds = requireRange("interval", intervalSeconds, 1, MAX_INTERVAL_SECONDS);
+        this.tileWidth = requireRange("tileWidth", tileWidth, 2, MAX_TILE_WIDTH);
+        this.columns = requireRange("columns", columns, 1, MAX_TILES_PER_SIDE);
+        this.rows = requireRange("rows", rows, 1, MAX_TILES_PER_SIDE);
+        if (tileWidth * columns > MAX_SHEET_SIDE) {
+            throw new IllegalArgumentException("Sprite sheets may be at most " + MAX_SHEET_SIDE
+                    + " pixels wide: tileWidth " + tileWidth + " x columns " + columns);
+        }
+    }
+
+    /**
+     * Reads {@code interval} (default 5), {@code tileWidth} (160),
+     * {@code columns} (10) and {@code rows} (10) from request parameters.
+     *
+     * @throws IllegalArgumentException if a value is not a number or out of range
+     */
+    public static SpriteSheetSpec fromParameters(Map<String, String> parameters) {
+        return new SpriteSheetSpec(
+                number(parameters, "interval", 5),
+                number(parameters, "tileWidth", 160),
+                number(parameters, "columns", 10),
+                number(parameters, "rows", 10));
+    }
+
+    public int getTilesPerSheet() {
+        return columns * rows;
+    }
+
+    private static int number(Map<String, String> parameters, String name, int defaultValue) {
+        String value = parameters != null ? parameters.get(name) : null;
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Sprite " + name + " is not a number: " + value);
+        }
+    }
+
+    private static int requireRange(String name, int value, int min, int max) {
+        if (value < min || value > max) {
+            throw new IllegalArgumentException("Sprite " + name + " must be between " + min + " and " + max + ": " + value);
+        }
+        return value;
+    }
+}
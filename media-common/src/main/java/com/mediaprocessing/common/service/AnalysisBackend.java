@@ -0,0 +1,31 @@
+package com.mediaprocessing.common.service;
+
+import com.azure.ai.vision.imageanalysis.models.ImageAnalysisResult;
+import com.azure.ai.vision.imageanalysis.models.VisualFeatures;
+import com.azure.core.util.BinaryData;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Something that can analyze an image for a set of visual features.
+ * {@link AzureAiService} groups features, applies deadlines and collects
+ * results; backends only produce an {@link ImageAnalysisResult}.
+ */
+public interface AnalysisBackend {
+
+    /**
+     * Features this backend can produce; others are sent to the remote backend.
+     */
+    Set<VisualFeatures> getSupportedFeatures();
+
+    Mono<ImageAnalysisResult> analyze(BinaryData imageData, List<VisualFeatures> features);
+
+    /**
+     * True for network backends, whose slow calls are worth hedging.
+     */
+    default boolean isRemote() {
+        return true;
+    }
+}
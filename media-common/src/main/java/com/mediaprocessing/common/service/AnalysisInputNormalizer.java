@@ -0,0 +1,279 @@
+package com.mediaprocessing.common.service;
+
+import com.azure.ai.vision.imageanalysis.models.ImageAnalysisResult;
+import com.azure.ai.vision.imageanalysis.models.VisualFeatures;
+import com.azure.json.JsonProviders;
+import com.azure.json.JsonReader;
+import com.azure.json.JsonWriter;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import lombok.extern.slf4j.Slf4j;
+import net.coobird.thumbnailator.Thumbnails;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shrinks images to the resolution each Computer Vision feature actually needs
+ * before they are uploaded, and maps coordinates in the results back to the
+ * original image. Tags, captions, objects and people are detected on about
+ * 2 MP; READ keeps more pixels so small text stays legible.
+ */
+@Slf4j
+public class AnalysisInputNormalizer {
+
+    // Re-encode even a small enough image when its file is larger than this
+    private static final int MAX_UNTOUCHED_BYTES = 4 * 1024 * 1024;
+    // Computer Vision rejects images smaller than this on either side
+    private static final int MIN_SIDE = 50;
+
+    private final MediaMetadataProber prober;
+    private final long maxPixels;
+    private final long maxReadPixels;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    public AnalysisInputNormalizer(MediaMetadataProber prober, long maxPixels, long maxReadPixels) {
+        this.prober = prober;
+        this.maxPixels = maxPixels;
+        this.maxReadPixels = maxReadPixels;
+    }
+
+    /**
+     * Returns the image to send for the given features: the original bytes
+     * when they are already small enough, otherwise a downscaled JPEG.
+     */
+    public NormalizedImage normalize(byte[] imageData, List<VisualFeatures> features) {
+        boolean read = features.contains(VisualFeatures.READ);
+        long pixelBudget = read ? maxReadPixels : maxPixels;
+
+        Map<String, String> metadata = prober.probe(imageData);
+        int width = parseInt(metadata.get("width"));
+        int height = parseInt(metadata.get("height"));
+        if (width <= 0 || height <= 0) {
+            // Unknown format; let the service deal with it
+            return NormalizedImage.original(imageData);
+        }
+
+        long pixels = (long) width * height;
+        if (pixels <= pixelBudget && imageData.length <= MAX_UNTOUCHED_BYTES) {
+            return NormalizedImage.original(imageData);
+        }
+
+        double scale = Math.max(1.0, Math.sqrt((double) pixels / pixelBudget));
+        int targetWidth = (int) Math.round(width / scale);
+        int targetHeight = (int) Math.round(height / scale);
+        if (targetWidth < MIN_SIDE || targetHeight < MIN_SIDE) {
+            return NormalizedImage.original(imageData);
+        }
+
+        try {
+            BufferedImage image = decodeSubsampled(imageData, (int) Math.floor(scale / 2));
+            if (image == null) {
+                return NormalizedImage.original(imageData);
+            }
+            BufferedImage resized = Thumbnails.of(image)
+                    .size(targetWidth, targetHeight)
+                    .keepAspectRatio(true)
+                    .imageType(BufferedImage.TYPE_INT_RGB)
+                    .asBufferedImage();
+
+            byte[] encoded = encodeJpeg(resized, read ? 0.92f : 0.85f);
+            String orientation = metadata.get("orientation");
+            if (orientation != null && !orientation.equals("1")) {
+                // ImageIO drops EXIF; carry the orientation over so the service sees the same upright image
+                encoded = withOrientation(encoded, Integer.parseInt(orientation));
+            }
+
+            if (encoded.length >= imageData.length && pixels <= pixelBudget) {
+                return NormalizedImage.original(imageData);
+            }
+            log.debug("Normalized {}x{} ({} bytes) to {}x{} ({} bytes) for {}",
+                    width, height, imageData.length, resized.getWidth(), resized.getHeight(), encoded.length, features);
+            return new NormalizedImage(encoded, (double) Math.max(width, height)
+                    / Math.max(resized.getWidth(), resized.getHeight()), width, height);
+        } catch (Exception e) {
+            log.warn("Could not normalize image for analysis, sending original: {}", e.getMessage());
+            return NormalizedImage.original(imageData);
+        }
+    }
+
+    /**
+     * Scales every bounding box and polygon in the result back to the original
+     * image and restores its reported dimensions.
+     */
+    public ImageAnalysisResult restoreCoordinates(ImageAnalysisResult result, NormalizedImage image) throws IOException {
+        if (!image.isResized()) {
+            return result;
+        }
+
+        StringWriter json = new StringWriter();
+        try (JsonWriter writer = JsonProviders.createWriter(json)) {
+            result.toJson(writer);
+        }
+
+        JsonNode tree = objectMapper.readTree(json.toString());
+        scaleCoordinates(tree, image.getScale());
+        if (tree.get("metadata") instanceof ObjectNode) {
+            ObjectNode metadata = (ObjectNode) tree.get("metadata");
+            boolean swapped = metadata.path("width").asInt() < metadata.path("height").asInt()
+                    != image.getOriginalWidth() < image.getOriginalHeight();
+            // The service reports upright dimensions; EXIF rotation may have swapped them
+            metadata.put("width", swapped ? image.getOriginalHeight() : image.getOriginalWidth());
+            metadata.put("height", swapped ? image.getOriginalWidth() : image.getOriginalHeight());
+        }
+
+        try (JsonReader reader = JsonProviders.createReader(objectMapper.writeValueAsString(tree))) {
+            return ImageAnalysisResult.fromJson(reader);
+        }
+    }
+
+    private void scaleCoordinates(JsonNode node, double scale) {
+        if (node.isObject()) {
+            ObjectNode object = (ObjectNode) node;
+            if (node.has("boundingBox")) {
+                ObjectNode box = (ObjectNode) node.get("boundingBox");
+                for (String field : new String[]{"x", "y", "w", "h"}) {
+                    box.put(field, (int) Math.round(box.path(field).asInt() * scale));
+                }
+            }
+            if (node.has("boundingPolygon")) {
+                for (JsonNode point : node.get("boundingPolygon")) {
+                    ((ObjectNode) point).put("x", (int) Math.round(point.path("x").asInt() * scale));
+                    ((ObjectNode) point).put("y", (int) Math.round(point.path("y").asInt() * scale));
+                }
+            }
+            object.fields().forEachRemaining(entry -> {
+                if (!entry.getKey().equals("boundingBox") && !entry.getKey().equals("boundingPolygon")) {
+                    scaleCoordinates(entry.getValue(), scale);
+                }
+            });
+        } else if (node.isArray()) {
+            node.forEach(child -> scaleCoordinates(child, scale));
+        }
+    }
+
+    /**
+     * Decodes keeping every {@code step}-th pixel, so a 20 MB photo is never
+     * fully expanded only to be thrown away by the resize.
+     */
+    private BufferedImage decodeSubsampled(byte[] imageData, int step) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(imageData))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (step > 1) {
+                    param.setSourceSubsampling(step, step, 0, 0);
+                }
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private byte[] encodeJpeg(BufferedImage image, float quality) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (ImageOutputStream imageOutputStream = ImageIO.createImageOutputStream(outputStream)) {
+            writer.setOutput(imageOutputStream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Inserts a minimal EXIF segment holding only the orientation tag right
+     * after the JPEG SOI marker.
+     */
+    private byte[] withOrientation(byte[] jpeg, int orientation) {
+        byte[] exif = {
+                (byte) 0xFF, (byte) 0xE1, 0x00, 0x22,           // APP1, length 34
+                'E', 'x', 'i', 'f', 0x00, 0x00,
+                'M', 'M', 0x00, 0x2A, 0x00, 0x00, 0x00, 0x08,   // big-endian TIFF header, IFD at 8
+                0x00, 0x01,                                     // one entry
+                0x01, 0x12, 0x00, 0x03, 0x00, 0x00, 0x00, 0x01, // orientation, SHORT, count 1
+                0x00, (byte) orientation, 0x00, 0x00,
+                0x00, 0x00, 0x00, 0x00                          // no next IFD
+        };
+        byte[] result = new byte[jpeg.length + exif.length];
+        System.arraycopy(jpeg, 0, result, 0, 2);
+        System.arraycopy(exif, 0, result, 2, exif.length);
+        System.arraycopy(jpeg, 2, result, 2 + exif.length, jpeg.length - 2);
+        return result;
+    }
+
+    private int parseInt(String value) {
+        try {
+            return value != null ? Integer.parseInt(value) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public static class NormalizedImage {
+        private final byte[] data;
+        private final double scale;
+        private final int originalWidth;
+        private final int originalHeight;
+
+        NormalizedImage(byte[] data, double scale, int originalWidth, int originalHeight) {
+            this.data = data;
+            this.scale = scale;
+            this.originalWidth = originalWidth;
+            this.originalHeight = originalHeight;
+        }
+
+        static NormalizedImage original(byte[] data) {
+            return new NormalizedImage(data, 1.0, 0, 0);
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * Original size divided by the size sent; 1 when the original was sent.
+         */
+        public double getScale() {
+            return scale;
+        }
+
+        public int getOriginalWidth() {
+            return originalWidth;
+        }
+
+        public int getOriginalHeight() {
+            return originalHeight;
+        }
+
+        public boolean isResized() {
+            return scale != 1.0;
+        }
+    }
+}
@@ -1,134 +1,227 @@
 package com.mediaprocessing.common.service;
 
-import com.azure.ai.vision.imageanalysis.ImageAnalysisClient;
 import com.azure.ai.vision.imageanalysis.models.*;
 import com.azure.core.util.BinaryData;
 import com.mediaprocessing.common.config.AzureAiConfig;
+import com.mediaprocessing.common.metrics.MediaMetrics;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Mono;
 
-import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
 
 @Slf4j
 public class AzureAiService {
-    private final ImageAnalysisClient imageAnalysisClient;
+    private final AnalysisBackend remoteBackend;
+    private final AnalysisBackend localBackend;
+    private final Duration deadline;
+    private final Duration hedgeDelay;
+    private final AnalysisInputNormalizer normalizer;
     
     public AzureAiService(AzureAiConfig config) {
-        this.imageAnalysisClient = config.createImageAnalysisClient();
+        this(config, null);
+    }
+    
+    /**
+     * @param localBackend backend for the features it supports, or null to send everything to Azure
+     */
+    public AzureAiService(AzureAiConfig config, AnalysisBackend localBackend) {
+        this(new AzureVisionBackend(config.createImageAnalysisAsyncClient()),
+                localBackend,
+                Duration.ofMillis(config.getAnalysisDeadlineMillis()),
+                Duration.ofMillis(config.getHedgeDelayMillis()),
+                new AnalysisInputNormalizer(new MediaMetadataProber(),
+                        config.getAnalysisMaxPixels(), config.getReadMaxPixels()));
+    }
+    
+    public AzureAiService(AnalysisBackend remoteBackend, AnalysisBackend localBackend, Duration deadline,
+                          Duration hedgeDelay, AnalysisInputNormalizer normalizer) {
+        this.remoteBackend = remoteBackend;
+        this.localBackend = localBackend;
+        this.deadline = deadline;
+        this.hedgeDelay = hedgeDelay;
+        this.normalizer = normalizer;
     }
     
     public Map<String, Object> analyzeImage(byte[] imageData) {
-        Map<String, Object> results = new HashMap<>();
-        
-        try {
-            // Convert byte array to BinaryData
-            BinaryData binaryData = BinaryData.fromBytes(imageData);
-            
-            // Analyze tags
-            ImageAnalysisResult tagsResult = imageAnalysisClient.analyze(
-                    binaryData,
-                    Arrays.asList(VisualFeatures.TAGS),
-                    null);
-                    
-            // Analyze objects
-            ImageAnalysisResult objectsResult = imageAnalysisClient.analyze(
-                    binaryData,
-                    Arrays.asList(VisualFeatures.OBJECTS),
-                    null);
-                    
-            // Analyze caption
-            ImageAnalysisResult captionResult = imageAnalysisClient.analyze(
-                    binaryData,
-                    Arrays.asList(VisualFeatures.CAPTION),
-                    null);
-            
-            // Extract tags
-            if (tagsResult.getTags() != null) {
-                results.put("tags", tagsResult.getTags());
-            }
-            
-            // Extract caption
-            if (captionResult.getCaption() != null) {
-                results.put("description", captionResult.getCaption());
-            }
-            
-            // Extract objects
-            if (objectsResult.getObjects() != null) {
-                results.put("objects", objectsResult.getObjects());
-            }
-            
-        } catch (Exception e) {
-            log.error("Error analyzing image with Azure AI", e);
-            results.put("error", e.getMessage());
-        }
-        
-        return results;
+        return analyze(imageData, List.of(VisualFeatures.TAGS, VisualFeatures.OBJECTS, VisualFeatures.CAPTION), deadline);
     }
     
     public Map<String, Object> detectFaces(byte[] imageData) {
-        Map<String, Object> results = new HashMap<>();
+        return analyze(imageData, List.of(VisualFeatures.PEOPLE), deadline);
+    }
+    
+    public Map<String, Object> recognizeText(byte[] imageData) {
+        return analyze(imageData, List.of(VisualFeatures.READ), deadline);
+    }
+    
+    /**
+     * Analyzes an image for the given features. Features that can share a
+     * request are merged; the remaining groups run concurrently, each with a
+     * hedged duplicate if it is slow. Whatever has completed when the deadline
+     * passes is returned, together with a {@code featureStatus} entry giving
+     * "ok", "timeout" or the error for every requested feature.
+     * <p>
+     * Each group is sent a copy downscaled to what its features need, and
+     * coordinates in the results are mapped back to the original image.
+     * Features the local backend supports, if there is one, run locally.
+     */
+    public Map<String, Object> analyze(byte[] imageData, List<VisualFeatures> features, Duration deadline) {
+        return analyzeAsync(imageData, features, deadline).block();
+    }
+    
+    /**
+     * Non-blocking form of {@link #analyze}. The image is normalized when this
+     * is called; the service calls start on subscription, and the deadline runs
+     * from then. The returned Mono never fails.
+     */
+    public Mono<Map<String, Object>> analyzeAsync(byte[] imageData, List<VisualFeatures> features, Duration deadline) {
+        Map<String, Object> results = new ConcurrentHashMap<>();
+        Map<String, String> featureStatus = new ConcurrentHashMap<>();
+        // Groups with the same pixel limit share one re-encoded copy
+        Map<Boolean, AnalysisInputNormalizer.NormalizedImage> inputs = new HashMap<>();
         
-        try {
-            // Convert byte array to BinaryData
-            BinaryData binaryData = BinaryData.fromBytes(imageData);
-            
-            ImageAnalysisResult peopleResult = imageAnalysisClient.analyze(
-                    binaryData,
-                    Arrays.asList(VisualFeatures.PEOPLE),
-                    null);
-            
-            if (peopleResult.getPeople() != null) {
-                results.put("faces", peopleResult.getPeople());
-            }
-            
-        } catch (Exception e) {
-            log.error("Error detecting faces with Azure AI", e);
-            results.put("error", e.getMessage());
+        List<Mono<Void>> calls = new ArrayList<>();
+        for (Map.Entry<String, List<VisualFeatures>> entry : groupFeatures(features).entrySet()) {
+            List<VisualFeatures> group = entry.getValue();
+            AnalysisBackend backend = entry.getKey().equals("local") ? localBackend : remoteBackend;
+            AnalysisInputNormalizer.NormalizedImage input = inputs.computeIfAbsent(
+                    group.contains(VisualFeatures.READ), read -> normalizer.normalize(imageData, group));
+            MediaMetrics.bytes("media.ai.bytes", input.getData().length, "group", entry.getKey());
+            calls.add(timed(hedged(backend, BinaryData.fromBytes(input.getData()), group).timeout(deadline), entry.getKey())
+                    .map(result -> restoreCoordinates(result, input))
+                    .doOnNext(result -> {
+                        collectResults(result, results);
+                        group.forEach(feature -> featureStatus.put(feature.toString(), "ok"));
+                    })
+                    .then()
+                    .onErrorResume(e -> {
+                        String status = e instanceof TimeoutException ? "timeout" : "error: " + e.getMessage();
+                        log.warn("{} analysis {} failed: {}", entry.getKey(), group, status);
+                        group.forEach(feature -> featureStatus.put(feature.toString(), status));
+                        return Mono.empty();
+                    }));
         }
         
-        return results;
+        // Every call is bounded by the deadline and swallows its own errors
+        return Mono.when(calls).then(Mono.fromCallable(() -> {
+            Map<String, Object> response = new HashMap<>(results);
+            response.put("featureStatus", new HashMap<>(featureStatus));
+            if (results.isEmpty() && !features.isEmpty()) {
+                response.put("error", featureStatus.values().iterator().next());
+            }
+            return response;
+        }));
     }
     
-    public Map<String, Object> recognizeText(byte[] imageData) {
-        Map<String, Object> results = new HashMap<>();
-        
-        try {
-            // Convert byte array to BinaryData
-            BinaryData binaryData = BinaryData.fromBytes(imageData);
-            
-            ImageAnalysisResult readResult = imageAnalysisClient.analyze(
-                    binaryData,
-                    Arrays.asList(VisualFeatures.READ),
-                    null);
-            
-            if (readResult.getRead() != null) {
-                results.put("text", readResult.getRead());
+    /**
+     * Splits features into calls, keyed by group name. Features the local
+     * backend supports form the "local" group. READ runs on its own because it
+     * is the slowest feature and should not hold back the others. Captions run
+     * on their own because they are only available in some regions, and an
+     * unsupported-region error would otherwise fail every feature in the
+     * request.
+     */
+    private Map<String, List<VisualFeatures>> groupFeatures(List<VisualFeatures> features) {
+        Map<String, List<VisualFeatures>> groups = new LinkedHashMap<>();
+        for (VisualFeatures feature : features) {
+            String group;
+            if (localBackend != null && localBackend.getSupportedFeatures().contains(feature)) {
+                group = "local";
+            } else if (feature.equals(VisualFeatures.READ)) {
+                group = "read";
+            } else if (feature.equals(VisualFeatures.CAPTION) || feature.equals(VisualFeatures.DENSE_CAPTIONS)) {
+                group = "caption";
+            } else {
+                group = "default";
             }
-            
-        } catch (Exception e) {
-            log.error("Error recognizing text with Azure AI", e);
-            results.put("error", e.getMessage());
+            groups.computeIfAbsent(group, key -> new ArrayList<>()).add(feature);
         }
-        
-        return results;
+        return groups;
     }
     
-    public Map<String, Object> moderateContent(byte[] imageData) {
-        Map<String, Object> results = new HashMap<>();
+    /**
+     * Issues the call and, if it has not produced a result after the hedge
+     * delay, a duplicate; the first result wins and the other is cancelled.
+     * A call that fails early is therefore retried once at the hedge delay.
+     * Local backends are not hedged.
+     */
+    private Mono<ImageAnalysisResult> hedged(AnalysisBackend backend, BinaryData binaryData, List<VisualFeatures> group) {
+        Mono<ImageAnalysisResult> primary = backend.analyze(binaryData, group);
+        if (!backend.isRemote() || hedgeDelay.isZero() || hedgeDelay.isNegative()) {
+            return primary;
+        }
         
+        Mono<ImageAnalysisResult> hedge = Mono.delay(hedgeDelay)
+                .then(Mono.defer(() -> {
+                    log.debug("Hedging slow Azure AI {} call", group);
+                    return backend.analyze(binaryData, group);
+                }));
+        
+        return Mono.firstWithValue(primary, hedge)
+                // Both attempts failed; report the first failure rather than Reactor's wrapper
+                .onErrorMap(NoSuchElementException.class,
+                        e -> e.getCause() != null ? Exceptions.unwrapMultiple(e.getCause()).get(0) : e);
+    }
+    
+    /**
+     * Records the call's latency under {@code media.ai.request}, timed from
+     * subscription, with an outcome of ok, timeout or error.
+     */
+    private <T> Mono<T> timed(Mono<T> call, String group) {
+        String backend = group.equals("local") ? "local" : "remote";
+        return Mono.defer(() -> {
+            Timer.Sample sample = MediaMetrics.start();
+            return call
+                    .doOnSuccess(result -> MediaMetrics.stop(sample, "media.ai.request",
+                            "backend", backend, "group", group, "outcome", "ok"))
+                    .doOnError(e -> MediaMetrics.stop(sample, "media.ai.request",
+                            "backend", backend, "group", group,
+                            "outcome", e instanceof TimeoutException ? "timeout" : MediaMetrics.ERROR));
+        });
+    }
+    
+    private ImageAnalysisResult restoreCoordinates(ImageAnalysisResult result,
+                                                   AnalysisInputNormalizer.NormalizedImage input) {
         try {
-            // Note: Content moderation is now a separate service in Azure AI
-            results.put("message", "Content moderation requires Azure Content Moderator service");
-            
-        } catch (Exception e) {
-            log.error("Error moderating content with Azure AI", e);
-            results.put("error", e.getMessage());
+            return normalizer.restoreCoordinates(result, input);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    private void collectResults(ImageAnalysisResult result, Map<String, Object> results) {
+        if (result.getTags() != null) {
+            results.put("tags", result.getTags());
+        }
+        if (result.getCaption() != null) {
+            results.put("description", result.getCaption());
+        }
+        if (result.getDenseCaptions() != null) {
+            results.put("denseCaptions", result.getDenseCaptions());
+        }
+        if (result.getObjects() != null) {
+            results.put("objects", result.getObjects());
+        }
+        if (result.getPeople() != null) {
+            results.put("faces", result.getPeople());
+        }
+        if (result.getRead() != null) {
+            results.put("text", result.getRead());
+        }
+        if (result.getSmartCrops() != null) {
+            results.put("smartCrops", result.getSmartCrops());
         }
-        
-        return results;
     }
 }
@@ -0,0 +1,32 @@
+package com.mediaprocessing.common.service;
+
+import com.azure.ai.vision.imageanalysis.ImageAnalysisAsyncClient;
+import com.azure.ai.vision.imageanalysis.models.ImageAnalysisResult;
+import com.azure.ai.vision.imageanalysis.models.VisualFeatures;
+import com.azure.core.util.BinaryData;
+import reactor.core.publisher.Mono;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Analysis through the Azure Computer Vision service.
+ */
+public class AzureVisionBackend implements AnalysisBackend {
+    private final ImageAnalysisAsyncClient imageAnalysisAsyncClient;
+    
+    public AzureVisionBackend(ImageAnalysisAsyncClient imageAnalysisAsyncClient) {
+        this.imageAnalysisAsyncClient = imageAnalysisAsyncClient;
+    }
+    
+    @Override
+    public Set<VisualFeatures> getSupportedFeatures() {
+        return new HashSet<>(VisualFeatures.values());
+    }
+    
+    @Override
+    public Mono<ImageAnalysisResult> analyze(BinaryData imageData, List<VisualFeatures> features) {
+        return imageAnalysisAsyncClient.analyze(imageData, features, null);
+    }
+}
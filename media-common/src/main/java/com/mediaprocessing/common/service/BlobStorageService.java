@@ -1,20 +1,46 @@
 package com.mediaprocessing.common.service;
 
 import com.azure.core.util.BinaryData;
+import com.azure.core.util.Context;
 import com.azure.storage.blob.BlobClient;
 import com.azure.storage.blob.BlobContainerClient;
 import com.azure.storage.blob.BlobServiceClient;
+import com.azure.storage.blob.models.BlobDownloadContentResponse;
 import com.azure.storage.blob.models.BlobHttpHeaders;
+import com.azure.storage.blob.models.BlobItem;
 import com.azure.storage.blob.models.BlobProperties;
+import com.azure.storage.blob.models.BlobRange;
+import com.azure.storage.blob.models.BlobRequestConditions;
+import com.azure.storage.blob.models.BlobStorageException;
+import com.azure.storage.blob.models.Block;
+import com.azure.storage.blob.models.BlockListType;
+import com.azure.storage.blob.options.BlobParallelUploadOptions;
+import com.azure.storage.blob.options.BlockBlobCommitBlockListOptions;
+import com.azure.storage.blob.sas.BlobSasPermission;
+import com.azure.storage.blob.sas.BlobServiceSasSignatureValues;
+import com.azure.storage.blob.specialized.BlockBlobClient;
 import com.mediaprocessing.common.config.AzureStorageConfig;
+import com.mediaprocessing.common.metrics.MediaMetrics;
+import com.mediaprocessing.common.metrics.MediaTracing;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.UUID;
+import java.util.stream.Collectors;
 
 @Slf4j
 public class BlobStorageService {
@@ -44,6 +70,14 @@ public class BlobStorageService {
     }
     
     public String uploadMedia(byte[] data, String fileName, String contentType) {
+        return uploadMedia(data, fileName, contentType, null);
+    }
+    
+    /**
+     * Uploads with the content type and metadata set in the same request, so
+     * the upload dispatcher never sees the blob without its metadata.
+     */
+    public String uploadMedia(byte[] data, String fileName, String contentType, Map<String, String> metadata) {
         String blobName = UUID.randomUUID().toString() + "-" + fileName;
         BlobClient blobClient = blobServiceClient
                 .getBlobContainerClient(containerName)
@@ -52,8 +86,10 @@ public class BlobStorageService {
         BlobHttpHeaders headers = new BlobHttpHeaders()
                 .setContentType(contentType);
         
-        blobClient.upload(new ByteArrayInputStream(data), data.length, true);
-        blobClient.setHttpHeaders(headers);
+        transfer("upload", containerName, data.length, () -> blobClient.uploadWithResponse(
+                new BlobParallelUploadOptions(BinaryData.fromBytes(data))
+                        .setHeaders(headers)
+                        .setMetadata(metadata), null, Context.NONE));
         
         log.info("Uploaded blob: {}", blobName);
         return blobName;
@@ -68,8 +104,10 @@ public class BlobStorageService {
         BlobHttpHeaders headers = new BlobHttpHeaders()
                 .setContentType(contentType);
         
-        blobClient.upload(new ByteArrayInputStream(data), data.length, true);
-        blobClient.setHttpHeaders(headers);
+        transfer("upload", thumbnailContainerName, data.length, () -> {
+            blobClient.upload(new ByteArrayInputStream(data), data.length, true);
+            blobClient.setHttpHeaders(headers);
+        });
         
         log.info("Uploaded thumbnail: {}", thumbnailName);
         return thumbnailName;
@@ -84,61 +122,298 @@ public class BlobStorageService {
         BlobHttpHeaders headers = new BlobHttpHeaders()
                 .setContentType(contentType);
         
-        blobClient.upload(new ByteArrayInputStream(data), data.length, true);
-        blobClient.setHttpHeaders(headers);
+        transfer("upload", processedContainerName, data.length, () -> {
+            blobClient.upload(new ByteArrayInputStream(data), data.length, true);
+            blobClient.setHttpHeaders(headers);
+        });
         
         log.info("Uploaded processed media: {}", processedName);
         return processedName;
     }
     
+    /**
+     * Uploads a multi-file rendition (for example a playlist and its segments) under
+     * a common {@code suffix-originalBlobName/} prefix so relative references between
+     * the files resolve.
+     *
+     * @return the blob name of the file at {@code entryPoint}
+     */
+    public String uploadProcessedMediaSet(Map<String, byte[]> files, String originalBlobName, String suffix, String entryPoint) {
+        String prefix = suffix + "-" + originalBlobName + "/";
+        BlobContainerClient containerClient = blobServiceClient.getBlobContainerClient(processedContainerName);
+        
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            byte[] data = file.getValue();
+            BlobClient blobClient = containerClient.getBlobClient(prefix + file.getKey());
+            transfer("upload", processedContainerName, data.length, () -> {
+                blobClient.upload(new ByteArrayInputStream(data), data.length, true);
+                blobClient.setHttpHeaders(new BlobHttpHeaders().setContentType(getContentTypeForFile(file.getKey())));
+            });
+        }
+        
+        log.info("Uploaded processed media set: {} ({} files)", prefix, files.size());
+        return prefix + entryPoint;
+    }
+    
+    public String getProcessedMediaSetUrl(String originalBlobName, String suffix, String entryPoint) {
+        return blobServiceClient
+                .getBlobContainerClient(processedContainerName)
+                .getBlobClient(suffix + "-" + originalBlobName + "/" + entryPoint)
+                .getBlobUrl();
+    }
+    
+    /**
+     * Stages one part of a processed blob uploaded in parts, for
+     * {@link #commitProcessedBlocks}. The service keeps uncommitted blocks
+     * for a week, so a job can stage them over several invocations.
+     */
+    public void stageProcessedBlock(String originalBlobName, String suffix, String blockId, byte[] data) {
+        BlockBlobClient blobClient = blobServiceClient
+                .getBlobContainerClient(processedContainerName)
+                .getBlobClient(suffix + "-" + originalBlobName)
+                .getBlockBlobClient();
+        
+        transfer("block", processedContainerName, data.length, () -> blobClient.stageBlock(blockId, BinaryData.fromBytes(data)));
+    }
+    
+    /**
+     * The IDs of the blocks staged for a processed blob and not committed yet.
+     */
+    public Set<String> getStagedProcessedBlocks(String originalBlobName, String suffix) {
+        BlockBlobClient blobClient = blobServiceClient
+                .getBlobContainerClient(processedContainerName)
+                .getBlobClient(suffix + "-" + originalBlobName)
+                .getBlockBlobClient();
+        
+        try {
+            return blobClient.listBlocks(BlockListType.UNCOMMITTED).getUncommittedBlocks().stream()
+                    .map(Block::getName)
+                    .collect(Collectors.toSet());
+        } catch (BlobStorageException e) {
+            if (e.getStatusCode() == 404) {
+                return Set.of();
+            }
+            throw e;
+        }
+    }
+    
+    /**
+     * Commits staged blocks, in order, as the processed blob, replacing any
+     * earlier version.
+     */
+    public String commitProcessedBlocks(String originalBlobName, String suffix, List<String> blockIds, String contentType) {
+        String processedName = suffix + "-" + originalBlobName;
+        BlockBlobClient blobClient = blobServiceClient
+                .getBlobContainerClient(processedContainerName)
+                .getBlobClient(processedName)
+                .getBlockBlobClient();
+        
+        MediaMetrics.time("media.blob.transfer", () -> blobClient.commitBlockListWithResponse(
+                new BlockBlobCommitBlockListOptions(blockIds)
+                        .setHeaders(new BlobHttpHeaders().setContentType(contentType)), null, Context.NONE),
+                "operation", "commit", "container", processedContainerName);
+        
+        log.info("Committed processed media: {} ({} blocks)", processedName, blockIds.size());
+        return processedName;
+    }
+    
+    private String getContentTypeForFile(String fileName) {
+        String lowerCaseName = fileName.toLowerCase();
+        if (lowerCaseName.endsWith(".m3u8")) {
+            return "application/vnd.apple.mpegurl";
+        } else if (lowerCaseName.endsWith(".ts")) {
+            return "video/mp2t";
+        } else if (lowerCaseName.endsWith(".mpd")) {
+            return "application/dash+xml";
+        } else if (lowerCaseName.endsWith(".m4s")) {
+            return "video/iso.segment";
+        } else if (lowerCaseName.endsWith(".vtt")) {
+            return "text/vtt";
+        } else if (lowerCaseName.endsWith(".jpg")) {
+            return "image/jpeg";
+        }
+        return "application/octet-stream";
+    }
+    
     public byte[] downloadMedia(String blobName) {
         BlobClient blobClient = blobServiceClient
                 .getBlobContainerClient(containerName)
                 .getBlobClient(blobName);
         
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        blobClient.downloadStream(outputStream);
+        return download(blobClient, containerName);
+    }
+    
+    /**
+     * Returns a reader that fetches byte ranges of a media blob on demand, so
+     * callers that only need headers never download the whole file.
+     */
+    public MediaMetadataProber.RangeReader getMediaRangeReader(String blobName) {
+        BlobClient blobClient = blobServiceClient
+                .getBlobContainerClient(containerName)
+                .getBlobClient(blobName);
+        
+        return new MediaMetadataProber.RangeReader() {
+            @Override
+            public long size() {
+                return blobClient.getProperties().getBlobSize();
+            }
+            
+            @Override
+            public byte[] read(long offset, int length) {
+                return MediaTracing.trace("blob range", () -> {
+                    byte[] data = MediaMetrics.time("media.blob.transfer", () -> {
+                        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(length);
+                        blobClient.downloadStreamWithResponse(outputStream, new BlobRange(offset, (long) length),
+                                null, null, false, null, Context.NONE);
+                        return outputStream.toByteArray();
+                    }, "operation", "range", "container", containerName);
+                    MediaMetrics.bytes("media.blob.bytes", data.length, "operation", "range", "container", containerName);
+                    MediaTracing.attribute(MediaTracing.BYTES_IN, data.length);
+                    return data;
+                }, "media.container", containerName, "media.blob", blobName);
+            }
+        };
+    }
+    
+    /**
+     * A read-only URL for a media blob, valid for {@code validity}. Readers
+     * such as FFmpeg fetch it by range, so a job that seeks into a large
+     * video reads only the index and the part it needs.
+     */
+    public String getMediaReadUrl(String blobName, Duration validity) {
+        BlobClient blobClient = blobServiceClient
+                .getBlobContainerClient(containerName)
+                .getBlobClient(blobName);
         
-        return outputStream.toByteArray();
+        BlobServiceSasSignatureValues sasValues = new BlobServiceSasSignatureValues(
+                OffsetDateTime.now().plus(validity), new BlobSasPermission().setReadPermission(true));
+        return blobClient.getBlobUrl() + "?" + blobClient.generateSas(sasValues);
     }
     
-    public byte[] downloadThumbnail(String blobName) {
+    /**
+     * Downloads the thumbnail unless its ETag is still {@code etag}, for
+     * revalidating a cached copy; null if it is unchanged. A null ETag
+     * downloads it unconditionally.
+     */
+    public VersionedContent downloadThumbnailIfChanged(String blobName, String etag) {
         BlobClient blobClient = blobServiceClient
                 .getBlobContainerClient(thumbnailContainerName)
                 .getBlobClient("thumb-" + blobName);
         
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        blobClient.downloadStream(outputStream);
-        
-        return outputStream.toByteArray();
+        return downloadIfChanged(blobClient, thumbnailContainerName, etag);
     }
     
-    public byte[] downloadProcessedMedia(String blobName, String suffix) {
+    /**
+     * Downloads the processed media unless its ETag is still {@code etag};
+     * null if it is unchanged. A null ETag downloads it unconditionally.
+     */
+    public VersionedContent downloadProcessedMediaIfChanged(String blobName, String suffix, String etag) {
         BlobClient blobClient = blobServiceClient
                 .getBlobContainerClient(processedContainerName)
                 .getBlobClient(suffix + "-" + blobName);
         
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        blobClient.downloadStream(outputStream);
-        
-        return outputStream.toByteArray();
+        return downloadIfChanged(blobClient, processedContainerName, etag);
+    }
+    
+    private byte[] download(BlobClient blobClient, String container) {
+        return MediaTracing.trace("blob download", () -> {
+            byte[] data = MediaMetrics.time("media.blob.transfer", () -> {
+                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                blobClient.downloadStream(outputStream);
+                return outputStream.toByteArray();
+            }, "operation", "download", "container", container);
+            MediaMetrics.bytes("media.blob.bytes", data.length, "operation", "download", "container", container);
+            MediaTracing.attribute(MediaTracing.BYTES_IN, data.length);
+            return data;
+        }, "media.container", container, "media.blob", blobClient.getBlobName());
+    }
+    
+    private VersionedContent downloadIfChanged(BlobClient blobClient, String container, String etag) {
+        BlobRequestConditions conditions = etag != null ? new BlobRequestConditions().setIfNoneMatch(etag) : null;
+        try {
+            return MediaTracing.trace("blob download", () -> {
+                BlobDownloadContentResponse response = MediaMetrics.time("media.blob.transfer",
+                        () -> blobClient.downloadContentWithResponse(null, conditions, null, Context.NONE),
+                        "operation", "download", "container", container);
+                byte[] data = response.getValue().toBytes();
+                MediaMetrics.bytes("media.blob.bytes", data.length, "operation", "download", "container", container);
+                MediaTracing.attribute(MediaTracing.BYTES_IN, data.length);
+                return new VersionedContent(data, response.getDeserializedHeaders().getContentType(),
+                        response.getDeserializedHeaders().getETag());
+            }, "media.container", container, "media.blob", blobClient.getBlobName());
+        } catch (BlobStorageException e) {
+            if (e.getStatusCode() == 304) {
+                return null;
+            }
+            throw e;
+        }
+    }
+    
+    private void transfer(String operation, String container, long bytes, Runnable call) {
+        MediaTracing.trace("blob " + operation, () -> {
+            MediaMetrics.time("media.blob.transfer", () -> {
+                call.run();
+                return null;
+            }, "operation", operation, "container", container);
+            MediaTracing.attribute(MediaTracing.BYTES_OUT, bytes);
+            return null;
+        }, "media.container", container);
+        MediaMetrics.bytes("media.blob.bytes", bytes, "operation", operation, "container", container);
     }
     
     public Map<String, String> getBlobMetadata(String blobName) {
+        BlobProperties properties = getMediaProperties(blobName);
+        return properties.getMetadata() != null ? properties.getMetadata() : new HashMap<>();
+    }
+    
+    /**
+     * Content type, size and metadata in one request, without the content.
+     */
+    public BlobProperties getMediaProperties(String blobName) {
         BlobClient blobClient = blobServiceClient
                 .getBlobContainerClient(containerName)
                 .getBlobClient(blobName);
         
-        BlobProperties properties = blobClient.getProperties();
-        return properties.getMetadata() != null ? properties.getMetadata() : new HashMap<>();
+        return MediaTracing.trace("blob properties",
+                () -> MediaMetrics.time("media.blob.transfer", blobClient::getProperties,
+                        "operation", "properties", "container", containerName),
+                "media.container", containerName, "media.blob", blobName);
     }
     
-    public void setBlobMetadata(String blobName, Map<String, String> metadata) {
+    /**
+     * Replaces the blob's metadata, returning its new ETag.
+     */
+    public String setBlobMetadata(String blobName, Map<String, String> metadata) {
         BlobClient blobClient = blobServiceClient
                 .getBlobContainerClient(containerName)
                 .getBlobClient(blobName);
         
-        blobClient.setMetadata(metadata);
+        return MediaMetrics.time("media.blob.transfer",
+                () -> blobClient.setMetadataWithResponse(metadata, null, null, Context.NONE).getHeaders().getValue("ETag"),
+                "operation", "metadata", "container", containerName);
+    }
+    
+    /**
+     * Returns the names of the most recently modified blobs in the media container,
+     * newest first, keeping only {@code limit} candidates in memory while listing.
+     */
+    public List<String> listRecentMedia(int limit) {
+        PriorityQueue<BlobItem> newest = new PriorityQueue<>(
+                Comparator.comparing((BlobItem item) -> item.getProperties().getLastModified()));
+        
+        for (BlobItem blobItem : blobServiceClient.getBlobContainerClient(containerName).listBlobs()) {
+            newest.offer(blobItem);
+            if (newest.size() > limit) {
+                newest.poll();
+            }
+        }
+        
+        List<String> blobNames = new ArrayList<>(newest.size());
+        while (!newest.isEmpty()) {
+            blobNames.add(newest.poll().getName());
+        }
+        Collections.reverse(blobNames);
+        return blobNames;
     }
     
     public String getMediaUrl(String blobName) {
@@ -161,4 +436,15 @@ public class BlobStorageService {
                 .getBlobClient(suffix + "-" + blobName)
                 .getBlobUrl();
     }
+    
+    /**
+     * A blob's content with the content type and ETag it was read at.
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class VersionedContent {
+        private final byte[] data;
+        private final String contentType;
+        private final String etag;
+    }
 }
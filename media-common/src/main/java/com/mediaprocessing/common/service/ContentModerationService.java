@@ -0,0 +1,244 @@
+package com.mediaprocessing.common.service;
+
+import com.azure.ai.vision.imageanalysis.models.DetectedTag;
+import com.azure.ai.vision.imageanalysis.models.ImageAnalysisResult;
+import com.azure.ai.vision.imageanalysis.models.VisualFeatures;
+import com.azure.core.util.BinaryData;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Flux;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Scores images and videos for unsafe content on the local CPU, fast enough to
+ * run inline at upload. Input is decoded subsampled to at most
+ * {@value #MAX_SIDE} pixels a side. With a classifier, e.g. an NSFW model
+ * loaded into an {@link OnnxAnalysisBackend}, the score is the summed
+ * confidence of its unsafe labels, and all images or keyframes of one call are
+ * submitted together so the backend can batch them. Without one, the score is
+ * the share of skin-toned pixels. That heuristic cannot tell skin from sand,
+ * wood or a close-up face, so its score is recorded but never flags content;
+ * only a classifier's score gates renditions. Videos are scored on their
+ * distinct keyframes and take the highest frame score.
+ */
+@Slf4j
+public class ContentModerationService {
+
+    public static final String FLAGGED_METADATA = "moderationFlagged";
+    public static final String SCORE_METADATA = "moderationScore";
+
+    private static final int MAX_SIDE = 256;
+    private static final int MAX_VIDEO_FRAMES = 30;
+    private static final int VIDEO_HASH_THRESHOLD = 10;
+    // Skin share that scores 0 and 1; faces and hands alone stay below the first
+    private static final double SKIN_FLOOR = 0.2;
+    private static final double SKIN_CEILING = 0.6;
+
+    private final AnalysisBackend classifier;
+    private final Set<String> unsafeLabels;
+    private final double threshold;
+    private final VideoFrameSampler sampler;
+
+    /**
+     * Scores with the skin-tone heuristic only, which never flags.
+     */
+    public ContentModerationService(double threshold) {
+        this(null, Set.of(), threshold);
+    }
+
+    /**
+     * @param classifier   local classifier, or null for the skin-tone heuristic
+     * @param unsafeLabels classifier labels that count towards the score, e.g. "porn,hentai,sexy"
+     * @param threshold    score at or above which the classifier flags content
+     */
+    public ContentModerationService(AnalysisBackend classifier, Set<String> unsafeLabels, double threshold) {
+        this.classifier = classifier;
+        this.unsafeLabels = unsafeLabels.stream()
+                .map(label -> label.trim().toLowerCase(Locale.ROOT))
+                .collect(Collectors.toSet());
+        this.threshold = threshold;
+        this.sampler = new VideoFrameSampler(VIDEO_HASH_THRESHOLD, MAX_VIDEO_FRAMES);
+    }
+
+    /**
+     * Whether scores can flag content, which takes a classifier.
+     */
+    public boolean isGating() {
+        return classifier != null;
+    }
+
+    public Map<String, Object> moderateImage(byte[] imageData) throws IOException {
+        return moderateImages(List.of(imageData));
+    }
+
+    /**
+     * Scores each image; the overall score is the highest.
+     */
+    public Map<String, Object> moderateImages(List<byte[]> images) throws IOException {
+        List<Double> scores = score(images);
+        return toResult(scores.stream().mapToDouble(Double::doubleValue).max().orElse(0), scores);
+    }
+
+    public Map<String, Object> moderateVideo(byte[] videoData) throws IOException {
+        VideoFrameSampler.SampledVideo video = sampler.sampleScenes(videoData);
+        List<byte[]> frames = video.getFrames().stream()
+                .map(VideoFrameSampler.DistinctFrame::getImageData)
+                .collect(Collectors.toList());
+        List<Double> scores = score(frames);
+
+        List<Map<String, Object>> frameScores = new ArrayList<>();
+        for (int i = 0; i < scores.size(); i++) {
+            Map<String, Object> frame = new LinkedHashMap<>();
+            frame.put("time", video.getFrames().get(i).getTimestampMicros() / 1000000.0);
+            frame.put("score", scores.get(i));
+            frameScores.add(frame);
+        }
+        Map<String, Object> results = toResult(scores.stream().mapToDouble(Double::doubleValue).max().orElse(0), scores);
+        results.put("frames", frameScores);
+        results.put("truncated", video.isTruncated());
+        return results;
+    }
+
+    /**
+     * Records a moderation result in blob metadata, where the upload dispatcher
+     * and the queue processor look for it.
+     */
+    public static void recordResult(Map<String, Object> result, Map<String, String> metadata) {
+        metadata.put(SCORE_METADATA, String.format(Locale.ROOT, "%.3f", (Double) result.get("score")));
+        metadata.put(FLAGGED_METADATA, String.valueOf(result.get("flagged")));
+    }
+
+    /**
+     * Clears a flag in blob metadata after review, keeping the score, so the
+     * blob counts as moderated and is not scored again before its renditions.
+     */
+    public static void clearFlag(Map<String, String> metadata) {
+        metadata.put(FLAGGED_METADATA, "false");
+    }
+
+    public static boolean isFlagged(Map<String, String> metadata) {
+        return metadata != null && Boolean.parseBoolean(metadata.get(FLAGGED_METADATA));
+    }
+
+    public static boolean isModerated(Map<String, String> metadata) {
+        return metadata != null && metadata.containsKey(SCORE_METADATA);
+    }
+
+    private List<Double> score(List<byte[]> images) throws IOException {
+        List<BufferedImage> decoded = new ArrayList<>(images.size());
+        for (byte[] image : images) {
+            BufferedImage small = decodeSmall(image);
+            if (small == null) {
+                throw new IOException("Unsupported image format");
+            }
+            decoded.add(small);
+        }
+        if (classifier == null) {
+            return decoded.stream().map(this::skinScore).collect(Collectors.toList());
+        }
+
+        // Submit everything at once so the classifier fills its batches
+        List<BinaryData> inputs = new ArrayList<>(decoded.size());
+        for (BufferedImage image : decoded) {
+            inputs.add(BinaryData.fromBytes(encodePng(image)));
+        }
+        return Flux.fromIterable(inputs)
+                .flatMapSequential(input -> classifier.analyze(input, List.of(VisualFeatures.TAGS)).map(this::labelScore),
+                        Math.max(1, inputs.size()))
+                .collectList()
+                .blockOptional()
+                .orElse(List.of());
+    }
+
+    private double labelScore(ImageAnalysisResult result) {
+        if (result.getTags() == null) {
+            return 0;
+        }
+        double score = 0;
+        for (DetectedTag tag : result.getTags().getValues()) {
+            if (unsafeLabels.contains(tag.getName().toLowerCase(Locale.ROOT))) {
+                score += tag.getConfidence();
+            }
+        }
+        return Math.min(1, score);
+    }
+
+    /**
+     * Share of pixels in the YCbCr skin range, mapped onto 0..1.
+     */
+    private double skinScore(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] rgb = image.getRGB(0, 0, width, height, null, 0, width);
+        int skin = 0;
+        for (int pixel : rgb) {
+            int r = (pixel >> 16) & 0xFF;
+            int g = (pixel >> 8) & 0xFF;
+            int b = pixel & 0xFF;
+            // Integer Rec. 601 chroma, offset by 128
+            int cb = 128 + ((-43 * r - 85 * g + 128 * b) >> 8);
+            int cr = 128 + ((128 * r - 107 * g - 21 * b) >> 8);
+            if (cb >= 77 && cb <= 127 && cr >= 133 && cr <= 173) {
+                skin++;
+            }
+        }
+        double share = (double) skin / rgb.length;
+        return Math.max(0, Math.min(1, (share - SKIN_FLOOR) / (SKIN_CEILING - SKIN_FLOOR)));
+    }
+
+    private Map<String, Object> toResult(double score, List<Double> scores) {
+        Map<String, Object> results = new LinkedHashMap<>();
+        results.put("score", score);
+        results.put("flagged", isGating() && score >= threshold);
+        results.put("threshold", threshold);
+        results.put("method", classifier != null ? "model" : "heuristic");
+        results.put("scores", scores);
+        log.debug("Moderation score {} over {} images ({})", score, scores.size(), results.get("method"));
+        return results;
+    }
+
+    /**
+     * Decodes keeping only enough pixels for {@value #MAX_SIDE} a side.
+     */
+    private BufferedImage decodeSmall(byte[] imageData) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(imageData))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                int step = Math.max(reader.getWidth(0), reader.getHeight(0)) / MAX_SIDE;
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (step > 1) {
+                    param.setSourceSubsampling(step, step, 0, 0);
+                }
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private byte[] encodePng(BufferedImage image) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", outputStream);
+        return outputStream.toByteArray();
+    }
+}
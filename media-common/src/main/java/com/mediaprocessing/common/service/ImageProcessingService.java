@@ -1,25 +1,44 @@
 package com.mediaprocessing.common.service;
 
+import com.luciad.imageio.webp.WebPWriteParam;
+import com.mediaprocessing.common.metrics.MediaMetrics;
+import com.mediaprocessing.common.metrics.MediaTracing;
 import lombok.extern.slf4j.Slf4j;
 import net.coobird.thumbnailator.Thumbnails;
 import net.coobird.thumbnailator.filters.Watermark;
-import net.coobird.thumbnailator.filters.ImageFilter;
 import net.coobird.thumbnailator.geometry.Positions;
 
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorConvertOp;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Iterator;
 
 @Slf4j
 public class ImageProcessingService {
 
+    private final RasterBufferPool bufferPool;
+
+    public ImageProcessingService() {
+        this(RasterBufferPool.shared());
+    }
+
+    public ImageProcessingService(RasterBufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
     public byte[] generateThumbnail(byte[] imageData, int width, int height) throws IOException {
+        return process("thumbnail", "jpg", imageData, () -> thumbnail(imageData, width, height));
+    }
+    
+    private byte[] thumbnail(byte[] imageData, int width, int height) throws IOException {
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
         
         Thumbnails.of(new ByteArrayInputStream(imageData))
@@ -31,40 +50,67 @@ public class ImageProcessingService {
         return outputStream.toByteArray();
     }
     
-    public byte[] addWatermark(byte[] imageData, String watermarkText) throws IOException {
-        BufferedImage originalImage = ImageIO.read(new ByteArrayInputStream(imageData));
-        
-        // Create watermark image
-        BufferedImage watermark = new BufferedImage(originalImage.getWidth(), originalImage.getHeight(), BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g2d = watermark.createGraphics();
-        
-        // Set font properties
-        Font font = new Font("Arial", Font.BOLD, 36);
-        g2d.setFont(font);
-        g2d.setColor(new Color(255, 255, 255, 128)); // Semi-transparent white
-        
-        FontMetrics fontMetrics = g2d.getFontMetrics();
-        int textWidth = fontMetrics.stringWidth(watermarkText);
-        int textHeight = fontMetrics.getHeight();
-        
-        // Draw text in center
-        g2d.drawString(watermarkText, 
-                (originalImage.getWidth() - textWidth) / 2, 
-                (originalImage.getHeight() + textHeight) / 2);
-        g2d.dispose();
+    /**
+     * Generates a thumbnail in the given format. WebP typically comes out 30-50% smaller
+     * than JPEG at the same visual quality.
+     *
+     * @param quality compression quality between 0 and 1, or a negative value for the format default
+     */
+    public byte[] generateThumbnail(byte[] imageData, int width, int height, String format, float quality) throws IOException {
+        return process("thumbnail", format, imageData, () -> thumbnail(imageData, width, height, format, quality));
+    }
+    
+    private byte[] thumbnail(byte[] imageData, int width, int height, String format, float quality) throws IOException {
+        BufferedImage thumbnail = Thumbnails.of(new ByteArrayInputStream(imageData))
+                .size(width, height)
+                .keepAspectRatio(true)
+                .asBufferedImage();
         
-        // Apply watermark
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        Thumbnails.of(originalImage)
-                .watermark(Positions.CENTER, watermark, 0.5f)
-                .scale(1.0)
-                .outputFormat(getImageFormat(imageData))
-                .toOutputStream(outputStream);
+        return encodeImage(thumbnail, format, quality, -1);
+    }
+    
+    public byte[] addWatermark(byte[] imageData, String watermarkText) throws IOException {
+        return process("watermark", getImageFormat(imageData), imageData, () -> watermark(imageData, watermarkText));
+    }
+    
+    private byte[] watermark(byte[] imageData, String watermarkText) throws IOException {
+        BufferedImage originalImage = decode(imageData);
         
-        return outputStream.toByteArray();
+        // Draw straight onto the decoded image instead of compositing a full-size overlay
+        BufferedImage image = toDrawableImage(originalImage);
+        try {
+            Graphics2D g2d = image.createGraphics();
+            
+            // Set font properties
+            Font font = new Font("Arial", Font.BOLD, 36);
+            g2d.setFont(font);
+            // Semi-transparent white text at 50% watermark opacity
+            g2d.setColor(new Color(255, 255, 255, 128));
+            g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.5f));
+            
+            FontMetrics fontMetrics = g2d.getFontMetrics();
+            int textWidth = fontMetrics.stringWidth(watermarkText);
+            int textHeight = fontMetrics.getHeight();
+            
+            // Draw text in center
+            g2d.drawString(watermarkText, 
+                    (image.getWidth() - textWidth) / 2, 
+                    (image.getHeight() + textHeight) / 2);
+            g2d.dispose();
+            
+            return encodeImage(image, getImageFormat(imageData), -1, -1);
+        } finally {
+            if (image != originalImage) {
+                bufferPool.release(image);
+            }
+        }
     }
     
     public byte[] resizeImage(byte[] imageData, int width, int height) throws IOException {
+        return process("resize", getImageFormat(imageData), imageData, () -> resize(imageData, width, height));
+    }
+    
+    private byte[] resize(byte[] imageData, int width, int height) throws IOException {
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
         
         Thumbnails.of(new ByteArrayInputStream(imageData))
@@ -76,31 +122,26 @@ public class ImageProcessingService {
         return outputStream.toByteArray();
     }
     
-    // Custom grayscale filter implementation
-    private static class GrayscaleFilter implements ImageFilter {
-        @Override
-        public BufferedImage apply(BufferedImage img) {
-            BufferedImage grayscaleImage = new BufferedImage(
-                    img.getWidth(), img.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
-            Graphics2D g2d = grayscaleImage.createGraphics();
-            g2d.drawImage(img, 0, 0, null);
-            g2d.dispose();
-            return grayscaleImage;
-        }
+    public byte[] applyFilter(byte[] imageData, String filterType) throws IOException {
+        return process("filter", getImageFormat(imageData), imageData, () -> filter(imageData, filterType));
     }
     
-    public byte[] applyFilter(byte[] imageData, String filterType) throws IOException {
+    private byte[] filter(byte[] imageData, String filterType) throws IOException {
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        BufferedImage originalImage = ImageIO.read(new ByteArrayInputStream(imageData));
+        BufferedImage originalImage = decode(imageData);
         
         switch (filterType.toLowerCase()) {
             case "grayscale":
-                Thumbnails.of(originalImage)
-                        .scale(1.0)
-                        .outputQuality(1.0)
-                        .outputFormat(getImageFormat(imageData))
-                        .addFilter(new GrayscaleFilter())
-                        .toOutputStream(outputStream);
+                BufferedImage grayscaleImage = bufferPool.acquireImage(
+                        originalImage.getWidth(), originalImage.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
+                try {
+                    Graphics2D g2d = grayscaleImage.createGraphics();
+                    g2d.drawImage(originalImage, 0, 0, null);
+                    g2d.dispose();
+                    outputStream.write(encodeImage(grayscaleImage, getImageFormat(imageData), 1.0f, -1));
+                } finally {
+                    bufferPool.release(grayscaleImage);
+                }
                 break;
             case "blur":
                 Thumbnails.of(originalImage)
@@ -113,27 +154,38 @@ public class ImageProcessingService {
                         .toOutputStream(outputStream);
                 break;
             case "sepia":
-                // Custom sepia filter implementation
-                BufferedImage sepiaImage = new BufferedImage(originalImage.getWidth(), originalImage.getHeight(), originalImage.getType());
-                for (int y = 0; y < originalImage.getHeight(); y++) {
-                    for (int x = 0; x < originalImage.getWidth(); x++) {
-                        int rgb = originalImage.getRGB(x, y);
-                        int r = (rgb >> 16) & 0xFF;
-                        int g = (rgb >> 8) & 0xFF;
-                        int b = rgb & 0xFF;
-                        
-                        int newRed = (int) (0.393 * r + 0.769 * g + 0.189 * b);
-                        int newGreen = (int) (0.349 * r + 0.686 * g + 0.168 * b);
-                        int newBlue = (int) (0.272 * r + 0.534 * g + 0.131 * b);
-                        
-                        newRed = Math.min(newRed, 255);
-                        newGreen = Math.min(newGreen, 255);
-                        newBlue = Math.min(newBlue, 255);
-                        
-                        sepiaImage.setRGB(x, y, (newRed << 16) | (newGreen << 8) | newBlue);
+                // Custom sepia filter, applied in place one pooled row at a time
+                BufferedImage sepiaImage = toDrawableImage(originalImage);
+                int width = sepiaImage.getWidth();
+                int[] row = bufferPool.acquireInts(width);
+                try {
+                    for (int y = 0; y < sepiaImage.getHeight(); y++) {
+                        sepiaImage.getRGB(0, y, width, 1, row, 0, width);
+                        for (int x = 0; x < width; x++) {
+                            int rgb = row[x];
+                            int r = (rgb >> 16) & 0xFF;
+                            int g = (rgb >> 8) & 0xFF;
+                            int b = rgb & 0xFF;
+                            
+                            int newRed = (int) (0.393 * r + 0.769 * g + 0.189 * b);
+                            int newGreen = (int) (0.349 * r + 0.686 * g + 0.168 * b);
+                            int newBlue = (int) (0.272 * r + 0.534 * g + 0.131 * b);
+                            
+                            newRed = Math.min(newRed, 255);
+                            newGreen = Math.min(newGreen, 255);
+                            newBlue = Math.min(newBlue, 255);
+                            
+                            row[x] = (rgb & 0xFF000000) | (newRed << 16) | (newGreen << 8) | newBlue;
+                        }
+                        sepiaImage.setRGB(0, y, width, 1, row, 0, width);
+                    }
+                    outputStream.write(encodeImage(sepiaImage, getImageFormat(imageData), -1, -1));
+                } finally {
+                    bufferPool.release(row);
+                    if (sepiaImage != originalImage) {
+                        bufferPool.release(sepiaImage);
                     }
                 }
-                ImageIO.write(sepiaImage, getImageFormat(imageData), outputStream);
                 break;
             default:
                 // No filter, return original
@@ -144,48 +196,159 @@ public class ImageProcessingService {
     }
     
     public byte[] convertFormat(byte[] imageData, String targetFormat) throws IOException {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        
-        Thumbnails.of(new ByteArrayInputStream(imageData))
-                .scale(1.0)
-                .outputFormat(targetFormat)
-                .toOutputStream(outputStream);
-        
-        return outputStream.toByteArray();
+        return convertFormat(imageData, targetFormat, -1, -1);
+    }
+    
+    /**
+     * Converts an image to the target format with explicit encoder settings.
+     *
+     * @param quality compression quality between 0 and 1, or a negative value for the format default
+     * @param effort  WebP encoder method from 0 (fastest) to 6 (smallest output), or negative for the default
+     */
+    public byte[] convertFormat(byte[] imageData, String targetFormat, float quality, int effort) throws IOException {
+        return process("convert", targetFormat, imageData, () -> convert(imageData, targetFormat, quality, effort));
     }
     
-    private String getImageFormat(byte[] imageData) throws IOException {
-        // Try to determine the image format from the image data
-        BufferedImage image = ImageIO.read(new ByteArrayInputStream(imageData));
+    private byte[] convert(byte[] imageData, String targetFormat, float quality, int effort) throws IOException {
+        BufferedImage image = decode(imageData);
         if (image == null) {
-            return "jpg"; // Default to jpg if format cannot be determined
+            throw new IOException("Unsupported image data");
         }
         
-        // Check for common image signatures
-        if (imageData.length >= 2) {
-            if (imageData[0] == (byte) 0xFF && imageData[1] == (byte) 0xD8) {
-                return "jpg";
-            } else if (imageData[0] == (byte) 0x89 && imageData[1] == (byte) 0x50) {
-                return "png";
-            } else if (imageData[0] == (byte) 0x47 && imageData[1] == (byte) 0x49) {
-                return "gif";
-            }
+        return encodeImage(image, targetFormat, quality, effort);
+    }
+    
+    public String getContentType(String format) {
+        switch (format.toLowerCase()) {
+            case "jpg":
+            case "jpeg":
+                return "image/jpeg";
+            case "png":
+                return "image/png";
+            case "gif":
+                return "image/gif";
+            case "bmp":
+                return "image/bmp";
+            case "webp":
+                return "image/webp";
+            default:
+                return "application/octet-stream";
         }
-        
-        return "jpg"; // Default to jpg
     }
     
-    public Map<String, Object> getImageMetadata(byte[] imageData) throws IOException {
-        BufferedImage image = ImageIO.read(new ByteArrayInputStream(imageData));
-        Map<String, Object> metadata = new HashMap<>();
+    /**
+     * Runs one operation in an {@code image <operation>} span, recording its
+     * time under {@code media.image.operation} and its input and output sizes
+     * under {@code media.image.bytes}.
+     */
+    private byte[] process(String operation, String format, byte[] imageData,
+                           MediaMetrics.Operation<byte[], IOException> work) throws IOException {
+        byte[] output = MediaTracing.trace("image " + operation, () -> {
+            MediaTracing.attribute(MediaTracing.BYTES_IN, imageData.length);
+            byte[] result = MediaMetrics.time("media.image.operation", work,
+                    "operation", operation,
+                    "format", format.toLowerCase(),
+                    "size", MediaMetrics.sizeBucket(imageData.length));
+            MediaTracing.attribute(MediaTracing.BYTES_OUT, result.length);
+            return result;
+        }, "media.format", format.toLowerCase());
+        MediaMetrics.bytes("media.image.bytes", imageData.length, "operation", operation, "direction", "in");
+        MediaMetrics.bytes("media.image.bytes", output.length, "operation", operation, "direction", "out");
+        return output;
+    }
+    
+    private BufferedImage decode(byte[] imageData) throws IOException {
+        String format = getImageFormat(imageData);
+        return MediaTracing.trace("image decode",
+                () -> MediaMetrics.time("media.image.codec", () -> ImageIO.read(new ByteArrayInputStream(imageData)),
+                        "stage", "decode", "format", format),
+                "media.format", format);
+    }
+    
+    private byte[] encodeImage(BufferedImage image, String format, float quality, int effort) throws IOException {
+        return MediaTracing.trace("image encode",
+                () -> MediaMetrics.time("media.image.codec", () -> writeImage(image, format, quality, effort),
+                        "stage", "encode", "format", format.toLowerCase()),
+                "media.format", format.toLowerCase());
+    }
+    
+    private byte[] writeImage(BufferedImage image, String format, float quality, int effort) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        if (!writers.hasNext()) {
+            throw new IOException("No image writer available for format: " + format);
+        }
+        ImageWriter writer = writers.next();
+        
+        BufferedImage rgbImage = null;
+        if (!format.equalsIgnoreCase("png") && !format.equalsIgnoreCase("webp") && image.getColorModel().hasAlpha()) {
+            // Formats without an alpha channel need an opaque RGB raster
+            rgbImage = bufferPool.acquireImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+            Graphics2D g2d = rgbImage.createGraphics();
+            g2d.drawImage(image, 0, 0, Color.WHITE, null);
+            g2d.dispose();
+            image = rgbImage;
+        }
         
-        if (image != null) {
-            metadata.put("width", image.getWidth());
-            metadata.put("height", image.getHeight());
-            metadata.put("type", image.getType());
-            metadata.put("colorModel", image.getColorModel().toString());
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (quality >= 0 && param.canWriteCompressed()) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            if (param.getCompressionType() == null && param.getCompressionTypes() != null) {
+                // WebP offers lossy and lossless; the first type is lossy
+                param.setCompressionType(param.getCompressionTypes()[0]);
+            }
+            param.setCompressionQuality(quality);
+        }
+        if (effort >= 0 && param instanceof WebPWriteParam) {
+            ((WebPWriteParam) param).setMethod(Math.min(effort, 6));
         }
         
-        return metadata;
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (ImageOutputStream imageOutputStream = ImageIO.createImageOutputStream(outputStream)) {
+            writer.setOutput(imageOutputStream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+            if (rgbImage != null) {
+                bufferPool.release(rgbImage);
+            }
+        }
+        
+        return outputStream.toByteArray();
+    }
+    
+    /**
+     * Returns the image itself when Java2D can draw on it directly, or a pooled
+     * RGB copy for grayscale, indexed and custom layouts. The caller releases the
+     * copy.
+     */
+    private BufferedImage toDrawableImage(BufferedImage image) {
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR:
+                return image;
+            default:
+                BufferedImage copy = bufferPool.acquireImage(image.getWidth(), image.getHeight(),
+                        image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+                Graphics2D g2d = copy.createGraphics();
+                g2d.drawImage(image, 0, 0, null);
+                g2d.dispose();
+                return copy;
+        }
+    }
+    
+    /**
+     * The format that watermarking, resizing and filters write: the source's
+     * own when ImageIO can write it, so WebP keeps its alpha and BMP is not
+     * silently turned into JPEG, and JPEG for anything else.
+     */
+    public String getImageFormat(byte[] imageData) {
+        String format = MediaMetadataProber.sniff(imageData);
+        if (format != null && !MediaMetadataProber.isVideoFormat(format)
+                && ImageIO.getImageWritersByFormatName(format).hasNext()) {
+            return format;
+        }
+        return "jpg";
     }
 }
@@ -0,0 +1,448 @@
+package com.mediaprocessing.common.service;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Extracts basic media metadata from container and header bytes only, without
+ * decoding pixels or frames. Sources are read through a {@link RangeReader} in
+ * fixed-size blocks, so probing a blob costs a few small ranged reads no matter
+ * how large the file is.
+ */
+@Slf4j
+public class MediaMetadataProber {
+
+    // Header bytes read to recognize a format
+    public static final int SNIFF_LENGTH = 32;
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+    // Largest moov box we are willing to read; beyond this the file is probed by extension only
+    private static final int MAX_MOOV_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Random access to the bytes of a media source.
+     */
+    public interface RangeReader {
+        long size() throws IOException;
+
+        /**
+         * Reads up to {@code length} bytes at {@code offset}; fewer are returned at end of data.
+         */
+        byte[] read(long offset, int length) throws IOException;
+
+        static RangeReader of(byte[] data) {
+            return new RangeReader() {
+                @Override
+                public long size() {
+                    return data.length;
+                }
+
+                @Override
+                public byte[] read(long offset, int length) {
+                    int start = (int) Math.min(offset, data.length);
+                    int end = (int) Math.min((long) start + length, data.length);
+                    byte[] result = new byte[end - start];
+                    System.arraycopy(data, start, result, 0, result.length);
+                    return result;
+                }
+            };
+        }
+    }
+
+    /**
+     * The container format named by the magic bytes at the start of a file:
+     * jpg, png, gif, webp, bmp, heic, avif, mp4 (any other ISO BMFF, including
+     * mov), avi or mkv (including webm); null if unrecognized. {@value #SNIFF_LENGTH} bytes are
+     * enough.
+     */
+    public static String sniff(byte[] head) {
+        if (head.length >= 3 && (head[0] & 0xFF) == 0xFF && (head[1] & 0xFF) == 0xD8) {
+            return "jpg";
+        } else if (head.length >= 24 && (head[0] & 0xFF) == 0x89 && head[1] == 'P' && head[2] == 'N' && head[3] == 'G') {
+            return "png";
+        } else if (head.length >= 10 && head[0] == 'G' && head[1] == 'I' && head[2] == 'F') {
+            return "gif";
+        } else if (head.length >= 12 && ascii(head, 0, 4).equals("RIFF")) {
+            String form = ascii(head, 8, 4);
+            return form.equals("WEBP") && head.length >= 30 ? "webp" : form.equals("AVI ") ? "avi" : null;
+        } else if (head.length >= 8 && isIsoBmffBox(ascii(head, 4, 4))) {
+            String still = heifFormat(head);
+            return still != null ? still : "mp4";
+        } else if (head.length >= 4 && (head[0] & 0xFF) == 0x1A && (head[1] & 0xFF) == 0x45
+                && (head[2] & 0xFF) == 0xDF && (head[3] & 0xFF) == 0xA3) {
+            return "mkv";
+        } else if (head.length >= 26 && head[0] == 'B' && head[1] == 'M') {
+            return "bmp";
+        }
+        return null;
+    }
+
+    /**
+     * Whether a sniffed format is a video container rather than an image.
+     */
+    public static boolean isVideoFormat(String format) {
+        return "mp4".equals(format) || "avi".equals(format) || "mkv".equals(format);
+    }
+
+    /**
+     * Whether probed metadata describes a video. This follows the sniffed
+     * container rather than the duration, which only MP4s with a readable moov
+     * box have; when the format is unknown the content type decides.
+     *
+     * @param contentType the stored content type of the source; may be null
+     */
+    public static boolean isVideo(Map<String, String> metadata, String contentType) {
+        String format = metadata.get("format");
+        if (format != null) {
+            return isVideoFormat(format);
+        }
+        return contentType != null && contentType.startsWith("video/");
+    }
+
+    public Map<String, String> probe(byte[] data) {
+        return probe(RangeReader.of(data));
+    }
+
+    public Map<String, String> probe(RangeReader reader) {
+        Map<String, String> metadata = new HashMap<>();
+        try {
+            BlockReader source = new BlockReader(reader);
+            byte[] head = source.read(0, SNIFF_LENGTH);
+            String format = sniff(head);
+
+            if ("jpg".equals(format)) {
+                probeJpeg(source, metadata);
+            } else if ("png".equals(format)) {
+                probePng(head, metadata);
+            } else if ("gif".equals(format)) {
+                metadata.put("format", "gif");
+                metadata.put("width", String.valueOf(readUInt16LE(head, 6)));
+                metadata.put("height", String.valueOf(readUInt16LE(head, 8)));
+            } else if ("webp".equals(format)) {
+                probeWebp(head, metadata);
+            } else if ("mp4".equals(format)) {
+                probeMp4(source, metadata);
+            } else if (format != null) {
+                metadata.put("format", format);
+            }
+        } catch (Exception e) {
+            // Metadata is best effort; an unparseable header must never fail an upload
+            log.warn("Error probing media metadata: {}", e.getMessage());
+        }
+        return metadata;
+    }
+
+    private void probeJpeg(BlockReader source, Map<String, String> metadata) throws IOException {
+        metadata.put("format", "jpg");
+        long size = source.size();
+        long offset = 2;
+
+        while (offset + 4 <= size) {
+            byte[] marker = source.read(offset, 4);
+            if ((marker[0] & 0xFF) != 0xFF) {
+                return;
+            }
+            int type = marker[1] & 0xFF;
+            int length = readUInt16BE(marker, 2);
+
+            if (type == 0xE1 && !metadata.containsKey("orientation")) {
+                probeExif(source.read(offset + 4, length - 2), metadata);
+            } else if (type >= 0xC0 && type <= 0xCF && type != 0xC4 && type != 0xC8 && type != 0xCC) {
+                // Start of frame: precision(1) height(2) width(2) components(1)
+                byte[] frame = source.read(offset + 4, 6);
+                metadata.put("height", String.valueOf(readUInt16BE(frame, 1)));
+                metadata.put("width", String.valueOf(readUInt16BE(frame, 3)));
+                metadata.put("components", String.valueOf(frame[5] & 0xFF));
+                return;
+            } else if (type == 0xDA) {
+                // Start of scan without a frame header; nothing more to find
+                return;
+            }
+            offset += 2 + length;
+        }
+    }
+
+    private void probeExif(byte[] segment, Map<String, String> metadata) {
+        if (segment.length < 14 || !ascii(segment, 0, 4).equals("Exif")) {
+            return;
+        }
+        int tiff = 6;
+        boolean littleEndian = segment[tiff] == 'I';
+        int ifdOffset = tiff + readUInt32(segment, tiff + 4, littleEndian);
+        if (ifdOffset + 2 > segment.length) {
+            return;
+        }
+
+        int entries = readUInt16(segment, ifdOffset, littleEndian);
+        for (int i = 0; i < entries; i++) {
+            int entry = ifdOffset + 2 + i * 12;
+            if (entry + 12 > segment.length) {
+                return;
+            }
+            if (readUInt16(segment, entry, littleEndian) == 0x0112) {
+                metadata.put("orientation", String.valueOf(readUInt16(segment, entry + 8, littleEndian)));
+                return;
+            }
+        }
+    }
+
+    private void probePng(byte[] head, Map<String, String> metadata) {
+        // IHDR is always the first chunk: width(4) height(4) bitDepth(1) colorType(1)
+        metadata.put("format", "png");
+        metadata.put("width", String.valueOf(readUInt32(head, 16, false)));
+        metadata.put("height", String.valueOf(readUInt32(head, 20, false)));
+        if (head.length >= 26) {
+            metadata.put("bitDepth", String.valueOf(head[24] & 0xFF));
+            metadata.put("colorType", String.valueOf(head[25] & 0xFF));
+        }
+    }
+
+    private void probeWebp(byte[] head, Map<String, String> metadata) {
+        metadata.put("format", "webp");
+        String chunk = ascii(head, 12, 4);
+        int width;
+        int height;
+        if (chunk.equals("VP8X")) {
+            width = 1 + readUInt24LE(head, 24);
+            height = 1 + readUInt24LE(head, 27);
+        } else if (chunk.equals("VP8L")) {
+            int bits = readUInt32(head, 21, true);
+            width = 1 + (bits & 0x3FFF);
+            height = 1 + ((bits >> 14) & 0x3FFF);
+        } else {
+            width = readUInt16LE(head, 26) & 0x3FFF;
+            height = readUInt16LE(head, 28) & 0x3FFF;
+        }
+        metadata.put("width", String.valueOf(width));
+        metadata.put("height", String.valueOf(height));
+    }
+
+    private void probeMp4(BlockReader source, Map<String, String> metadata) throws IOException {
+        metadata.put("format", "mp4");
+        long size = source.size();
+        long offset = 0;
+
+        // Walk top-level boxes by their headers until moov is found; mdat is skipped, not read
+        while (offset + 8 <= size) {
+            byte[] header = source.read(offset, 16);
+            long boxSize = readUInt32(header, 0, false) & 0xFFFFFFFFL;
+            String type = ascii(header, 4, 4);
+            int headerSize = 8;
+            if (boxSize == 1) {
+                boxSize = readUInt64(header, 8);
+                headerSize = 16;
+            } else if (boxSize == 0) {
+                boxSize = size - offset;
+            }
+
+            if (type.equals("moov")) {
+                if (boxSize > MAX_MOOV_SIZE) {
+                    log.debug("moov box too large to probe: {} bytes", boxSize);
+                    return;
+                }
+                byte[] moov = source.read(offset + headerSize, (int) (boxSize - headerSize));
+                parseMoov(moov, metadata);
+                return;
+            }
+            if (boxSize < headerSize) {
+                return;
+            }
+            offset += boxSize;
+        }
+    }
+
+    private void parseMoov(byte[] moov, Map<String, String> metadata) {
+        int offset = 0;
+        while (offset + 8 <= moov.length) {
+            int boxSize = readUInt32(moov, offset, false);
+            String type = ascii(moov, offset + 4, 4);
+            if (boxSize < 8 || offset + boxSize > moov.length) {
+                return;
+            }
+
+            if (type.equals("mvhd")) {
+                // version(1) flags(3), then times, timescale and duration sized by version
+                int version = moov[offset + 8];
+                long timescale;
+                long duration;
+                if (version == 1) {
+                    timescale = readUInt32(moov, offset + 28, false) & 0xFFFFFFFFL;
+                    duration = readUInt64(moov, offset + 32);
+                } else {
+                    timescale = readUInt32(moov, offset + 20, false) & 0xFFFFFFFFL;
+                    duration = readUInt32(moov, offset + 24, false) & 0xFFFFFFFFL;
+                }
+                if (timescale > 0) {
+                    metadata.put("duration", String.valueOf((double) duration / timescale));
+                }
+            } else if (type.equals("trak")) {
+                parseTrak(moov, offset + 8, offset + boxSize, metadata);
+            }
+            offset += boxSize;
+        }
+    }
+
+    private void parseTrak(byte[] moov, int start, int end, Map<String, String> metadata) {
+        int offset = start;
+        while (offset + 8 <= end) {
+            int boxSize = readUInt32(moov, offset, false);
+            String type = ascii(moov, offset + 4, 4);
+            if (boxSize < 8 || offset + boxSize > end) {
+                return;
+            }
+
+            if (type.equals("tkhd")) {
+                // Width and height are 16.16 fixed point at the end of the box
+                int width = readUInt32(moov, offset + boxSize - 8, false) >>> 16;
+                int height = readUInt32(moov, offset + boxSize - 4, false) >>> 16;
+                if (width > 0 && height > 0 && !metadata.containsKey("width")) {
+                    metadata.put("width", String.valueOf(width));
+                    metadata.put("height", String.valueOf(height));
+                }
+            } else if (type.equals("mdia") || type.equals("minf") || type.equals("stbl")) {
+                parseTrak(moov, offset + 8, offset + boxSize, metadata);
+            } else if (type.equals("stsd") && offset + 24 <= end) {
+                // First sample entry's four-character code, e.g. avc1, hvc1, mp4a
+                String codec = ascii(moov, offset + 20, 4);
+                if (isToken(codec)) {
+                    String key = codec.equals("mp4a") || codec.equals("ac-3") || codec.equals("Opus")
+                            ? "audioCodec"
+                            : "videoCodec";
+                    metadata.putIfAbsent(key, codec);
+                }
+            }
+            offset += boxSize;
+        }
+    }
+
+    /**
+     * HEIC and AVIF stills are ISO BMFF files too; the major brand of their
+     * ftyp box tells them apart from video. A generic mif1 still is AVIF when
+     * avif is among the compatible brands in the header, HEIC otherwise.
+     */
+    private static String heifFormat(byte[] head) {
+        if (!ascii(head, 4, 4).equals("ftyp")) {
+            return null;
+        }
+        String major = ascii(head, 8, 4);
+        if (major.equals("avif")) {
+            return "avif";
+        } else if (major.equals("heic") || major.equals("heix")) {
+            return "heic";
+        } else if (major.equals("mif1")) {
+            int end = Math.min(readUInt32(head, 0, false), head.length);
+            for (int offset = 16; offset + 4 <= end; offset += 4) {
+                if (ascii(head, offset, 4).equals("avif")) {
+                    return "avif";
+                }
+            }
+            return "heic";
+        }
+        return null;
+    }
+
+    private static boolean isIsoBmffBox(String type) {
+        return type.equals("ftyp") || type.equals("moov") || type.equals("mdat")
+                || type.equals("wide") || type.equals("free") || type.equals("skip");
+    }
+
+    /**
+     * Whether a string read from the file is safe to store as blob metadata,
+     * which travels as HTTP header values; anything else is dropped.
+     */
+    private static boolean isToken(String value) {
+        return !value.isEmpty() && value.chars().allMatch(c -> c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z'
+                || c >= '0' && c <= '9' || c == '.' || c == '_' || c == '-');
+    }
+
+    private static String ascii(byte[] data, int offset, int length) {
+        if (offset + length > data.length) {
+            return "";
+        }
+        return new String(data, offset, length, StandardCharsets.US_ASCII);
+    }
+
+    private static int readUInt16BE(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private static int readUInt16LE(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8);
+    }
+
+    private static int readUInt16(byte[] data, int offset, boolean littleEndian) {
+        return littleEndian ? readUInt16LE(data, offset) : readUInt16BE(data, offset);
+    }
+
+    private static int readUInt24LE(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8) | ((data[offset + 2] & 0xFF) << 16);
+    }
+
+    private static int readUInt32(byte[] data, int offset, boolean littleEndian) {
+        if (littleEndian) {
+            return readUInt16LE(data, offset) | (readUInt16LE(data, offset + 2) << 16);
+        }
+        return (readUInt16BE(data, offset) << 16) | readUInt16BE(data, offset + 2);
+    }
+
+    private static long readUInt64(byte[] data, int offset) {
+        return ((readUInt32(data, offset, false) & 0xFFFFFFFFL) << 32) | (readUInt32(data, offset + 4, false) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Serves small reads from whole cached blocks so that walking a header field by
+     * field turns into a handful of ranged reads against the underlying source.
+     */
+    private static class BlockReader {
+        private final RangeReader reader;
+        private final Map<Long, byte[]> blocks = new HashMap<>();
+        private long size = -1;
+
+        BlockReader(RangeReader reader) {
+            this.reader = reader;
+        }
+
+        long size() throws IOException {
+            if (size < 0) {
+                size = reader.size();
+            }
+            return size;
+        }
+
+        byte[] read(long offset, int length) throws IOException {
+            long end = Math.min(offset + length, size());
+            if (end <= offset) {
+                return new byte[0];
+            }
+            if (end - offset > BLOCK_SIZE) {
+                // Large reads (a moov box) go straight to the source
+                return reader.read(offset, (int) (end - offset));
+            }
+
+            byte[] result = new byte[(int) (end - offset)];
+            int written = 0;
+            long position = offset;
+            while (position < end) {
+                long blockIndex = position / BLOCK_SIZE;
+                byte[] block = blocks.get(blockIndex);
+                if (block == null) {
+                    block = reader.read(blockIndex * BLOCK_SIZE, BLOCK_SIZE);
+                    blocks.put(blockIndex, block);
+                }
+                int blockOffset = (int) (position - blockIndex * BLOCK_SIZE);
+                int count = (int) Math.min(block.length - blockOffset, end - position);
+                if (count <= 0) {
+                    break;
+                }
+                System.arraycopy(block, blockOffset, result, written, count);
+                written += count;
+                position += count;
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package com.mediaprocessing.common.service;
+
+import ai.onnxruntime.NodeInfo;
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.TensorInfo;
+import com.azure.ai.vision.imageanalysis.models.ImageAnalysisResult;
+import com.azure.ai.vision.imageanalysis.models.VisualFeatures;
+import com.azure.core.util.BinaryData;
+import com.azure.json.JsonProviders;
+import com.azure.json.JsonReader;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import net.coobird.thumbnailator.Thumbnails;
+import net.coobird.thumbnailator.geometry.Positions;
+import reactor.core.publisher.Mono;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * In-process image tagging with an ONNX image classification model on the
+ * CPU, e.g. a MobileNet or SqueezeNet export. Each worker thread owns a
+ * session that is warmed up at startup. Workers take images off a shared
+ * queue and run up to {@code maxBatchSize} of them in one inference, waiting
+ * at most {@code maxBatchDelay} for a batch to fill. Only TAGS is supported;
+ * other features go to the remote backend.
+ * <p>
+ * The model takes NCHW float RGB input, normalized with the ImageNet mean and
+ * standard deviation, and outputs one score per label.
+ */
+@Slf4j
+public class OnnxAnalysisBackend implements AnalysisBackend, AutoCloseable {
+
+    // ImageNet normalization, used by torchvision and most exported classifiers
+    private static final float[] MEAN = {0.485f, 0.456f, 0.406f};
+    private static final float[] STD = {0.229f, 0.224f, 0.225f};
+    private static final int DEFAULT_INPUT_SIZE = 224;
+    private static final int TOP_TAGS = 5;
+    private static final float MIN_CONFIDENCE = 0.05f;
+
+    private final OrtEnvironment environment = OrtEnvironment.getEnvironment();
+    private final List<OrtSession> sessions = new ArrayList<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private final BlockingQueue<PendingImage> queue = new LinkedBlockingQueue<>();
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final List<String> labels;
+    private final String modelVersion;
+    private final String inputName;
+    private final int inputWidth;
+    private final int inputHeight;
+    private final int maxBatchSize;
+    private final boolean fixedBatchSize;
+    private final long maxBatchDelayNanos;
+
+    private final AtomicLong images = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong inferenceNanos = new AtomicLong();
+
+    /**
+     * @param labelsPath one label per line, in output order; a leading WordNet
+     *                   id and anything after the first comma are dropped
+     * @param sessions   worker threads, each with its own session
+     */
+    public OnnxAnalysisBackend(Path modelPath, Path labelsPath, int sessions, int maxBatchSize,
+                               Duration maxBatchDelay) throws OrtException, IOException {
+        this.labels = Files.readAllLines(labelsPath, StandardCharsets.UTF_8).stream()
+                .map(line -> line.replaceFirst("^n\\d{8}\\s+", "").split(",")[0].trim())
+                .collect(Collectors.toList());
+        this.modelVersion = "local-" + modelPath.getFileName();
+        this.maxBatchDelayNanos = maxBatchDelay.toNanos();
+
+        // Split the cores between sessions rather than letting each one claim all of them
+        int threadsPerSession = Math.max(1, Runtime.getRuntime().availableProcessors() / sessions);
+        for (int i = 0; i < sessions; i++) {
+            OrtSession.SessionOptions options = new OrtSession.SessionOptions();
+            options.setOptimizationLevel(OrtSession.SessionOptions.OptLevel.ALL_OPT);
+            options.setIntraOpNumThreads(threadsPerSession);
+            this.sessions.add(environment.createSession(modelPath.toString(), options));
+        }
+
+        Map.Entry<String, NodeInfo> input = this.sessions.get(0).getInputInfo().entrySet().iterator().next();
+        long[] shape = ((TensorInfo) input.getValue().getInfo()).getShape();
+        this.inputName = input.getKey();
+        this.inputHeight = shape[2] > 0 ? (int) shape[2] : DEFAULT_INPUT_SIZE;
+        this.inputWidth = shape[3] > 0 ? (int) shape[3] : DEFAULT_INPUT_SIZE;
+        // A fixed batch dimension must always be filled; most exports fix it at 1
+        this.fixedBatchSize = shape[0] > 0;
+        this.maxBatchSize = fixedBatchSize ? (int) shape[0] : maxBatchSize;
+
+        for (int i = 0; i < sessions; i++) {
+            OrtSession session = this.sessions.get(i);
+            // The first run allocates and plans memory; do it before traffic arrives
+            run(session, new float[this.maxBatchSize * 3 * inputHeight * inputWidth], this.maxBatchSize);
+            Thread worker = new Thread(() -> work(session), "onnx-analysis-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+        log.info("Loaded {} ({}x{} input, batch {}, {} sessions, {} labels)",
+                modelPath, inputWidth, inputHeight, this.maxBatchSize, sessions, labels.size());
+    }
+
+    @Override
+    public Set<VisualFeatures> getSupportedFeatures() {
+        return Set.of(VisualFeatures.TAGS);
+    }
+
+    @Override
+    public boolean isRemote() {
+        return false;
+    }
+
+    @Override
+    public Mono<ImageAnalysisResult> analyze(BinaryData imageData, List<VisualFeatures> features) {
+        return Mono.defer(() -> {
+            PendingImage pending = new PendingImage(imageData.toBytes());
+            queue.add(pending);
+            return Mono.fromFuture(pending.result);
+        });
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        long batchCount = batches.get();
+        stats.put("images", images.get());
+        stats.put("batches", batchCount);
+        stats.put("averageBatchSize", batchCount > 0 ? (double) images.get() / batchCount : 0);
+        stats.put("averageInferenceMillis", batchCount > 0 ? inferenceNanos.get() / 1e6 / batchCount : 0);
+        stats.put("queued", queue.size());
+        return stats;
+    }
+
+    @Override
+    public void close() throws OrtException {
+        workers.forEach(Thread::interrupt);
+        for (OrtSession session : sessions) {
+            session.close();
+        }
+    }
+
+    private void work(OrtSession session) {
+        List<PendingImage> batch = new ArrayList<>(maxBatchSize);
+        float[] pixels = new float[maxBatchSize * 3 * inputHeight * inputWidth];
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + maxBatchDelayNanos;
+                while (batch.size() < maxBatchSize) {
+                    PendingImage next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                processBatch(session, batch, pixels);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void processBatch(OrtSession session, List<PendingImage> batch, float[] pixels) {
+        // Callers that timed out have cancelled their futures; decode only the rest
+        batch.removeIf(pending -> pending.result.isDone());
+        List<PendingImage> decoded = new ArrayList<>(batch.size());
+        int imageSize = 3 * inputHeight * inputWidth;
+        for (PendingImage pending : batch) {
+            try {
+                BufferedImage image = ImageIO.read(new ByteArrayInputStream(pending.imageData));
+                if (image == null) {
+                    throw new IOException("Unsupported image format");
+                }
+                pending.width = image.getWidth();
+                pending.height = image.getHeight();
+                writePixels(image, pixels, decoded.size() * imageSize);
+                decoded.add(pending);
+            } catch (Exception e) {
+                pending.result.completeExceptionally(e);
+            }
+        }
+        if (decoded.isEmpty()) {
+            return;
+        }
+
+        try {
+            // Rows past the decoded images only pad a fixed-size batch and are ignored
+            int batchSize = fixedBatchSize ? maxBatchSize : decoded.size();
+            long start = System.nanoTime();
+            float[] scores = run(session, pixels, batchSize);
+            inferenceNanos.addAndGet(System.nanoTime() - start);
+            batches.incrementAndGet();
+            images.addAndGet(decoded.size());
+
+            int classes = scores.length / batchSize;
+            for (int i = 0; i < decoded.size(); i++) {
+                PendingImage pending = decoded.get(i);
+                pending.result.complete(toResult(scores, i * classes, classes, pending));
+            }
+        } catch (Exception e) {
+            log.error("Local inference failed for a batch of {}", decoded.size(), e);
+            decoded.forEach(pending -> pending.result.completeExceptionally(e));
+        }
+    }
+
+    /**
+     * Center-crops and scales the image to the model input, writing
+     * normalized planar RGB at {@code offset}.
+     */
+    private void writePixels(BufferedImage image, float[] pixels, int offset) throws IOException {
+        BufferedImage scaled = Thumbnails.of(image)
+                .size(inputWidth, inputHeight)
+                .crop(Positions.CENTER)
+                .imageType(BufferedImage.TYPE_INT_RGB)
+                .asBufferedImage();
+        int[] rgb = scaled.getRGB(0, 0, inputWidth, inputHeight, null, 0, inputWidth);
+        int plane = inputWidth * inputHeight;
+        for (int i = 0; i < plane; i++) {
+            int pixel = rgb[i];
+            pixels[offset + i] = (((pixel >> 16) & 0xFF) / 255f - MEAN[0]) / STD[0];
+            pixels[offset + plane + i] = (((pixel >> 8) & 0xFF) / 255f - MEAN[1]) / STD[1];
+            pixels[offset + 2 * plane + i] = ((pixel & 0xFF) / 255f - MEAN[2]) / STD[2];
+        }
+    }
+
+    private float[] run(OrtSession session, float[] pixels, int batchSize) throws OrtException {
+        long[] shape = {batchSize, 3, inputHeight, inputWidth};
+        FloatBuffer buffer = FloatBuffer.wrap(pixels, 0, batchSize * 3 * inputHeight * inputWidth);
+        try (OnnxTensor tensor = OnnxTensor.createTensor(environment, buffer, shape);
+             OrtSession.Result result = session.run(Map.of(inputName, tensor))) {
+            FloatBuffer output = ((OnnxTensor) result.get(0)).getFloatBuffer();
+            float[] scores = new float[output.remaining()];
+            output.get(scores);
+            return scores;
+        }
+    }
+
+    private ImageAnalysisResult toResult(float[] scores, int offset, int classes, PendingImage pending)
+            throws IOException {
+        float[] probabilities = softmaxIfNeeded(scores, offset, classes);
+        List<Map<String, Object>> tags = IntStream.range(0, classes)
+                .boxed()
+                .sorted(Comparator.comparingDouble(i -> -probabilities[i]))
+                .limit(TOP_TAGS)
+                .filter(i -> probabilities[i] >= MIN_CONFIDENCE)
+                .map(i -> {
+                    Map<String, Object> tag = new LinkedHashMap<>();
+                    tag.put("name", i < labels.size() ? labels.get(i) : "class " + i);
+                    tag.put("confidence", (double) probabilities[i]);
+                    return tag;
+                })
+                .collect(Collectors.toList());
+
+        // Same shape as a service response, so results are handled identically
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("modelVersion", modelVersion);
+        response.put("metadata", Map.of("width", pending.width, "height", pending.height));
+        response.put("tagsResult", Map.of("values", tags));
+        try (JsonReader reader = JsonProviders.createReader(objectMapper.writeValueAsString(response))) {
+            return ImageAnalysisResult.fromJson(reader);
+        }
+    }
+
+    /**
+     * Returns the scores as probabilities, applying a softmax unless the model
+     * already ends in one.
+     */
+    private float[] softmaxIfNeeded(float[] scores, int offset, int classes) {
+        float[] probabilities = new float[classes];
+        float sum = 0;
+        boolean normalized = true;
+        float max = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < classes; i++) {
+            float score = scores[offset + i];
+            normalized &= score >= 0 && score <= 1;
+            sum += score;
+            max = Math.max(max, score);
+        }
+        if (normalized && Math.abs(sum - 1) < 0.01) {
+            System.arraycopy(scores, offset, probabilities, 0, classes);
+            return probabilities;
+        }
+
+        float total = 0;
+        for (int i = 0; i < classes; i++) {
+            probabilities[i] = (float) Math.exp(scores[offset + i] - max);
+            total += probabilities[i];
+        }
+        for (int i = 0; i < classes; i++) {
+            probabilities[i] /= total;
+        }
+        return probabilities;
+    }
+
+    private static class PendingImage {
+        private final byte[] imageData;
+        private final CompletableFuture<ImageAnalysisResult> result = new CompletableFuture<>();
+        private int width;
+        private int height;
+
+        PendingImage(byte[] imageData) {
+            this.imageData = imageData;
+        }
+    }
+}
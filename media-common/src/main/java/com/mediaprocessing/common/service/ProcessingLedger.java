@@ -0,0 +1,406 @@
+package com.mediaprocessing.common.service;
+
+import com.azure.core.util.BinaryData;
+import com.azure.core.util.Context;
+import com.azure.storage.blob.BlobContainerClient;
+import com.azure.storage.blob.BlobServiceClient;
+import com.azure.storage.blob.models.BlobItem;
+import com.azure.storage.blob.models.BlobListDetails;
+import com.azure.storage.blob.models.BlobProperties;
+import com.azure.storage.blob.models.BlobRequestConditions;
+import com.azure.storage.blob.models.BlobStorageException;
+import com.azure.storage.blob.models.ListBlobsOptions;
+import com.azure.storage.blob.options.BlockBlobSimpleUploadOptions;
+import com.azure.storage.blob.specialized.BlockBlobClient;
+import com.mediaprocessing.common.metrics.MediaMetrics;
+import com.mediaprocessing.common.model.ProcessingRequest;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records which processing requests have run, so a redelivered queue message
+ * costs two small blob requests instead of repeating the job. There is one
+ * empty blob per source blob version (its ETag), processing type and
+ * parameters, named after the source so orphan cleanup can remove it, with
+ * the job's state in its metadata.
+ * <p>
+ * A job is claimed with conditional writes: creating the entry if it does
+ * not exist, or replacing a failed or expired one only if its ETag is
+ * unchanged, so two workers never both win. While the job runs, its claim is
+ * renewed every third of the claim time; a claim that stops being renewed
+ * because its worker crashed expires, and the next delivery takes it over.
+ * Jobs that run in steps record a cursor with each claim, which the worker
+ * that takes the claim over continues from. A completed job stays done for
+ * the done time, after which a new request for it runs again, in case its
+ * output has since been deleted.
+ */
+@Slf4j
+public class ProcessingLedger {
+
+    public static final String CONTAINER = "processing-ledger";
+
+    private static final String STATE_METADATA = "state";
+    private static final String OWNER_METADATA = "owner";
+    private static final String EXPIRES_AT_METADATA = "expiresAt";
+    private static final String ATTEMPTS_METADATA = "attempts";
+    private static final String ERROR_METADATA = "error";
+    private static final String CURSOR_METADATA = "cursor";
+    private static final int MAX_ERROR_LENGTH = 256;
+
+    // A few threads, so one slow renewal does not hold up the heartbeats of the worker's other claims
+    private static final ScheduledExecutorService HEARTBEAT = Executors.newScheduledThreadPool(4, runnable -> {
+        Thread thread = new Thread(runnable, "ledger-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public enum State {
+        RUNNING,
+        DONE,
+        FAILED,
+        // Stopped between steps, to be continued by another invocation
+        PAUSED
+    }
+
+    public enum Outcome {
+        // This worker runs the job
+        CLAIMED,
+        // This worker runs the job after an earlier attempt failed, paused or stopped renewing the claim
+        RESUMED,
+        // The job has completed; nothing to do
+        DUPLICATE,
+        // Another worker is running the job now
+        BUSY
+    }
+
+    /**
+     * A claim on one job. Owned claims are renewed until completed or
+     * released, and must be one or the other.
+     */
+    @Getter
+    public final class Claim {
+        private final String entryName;
+        private final Outcome outcome;
+        private final int attempt;
+        private final String owner;
+        private volatile String entryEtag;
+        private volatile boolean lost;
+        // Where an earlier attempt got to, or null to start from the beginning
+        private volatile String cursor;
+        private ScheduledFuture<?> renewal;
+
+        private Claim(String entryName, Outcome outcome, int attempt, String owner, String entryEtag, String cursor) {
+            this.entryName = entryName;
+            this.outcome = outcome;
+            this.attempt = attempt;
+            this.owner = owner;
+            this.entryEtag = entryEtag;
+            this.cursor = cursor;
+        }
+
+        public boolean isOwned() {
+            return outcome == Outcome.CLAIMED || outcome == Outcome.RESUMED;
+        }
+    }
+
+    private final BlobContainerClient containerClient;
+    private final Duration claimTime;
+    private final Duration doneTime;
+
+    public ProcessingLedger(BlobServiceClient blobServiceClient, Duration claimTime, Duration doneTime) {
+        this.containerClient = blobServiceClient.getBlobContainerClient(CONTAINER);
+        this.claimTime = claimTime;
+        this.doneTime = doneTime;
+        if (!containerClient.exists()) {
+            containerClient.create();
+            log.info("Container created: {}", CONTAINER);
+        }
+    }
+
+    /**
+     * The ledger entry for a job: {@code <blob>/<etag>/<type>-<parameters hash>}.
+     */
+    public static String entryName(String blobName, String sourceEtag, ProcessingRequest.ProcessingType type,
+                                   Map<String, String> parameters) {
+        return blobName + "/" + sourceEtag.replace("\"", "") + "/" + type.name() + "-" + parametersHash(parameters);
+    }
+
+    /**
+     * A job regardless of the blob's version: {@code <blob>/<type>-<parameters hash>},
+     * for coalescing identical requests in memory.
+     */
+    public static String jobKey(String blobName, ProcessingRequest.ProcessingType type,
+                                Map<String, String> parameters) {
+        return blobName + "/" + type.name() + "-" + parametersHash(parameters);
+    }
+
+    /**
+     * The state of a job's most recently written entry, on any version of
+     * its blob, if that entry was written at or after {@code since}; null if
+     * the job has not been claimed since then.
+     */
+    public State latestState(String blobName, ProcessingRequest.ProcessingType type, Map<String, String> parameters,
+                             Instant since) {
+        String suffix = "/" + type.name() + "-" + parametersHash(parameters);
+        ListBlobsOptions options = new ListBlobsOptions()
+                .setPrefix(blobName + "/")
+                .setDetails(new BlobListDetails().setRetrieveMetadata(true));
+        BlobItem latest = null;
+        for (BlobItem item : containerClient.listBlobs(options, null)) {
+            if (!item.getName().endsWith(suffix) || item.getProperties().getLastModified().toInstant().isBefore(since)) {
+                continue;
+            }
+            if (latest == null || item.getProperties().getLastModified().isAfter(latest.getProperties().getLastModified())) {
+                latest = item;
+            }
+        }
+        if (latest == null) {
+            return null;
+        }
+        Map<String, String> metadata = latest.getMetadata() != null ? latest.getMetadata() : Map.of();
+        return State.valueOf(metadata.getOrDefault(STATE_METADATA, State.FAILED.name()));
+    }
+
+    private static String parametersHash(Map<String, String> parameters) {
+        StringBuilder canonical = new StringBuilder();
+        // Sorted, so the same parameters in another order are the same job
+        new TreeMap<>(parameters != null ? parameters : Map.of()).forEach((key, value) ->
+                canonical.append(key).append('=').append(value).append('\n'));
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(canonical.toString().getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest, 0, 8);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Claims the job for {@code owner}, typically the invocation id. Owned
+     * claims start renewing at once.
+     */
+    public Claim claim(String blobName, String sourceEtag, ProcessingRequest.ProcessingType type,
+                       Map<String, String> parameters, String owner) {
+        String entryName = entryName(blobName, sourceEtag, type, parameters);
+        Claim claim = MediaMetrics.time("media.ledger", () -> claim(entryName, owner),
+                "operation", "claim", "type", type.name());
+        MediaMetrics.count("media.ledger.claims", "type", type.name(), "outcome", claim.getOutcome().name().toLowerCase());
+        if (claim.isOwned()) {
+            long period = Math.max(1, claimTime.toMillis() / 3);
+            claim.renewal = HEARTBEAT.scheduleAtFixedRate(() -> renew(claim), period, period, TimeUnit.MILLISECONDS);
+        }
+        return claim;
+    }
+
+    private Claim claim(String entryName, String owner) {
+        BlockBlobClient entry = containerClient.getBlobClient(entryName).getBlockBlobClient();
+        try {
+            String etag = write(entry, running(owner, 1, null), new BlobRequestConditions().setIfNoneMatch("*"));
+            return new Claim(entryName, Outcome.CLAIMED, 1, owner, etag, null);
+        } catch (BlobStorageException e) {
+            if (e.getStatusCode() != 409) {
+                throw e;
+            }
+        }
+
+        BlobProperties properties;
+        try {
+            properties = entry.getProperties();
+        } catch (BlobStorageException e) {
+            if (e.getStatusCode() == 404) {
+                // Deleted by cleanup between the two requests; whoever recreates it owns the job
+                return new Claim(entryName, Outcome.BUSY, 0, owner, null, null);
+            }
+            throw e;
+        }
+        Map<String, String> metadata = properties.getMetadata();
+        State state = State.valueOf(metadata.getOrDefault(STATE_METADATA, State.FAILED.name()));
+        long expiresAt = Long.parseLong(metadata.getOrDefault(EXPIRES_AT_METADATA, "0"));
+        if (state == State.DONE && expiresAt > System.currentTimeMillis()) {
+            return new Claim(entryName, Outcome.DUPLICATE, 0, owner, properties.getETag(), null);
+        }
+        if (state == State.RUNNING && expiresAt > System.currentTimeMillis()) {
+            return new Claim(entryName, Outcome.BUSY, 0, owner, properties.getETag(), null);
+        }
+
+        int attempt = Integer.parseInt(metadata.getOrDefault(ATTEMPTS_METADATA, "0")) + 1;
+        String cursor = metadata.get(CURSOR_METADATA);
+        try {
+            String etag = write(entry, running(owner, attempt, cursor),
+                    new BlobRequestConditions().setIfMatch(properties.getETag()));
+            log.info("Resuming {} (attempt {}, cursor {}) after the {} claim of {}", entryName, attempt, cursor,
+                    state == State.RUNNING ? "expired" : state.name().toLowerCase(), metadata.get(OWNER_METADATA));
+            return new Claim(entryName, Outcome.RESUMED, attempt, owner, etag, cursor);
+        } catch (BlobStorageException e) {
+            if (e.getStatusCode() == 412) {
+                // Another worker took it over first
+                return new Claim(entryName, Outcome.BUSY, 0, owner, null, null);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Marks the job done for the done time. If the job itself changed the source blob's ETag,
+     * by writing its metadata, the new version is marked done too, so a
+     * redelivery that reads the new ETag is still a duplicate. Never throws,
+     * so it can be called once the job's output is written.
+     */
+    public void complete(Claim claim, String sourceBlobName, String sourceEtag, ProcessingRequest.ProcessingType type,
+                         Map<String, String> parameters) {
+        stopRenewing(claim);
+        Map<String, String> metadata = new HashMap<>();
+        metadata.put(STATE_METADATA, State.DONE.name());
+        metadata.put(OWNER_METADATA, claim.getOwner());
+        metadata.put(ATTEMPTS_METADATA, String.valueOf(claim.getAttempt()));
+        metadata.put(EXPIRES_AT_METADATA, String.valueOf(System.currentTimeMillis() + doneTime.toMillis()));
+        try {
+            if (!update(claim, metadata)) {
+                log.warn("Completed {} after losing its claim; the job may have run twice", claim.getEntryName());
+            }
+        } catch (BlobStorageException e) {
+            // The claim expires and a redelivery would run the job again, which is safe, only wasteful
+            log.warn("Could not record {} as done: {}", claim.getEntryName(), e.getMessage());
+        }
+        String currentEntry = entryName(sourceBlobName, sourceEtag, type, parameters);
+        if (!currentEntry.equals(claim.getEntryName())) {
+            try {
+                write(containerClient.getBlobClient(currentEntry).getBlockBlobClient(), metadata,
+                        new BlobRequestConditions().setIfNoneMatch("*"));
+            } catch (BlobStorageException e) {
+                if (e.getStatusCode() != 409) {
+                    log.warn("Could not record {} as done: {}", currentEntry, e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks the job failed, so the next delivery can claim it at once
+     * rather than after the claim time.
+     */
+    public void release(Claim claim, Throwable error) {
+        release(claim, State.FAILED, sanitize(String.valueOf(error)));
+    }
+
+    /**
+     * Gives the claim up between steps, keeping its cursor, so the
+     * invocation that continues the job can claim it at once.
+     */
+    public void pause(Claim claim) {
+        release(claim, State.PAUSED, null);
+    }
+
+    /**
+     * Records how far the job has got. The cursor is kept through renewals
+     * and failures, and handed to whoever claims the job next. Returns false
+     * if the claim has been lost, and the job should stop.
+     */
+    public boolean checkpoint(Claim claim, String cursor) {
+        claim.cursor = cursor;
+        return update(claim, running(claim.getOwner(), claim.getAttempt(), cursor));
+    }
+
+    private void release(Claim claim, State state, String error) {
+        stopRenewing(claim);
+        Map<String, String> metadata = new HashMap<>();
+        metadata.put(STATE_METADATA, state.name());
+        metadata.put(OWNER_METADATA, claim.getOwner());
+        metadata.put(ATTEMPTS_METADATA, String.valueOf(claim.getAttempt()));
+        if (claim.getCursor() != null) {
+            metadata.put(CURSOR_METADATA, claim.getCursor());
+        }
+        if (error != null) {
+            metadata.put(ERROR_METADATA, error);
+        }
+        try {
+            update(claim, metadata);
+        } catch (BlobStorageException e) {
+            // The claim expires on its own
+            log.warn("Could not release {}: {}", claim.getEntryName(), e.getMessage());
+        }
+    }
+
+    private void renew(Claim claim) {
+        try {
+            if (!update(claim, running(claim.getOwner(), claim.getAttempt(), claim.getCursor()))) {
+                log.warn("Lost the claim on {} to another worker", claim.getEntryName());
+                stopRenewing(claim);
+            }
+        } catch (Exception e) {
+            // Try again next period; the claim only lapses if renewals keep failing
+            log.warn("Could not renew the claim on {}: {}", claim.getEntryName(), e.getMessage());
+        }
+    }
+
+    private void stopRenewing(Claim claim) {
+        if (claim.renewal != null) {
+            claim.renewal.cancel(false);
+        }
+    }
+
+    /**
+     * Replaces the entry's metadata if it still has the claim's ETag;
+     * false if another worker has taken the claim over. Updates of one claim
+     * are serialized, so its heartbeat and its job never race each other for
+     * the ETag; other claims on the worker are not held up.
+     */
+    private boolean update(Claim claim, Map<String, String> metadata) {
+        synchronized (claim) {
+            if (claim.lost) {
+                return false;
+            }
+            try {
+                claim.entryEtag = containerClient.getBlobClient(claim.getEntryName())
+                        .setMetadataWithResponse(metadata, new BlobRequestConditions().setIfMatch(claim.entryEtag),
+                                null, Context.NONE)
+                        .getHeaders().getValue("ETag");
+                return true;
+            } catch (BlobStorageException e) {
+                if (e.getStatusCode() == 412 || e.getStatusCode() == 404) {
+                    claim.lost = true;
+                    return false;
+                }
+                throw e;
+            }
+        }
+    }
+
+    private Map<String, String> running(String owner, int attempt, String cursor) {
+        Map<String, String> metadata = new HashMap<>();
+        metadata.put(STATE_METADATA, State.RUNNING.name());
+        metadata.put(OWNER_METADATA, owner);
+        metadata.put(ATTEMPTS_METADATA, String.valueOf(attempt));
+        metadata.put(EXPIRES_AT_METADATA, String.valueOf(System.currentTimeMillis() + claimTime.toMillis()));
+        if (cursor != null) {
+            metadata.put(CURSOR_METADATA, cursor);
+        }
+        return metadata;
+    }
+
+    private static String write(BlockBlobClient entry, Map<String, String> metadata, BlobRequestConditions conditions) {
+        return entry.uploadWithResponse(new BlockBlobSimpleUploadOptions(BinaryData.fromBytes(new byte[0]))
+                        .setMetadata(metadata)
+                        .setRequestConditions(conditions), null, Context.NONE)
+                .getValue().getETag();
+    }
+
+    // Metadata values are HTTP headers: printable ASCII on one line
+    private static String sanitize(String text) {
+        String ascii = text.replaceAll("[^\\x20-\\x7E]", " ");
+        return ascii.length() > MAX_ERROR_LENGTH ? ascii.substring(0, MAX_ERROR_LENGTH) : ascii;
+    }
+}
@@ -0,0 +1,216 @@
+package com.mediaprocessing.common.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.bytedeco.javacv.Java2DFrameConverter;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reusable pixel buffers for image and video work. {@code int[]} and
+ * {@code byte[]} rasters are pooled in size classes (powers of two split into
+ * quarter steps, so at most 25% is wasted), and {@link BufferedImage}s are
+ * built on top of pooled arrays. JavaCV {@link Java2DFrameConverter}s are
+ * pooled too, because each one keeps its converted image and its off-heap
+ * {@code Frame} buffer between calls.
+ * <p>
+ * A buffer must not be used after it is released. Retained memory is capped;
+ * releases beyond the cap are left to the garbage collector.
+ */
+@Slf4j
+public class RasterBufferPool {
+
+    private static final int MIN_CLASS_SIZE = 4096;
+    // Largest class that still fits in an int; bigger requests are never pooled
+    private static final int MAX_CLASS_SIZE = (1 << 30) + (3 << 28);
+
+    private static final RasterBufferPool SHARED = new RasterBufferPool(
+            (long) (Runtime.getRuntime().maxMemory() * 0.1),
+            Runtime.getRuntime().availableProcessors());
+
+    private static final Map<Integer, ColorModel> COLOR_MODELS = Map.of(
+            BufferedImage.TYPE_INT_RGB, new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB).getColorModel(),
+            BufferedImage.TYPE_INT_ARGB, new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB).getColorModel(),
+            BufferedImage.TYPE_BYTE_GRAY, new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_GRAY).getColorModel());
+
+    private final long maxRetainedBytes;
+    private final Map<Integer, Queue<int[]>> intBuffers = new ConcurrentHashMap<>();
+    private final Map<Integer, Queue<byte[]>> byteBuffers = new ConcurrentHashMap<>();
+    private final ArrayBlockingQueue<Java2DFrameConverter> converters;
+
+    private final AtomicLong retainedBytes = new AtomicLong();
+    private final AtomicLong allocations = new AtomicLong();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final AtomicLong reuses = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+
+    public RasterBufferPool(long maxRetainedBytes, int maxConverters) {
+        this.maxRetainedBytes = maxRetainedBytes;
+        this.converters = new ArrayBlockingQueue<>(Math.max(1, maxConverters));
+    }
+
+    /**
+     * Pool shared by every service in this JVM, so buffers are reused across
+     * function invocations. Retains at most 10% of the maximum heap.
+     */
+    public static RasterBufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * Returns an array of at least {@code minLength} elements. Contents are undefined.
+     */
+    public int[] acquireInts(int minLength) {
+        int size = classSize(minLength);
+        int[] buffer = size > 0 ? poll(intBuffers, size, size * 4L) : null;
+        if (buffer == null) {
+            int length = size > 0 ? size : minLength;
+            buffer = new int[length];
+            recordAllocation(length * 4L);
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns an array of at least {@code minLength} elements. Contents are undefined.
+     */
+    public byte[] acquireBytes(int minLength) {
+        int size = classSize(minLength);
+        byte[] buffer = size > 0 ? poll(byteBuffers, size, size) : null;
+        if (buffer == null) {
+            int length = size > 0 ? size : minLength;
+            buffer = new byte[length];
+            recordAllocation(length);
+        }
+        return buffer;
+    }
+
+    public void release(int[] buffer) {
+        offer(intBuffers, buffer, buffer.length, buffer.length * 4L);
+    }
+
+    public void release(byte[] buffer) {
+        offer(byteBuffers, buffer, buffer.length, buffer.length);
+    }
+
+    /**
+     * Returns a cleared image backed by a pooled array. {@code TYPE_INT_RGB},
+     * {@code TYPE_INT_ARGB} and {@code TYPE_BYTE_GRAY} are pooled; other types
+     * are allocated normally.
+     */
+    public BufferedImage acquireImage(int width, int height, int imageType) {
+        ColorModel colorModel = COLOR_MODELS.get(imageType);
+        int pixels = width * height;
+        if (colorModel == null) {
+            return new BufferedImage(width, height, imageType);
+        }
+
+        DataBuffer dataBuffer;
+        if (imageType == BufferedImage.TYPE_BYTE_GRAY) {
+            byte[] data = acquireBytes(pixels);
+            Arrays.fill(data, 0, pixels, (byte) 0);
+            dataBuffer = new DataBufferByte(data, pixels);
+        } else {
+            int[] data = acquireInts(pixels);
+            Arrays.fill(data, 0, pixels, 0);
+            dataBuffer = new DataBufferInt(data, pixels);
+        }
+
+        WritableRaster raster = Raster.createWritableRaster(
+                colorModel.createCompatibleSampleModel(width, height), dataBuffer, null);
+        return new BufferedImage(colorModel, raster, false, null);
+    }
+
+    public void release(BufferedImage image) {
+        DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+        if (dataBuffer instanceof DataBufferInt) {
+            release(((DataBufferInt) dataBuffer).getData());
+        } else if (dataBuffer instanceof DataBufferByte) {
+            release(((DataBufferByte) dataBuffer).getData());
+        }
+    }
+
+    public Java2DFrameConverter acquireConverter() {
+        Java2DFrameConverter converter = converters.poll();
+        return converter != null ? converter : new Java2DFrameConverter();
+    }
+
+    public void release(Java2DFrameConverter converter) {
+        converters.offer(converter);
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("allocations", allocations.get());
+        stats.put("allocatedBytes", allocatedBytes.get());
+        stats.put("reuses", reuses.get());
+        stats.put("discarded", discarded.get());
+        stats.put("retainedBytes", retainedBytes.get());
+        stats.put("maxRetainedBytes", maxRetainedBytes);
+        stats.put("pooledConverters", converters.size());
+        return stats;
+    }
+
+    private <T> T poll(Map<Integer, Queue<T>> pool, int size, long bytes) {
+        Queue<T> queue = pool.get(size);
+        T buffer = queue != null ? queue.poll() : null;
+        if (buffer != null) {
+            retainedBytes.addAndGet(-bytes);
+            reuses.incrementAndGet();
+        }
+        return buffer;
+    }
+
+    private <T> void offer(Map<Integer, Queue<T>> pool, T buffer, int length, long bytes) {
+        if (!isClassSize(length)) {
+            discarded.incrementAndGet();
+            return;
+        }
+        if (retainedBytes.addAndGet(bytes) > maxRetainedBytes) {
+            retainedBytes.addAndGet(-bytes);
+            discarded.incrementAndGet();
+            return;
+        }
+        pool.computeIfAbsent(length, key -> new ConcurrentLinkedQueue<>()).offer(buffer);
+    }
+
+    private void recordAllocation(long bytes) {
+        allocations.incrementAndGet();
+        allocatedBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Smallest size class holding {@code length} elements, or 0 if it is too large to pool.
+     */
+    static int classSize(int length) {
+        if (length <= MIN_CLASS_SIZE) {
+            return MIN_CLASS_SIZE;
+        }
+        if (length > MAX_CLASS_SIZE) {
+            return 0;
+        }
+        int base = Integer.highestOneBit(length);
+        if (base == length) {
+            return length;
+        }
+        int step = base / 4;
+        return base + ((length - base + step - 1) / step) * step;
+    }
+
+    private static boolean isClassSize(int length) {
+        return length >= MIN_CLASS_SIZE && length <= MAX_CLASS_SIZE && classSize(length) == length;
+    }
+}
@@ -0,0 +1,316 @@
+package com.mediaprocessing.common.service;
+
+import com.mediaprocessing.common.model.ProcessingRequest.ProcessingType;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admits image and video jobs against a memory budget so concurrent large
+ * decodes cannot exhaust the worker. Each job's peak heap and native (FFmpeg)
+ * memory is estimated from its header metadata, and admission takes that many
+ * megabytes from a weighted semaphore per budget. Jobs that do not fit wait up
+ * to a timeout and are then rejected; jobs larger than the whole budget are
+ * rejected at once with a {@link JobTooLargeException}, since no wait can help.
+ */
+@Slf4j
+public class ResourceGovernor {
+
+    private static final long MB = 1024 * 1024;
+
+    // Used when the header could not be probed
+    private static final int DEFAULT_VIDEO_WIDTH = 1920;
+    private static final int DEFAULT_VIDEO_HEIGHT = 1080;
+    private static final int IMAGE_COMPRESSION_RATIO = 10;
+
+    // Reference frames FFmpeg keeps per decoder and per encoder (lookahead, B-frames)
+    private static final int DECODER_FRAMES = 16;
+    private static final int ENCODER_FRAMES = 24;
+    private static final long FFMPEG_BASE_BYTES = 32 * MB;
+
+    private final int heapBudgetMb;
+    private final int nativeBudgetMb;
+    private final Duration maxWait;
+    private final Semaphore heapPermits;
+    private final Semaphore nativePermits;
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong totalWaitMillis = new AtomicLong();
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    public ResourceGovernor(long heapBudgetBytes, long nativeBudgetBytes, Duration maxWait) {
+        this.heapBudgetMb = (int) Math.max(1, heapBudgetBytes / MB);
+        this.nativeBudgetMb = (int) Math.max(1, nativeBudgetBytes / MB);
+        this.maxWait = maxWait;
+        // Fair, so a large job is not starved by a stream of small ones
+        this.heapPermits = new Semaphore(heapBudgetMb, true);
+        this.nativePermits = new Semaphore(nativeBudgetMb, true);
+    }
+
+    /**
+     * Default heap budget: 60% of the maximum heap, leaving room for the
+     * runtime, HTTP buffers and everything that is not a media job.
+     */
+    public static long defaultHeapBudgetBytes() {
+        return (long) (Runtime.getRuntime().maxMemory() * 0.6);
+    }
+
+    /**
+     * Estimates the peak memory of a job.
+     *
+     * @param metadata    header metadata from {@link MediaMetadataProber}; may be empty
+     * @param encodedSize size of the source file in bytes
+     */
+    public JobEstimate estimate(ProcessingType type, Map<String, String> parameters,
+                                Map<String, String> metadata, long encodedSize) {
+        switch (type) {
+            case THUMBNAIL:
+            case WATERMARK:
+            case RESIZE:
+            case FILTER:
+            case FORMAT_CONVERSION:
+                return estimateImage(type, metadata, encodedSize);
+
+            case VIDEO_THUMBNAIL:
+            case VIDEO_WATERMARK:
+            case VIDEO_COMPRESS:
+            case AUDIO_EXTRACT:
+            case VIDEO_PREVIEW:
+            case VIDEO_HLS:
+            case VIDEO_SPRITE:
+            case VIDEO_ANALYSIS:
+                return estimateVideo(type, parameters, metadata, encodedSize);
+
+            default:
+                if (MediaMetadataProber.isVideo(metadata, null)) {
+                    // Image AI types on a video are analyzed frame by frame
+                    return estimateVideo(ProcessingType.VIDEO_ANALYSIS, parameters, metadata, encodedSize);
+                }
+                // AI calls hold the source and a JSON response
+                return new JobEstimate(encodedSize * 2, 0);
+        }
+    }
+
+    private JobEstimate estimateImage(ProcessingType type, Map<String, String> metadata, long encodedSize) {
+        long width = parseLong(metadata.get("width"));
+        long height = parseLong(metadata.get("height"));
+        long raster = width > 0 && height > 0
+                ? width * height * 4
+                : encodedSize * IMAGE_COMPRESSION_RATIO;
+
+        // Decoded source plus whatever copies the operation makes
+        double rasters;
+        switch (type) {
+            case THUMBNAIL:
+                rasters = 1.5;
+                break;
+            case RESIZE:
+            case FORMAT_CONVERSION:
+                rasters = 2;
+                break;
+            default:
+                // Watermark draws onto a copy; filters write a separate target
+                rasters = 2.5;
+        }
+
+        // Source bytes, the encoded output and the decoded rasters
+        return new JobEstimate(encodedSize * 2 + (long) (raster * rasters), 0);
+    }
+
+    private JobEstimate estimateVideo(ProcessingType type, Map<String, String> parameters,
+                                      Map<String, String> metadata, long encodedSize) {
+        long width = parseLong(metadata.get("width"));
+        long height = parseLong(metadata.get("height"));
+        if (width <= 0 || height <= 0) {
+            width = DEFAULT_VIDEO_WIDTH;
+            height = DEFAULT_VIDEO_HEIGHT;
+        }
+        long yuvFrame = width * height * 3 / 2;
+        long rgbFrame = width * height * 4;
+
+        // Encoder frame buffers, in multiples of a source-resolution frame
+        double encoders;
+        switch (type) {
+            case VIDEO_THUMBNAIL:
+            case VIDEO_SPRITE:
+            case VIDEO_ANALYSIS:
+            case AUDIO_EXTRACT:
+                encoders = 0;
+                break;
+            case VIDEO_HLS:
+                // One encoder per rung, each at the rung's (smaller) resolution
+                encoders = 0;
+                String renditions = parameters != null
+                        ? parameters.getOrDefault("renditions", "1080,720,480,360")
+                        : "1080,720,480,360";
+                for (String rendition : renditions.split(",")) {
+                    double scale = Math.min(1.0, parseLong(rendition.trim()) / (double) height);
+                    encoders += scale * scale;
+                }
+                break;
+            default:
+                encoders = 1;
+        }
+
+        // Source bytes, temp-file copy buffers and the encoded output held until upload
+        long heap = encodedSize * 2 + Math.max(encodedSize, estimateOutputBytes(type, metadata));
+        if (type != ProcessingType.AUDIO_EXTRACT && type != ProcessingType.VIDEO_COMPRESS
+                && type != ProcessingType.VIDEO_HLS) {
+            // Frames converted to BufferedImage for Java2D drawing
+            heap += rgbFrame * 2;
+        }
+
+        long nativeBytes = FFMPEG_BASE_BYTES + yuvFrame * DECODER_FRAMES + (long) (yuvFrame * ENCODER_FRAMES * encoders);
+        return new JobEstimate(heap, nativeBytes);
+    }
+
+    private long estimateOutputBytes(ProcessingType type, Map<String, String> metadata) {
+        double duration = parseDouble(metadata.get("duration"));
+        if (duration <= 0) {
+            return 0;
+        }
+        switch (type) {
+            case VIDEO_HLS:
+                // All rungs together, roughly 10 Mbps for the default ladder
+                return (long) (10_000_000 / 8 * duration);
+            case AUDIO_EXTRACT:
+                return (long) (192_000 / 8 * duration);
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Blocks until the job fits in both budgets or the wait times out.
+     *
+     * @throws JobTooLargeException       if the job is larger than the whole budget and can never fit
+     * @throws AdmissionRejectedException if the job did not fit in time
+     */
+    public Permit admit(String jobName, JobEstimate estimate) throws InterruptedException {
+        int heapMb = toPermits(estimate.getHeapBytes());
+        int nativeMb = estimate.getNativeBytes() > 0 ? toPermits(estimate.getNativeBytes()) : 0;
+
+        if (heapMb > heapBudgetMb || nativeMb > nativeBudgetMb) {
+            rejected.incrementAndGet();
+            throw new JobTooLargeException(String.format(
+                    "Job %s needs %d MB heap / %d MB native, budget is %d MB / %d MB",
+                    jobName, heapMb, nativeMb, heapBudgetMb, nativeBudgetMb));
+        }
+
+        long start = System.nanoTime();
+        long deadline = start + maxWait.toNanos();
+        waiting.incrementAndGet();
+        try {
+            if (!heapPermits.tryAcquire(heapMb, maxWait.toNanos(), TimeUnit.NANOSECONDS)) {
+                throw reject(jobName, heapMb, nativeMb);
+            }
+            if (nativeMb > 0 && !nativePermits.tryAcquire(nativeMb, deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                heapPermits.release(heapMb);
+                throw reject(jobName, heapMb, nativeMb);
+            }
+        } finally {
+            waiting.decrementAndGet();
+        }
+
+        long waitedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        admitted.incrementAndGet();
+        totalWaitMillis.addAndGet(waitedMillis);
+        log.debug("Admitted {} ({} MB heap, {} MB native) after {} ms", jobName, heapMb, nativeMb, waitedMillis);
+        return new Permit(heapMb, nativeMb);
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("admitted", admitted.get());
+        stats.put("rejected", rejected.get());
+        stats.put("waiting", waiting.get());
+        stats.put("totalWaitMillis", totalWaitMillis.get());
+        stats.put("heapBudgetMb", heapBudgetMb);
+        stats.put("heapInUseMb", heapBudgetMb - heapPermits.availablePermits());
+        stats.put("nativeBudgetMb", nativeBudgetMb);
+        stats.put("nativeInUseMb", nativeBudgetMb - nativePermits.availablePermits());
+        return stats;
+    }
+
+    private AdmissionRejectedException reject(String jobName, int heapMb, int nativeMb) {
+        rejected.incrementAndGet();
+        return new AdmissionRejectedException(String.format(
+                "Job %s (%d MB heap / %d MB native) did not fit within %d ms",
+                jobName, heapMb, nativeMb, maxWait.toMillis()));
+    }
+
+    private int toPermits(long bytes) {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(1, (bytes + MB - 1) / MB));
+    }
+
+    private long parseLong(String value) {
+        try {
+            return value != null ? Long.parseLong(value) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private double parseDouble(String value) {
+        try {
+            return value != null ? Double.parseDouble(value) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Value
+    public static class JobEstimate {
+        long heapBytes;
+        long nativeBytes;
+    }
+
+    /**
+     * Memory reserved for one job; close it when the job finishes.
+     */
+    @Getter
+    @RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+    public class Permit implements AutoCloseable {
+        private final int heapMb;
+        private final int nativeMb;
+        @Getter(AccessLevel.NONE)
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                heapPermits.release(heapMb);
+                if (nativeMb > 0) {
+                    nativePermits.release(nativeMb);
+                }
+            }
+        }
+    }
+
+    public static class AdmissionRejectedException extends RuntimeException {
+        public AdmissionRejectedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The job is larger than the whole budget, so retrying it cannot succeed.
+     */
+    public static class JobTooLargeException extends AdmissionRejectedException {
+        public JobTooLargeException(String message) {
+            super(message);
+        }
+    }
+}
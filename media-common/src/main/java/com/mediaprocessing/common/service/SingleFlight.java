@@ -0,0 +1,71 @@
+package com.mediaprocessing.common.service;
+
+import com.mediaprocessing.common.metrics.MediaMetrics;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Runs one call per key at a time: callers that ask for a key while its call
+ * is in flight wait for that call and share its result or exception instead
+ * of repeating the work. Nothing is kept once a call completes, so this only
+ * coalesces concurrent callers; results are cached, if at all, elsewhere.
+ * Every caller of a key is expected to pass the same operation.
+ */
+public class SingleFlight<K, V> {
+
+    private final String name;
+    private final ConcurrentHashMap<K, CompletableFuture<V>> calls = new ConcurrentHashMap<>();
+
+    public SingleFlight(String name) {
+        this.name = name;
+    }
+
+    public <E extends Exception> V execute(K key, MediaMetrics.Operation<V, E> operation)
+            throws E, InterruptedException {
+        CompletableFuture<V> call = new CompletableFuture<>();
+        CompletableFuture<V> inFlight = calls.putIfAbsent(key, call);
+        if (inFlight != null) {
+            MediaMetrics.count("media.singleflight", "name", name, "role", "follower");
+            return await(inFlight);
+        }
+
+        MediaMetrics.count("media.singleflight", "name", name, "role", "leader");
+        try {
+            V value = operation.run();
+            call.complete(value);
+            return value;
+        } catch (Throwable e) {
+            call.completeExceptionally(e);
+            throw e;
+        } finally {
+            calls.remove(key, call);
+        }
+    }
+
+    public boolean isInFlight(K key) {
+        return calls.containsKey(key);
+    }
+
+    public Map<String, Object> getStats() {
+        return Map.of("inFlight", calls.size());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V, E extends Exception> V await(CompletableFuture<V> call) throws E, InterruptedException {
+        try {
+            return call.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            // The leader's operation threw it, so it is an E
+            throw (E) cause;
+        }
+    }
+}
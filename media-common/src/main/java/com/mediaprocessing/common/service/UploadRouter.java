@@ -0,0 +1,103 @@
+package com.mediaprocessing.common.service;
+
+import com.mediaprocessing.common.model.ProcessingRequest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides what a newly uploaded blob needs from its first bytes, content type
+ * and metadata, so the upload dispatcher never downloads it. Images get a JPEG
+ * and a WebP thumbnail, videos a poster frame. Blobs the web app uploaded carry
+ * {@value #INGESTED_BY_METADATA} and are skipped: it has already thumbnailed
+ * them or queued their thumbnails.
+ */
+public final class UploadRouter {
+
+    public static final String INGESTED_BY_METADATA = "ingestedBy";
+    public static final String WEB = "web";
+    // Request parameter marking an upload's own thumbnails, stored where the gallery looks for them
+    public static final String UPLOAD_THUMBNAIL_PARAMETER = "uploadThumbnail";
+
+    public enum Route {
+        IMAGE,
+        VIDEO,
+        // Already thumbnailed or queued by the web app
+        INGESTED,
+        FLAGGED,
+        UNSUPPORTED
+    }
+
+    private UploadRouter() {
+    }
+
+    /**
+     * Routes by sniffed format first, as the content type and name of a blob
+     * written by another client may be wrong, then by content type.
+     */
+    public static Route route(String sniffedFormat, String contentType, Map<String, String> metadata) {
+        Route skipped = skippedRoute(metadata);
+        if (skipped != null) {
+            return skipped;
+        }
+        if (sniffedFormat != null) {
+            return MediaMetadataProber.isVideoFormat(sniffedFormat) ? Route.VIDEO : Route.IMAGE;
+        }
+        if (contentType != null && contentType.startsWith("video/")) {
+            // A container the sniffer does not know; FFmpeg may still read it
+            return Route.VIDEO;
+        }
+        return Route.UNSUPPORTED;
+    }
+
+    /**
+     * INGESTED or FLAGGED if the metadata alone settles the route, so the
+     * dispatcher need not read the content; otherwise null.
+     */
+    public static Route skippedRoute(Map<String, String> metadata) {
+        if (metadata == null) {
+            return null;
+        } else if (WEB.equals(metadata.get(INGESTED_BY_METADATA))) {
+            return Route.INGESTED;
+        } else if (ContentModerationService.isFlagged(metadata)) {
+            return Route.FLAGGED;
+        }
+        return null;
+    }
+
+    /**
+     * The queue requests for a route; none for the skipped ones.
+     */
+    public static List<ProcessingRequest> requests(Route route, String containerName, String blobName) {
+        List<ProcessingRequest> requests = new ArrayList<>();
+        if (route == Route.IMAGE) {
+            requests.add(thumbnailRequest(ProcessingRequest.ProcessingType.THUMBNAIL, containerName, blobName));
+        } else if (route == Route.VIDEO) {
+            requests.add(thumbnailRequest(ProcessingRequest.ProcessingType.VIDEO_THUMBNAIL, containerName, blobName));
+        }
+        return requests;
+    }
+
+    /**
+     * A request for an upload's own thumbnails: the 200x200 JPEG in the
+     * thumbnail container and, for images, its WebP variant, from one download.
+     */
+    public static ProcessingRequest thumbnailRequest(ProcessingRequest.ProcessingType type, String containerName,
+                                                     String blobName) {
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put(UPLOAD_THUMBNAIL_PARAMETER, "true");
+        return ProcessingRequest.builder()
+                .blobName(blobName)
+                .containerName(containerName)
+                .processingType(type)
+                .parameters(parameters)
+                .build();
+    }
+
+    public static boolean isUploadThumbnail(ProcessingRequest request) {
+        return request.getParameters() != null
+                && Boolean.parseBoolean(request.getParameters().get(UPLOAD_THUMBNAIL_PARAMETER));
+    }
+}
@@ -0,0 +1,176 @@
+package com.mediaprocessing.common.service;
+
+import com.azure.ai.vision.imageanalysis.models.CaptionResult;
+import com.azure.ai.vision.imageanalysis.models.DetectedTag;
+import com.azure.ai.vision.imageanalysis.models.DetectedTextBlock;
+import com.azure.ai.vision.imageanalysis.models.DetectedTextLine;
+import com.azure.ai.vision.imageanalysis.models.ObjectsResult;
+import com.azure.ai.vision.imageanalysis.models.PeopleResult;
+import com.azure.ai.vision.imageanalysis.models.ReadResult;
+import com.azure.ai.vision.imageanalysis.models.TagsResult;
+import com.azure.ai.vision.imageanalysis.models.VisualFeatures;
+import com.mediaprocessing.common.config.AzureAiConfig;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+/**
+ * Analyzes a video as a timeline of its distinct frames. Frames are picked by
+ * {@link VideoFrameSampler}, analyzed concurrently by {@link AzureAiService},
+ * and each segment of the video gets the tags, caption and text of the frame
+ * that represents it. Vision calls scale with the number of distinct scenes,
+ * not with the duration.
+ */
+@Slf4j
+public class VideoAnalysisService {
+
+    // Tags below this confidence are left out of the timeline
+    private static final double MIN_TAG_CONFIDENCE = 0.5;
+
+    private final AzureAiService aiService;
+    private final VideoFrameSampler sampler;
+    private final int concurrency;
+    private final Duration frameDeadline;
+
+    public VideoAnalysisService(AzureAiService aiService, AzureAiConfig config) {
+        this(aiService,
+                new VideoFrameSampler(config.getVideoHashThreshold(), config.getVideoMaxFrames()),
+                config.getVideoFrameConcurrency(),
+                Duration.ofMillis(config.getAnalysisDeadlineMillis()));
+    }
+
+    public VideoAnalysisService(AzureAiService aiService, VideoFrameSampler sampler, int concurrency,
+                                Duration frameDeadline) {
+        this.aiService = aiService;
+        this.sampler = sampler;
+        this.concurrency = concurrency;
+        this.frameDeadline = frameDeadline;
+    }
+
+    /**
+     * @param intervalSeconds sample every this many seconds, or 0 to sample at keyframes
+     */
+    public Map<String, Object> analyzeVideo(byte[] videoData, List<VisualFeatures> features,
+                                            int intervalSeconds) throws IOException {
+        VideoFrameSampler.SampledVideo video = intervalSeconds > 0
+                ? sampler.sampleInterval(videoData, intervalSeconds)
+                : sampler.sampleScenes(videoData);
+
+        // Frames are normalized here, up front, so the reactor threads only wait on the service
+        List<Mono<Map<String, Object>>> calls = video.getFrames().stream()
+                .map(frame -> aiService.analyzeAsync(frame.getImageData(), features, frameDeadline))
+                .collect(Collectors.toList());
+        List<Map<String, Object>> frameResults = Flux.fromIterable(calls)
+                .flatMapSequential(call -> call, concurrency)
+                .collectList()
+                .block();
+
+        List<Map<String, Object>> frameSummaries = frameResults.stream()
+                .map(this::summarize)
+                .collect(Collectors.toList());
+
+        List<Map<String, Object>> timeline = new ArrayList<>();
+        Map<String, List<double[]>> tagRanges = new TreeMap<>();
+        for (VideoFrameSampler.Segment segment : video.getSegments()) {
+            double start = toSeconds(segment.getStartMicros());
+            double end = toSeconds(segment.getEndMicros());
+
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("start", start);
+            entry.put("end", end);
+            entry.put("frame", segment.getFrameIndex());
+            entry.putAll(frameSummaries.get(segment.getFrameIndex()));
+            timeline.add(entry);
+
+            @SuppressWarnings("unchecked")
+            List<String> tags = (List<String>) entry.getOrDefault("tags", List.of());
+            for (String tag : tags) {
+                List<double[]> ranges = tagRanges.computeIfAbsent(tag, key -> new ArrayList<>());
+                double[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+                if (last != null && last[1] == start) {
+                    last[1] = end;
+                } else {
+                    ranges.add(new double[]{start, end});
+                }
+            }
+        }
+
+        Map<String, Object> results = new HashMap<>();
+        results.put("duration", toSeconds(video.getDurationMicros()));
+        results.put("sampling", intervalSeconds > 0 ? "interval" : "scene");
+        results.put("sampledFrames", video.getSamples());
+        results.put("analyzedFrames", video.getFrames().size());
+        results.put("truncated", video.isTruncated());
+        results.put("timeline", timeline);
+        results.put("tags", tagRanges);
+        results.put("featureStatus", aggregateStatus(features, frameResults));
+        log.info("Analyzed video: {} frames sampled, {} analyzed, {} segments",
+                video.getSamples(), video.getFrames().size(), timeline.size());
+        return results;
+    }
+
+    /**
+     * Reduces one frame's analysis to plain values for the timeline.
+     */
+    private Map<String, Object> summarize(Map<String, Object> result) {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        if (result.get("tags") instanceof TagsResult) {
+            summary.put("tags", ((TagsResult) result.get("tags")).getValues().stream()
+                    .filter(tag -> tag.getConfidence() >= MIN_TAG_CONFIDENCE)
+                    .map(DetectedTag::getName)
+                    .collect(Collectors.toList()));
+        }
+        if (result.get("description") instanceof CaptionResult) {
+            summary.put("caption", ((CaptionResult) result.get("description")).getText());
+        }
+        if (result.get("objects") instanceof ObjectsResult) {
+            summary.put("objects", ((ObjectsResult) result.get("objects")).getValues().stream()
+                    .filter(object -> !object.getTags().isEmpty())
+                    .map(object -> object.getTags().get(0).getName())
+                    .collect(Collectors.toList()));
+        }
+        if (result.get("faces") instanceof PeopleResult) {
+            summary.put("people", ((PeopleResult) result.get("faces")).getValues().size());
+        }
+        if (result.get("text") instanceof ReadResult) {
+            List<String> lines = new ArrayList<>();
+            for (DetectedTextBlock block : ((ReadResult) result.get("text")).getBlocks()) {
+                block.getLines().stream().map(DetectedTextLine::getText).forEach(lines::add);
+            }
+            summary.put("text", lines);
+        }
+        if (result.containsKey("error")) {
+            summary.put("error", result.get("error"));
+        }
+        return summary;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, String> aggregateStatus(List<VisualFeatures> features, List<Map<String, Object>> frameResults) {
+        Map<String, String> status = new HashMap<>();
+        for (VisualFeatures feature : features) {
+            long failed = frameResults.stream()
+                    .map(result -> ((Map<String, String>) result.get("featureStatus")).get(feature.toString()))
+                    .filter(frameStatus -> !"ok".equals(frameStatus))
+                    .count();
+            status.put(feature.toString(), failed == 0
+                    ? "ok"
+                    : String.format("failed on %d of %d frames", failed, frameResults.size()));
+        }
+        return status;
+    }
+
+    private double toSeconds(long micros) {
+        return Math.round(micros / 1000.0) / 1000.0;
+    }
+}
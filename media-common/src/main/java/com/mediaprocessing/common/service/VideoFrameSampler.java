@@ -0,0 +1,334 @@
+package com.mediaprocessing.common.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.Java2DFrameConverter;
+
+import javax.imageio.ImageIO;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Picks the distinct frames of a video for analysis. Frames are sampled either
+ * at keyframes, which encoders place at scene cuts, or at a fixed interval.
+ * Encoders that do not cut at scene changes leave keyframes far apart; such
+ * videos are instead sampled every second while decoding straight through.
+ * Each sample gets a 64-bit difference hash, and samples within
+ * {@code hashThreshold} bits of a frame already picked reuse that frame instead
+ * of being picked again. A video of a few scenes therefore yields a few frames
+ * however long it runs, and a scene the video cuts back to is not analyzed twice.
+ */
+@Slf4j
+public class VideoFrameSampler {
+
+    // dHash grid: 9 columns give 8 horizontal differences per row
+    private static final int HASH_COLUMNS = 9;
+    private static final int HASH_ROWS = 8;
+    // Luminance is averaged over every n-th pixel of each grid cell
+    private static final int HASH_PIXEL_STEP = 4;
+    // Keyframes further apart than this are not trusted to mark every scene change
+    private static final long MAX_KEYFRAME_GAP_MICROS = 10_000_000L;
+    private static final long SCENE_STEP_MICROS = 1_000_000L;
+
+    private final RasterBufferPool bufferPool;
+    private final int hashThreshold;
+    private final int maxFrames;
+
+    public VideoFrameSampler(int hashThreshold, int maxFrames) {
+        this(RasterBufferPool.shared(), hashThreshold, maxFrames);
+    }
+
+    public VideoFrameSampler(RasterBufferPool bufferPool, int hashThreshold, int maxFrames) {
+        this.bufferPool = bufferPool;
+        this.hashThreshold = hashThreshold;
+        this.maxFrames = maxFrames;
+    }
+
+    /**
+     * Samples at keyframes, decoding nothing else, or every second if the
+     * keyframes are too far apart to follow scene changes.
+     */
+    public SampledVideo sampleScenes(byte[] videoData) throws IOException {
+        Path tempInputFile = Files.createTempFile("input_video", ".mp4");
+        Files.write(tempInputFile, videoData);
+
+        try {
+            SampledVideo keyframes = sample(tempInputFile, true, 0, false);
+            if (keyframes.isTruncated() || keyframes.maxGapMicros <= MAX_KEYFRAME_GAP_MICROS) {
+                return keyframes;
+            }
+            log.debug("Keyframes up to {} s apart; sampling every second instead", keyframes.maxGapMicros / 1000000.0);
+            return sample(tempInputFile, false, SCENE_STEP_MICROS, false);
+        } finally {
+            Files.deleteIfExists(tempInputFile);
+        }
+    }
+
+    /**
+     * Samples one frame every {@code intervalSeconds}, seeking to each.
+     */
+    public SampledVideo sampleInterval(byte[] videoData, int intervalSeconds) throws IOException {
+        Path tempInputFile = Files.createTempFile("input_video", ".mp4");
+        Files.write(tempInputFile, videoData);
+
+        try {
+            return sample(tempInputFile, false, Math.max(1, intervalSeconds) * 1000000L, true);
+        } finally {
+            Files.deleteIfExists(tempInputFile);
+        }
+    }
+
+    /**
+     * @param keyframesOnly have the decoder skip every non-key frame
+     * @param stepMicros    minimum time between samples; 0 samples every decoded frame
+     * @param seek          seek to each sample rather than decode the frames in between
+     */
+    private SampledVideo sample(Path videoFile, boolean keyframesOnly, long stepMicros, boolean seek) throws IOException {
+        FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(videoFile.toFile());
+        if (keyframesOnly) {
+            grabber.setVideoOption("skip_frame", "nokey");
+        }
+        grabber.start();
+
+        long durationMicros = grabber.getLengthInTime();
+        Java2DFrameConverter converter = bufferPool.acquireConverter();
+        List<DistinctFrame> frames = new ArrayList<>();
+        List<Segment> segments = new ArrayList<>();
+        int samples = 0;
+        long lastSampleMicros = 0;
+        long maxGapMicros = 0;
+        boolean truncated = false;
+
+        try {
+            long nextTimestamp = 0;
+            while (true) {
+                if (seek) {
+                    if (nextTimestamp >= durationMicros) {
+                        break;
+                    }
+                    grabber.setVideoTimestamp(nextTimestamp);
+                }
+                Frame frame = grabber.grabImage();
+                if (frame == null) {
+                    break;
+                }
+                if (seek) {
+                    nextTimestamp += stepMicros;
+                } else if (frame.timestamp < nextTimestamp) {
+                    continue;
+                } else {
+                    nextTimestamp = frame.timestamp + stepMicros;
+                }
+                samples++;
+                maxGapMicros = Math.max(maxGapMicros, frame.timestamp - lastSampleMicros);
+                lastSampleMicros = frame.timestamp;
+
+                long hash = differenceHash(frame);
+                Segment current = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+                if (current != null && distance(hash, frames.get(current.getFrameIndex()).getHash()) <= hashThreshold) {
+                    // Same scene continues
+                    continue;
+                }
+
+                int frameIndex = findSimilar(frames, hash);
+                if (frameIndex < 0) {
+                    if (frames.size() >= maxFrames) {
+                        log.warn("Stopped sampling at {} s after {} distinct frames",
+                                frame.timestamp / 1000000.0, maxFrames);
+                        if (current != null) {
+                            current.endMicros = frame.timestamp;
+                        }
+                        truncated = true;
+                        break;
+                    }
+                    frameIndex = frames.size();
+                    frames.add(new DistinctFrame(frame.timestamp, hash, encodeJpeg(converter, frame)));
+                }
+                if (current != null) {
+                    current.endMicros = frame.timestamp;
+                }
+                segments.add(new Segment(frame.timestamp, durationMicros, frameIndex));
+            }
+        } finally {
+            grabber.stop();
+            bufferPool.release(converter);
+        }
+
+        maxGapMicros = Math.max(maxGapMicros, durationMicros - lastSampleMicros);
+        log.debug("Sampled {} frames, {} distinct, {} segments", samples, frames.size(), segments.size());
+        return new SampledVideo(durationMicros, samples, truncated, frames, segments, maxGapMicros);
+    }
+
+    private int findSimilar(List<DistinctFrame> frames, long hash) {
+        int best = -1;
+        int bestDistance = hashThreshold;
+        for (int i = 0; i < frames.size(); i++) {
+            int distance = distance(hash, frames.get(i).getHash());
+            if (distance <= bestDistance) {
+                best = i;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Difference hash of a packed BGR24 frame: the frame is reduced to a 9x8
+     * luminance grid and each bit records whether a cell is brighter than its
+     * right-hand neighbour. Read straight from the frame buffer, so frames that
+     * are not picked are never converted to images.
+     */
+    static long differenceHash(Frame frame) {
+        ByteBuffer pixels = (ByteBuffer) frame.image[0];
+        int stride = frame.imageStride;
+        int channels = frame.imageChannels;
+        int width = frame.imageWidth;
+        int height = frame.imageHeight;
+
+        long[] cells = new long[HASH_COLUMNS * HASH_ROWS];
+        int[] counts = new int[HASH_COLUMNS * HASH_ROWS];
+        for (int y = 0; y < height; y += HASH_PIXEL_STEP) {
+            int rowOffset = y * stride;
+            int cellRow = y * HASH_ROWS / height * HASH_COLUMNS;
+            for (int x = 0; x < width; x += HASH_PIXEL_STEP) {
+                int offset = rowOffset + x * channels;
+                // BGR byte order; integer Rec. 601 luma
+                int luma = (29 * (pixels.get(offset) & 0xFF)
+                        + 150 * (pixels.get(offset + 1) & 0xFF)
+                        + 77 * (pixels.get(offset + 2) & 0xFF)) >> 8;
+                int cell = cellRow + x * HASH_COLUMNS / width;
+                cells[cell] += luma;
+                counts[cell]++;
+            }
+        }
+
+        long hash = 0;
+        for (int row = 0; row < HASH_ROWS; row++) {
+            for (int column = 0; column < HASH_COLUMNS - 1; column++) {
+                int left = row * HASH_COLUMNS + column;
+                // Compare means without dividing: a/b > c/d  <=>  a*d > c*b
+                hash <<= 1;
+                if (cells[left] * counts[left + 1] > cells[left + 1] * counts[left]) {
+                    hash |= 1;
+                }
+            }
+        }
+        return hash;
+    }
+
+    static int distance(long hash, long other) {
+        return Long.bitCount(hash ^ other);
+    }
+
+    private byte[] encodeJpeg(Java2DFrameConverter converter, Frame frame) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ImageIO.write(converter.convert(frame), "jpg", outputStream);
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * A frame picked for analysis.
+     */
+    public static class DistinctFrame {
+        private final long timestampMicros;
+        private final long hash;
+        private final byte[] imageData;
+
+        DistinctFrame(long timestampMicros, long hash, byte[] imageData) {
+            this.timestampMicros = timestampMicros;
+            this.hash = hash;
+            this.imageData = imageData;
+        }
+
+        public long getTimestampMicros() {
+            return timestampMicros;
+        }
+
+        public long getHash() {
+            return hash;
+        }
+
+        public byte[] getImageData() {
+            return imageData;
+        }
+    }
+
+    /**
+     * A stretch of the video represented by one distinct frame.
+     */
+    public static class Segment {
+        private final long startMicros;
+        private long endMicros;
+        private final int frameIndex;
+
+        Segment(long startMicros, long endMicros, int frameIndex) {
+            this.startMicros = startMicros;
+            this.endMicros = endMicros;
+            this.frameIndex = frameIndex;
+        }
+
+        public long getStartMicros() {
+            return startMicros;
+        }
+
+        public long getEndMicros() {
+            return endMicros;
+        }
+
+        public int getFrameIndex() {
+            return frameIndex;
+        }
+    }
+
+    public static class SampledVideo {
+        private final long durationMicros;
+        private final int samples;
+        private final boolean truncated;
+        private final List<DistinctFrame> frames;
+        private final List<Segment> segments;
+        private final long maxGapMicros;
+
+        SampledVideo(long durationMicros, int samples, boolean truncated,
+                     List<DistinctFrame> frames, List<Segment> segments, long maxGapMicros) {
+            this.durationMicros = durationMicros;
+            this.samples = samples;
+            this.truncated = truncated;
+            this.frames = frames;
+            this.segments = segments;
+            this.maxGapMicros = maxGapMicros;
+        }
+
+        public long getDurationMicros() {
+            return durationMicros;
+        }
+
+        /**
+         * Number of frames decoded and hashed.
+         */
+        public int getSamples() {
+            return samples;
+        }
+
+        /**
+         * True if sampling stopped at the frame limit; the segments then end
+         * where sampling stopped rather than at the end of the video.
+         */
+        public boolean isTruncated() {
+            return truncated;
+        }
+
+        public List<DistinctFrame> getFrames() {
+            return frames;
+        }
+
+        public List<Segment> getSegments() {
+            return segments;
+        }
+    }
+}
@@ -1,6 +1,19 @@
 package com.mediaprocessing.common.service;
 
+import com.mediaprocessing.common.metrics.MediaMetrics;
+import com.mediaprocessing.common.metrics.MediaTracing;
+import com.mediaprocessing.common.model.EncodingProfile;
+import com.mediaprocessing.common.model.HlsSpec;
+import com.mediaprocessing.common.model.SpriteSheetSpec;
+import io.micrometer.core.instrument.Timer;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.Scope;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import org.bytedeco.ffmpeg.global.avcodec;
 import org.bytedeco.javacv.FFmpegFrameGrabber;
 import org.bytedeco.javacv.FFmpegFrameRecorder;
 import org.bytedeco.javacv.Frame;
@@ -14,19 +27,78 @@ import org.jcodec.scale.AWTUtil;
 import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
+import java.awt.image.DataBufferInt;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
 
 @Slf4j
 public class VideoProcessingService {
 
+    // Horizontal padding around watermark text, so glyph overhang is not clipped
+    private static final int OVERLAY_PADDING = 4;
+
+    private final RasterBufferPool bufferPool;
+    
+    /**
+     * One compressed segment of a video, from {@link #compressSegment}.
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class VideoSegment {
+        private final byte[] data;
+        private final long startMicros;
+        // Where the next segment starts, at a keyframe, or -1 after the last one
+        private final long nextStartMicros;
+        
+        public boolean isLast() {
+            return nextStartMicros < 0;
+        }
+    }
+
+    public VideoProcessingService() {
+        this(RasterBufferPool.shared());
+    }
+
+    public VideoProcessingService(RasterBufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
     public byte[] extractThumbnail(byte[] videoData) throws IOException, JCodecException {
+        // Timed and traced by hand: the JCodec exception does not fit a single-exception operation
+        Timer.Sample sample = MediaMetrics.start();
+        Span span = MediaTracing.start("video thumbnail", SpanKind.INTERNAL, Context.current());
+        String outcome = MediaMetrics.ERROR;
+        try (Scope ignored = span.makeCurrent()) {
+            span.setAttribute(MediaTracing.BYTES_IN, videoData.length);
+            byte[] thumbnail = thumbnail(videoData);
+            outcome = MediaMetrics.SUCCESS;
+            span.setAttribute(MediaTracing.BYTES_OUT, thumbnail.length);
+            span.setAttribute(MediaTracing.FRAMES, 1);
+            recordBytes("thumbnail", videoData.length, thumbnail.length);
+            return thumbnail;
+        } catch (IOException | JCodecException | RuntimeException e) {
+            MediaTracing.fail(span, e);
+            throw e;
+        } finally {
+            span.end();
+            MediaMetrics.stop(sample, "media.video.operation",
+                    "operation", "thumbnail", "size", MediaMetrics.sizeBucket(videoData.length), "outcome", outcome);
+        }
+    }
+    
+    private byte[] thumbnail(byte[] videoData) throws IOException, JCodecException {
         // Create a temporary file to store the video data
         Path tempFile = Files.createTempFile("video", ".mp4");
         Files.write(tempFile, videoData);
@@ -48,6 +120,10 @@ public class VideoProcessingService {
     }
     
     public byte[] addWatermarkToVideo(byte[] videoData, String watermarkText) throws IOException {
+        return process("watermark", videoData, () -> watermark(videoData, watermarkText), output -> output.length);
+    }
+    
+    private byte[] watermark(byte[] videoData, String watermarkText) throws IOException {
         Path tempInputFile = Files.createTempFile("input_video", ".mp4");
         Path tempOutputFile = Files.createTempFile("output_video", ".mp4");
         Files.write(tempInputFile, videoData);
@@ -75,38 +151,33 @@ public class VideoProcessingService {
             
             recorder.start();
             
-            Java2DFrameConverter converter = new Java2DFrameConverter();
-            
-            // Process each frame
-            Frame frame;
-            while ((frame = grabber.grab()) != null) {
-                if (frame.image != null) {
-                    // Convert frame to BufferedImage
-                    BufferedImage bufferedImage = converter.convert(frame);
-                    
-                    // Add watermark
-                    Graphics2D g2d = bufferedImage.createGraphics();
-                    g2d.setFont(new Font("Arial", Font.BOLD, 36));
-                    g2d.setColor(new Color(255, 255, 255, 128)); // Semi-transparent white
-                    
-                    FontMetrics fontMetrics = g2d.getFontMetrics();
-                    int textWidth = fontMetrics.stringWidth(watermarkText);
-                    int textHeight = fontMetrics.getHeight();
-                    
-                    // Draw text in center
-                    g2d.drawString(watermarkText, 
-                            (bufferedImage.getWidth() - textWidth) / 2, 
-                            (bufferedImage.getHeight() + textHeight) / 2);
-                    g2d.dispose();
-                    
-                    // Convert back to Frame
-                    Frame watermarkedFrame = converter.convert(bufferedImage);
-                    recorder.record(watermarkedFrame);
-                } else {
-                    // Audio frame or other type, just record as is
+            // Render the text once; each frame only blends the text's bounding box in place
+            BufferedImage overlay = renderTextOverlay(watermarkText);
+            int overlayWidth = overlay.getWidth();
+            int overlayHeight = overlay.getHeight();
+            int[] overlayPixels = ((DataBufferInt) overlay.getRaster().getDataBuffer()).getData();
+            
+            // Same placement as drawing the text centred on the frame
+            int textWidth = overlayWidth - 2 * OVERLAY_PADDING;
+            int originX = (grabber.getImageWidth() - textWidth) / 2 - OVERLAY_PADDING;
+            int originY = (grabber.getImageHeight() - overlayHeight) / 2;
+            
+            long frames = 0;
+            try {
+                // Process each frame
+                Frame frame;
+                while ((frame = grabber.grab()) != null) {
+                    if (frame.image != null) {
+                        blendOverlay(frame, overlayPixels, overlayWidth, overlayHeight, originX, originY);
+                    }
+                    // The grabber reuses its frame buffer, so nothing is allocated per frame
                     recorder.record(frame);
+                    frames++;
                 }
+            } finally {
+                bufferPool.release(overlay);
             }
+            MediaTracing.attribute(MediaTracing.FRAMES, frames);
             
             grabber.stop();
             recorder.stop();
@@ -120,7 +191,74 @@ public class VideoProcessingService {
         }
     }
     
+    /**
+     * Renders semi-transparent watermark text into a pooled ARGB image sized to
+     * the text plus padding, with the baseline placed so that centring the image
+     * on a frame matches drawing the text centred on that frame.
+     */
+    private BufferedImage renderTextOverlay(String watermarkText) {
+        Font font = new Font("Arial", Font.BOLD, 36);
+        Graphics2D measure = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB).createGraphics();
+        FontMetrics fontMetrics = measure.getFontMetrics(font);
+        measure.dispose();
+        int textWidth = fontMetrics.stringWidth(watermarkText);
+        int textHeight = fontMetrics.getHeight();
+        
+        BufferedImage overlay = bufferPool.acquireImage(
+                textWidth + 2 * OVERLAY_PADDING,
+                textHeight + 2 * fontMetrics.getDescent(),
+                BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2d = overlay.createGraphics();
+        g2d.setFont(font);
+        g2d.setColor(new Color(255, 255, 255, 128)); // Semi-transparent white
+        g2d.drawString(watermarkText, OVERLAY_PADDING, textHeight + fontMetrics.getDescent());
+        g2d.dispose();
+        return overlay;
+    }
+    
+    /**
+     * Alpha-blends overlay pixels into a packed BGR24 frame buffer in place.
+     */
+    private void blendOverlay(Frame frame, int[] overlayPixels, int overlayWidth, int overlayHeight,
+                              int originX, int originY) {
+        ByteBuffer pixels = (ByteBuffer) frame.image[0];
+        int stride = frame.imageStride;
+        int channels = frame.imageChannels;
+        
+        int startX = Math.max(0, -originX);
+        int endX = Math.min(overlayWidth, frame.imageWidth - originX);
+        int startY = Math.max(0, -originY);
+        int endY = Math.min(overlayHeight, frame.imageHeight - originY);
+        
+        for (int y = startY; y < endY; y++) {
+            int rowOffset = (originY + y) * stride;
+            for (int x = startX; x < endX; x++) {
+                int argb = overlayPixels[y * overlayWidth + x];
+                int alpha = argb >>> 24;
+                if (alpha == 0) {
+                    continue;
+                }
+                int offset = rowOffset + (originX + x) * channels;
+                // BGR byte order
+                for (int c = 0; c < 3; c++) {
+                    int source = (argb >> (8 * c)) & 0xFF;
+                    int target = pixels.get(offset + c) & 0xFF;
+                    pixels.put(offset + c, (byte) ((source * alpha + target * (255 - alpha) + 127) / 255));
+                }
+            }
+        }
+    }
+    
     public byte[] compressVideo(byte[] videoData, String quality) throws IOException {
+        return compressVideo(videoData, EncodingProfile.fromParameters(Map.of("quality", quality)));
+    }
+    
+    public byte[] compressVideo(byte[] videoData, EncodingProfile profile) throws IOException {
+        return process("compress-" + profile.name().toLowerCase(), videoData, () -> compress(videoData, profile),
+                output -> output.length);
+    }
+    
+    private byte[] compress(byte[] videoData, EncodingProfile profile) throws IOException {
         Path tempInputFile = Files.createTempFile("input_video", ".mp4");
         Path tempOutputFile = Files.createTempFile("output_video", ".mp4");
         Files.write(tempInputFile, videoData);
@@ -129,45 +267,17 @@ public class VideoProcessingService {
             FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(tempInputFile.toFile());
             grabber.start();
             
-            FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(
-                    tempOutputFile.toFile(),
-                    grabber.getImageWidth(),
-                    grabber.getImageHeight(),
-                    grabber.getAudioChannels()
-            );
-            
-            // Set compression parameters based on quality
-            recorder.setFormat("mp4");
-            recorder.setVideoCodec(28); // H.264 codec
-            recorder.setAudioCodec(86018); // AAC codec
-            
-            int bitrate;
-            switch (quality.toLowerCase()) {
-                case "low":
-                    bitrate = 500000; // 500 Kbps
-                    break;
-                case "medium":
-                    bitrate = 1000000; // 1 Mbps
-                    break;
-                case "high":
-                    bitrate = 2000000; // 2 Mbps
-                    break;
-                default:
-                    bitrate = 1000000; // Default to medium
-            }
-            
-            recorder.setVideoBitrate(bitrate);
-            recorder.setFrameRate(grabber.getFrameRate());
-            recorder.setSampleRate(grabber.getSampleRate());
-            recorder.setAudioBitrate(128000); // 128 Kbps audio
-            
+            FFmpegFrameRecorder recorder = compressionRecorder(tempOutputFile, "mp4", grabber, profile);
             recorder.start();
             
             // Process each frame
             Frame frame;
+            long frames = 0;
             while ((frame = grabber.grab()) != null) {
                 recorder.record(frame);
+                frames++;
             }
+            MediaTracing.attribute(MediaTracing.FRAMES, frames);
             
             grabber.stop();
             recorder.stop();
@@ -181,7 +291,119 @@ public class VideoProcessingService {
         }
     }
     
+    /**
+     * A recorder encoding {@code grabber}'s video with {@code profile}, in
+     * {@code format}.
+     */
+    private FFmpegFrameRecorder compressionRecorder(Path outputFile, String format, FFmpegFrameGrabber grabber,
+                                                    EncodingProfile profile) {
+        // Cap the output resolution, keeping the aspect ratio and even dimensions
+        int width = grabber.getImageWidth();
+        int height = grabber.getImageHeight();
+        if (profile.getMaxHeight() > 0 && height > profile.getMaxHeight()) {
+            width = (int) Math.round((double) width * profile.getMaxHeight() / height) & ~1;
+            height = profile.getMaxHeight();
+        }
+        
+        FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(
+                outputFile.toFile(),
+                width,
+                height,
+                grabber.getAudioChannels()
+        );
+        
+        // Set compression parameters based on the encoding profile
+        recorder.setFormat(format);
+        recorder.setVideoCodec(profile.getCodec() == EncodingProfile.Codec.H265
+                ? avcodec.AV_CODEC_ID_HEVC
+                : avcodec.AV_CODEC_ID_H264);
+        recorder.setAudioCodec(avcodec.AV_CODEC_ID_AAC);
+        
+        // Constant-quality rate control, optionally capped by a VBV buffer. x264 ignores the target
+        // bitrate when crf is set; openh264 (the LGPL FFmpeg build) needs it at or below the cap.
+        recorder.setVideoBitrate(profile.getMaxBitrate());
+        recorder.setVideoOption("preset", profile.getPreset());
+        recorder.setVideoOption("crf", String.valueOf(profile.getCrf()));
+        if (profile.getMaxBitrate() > 0) {
+            recorder.setVideoOption("maxrate", String.valueOf(profile.getMaxBitrate()));
+            recorder.setVideoOption("bufsize", String.valueOf(profile.getMaxBitrate() * 2));
+        }
+        recorder.setVideoOption("threads", String.valueOf(profile.getThreads()));
+        
+        double frameRate = grabber.getFrameRate() > 0 ? grabber.getFrameRate() : 30;
+        recorder.setFrameRate(frameRate);
+        recorder.setGopSize((int) Math.round(frameRate * profile.getGopSeconds()));
+        recorder.setSampleRate(grabber.getSampleRate());
+        recorder.setAudioBitrate(128000); // 128 Kbps audio
+        return recorder;
+    }
+    
+    /**
+     * Compresses one segment of a long video: from the keyframe at
+     * {@code startMicros} up to the first keyframe at least
+     * {@code segmentSeconds} later. The source is a file or a URL that FFmpeg
+     * reads by range, so only the container index and the segment's own
+     * part of the source are fetched. The segment is MPEG-TS that keeps the
+     * source's timestamps, so segments compressed separately, even by
+     * different workers, play as one stream when concatenated in order.
+     */
+    public VideoSegment compressSegment(String source, long sourceSize, EncodingProfile profile, long startMicros,
+                                        int segmentSeconds) throws IOException {
+        return process("compress-segment-" + profile.name().toLowerCase(), sourceSize,
+                () -> segment(source, profile, startMicros, segmentSeconds), output -> output.getData().length);
+    }
+    
+    private VideoSegment segment(String source, EncodingProfile profile, long startMicros, int segmentSeconds)
+            throws IOException {
+        Path tempOutputFile = Files.createTempFile("output_segment", ".ts");
+        
+        try {
+            FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(source);
+            // Keep one connection for the range requests of the seeks
+            grabber.setOption("multiple_requests", "1");
+            grabber.start();
+            if (startMicros > 0) {
+                // Segments start on keyframes, so the seek decodes nothing that is then dropped
+                grabber.setTimestamp(startMicros);
+            }
+            
+            FFmpegFrameRecorder recorder = compressionRecorder(tempOutputFile, "mpegts", grabber, profile);
+            recorder.setOption("output_ts_offset", startMicros + "us");
+            recorder.start();
+            
+            long endMicros = startMicros + segmentSeconds * 1_000_000L;
+            long nextStartMicros = -1;
+            Frame frame;
+            long frames = 0;
+            while ((frame = grabber.grab()) != null) {
+                if (frame.image != null && frame.keyFrame && frame.timestamp >= endMicros) {
+                    // The next segment starts here
+                    nextStartMicros = frame.timestamp;
+                    break;
+                }
+                if (frame.timestamp < startMicros) {
+                    // Audio the seek landed before, which the previous segment has
+                    continue;
+                }
+                recorder.record(frame);
+                frames++;
+            }
+            MediaTracing.attribute(MediaTracing.FRAMES, frames);
+            
+            grabber.stop();
+            recorder.stop();
+            
+            return new VideoSegment(Files.readAllBytes(tempOutputFile), startMicros, nextStartMicros);
+        } finally {
+            Files.deleteIfExists(tempOutputFile);
+        }
+    }
+    
     public byte[] extractAudio(byte[] videoData) throws IOException {
+        return process("audio", videoData, () -> audio(videoData), output -> output.length);
+    }
+    
+    private byte[] audio(byte[] videoData) throws IOException {
         Path tempInputFile = Files.createTempFile("input_video", ".mp4");
         Path tempOutputFile = Files.createTempFile("output_audio", ".mp3");
         Files.write(tempInputFile, videoData);
@@ -197,7 +419,7 @@ public class VideoProcessingService {
             
             // Set audio parameters
             recorder.setFormat("mp3");
-            recorder.setAudioCodec(86018); // AAC codec
+            recorder.setAudioCodec(avcodec.AV_CODEC_ID_MP3);
             recorder.setSampleRate(grabber.getSampleRate());
             recorder.setAudioBitrate(192000); // 192 Kbps audio
             
@@ -205,12 +427,15 @@ public class VideoProcessingService {
             
             // Process each frame
             Frame frame;
+            long frames = 0;
             while ((frame = grabber.grab()) != null) {
                 if (frame.samples != null) {
                     // Only record audio frames
                     recorder.record(frame);
+                    frames++;
                 }
             }
+            MediaTracing.attribute(MediaTracing.FRAMES, frames);
             
             grabber.stop();
             recorder.stop();
@@ -225,6 +450,10 @@ public class VideoProcessingService {
     }
     
     public byte[] createPreviewClip(byte[] videoData, int durationSeconds) throws IOException {
+        return process("preview", videoData, () -> previewClip(videoData, durationSeconds), output -> output.length);
+    }
+    
+    private byte[] previewClip(byte[] videoData, int durationSeconds) throws IOException {
         Path tempInputFile = Files.createTempFile("input_video", ".mp4");
         Path tempOutputFile = Files.createTempFile("output_preview", ".mp4");
         Files.write(tempInputFile, videoData);
@@ -262,6 +491,7 @@ public class VideoProcessingService {
                 recorder.record(frame);
                 frameCount++;
             }
+            MediaTracing.attribute(MediaTracing.FRAMES, frameCount);
             
             grabber.stop();
             recorder.stop();
@@ -275,30 +505,355 @@ public class VideoProcessingService {
         }
     }
     
-    public Map<String, Object> getVideoMetadata(byte[] videoData) throws IOException {
-        Path tempFile = Files.createTempFile("video", ".mp4");
-        Files.write(tempFile, videoData);
+    /**
+     * Packages a video as an HLS adaptive-bitrate ladder. The source is decoded once
+     * and every decoded frame is fed to one recorder per rung, each of which scales
+     * and encodes it into its own segmented media playlist.
+     *
+     * @param renditionHeights target heights of the ladder; rungs taller than the source are dropped
+     * @param segmentSeconds   target segment duration
+     * @return the packaged files keyed by path relative to the master playlist
+     * @throws IllegalArgumentException if a height or the segment length is out of range, or the video has no picture
+     */
+    public Map<String, byte[]> createHlsPackage(byte[] videoData, List<Integer> renditionHeights, int segmentSeconds) throws IOException {
+        return createHlsPackage(videoData, new HlsSpec(renditionHeights, segmentSeconds));
+    }
+    
+    public Map<String, byte[]> createHlsPackage(byte[] videoData, HlsSpec spec) throws IOException {
+        return process("hls", videoData, () -> hlsPackage(videoData, spec), this::totalSize);
+    }
+    
+    private Map<String, byte[]> hlsPackage(byte[] videoData, HlsSpec spec) throws IOException {
+        Path tempInputFile = Files.createTempFile("input_video", ".mp4");
+        Path tempOutputDir = Files.createTempDirectory("hls");
+        FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(tempInputFile.toFile());
+        List<FFmpegFrameRecorder> recorders = new ArrayList<>();
         
         try {
-            FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(tempFile.toFile());
+            Files.write(tempInputFile, videoData);
             grabber.start();
             
-            Map<String, Object> metadata = new HashMap<>();
-            metadata.put("width", grabber.getImageWidth());
-            metadata.put("height", grabber.getImageHeight());
-            metadata.put("format", grabber.getFormat());
-            metadata.put("duration", grabber.getLengthInTime() / 1000000.0); // Convert to seconds
-            metadata.put("frameRate", grabber.getFrameRate());
-            metadata.put("videoCodec", grabber.getVideoCodecName());
-            metadata.put("audioCodec", grabber.getAudioCodecName());
-            metadata.put("audioChannels", grabber.getAudioChannels());
-            metadata.put("sampleRate", grabber.getSampleRate());
+            int sourceWidth = grabber.getImageWidth();
+            int sourceHeight = grabber.getImageHeight();
+            if (sourceWidth < 2 || sourceHeight < 2) {
+                // No video stream, or one too small to encode; the recorders would fail deep in FFmpeg
+                throw new IllegalArgumentException("Cannot package a video of " + sourceWidth + "x" + sourceHeight + " as HLS");
+            }
+            List<HlsRung> ladder = buildLadder(sourceWidth, sourceHeight, spec.getRenditionHeights());
+            double frameRate = grabber.getFrameRate() > 0 ? grabber.getFrameRate() : 30;
+            int segmentSeconds = spec.getSegmentSeconds();
+            
+            for (HlsRung rung : ladder) {
+                Path rungDir = Files.createDirectories(tempOutputDir.resolve(rung.name));
+                
+                FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(
+                        rungDir.resolve("index.m3u8").toFile(),
+                        rung.width,
+                        rung.height,
+                        grabber.getAudioChannels()
+                );
+                // Listed before it starts, so it is released even if starting it fails
+                recorders.add(recorder);
+                
+                recorder.setFormat("hls");
+                recorder.setVideoCodec(avcodec.AV_CODEC_ID_H264);
+                recorder.setAudioCodec(avcodec.AV_CODEC_ID_AAC);
+                recorder.setFrameRate(frameRate);
+                recorder.setSampleRate(grabber.getSampleRate());
+                recorder.setVideoBitrate(rung.videoBitrate);
+                recorder.setAudioBitrate(128000); // 128 Kbps audio
+                
+                // Keyframe at every segment boundary so segments can be cut exactly
+                recorder.setGopSize(Math.max(1, (int) Math.round(frameRate * segmentSeconds)));
+                recorder.setOption("hls_time", String.valueOf(segmentSeconds));
+                recorder.setOption("hls_list_size", "0");
+                recorder.setOption("hls_playlist_type", "vod");
+                recorder.setOption("hls_segment_filename", rungDir.resolve("segment_%03d.ts").toString());
+                
+                recorder.start();
+            }
+            
+            // Decode once; each recorder scales the shared frame to its own resolution
+            Frame frame;
+            long frames = 0;
+            while ((frame = grabber.grab()) != null) {
+                for (FFmpegFrameRecorder recorder : recorders) {
+                    recorder.record(frame);
+                }
+                frames++;
+            }
+            MediaTracing.attribute(MediaTracing.FRAMES, frames);
+            MediaTracing.attribute("media.renditions", ladder.size());
             
             grabber.stop();
+            for (FFmpegFrameRecorder recorder : recorders) {
+                recorder.stop();
+            }
+            
+            Map<String, byte[]> files = new LinkedHashMap<>();
+            files.put("master.m3u8", buildMasterPlaylist(ladder).getBytes(StandardCharsets.UTF_8));
+            try (Stream<Path> paths = Files.walk(tempOutputDir)) {
+                for (Path path : (Iterable<Path>) paths.filter(Files::isRegularFile)::iterator) {
+                    String relativePath = tempOutputDir.relativize(path).toString().replace('\\', '/');
+                    files.put(relativePath, Files.readAllBytes(path));
+                }
+            }
             
-            return metadata;
+            return files;
         } finally {
-            Files.deleteIfExists(tempFile);
+            // Released without writing trailers; after a failure the output is discarded anyway
+            for (FFmpegFrameRecorder recorder : recorders) {
+                try {
+                    recorder.release();
+                } catch (Exception e) {
+                    log.warn("Could not release HLS recorder: {}", e.getMessage());
+                }
+            }
+            closeQuietly(grabber);
+            // Clean up temporary files
+            Files.deleteIfExists(tempInputFile);
+            try (Stream<Path> paths = Files.walk(tempOutputDir)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+    
+    /**
+     * One rung per requested height the source reaches, tallest first.
+     * Heights that round to the same even height share a rung.
+     */
+    private List<HlsRung> buildLadder(int sourceWidth, int sourceHeight, List<Integer> renditionHeights) {
+        Map<Integer, HlsRung> ladder = new LinkedHashMap<>();
+        
+        for (int height : renditionHeights) {
+            if (height > sourceHeight) {
+                continue;
+            }
+            // Keep the source aspect ratio; H.264 needs even dimensions
+            int evenHeight = height & ~1;
+            int width = (int) Math.round((double) sourceWidth * height / sourceHeight) & ~1;
+            ladder.putIfAbsent(evenHeight, new HlsRung(evenHeight + "p", width, evenHeight, videoBitrateFor(height)));
+        }
+        
+        if (ladder.isEmpty()) {
+            // Source is smaller than every rung; package it at its own resolution
+            int height = sourceHeight & ~1;
+            ladder.put(height, new HlsRung(height + "p", sourceWidth & ~1, height, videoBitrateFor(height)));
+        }
+        
+        return new ArrayList<>(ladder.values());
+    }
+    
+    private int videoBitrateFor(int height) {
+        if (height >= 1080) {
+            return 5000000; // 5 Mbps
+        } else if (height >= 720) {
+            return 2800000; // 2.8 Mbps
+        } else if (height >= 480) {
+            return 1400000; // 1.4 Mbps
+        } else {
+            return 800000; // 800 Kbps
+        }
+    }
+    
+    private String buildMasterPlaylist(List<HlsRung> ladder) {
+        StringBuilder playlist = new StringBuilder();
+        playlist.append("#EXTM3U\n");
+        playlist.append("#EXT-X-VERSION:3\n");
+        
+        for (HlsRung rung : ladder) {
+            // BANDWIDTH is the peak rate of the rung including audio
+            playlist.append("#EXT-X-STREAM-INF:BANDWIDTH=").append(rung.videoBitrate + 128000)
+                    .append(",RESOLUTION=").append(rung.width).append('x').append(rung.height)
+                    .append('\n');
+            playlist.append(rung.name).append("/index.m3u8\n");
+        }
+        
+        return playlist.toString();
+    }
+    
+    private static class HlsRung {
+        private final String name;
+        private final int width;
+        private final int height;
+        private final int videoBitrate;
+        
+        HlsRung(String name, int width, int height, int videoBitrate) {
+            this.name = name;
+            this.width = width;
+            this.height = height;
+            this.videoBitrate = videoBitrate;
+        }
+    }
+    
+    /**
+     * Builds scrub-preview sprite sheets and a WebVTT thumbnail track in a single
+     * forward pass. Each sample seeks ahead to its timestamp, so only the frames
+     * between the preceding keyframe and the sample are decoded rather than the
+     * whole video.
+     *
+     * @return the sprite sheets and {@code thumbnails.vtt}, keyed by file name
+     * @throws IllegalArgumentException if the layout is out of range or the video has no picture
+     */
+    public Map<String, byte[]> createSpriteSheets(byte[] videoData, int intervalSeconds, int tileWidth,
+                                                  int columns, int rows) throws IOException {
+        return createSpriteSheets(videoData, new SpriteSheetSpec(intervalSeconds, tileWidth, columns, rows));
+    }
+    
+    public Map<String, byte[]> createSpriteSheets(byte[] videoData, SpriteSheetSpec spec) throws IOException {
+        return process("sprite", videoData, () -> spriteSheets(videoData, spec), this::totalSize);
+    }
+    
+    private Map<String, byte[]> spriteSheets(byte[] videoData, SpriteSheetSpec spec) throws IOException {
+        Path tempInputFile = Files.createTempFile("input_video", ".mp4");
+        FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(tempInputFile.toFile());
+        Java2DFrameConverter converter = null;
+        BufferedImage sheet = null;
+        Graphics2D g2d = null;
+        
+        try {
+            Files.write(tempInputFile, videoData);
+            grabber.start();
+            
+            int sourceWidth = grabber.getImageWidth();
+            int sourceHeight = grabber.getImageHeight();
+            if (sourceWidth <= 0 || sourceHeight <= 0) {
+                throw new IllegalArgumentException("Cannot sample sprites from a video of " + sourceWidth + "x" + sourceHeight);
+            }
+            int tileWidth = spec.getTileWidth();
+            int columns = spec.getColumns();
+            int tileHeight = Math.max(1, (int) Math.round((double) tileWidth * sourceHeight / sourceWidth));
+            if ((long) tileHeight * spec.getRows() > SpriteSheetSpec.MAX_SHEET_SIDE) {
+                throw new IllegalArgumentException("Sprite sheets may be at most " + SpriteSheetSpec.MAX_SHEET_SIDE
+                        + " pixels high: " + spec.getRows() + " rows of " + tileHeight);
+            }
+            long durationMicros = grabber.getLengthInTime();
+            long intervalMicros = spec.getIntervalSeconds() * 1000000L;
+            int tilesPerSheet = spec.getTilesPerSheet();
+            
+            converter = bufferPool.acquireConverter();
+            Map<String, byte[]> files = new LinkedHashMap<>();
+            StringBuilder track = new StringBuilder("WEBVTT\n\n");
+            int tileIndex = 0;
+            
+            for (long timestamp = 0; timestamp < durationMicros; timestamp += intervalMicros) {
+                grabber.setVideoTimestamp(timestamp);
+                Frame frame = grabber.grabImage();
+                if (frame == null) {
+                    break;
+                }
+                
+                int sheetIndex = tileIndex / tilesPerSheet;
+                int positionInSheet = tileIndex % tilesPerSheet;
+                if (positionInSheet == 0) {
+                    if (sheet != null) {
+                        g2d.dispose();
+                        g2d = null;
+                        files.put(spriteName(sheetIndex - 1), encodeJpeg(sheet));
+                        bufferPool.release(sheet);
+                        sheet = null;
+                    }
+                    sheet = bufferPool.acquireImage(tileWidth * columns, tileHeight * spec.getRows(), BufferedImage.TYPE_INT_RGB);
+                    g2d = sheet.createGraphics();
+                    g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                }
+                
+                int x = (positionInSheet % columns) * tileWidth;
+                int y = (positionInSheet / columns) * tileHeight;
+                g2d.drawImage(converter.convert(frame), x, y, tileWidth, tileHeight, null);
+                
+                long endTimestamp = Math.min(timestamp + intervalMicros, durationMicros);
+                track.append(formatVttTimestamp(timestamp)).append(" --> ").append(formatVttTimestamp(endTimestamp)).append('\n');
+                track.append(spriteName(sheetIndex))
+                        .append("#xywh=").append(x).append(',').append(y).append(',')
+                        .append(tileWidth).append(',').append(tileHeight).append("\n\n");
+                
+                tileIndex++;
+            }
+            
+            if (sheet != null) {
+                files.put(spriteName((tileIndex - 1) / tilesPerSheet), encodeJpeg(sheet));
+            }
+            MediaTracing.attribute(MediaTracing.FRAMES, tileIndex);
+            
+            grabber.stop();
+            
+            files.put("thumbnails.vtt", track.toString().getBytes(StandardCharsets.UTF_8));
+            return files;
+        } finally {
+            if (g2d != null) {
+                g2d.dispose();
+            }
+            if (sheet != null) {
+                bufferPool.release(sheet);
+            }
+            if (converter != null) {
+                bufferPool.release(converter);
+            }
+            closeQuietly(grabber);
+            // Clean up the temporary file
+            Files.deleteIfExists(tempInputFile);
+        }
+    }
+    
+    /**
+     * Runs one operation in a {@code video <operation>} span, recording its
+     * time under {@code media.video.operation} and its input and output sizes
+     * under {@code media.video.bytes}. The frame loops add the frame count to
+     * the span.
+     */
+    private <T> T process(String operation, byte[] videoData, MediaMetrics.Operation<T, IOException> work,
+                          ToLongFunction<T> outputSize) throws IOException {
+        return process(operation, videoData.length, work, outputSize);
+    }
+    
+    private <T> T process(String operation, long inputBytes, MediaMetrics.Operation<T, IOException> work,
+                          ToLongFunction<T> outputSize) throws IOException {
+        T output = MediaTracing.trace("video " + operation, () -> {
+            MediaTracing.attribute(MediaTracing.BYTES_IN, inputBytes);
+            T result = MediaMetrics.time("media.video.operation", work,
+                    "operation", operation, "size", MediaMetrics.sizeBucket(inputBytes));
+            MediaTracing.attribute(MediaTracing.BYTES_OUT, outputSize.applyAsLong(result));
+            return result;
+        });
+        recordBytes(operation, inputBytes, outputSize.applyAsLong(output));
+        return output;
+    }
+    
+    private void recordBytes(String operation, long inputBytes, long outputBytes) {
+        MediaMetrics.bytes("media.video.bytes", inputBytes, "operation", operation, "direction", "in");
+        MediaMetrics.bytes("media.video.bytes", outputBytes, "operation", operation, "direction", "out");
+    }
+    
+    private long totalSize(Map<String, byte[]> files) {
+        return files.values().stream().mapToLong(file -> file.length).sum();
+    }
+    
+    /**
+     * Releases a grabber or recorder after the work is done or has failed,
+     * logging rather than throwing so a cleanup error cannot hide the failure.
+     */
+    private void closeQuietly(AutoCloseable resource) {
+        try {
+            resource.close();
+        } catch (Exception e) {
+            log.warn("Could not release {}: {}", resource.getClass().getSimpleName(), e.getMessage());
         }
     }
+    
+    private String spriteName(int sheetIndex) {
+        return String.format("sprite_%03d.jpg", sheetIndex);
+    }
+    
+    private byte[] encodeJpeg(BufferedImage image) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", outputStream);
+        return outputStream.toByteArray();
+    }
+    
+    private String formatVttTimestamp(long micros) {
+        long millis = micros / 1000;
+        return String.format("%02d:%02d:%02d.%03d",
+                millis / 3600000, (millis / 60000) % 60, (millis / 1000) % 60, millis % 1000);
+    }
 }
@@ -0,0 +1,236 @@
+package com.mediaprocessing.common.service;
+
+import com.mediaprocessing.common.model.ProcessingRequest.ProcessingType;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MediaMetadataProberTest {
+
+    private final MediaMetadataProber prober = new MediaMetadataProber();
+
+    @Test
+    void aviIsVideoWithoutDuration() {
+        byte[] avi = header("RIFF", 0, "AVI ", "LIST");
+
+        Map<String, String> metadata = prober.probe(avi);
+
+        assertEquals("avi", metadata.get("format"));
+        assertFalse(metadata.containsKey("duration"));
+        assertTrue(MediaMetadataProber.isVideo(metadata, null));
+    }
+
+    @Test
+    void webmIsVideoWithoutDuration() {
+        byte[] webm = new byte[MediaMetadataProber.SNIFF_LENGTH];
+        webm[0] = 0x1A;
+        webm[1] = 0x45;
+        webm[2] = (byte) 0xDF;
+        webm[3] = (byte) 0xA3;
+
+        Map<String, String> metadata = prober.probe(webm);
+
+        assertEquals("mkv", metadata.get("format"));
+        assertTrue(MediaMetadataProber.isVideo(metadata, "video/webm"));
+    }
+
+    @Test
+    void mp4WithUnreadableMoovIsVideo() {
+        // ftyp followed by an mdat that runs past the end of the data, so moov is never reached
+        ByteBuffer mp4 = ByteBuffer.allocate(64);
+        mp4.putInt(16).put(ascii("ftyp")).put(ascii("isom")).putInt(0);
+        mp4.putInt(1 << 20).put(ascii("mdat"));
+
+        Map<String, String> metadata = prober.probe(mp4.array());
+
+        assertEquals("mp4", metadata.get("format"));
+        assertFalse(metadata.containsKey("duration"));
+        assertTrue(MediaMetadataProber.isVideo(metadata, null));
+    }
+
+    @Test
+    void jpegReadsFrameSizeAndExifOrientation() {
+        ByteBuffer jpeg = ByteBuffer.allocate(64);
+        jpeg.putShort((short) 0xFFD8);
+        // APP1: Exif header, big-endian TIFF header, one IFD entry with orientation 6
+        jpeg.putShort((short) 0xFFE1).putShort((short) 34).put(ascii("Exif")).putShort((short) 0);
+        jpeg.put(ascii("MM")).putShort((short) 42).putInt(8);
+        jpeg.putShort((short) 1).putShort((short) 0x0112).putShort((short) 3).putInt(1).putShort((short) 6).putShort((short) 0);
+        jpeg.putInt(0);
+        // SOF0: precision, height, width, components
+        jpeg.putShort((short) 0xFFC0).putShort((short) 17).put((byte) 8).putShort((short) 480).putShort((short) 640).put((byte) 3);
+
+        Map<String, String> metadata = prober.probe(jpeg.array());
+
+        assertEquals("jpg", metadata.get("format"));
+        assertEquals("640", metadata.get("width"));
+        assertEquals("480", metadata.get("height"));
+        assertEquals("6", metadata.get("orientation"));
+        assertEquals("3", metadata.get("components"));
+    }
+
+    @Test
+    void pngReadsIhdr() {
+        ByteBuffer png = ByteBuffer.allocate(MediaMetadataProber.SNIFF_LENGTH);
+        png.put(new byte[]{(byte) 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A});
+        png.putInt(13).put(ascii("IHDR")).putInt(800).putInt(600).put((byte) 8).put((byte) 6);
+
+        Map<String, String> metadata = prober.probe(png.array());
+
+        assertEquals("png", metadata.get("format"));
+        assertEquals("800", metadata.get("width"));
+        assertEquals("600", metadata.get("height"));
+        assertEquals("8", metadata.get("bitDepth"));
+        assertEquals("6", metadata.get("colorType"));
+    }
+
+    @Test
+    void gifReadsLogicalScreenSize() {
+        ByteBuffer gif = ByteBuffer.allocate(MediaMetadataProber.SNIFF_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        gif.put(ascii("GIF89a")).putShort((short) 320).putShort((short) 240);
+
+        Map<String, String> metadata = prober.probe(gif.array());
+
+        assertEquals("gif", metadata.get("format"));
+        assertEquals("320", metadata.get("width"));
+        assertEquals("240", metadata.get("height"));
+        assertFalse(MediaMetadataProber.isVideo(metadata, null));
+    }
+
+    @Test
+    void lossyWebpReadsVp8FrameHeader() {
+        ByteBuffer webp = webp("VP8 ");
+        // Frame tag, start code, then 14-bit width and height
+        webp.put(new byte[3]).put(new byte[]{(byte) 0x9D, 0x01, 0x2A}).putShort((short) 1024).putShort((short) 768);
+
+        assertDimensions("webp", "1024", "768", prober.probe(webp.array()));
+    }
+
+    @Test
+    void losslessWebpReadsVp8lBitfield() {
+        ByteBuffer webp = webp("VP8L");
+        webp.put((byte) 0x2F).putInt((400 - 1) | (300 - 1) << 14);
+
+        assertDimensions("webp", "400", "300", prober.probe(webp.array()));
+    }
+
+    @Test
+    void extendedWebpReadsCanvasSize() {
+        ByteBuffer webp = webp("VP8X");
+        webp.putInt(0x10);
+        putUInt24(webp, 4000 - 1);
+        putUInt24(webp, 3000 - 1);
+
+        assertDimensions("webp", "4000", "3000", prober.probe(webp.array()));
+    }
+
+    @Test
+    void mp4ReadsDurationSizeAndCodecFromMoov() {
+        byte[] mvhd = ByteBuffer.allocate(24).putInt(0).putInt(0).putInt(0).putInt(1000).putInt(12500).array();
+        // Width and height are 16.16 fixed point in the last eight bytes of tkhd
+        byte[] tkhd = ByteBuffer.allocate(84).putInt(76, 1280 << 16).putInt(80, 720 << 16).array();
+        byte[] stsd = ByteBuffer.allocate(16).putInt(0).putInt(1).putInt(0).put(ascii("avc1")).array();
+        byte[] mp4 = concat(
+                box("ftyp", ascii("isom"), new byte[4]),
+                box("moov",
+                        box("mvhd", mvhd),
+                        box("trak", box("tkhd", tkhd), box("mdia", box("minf", box("stbl", box("stsd", stsd)))))));
+
+        Map<String, String> metadata = prober.probe(mp4);
+
+        assertDimensions("mp4", "1280", "720", metadata);
+        assertEquals("12.5", metadata.get("duration"));
+        assertEquals("avc1", metadata.get("videoCodec"));
+        assertTrue(MediaMetadataProber.isVideo(metadata, null));
+    }
+
+    @Test
+    void heicAndAvifStillsAreImages() {
+        assertEquals("heic", MediaMetadataProber.sniff(box("ftyp", ascii("heic"), new byte[4], ascii("mif1"))));
+        assertEquals("heic", MediaMetadataProber.sniff(box("ftyp", ascii("mif1"), new byte[4], ascii("heic"))));
+        assertEquals("avif", MediaMetadataProber.sniff(box("ftyp", ascii("avif"), new byte[4], ascii("mif1"))));
+        assertEquals("avif", MediaMetadataProber.sniff(box("ftyp", ascii("mif1"), new byte[4], ascii("avif"))));
+
+        Map<String, String> metadata = prober.probe(box("ftyp", ascii("heic"), new byte[4]));
+
+        assertEquals("heic", metadata.get("format"));
+        assertFalse(MediaMetadataProber.isVideo(metadata, null));
+    }
+
+    @Test
+    void unknownFormatFallsBackToContentType() {
+        byte[] unknown = new byte[MediaMetadataProber.SNIFF_LENGTH];
+
+        assertTrue(MediaMetadataProber.isVideo(prober.probe(unknown), "video/mp2t"));
+        assertFalse(MediaMetadataProber.isVideo(prober.probe(unknown), "image/tiff"));
+        assertFalse(MediaMetadataProber.isVideo(prober.probe(unknown), null));
+    }
+
+    @Test
+    void imageIsNotVideo() {
+        byte[] jpeg = new byte[MediaMetadataProber.SNIFF_LENGTH];
+        jpeg[0] = (byte) 0xFF;
+        jpeg[1] = (byte) 0xD8;
+
+        assertFalse(MediaMetadataProber.isVideo(prober.probe(jpeg), "video/mp4"));
+    }
+
+    @Test
+    void imageAnalysisOfAviIsEstimatedAsVideo() {
+        ResourceGovernor governor = new ResourceGovernor(1L << 30, 1L << 30, Duration.ZERO);
+        Map<String, String> metadata = prober.probe(header("RIFF", 0, "AVI ", "LIST"));
+
+        ResourceGovernor.JobEstimate estimate = governor.estimate(ProcessingType.IMAGE_ANALYSIS, null, metadata, 1024);
+
+        assertTrue(estimate.getNativeBytes() > 0);
+    }
+
+    private static byte[] header(String riff, int size, String form, String chunk) {
+        ByteBuffer header = ByteBuffer.allocate(MediaMetadataProber.SNIFF_LENGTH);
+        header.put(ascii(riff)).putInt(size).put(ascii(form)).put(ascii(chunk));
+        return header.array();
+    }
+
+    private static ByteBuffer webp(String chunk) {
+        ByteBuffer webp = ByteBuffer.allocate(MediaMetadataProber.SNIFF_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        webp.put(ascii("RIFF")).putInt(0).put(ascii("WEBP")).put(ascii(chunk)).putInt(0);
+        return webp;
+    }
+
+    private static void putUInt24(ByteBuffer buffer, int value) {
+        buffer.put((byte) value).put((byte) (value >> 8)).put((byte) (value >> 16));
+    }
+
+    private static byte[] box(String type, byte[]... children) {
+        ByteBuffer box = ByteBuffer.allocate(8 + concat(children).length);
+        box.putInt(box.capacity()).put(ascii(type)).put(concat(children));
+        return box.array();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteBuffer result = ByteBuffer.allocate(Arrays.stream(parts).mapToInt(part -> part.length).sum());
+        for (byte[] part : parts) {
+            result.put(part);
+        }
+        return result.array();
+    }
+
+    private static void assertDimensions(String format, String width, String height, Map<String, String> metadata) {
+        assertEquals(format, metadata.get("format"));
+        assertEquals(width, metadata.get("width"));
+        assertEquals(height, metadata.get("height"));
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,272 @@
+package com.mediaprocessing.functions;
+
+import com.azure.storage.blob.BlobServiceClientBuilder;
+import com.mediaprocessing.common.metrics.MediaMetrics;
+import com.mediaprocessing.common.metrics.MediaTracing;
+import com.mediaprocessing.common.model.ProcessingRequest.ProcessingType;
+import com.mediaprocessing.common.service.AnalysisBackend;
+import com.mediaprocessing.common.service.ContentModerationService;
+import com.mediaprocessing.common.service.MediaMetadataProber;
+import com.mediaprocessing.common.service.OnnxAnalysisBackend;
+import com.mediaprocessing.common.service.ProcessingLedger;
+import com.mediaprocessing.common.service.RasterBufferPool;
+import com.mediaprocessing.common.service.ResourceGovernor;
+import com.mediaprocessing.common.service.SingleFlight;
+import com.microsoft.azure.functions.ExecutionContext;
+import com.microsoft.azure.functions.HttpResponseMessage;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.logging.LoggingMeterRegistry;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.context.Context;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Per-worker singletons shared by every function in this JVM, so admission
+ * control sees all jobs running in the worker rather than one function's,
+ * the local models are loaded and warmed once, and metrics and spans go to
+ * one registry and one exporter.
+ */
+@Slf4j
+public final class FunctionResources {
+
+    private static final long MB = 1024 * 1024;
+
+    private static final ResourceGovernor GOVERNOR = new ResourceGovernor(
+            getLongSetting("JobHeapBudgetMb", ResourceGovernor.defaultHeapBudgetBytes() / MB) * MB,
+            getLongSetting("JobNativeBudgetMb", 1024) * MB,
+            Duration.ofSeconds(getLongSetting("JobAdmissionTimeoutSeconds", 30)));
+
+    private static final MediaMetadataProber PROBER = new MediaMetadataProber();
+    // Identical on-demand requests on this worker share one job
+    private static final SingleFlight<String, Map<String, Object>> PROCESSING_FLIGHTS = new SingleFlight<>("processing");
+
+    private static final PrometheusMeterRegistry PROMETHEUS = configureMetrics(getSetting("MetricsRegistry", "prometheus"));
+
+    // "otlp" to a collector at TracingEndpoint, "logging" as OTLP JSON in the log, or "none"
+    private static final boolean TRACING = MediaTracing.configure(
+            getSetting("TracingExporter", "none"),
+            getSetting("TracingEndpoint", "http://localhost:4318/v1/traces"),
+            "media-functions");
+
+    // Processing types analyzed by the local model when one is configured
+    private static final Set<ProcessingType> LOCAL_ANALYSIS_TYPES = Arrays.stream(
+                    getSetting("LocalAnalysisTypes", "IMAGE_ANALYSIS,OBJECT_RECOGNITION,VIDEO_ANALYSIS").split(","))
+            .map(String::trim)
+            .filter(type -> !type.isEmpty())
+            .map(ProcessingType::valueOf)
+            .collect(Collectors.toSet());
+
+    private static volatile OnnxAnalysisBackend localBackend;
+    private static volatile boolean localBackendFailed;
+    private static volatile ContentModerationService moderationService;
+    private static volatile ProcessingLedger ledger;
+
+    private FunctionResources() {
+    }
+
+    public static ResourceGovernor governor() {
+        return GOVERNOR;
+    }
+
+    public static MediaMetadataProber prober() {
+        return PROBER;
+    }
+
+    public static SingleFlight<String, Map<String, Object>> processingFlights() {
+        return PROCESSING_FLIGHTS;
+    }
+
+    /**
+     * Videos at least {@code SegmentedVideoMinMb} (default 256) are
+     * compressed in segments.
+     */
+    public static long segmentedVideoMinBytes() {
+        return getLongSetting("SegmentedVideoMinMb", 256) * MB;
+    }
+
+    public static int videoSegmentSeconds() {
+        return (int) getLongSetting("VideoSegmentSeconds", 60);
+    }
+
+    /**
+     * How long a segmented job runs before it queues a continuation, kept
+     * well inside the 10 minute {@code functionTimeout}.
+     */
+    public static Duration segmentTimeBudget() {
+        return Duration.ofSeconds(getLongSetting("SegmentTimeBudgetSeconds", 420));
+    }
+
+    /**
+     * The registry served by the metrics function, or null if
+     * {@code MetricsRegistry} picked another one.
+     */
+    public static PrometheusMeterRegistry prometheusRegistry() {
+        return PROMETHEUS;
+    }
+
+    /**
+     * Outcome tag for an HTTP function's response.
+     */
+    public static String outcome(HttpResponseMessage response) {
+        int status = response.getStatusCode();
+        if (status < 400) {
+            return MediaMetrics.SUCCESS;
+        } else if (status == 403) {
+            return "flagged";
+        } else if (status == 503) {
+            return "deferred";
+        }
+        return status < 500 ? "rejected" : MediaMetrics.ERROR;
+    }
+
+    /**
+     * Records one function invocation under {@code media.function.invocation}.
+     */
+    public static void recordInvocation(Timer.Sample sample, String function, Object type, String outcome) {
+        MediaMetrics.stop(sample, "media.function.invocation",
+                "function", function, "type", String.valueOf(type), "outcome", outcome);
+    }
+
+    /**
+     * Starts the span for one invocation, under {@code parent}. Going through
+     * this class makes sure the exporter is configured before the first span.
+     */
+    public static Span startInvocation(String function, ExecutionContext context, SpanKind kind, Context parent,
+                                       String... attributes) {
+        Span span = MediaTracing.start(function, kind, parent, attributes);
+        span.setAttribute("faas.name", function);
+        span.setAttribute("faas.invocation_id", context.getInvocationId());
+        return span;
+    }
+
+    /**
+     * The local analysis backend if the {@code LocalModelPath} setting names a
+     * model and {@code type} is one of {@code LocalAnalysisTypes}; otherwise
+     * null, and everything goes to Azure.
+     */
+    public static AnalysisBackend localAnalysisBackend(ProcessingType type) {
+        if (!LOCAL_ANALYSIS_TYPES.contains(type) || getSetting("LocalModelPath", "").isBlank()) {
+            return null;
+        }
+        if (localBackend == null && !localBackendFailed) {
+            synchronized (FunctionResources.class) {
+                if (localBackend == null && !localBackendFailed) {
+                    try {
+                        localBackend = new OnnxAnalysisBackend(
+                                Paths.get(getSetting("LocalModelPath", "")),
+                                Paths.get(getSetting("LocalLabelsPath", "")),
+                                (int) getLongSetting("LocalSessions", 2),
+                                (int) getLongSetting("LocalMaxBatch", 8),
+                                Duration.ofMillis(getLongSetting("LocalBatchDelayMillis", 5)));
+                        MediaMetrics.registerStats("media.onnx", localBackend::getStats, "model", "analysis");
+                    } catch (Exception e) {
+                        // Don't retry on every request; Azure still works
+                        log.error("Could not load local analysis model, using Azure only", e);
+                        localBackendFailed = true;
+                    }
+                }
+            }
+        }
+        return localBackend;
+    }
+
+    /**
+     * The moderation service, classifying with the model named by
+     * {@code ModerationModelPath} or, without one or if it fails to load, with
+     * the skin-tone heuristic, which records a score but never flags.
+     */
+    public static ContentModerationService moderationService() {
+        if (moderationService == null) {
+            synchronized (FunctionResources.class) {
+                if (moderationService == null) {
+                    double threshold = Double.parseDouble(getSetting("ModerationThreshold", "0.5"));
+                    OnnxAnalysisBackend classifier = null;
+                    if (!getSetting("ModerationModelPath", "").isBlank()) {
+                        try {
+                            classifier = new OnnxAnalysisBackend(
+                                    Paths.get(getSetting("ModerationModelPath", "")),
+                                    Paths.get(getSetting("ModerationLabelsPath", "")),
+                                    1,
+                                    (int) getLongSetting("LocalMaxBatch", 8),
+                                    Duration.ofMillis(getLongSetting("LocalBatchDelayMillis", 5)));
+                            MediaMetrics.registerStats("media.onnx", classifier::getStats, "model", "moderation");
+                        } catch (Exception e) {
+                            log.error("Could not load moderation model, using the skin-tone heuristic; nothing will be flagged", e);
+                        }
+                    }
+                    moderationService = new ContentModerationService(classifier,
+                            Set.copyOf(Arrays.asList(getSetting("ModerationUnsafeLabels", "porn,hentai,sexy").split(","))),
+                            threshold);
+                }
+            }
+        }
+        return moderationService;
+    }
+
+    /**
+     * The ledger of processing jobs in {@code AzureWebJobsStorage}. A running
+     * job's claim lapses {@code LedgerClaimSeconds} after its worker stops
+     * renewing it, and a completed job is skipped for {@code LedgerDoneHours}.
+     */
+    public static ProcessingLedger ledger() {
+        if (ledger == null) {
+            synchronized (FunctionResources.class) {
+                if (ledger == null) {
+                    ledger = new ProcessingLedger(
+                            new BlobServiceClientBuilder().connectionString(System.getenv("AzureWebJobsStorage")).buildClient(),
+                            Duration.ofSeconds(getLongSetting("LedgerClaimSeconds", 60)),
+                            Duration.ofHours(getLongSetting("LedgerDoneHours", 24)));
+                }
+            }
+        }
+        return ledger;
+    }
+
+    /**
+     * Adds the registry named by the {@code MetricsRegistry} setting to the
+     * global registry: "prometheus" (served by the metrics function),
+     * "logging" (logged every minute) or "none".
+     */
+    private static PrometheusMeterRegistry configureMetrics(String registry) {
+        PrometheusMeterRegistry prometheus = null;
+        switch (registry.toLowerCase()) {
+            case "prometheus":
+                prometheus = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+                Metrics.addRegistry(prometheus);
+                break;
+            case "logging":
+                Metrics.addRegistry(new LoggingMeterRegistry());
+                break;
+            case "none":
+                return null;
+            default:
+                log.warn("Unknown MetricsRegistry '{}', metrics are not recorded", registry);
+                return null;
+        }
+        Metrics.globalRegistry.config().commonTags("app", "media-functions");
+        MediaMetrics.registerStats("media.governor", GOVERNOR::getStats);
+        MediaMetrics.registerStats("media.buffer.pool", RasterBufferPool.shared()::getStats);
+        return prometheus;
+    }
+
+    private static String getSetting(String name, String defaultValue) {
+        String value = System.getenv(name);
+        return value != null && !value.isBlank() ? value.trim() : defaultValue;
+    }
+
+    private static long getLongSetting(String name, long defaultValue) {
+        String value = System.getenv(name);
+        return value != null && !value.isBlank() ? Long.parseLong(value.trim()) : defaultValue;
+    }
+}
@@ -2,15 +2,25 @@ package com.mediaprocessing.functions.ai;
 
 import com.microsoft.azure.functions.*;
 import com.microsoft.azure.functions.annotation.*;
+import com.azure.ai.vision.imageanalysis.models.VisualFeatures;
+import com.mediaprocessing.functions.FunctionResources;
 import com.mediaprocessing.common.config.AzureAiConfig;
 import com.mediaprocessing.common.config.AzureStorageConfig;
+import com.mediaprocessing.common.metrics.MediaMetrics;
 import com.mediaprocessing.common.model.ProcessingRequest;
 import com.mediaprocessing.common.service.AzureAiService;
 import com.mediaprocessing.common.service.BlobStorageService;
+import com.mediaprocessing.common.service.ContentModerationService;
+import com.mediaprocessing.common.service.MediaMetadataProber;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 @Slf4j
 public class AiProcessingFunction {
@@ -24,7 +34,15 @@ public class AiProcessingFunction {
                 route = "ai/process"
             ) HttpRequestMessage<Optional<ProcessingRequest>> request,
             final ExecutionContext context) {
-        
+        Timer.Sample sample = MediaMetrics.start();
+        HttpResponseMessage response = process(request);
+        FunctionResources.recordInvocation(sample, "ProcessMediaWithAi",
+                request.getBody().map(ProcessingRequest::getProcessingType).orElse(null),
+                FunctionResources.outcome(response));
+        return response;
+    }
+    
+    private HttpResponseMessage process(HttpRequestMessage<Optional<ProcessingRequest>> request) {
         log.info("HTTP trigger function for AI processing");
         
         ProcessingRequest processingRequest = request.getBody().orElse(null);
@@ -49,9 +67,22 @@ public class AiProcessingFunction {
             aiConfig.setTextAnalyticsKey(System.getenv("TextAnalyticsKey"));
             aiConfig.setFormRecognizerEndpoint(System.getenv("FormRecognizerEndpoint"));
             aiConfig.setFormRecognizerKey(System.getenv("FormRecognizerKey"));
+            if (System.getenv("AiDeadlineMillis") != null) {
+                aiConfig.setAnalysisDeadlineMillis(Long.parseLong(System.getenv("AiDeadlineMillis")));
+            }
+            if (System.getenv("AiHedgeDelayMillis") != null) {
+                aiConfig.setHedgeDelayMillis(Long.parseLong(System.getenv("AiHedgeDelayMillis")));
+            }
+            if (System.getenv("AiMaxPixels") != null) {
+                aiConfig.setAnalysisMaxPixels(Long.parseLong(System.getenv("AiMaxPixels")));
+            }
+            if (System.getenv("AiReadMaxPixels") != null) {
+                aiConfig.setReadMaxPixels(Long.parseLong(System.getenv("AiReadMaxPixels")));
+            }
             
             BlobStorageService blobService = new BlobStorageService(storageConfig);
-            AzureAiService aiService = new AzureAiService(aiConfig);
+            AzureAiService aiService = new AzureAiService(aiConfig,
+                    FunctionResources.localAnalysisBackend(processingRequest.getProcessingType()));
             
             // Download the media
             byte[] mediaData = blobService.downloadMedia(processingRequest.getBlobName());
@@ -60,7 +91,21 @@ public class AiProcessingFunction {
             // Process based on request type
             switch (processingRequest.getProcessingType()) {
                 case IMAGE_ANALYSIS:
-                    results = aiService.analyzeImage(mediaData);
+                    String features = processingRequest.getParameters() != null
+                            ? processingRequest.getParameters().get("features")
+                            : null;
+                    if (features == null) {
+                        results = aiService.analyzeImage(mediaData);
+                    } else {
+                        // e.g. "tags,objects,caption,read"; independent features run concurrently
+                        List<VisualFeatures> visualFeatures = Arrays.stream(features.split(","))
+                                .map(String::trim)
+                                .map(VisualFeatures::fromString)
+                                .collect(Collectors.toList());
+                        long deadlineMillis = Long.parseLong(processingRequest.getParameters()
+                                .getOrDefault("deadlineMs", String.valueOf(aiConfig.getAnalysisDeadlineMillis())));
+                        results = aiService.analyze(mediaData, visualFeatures, Duration.ofMillis(deadlineMillis));
+                    }
                     break;
                     
                 case FACE_DETECTION:
@@ -72,7 +117,10 @@ public class AiProcessingFunction {
                     break;
                     
                 case CONTENT_MODERATION:
-                    results = aiService.moderateContent(mediaData);
+                    ContentModerationService moderationService = FunctionResources.moderationService();
+                    results = MediaMetadataProber.isVideo(FunctionResources.prober().probe(mediaData), null)
+                            ? moderationService.moderateVideo(mediaData)
+                            : moderationService.moderateImage(mediaData);
                     break;
                     
                 default:
@@ -85,12 +133,15 @@ public class AiProcessingFunction {
             Map<String, String> metadata = blobService.getBlobMetadata(processingRequest.getBlobName());
             metadata.put("aiProcessed", "true");
             metadata.put("aiProcessingType", processingRequest.getProcessingType().toString());
+            if (processingRequest.getProcessingType() == ProcessingRequest.ProcessingType.CONTENT_MODERATION) {
+                ContentModerationService.recordResult(results, metadata);
+            }
             blobService.setBlobMetadata(processingRequest.getBlobName(), metadata);
             
             return request.createResponseBuilder(HttpStatus.OK)
                     .header("Content-Type", "application/json")
                     .body(Map.of(
-                            "status", "success",
+                            "status", isPartial(results) ? "partial" : "success",
                             "mediaId", processingRequest.getMediaId(),
                             "blobName", processingRequest.getBlobName(),
                             "results", results
@@ -104,4 +155,11 @@ public class AiProcessingFunction {
                     .build();
         }
     }
+    
+    @SuppressWarnings("unchecked")
+    private boolean isPartial(Map<String, Object> results) {
+        Object featureStatus = results.get("featureStatus");
+        return featureStatus instanceof Map
+                && ((Map<String, String>) featureStatus).values().stream().anyMatch(status -> !status.equals("ok"));
+    }
 }
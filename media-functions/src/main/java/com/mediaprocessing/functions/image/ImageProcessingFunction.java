@@ -2,10 +2,17 @@ package com.mediaprocessing.functions.image;
 
 import com.microsoft.azure.functions.*;
 import com.microsoft.azure.functions.annotation.*;
+import com.mediaprocessing.functions.FunctionResources;
 import com.mediaprocessing.common.config.AzureStorageConfig;
+import com.mediaprocessing.common.metrics.MediaMetrics;
 import com.mediaprocessing.common.model.ProcessingRequest;
 import com.mediaprocessing.common.service.BlobStorageService;
+import com.mediaprocessing.common.service.ContentModerationService;
 import com.mediaprocessing.common.service.ImageProcessingService;
+import com.mediaprocessing.common.service.MediaMetadataProber;
+import com.mediaprocessing.common.service.ProcessingLedger;
+import com.mediaprocessing.common.service.ResourceGovernor;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.Map;
@@ -14,41 +21,6 @@ import java.util.Optional;
 @Slf4j
 public class ImageProcessingFunction {
 
-    @FunctionName("ProcessImageOnUpload")
-    public void processImageOnUpload(
-            @BlobTrigger(
-                name = "blob",
-                path = "media/{name}",
-                dataType = "binary",
-                connection = "AzureWebJobsStorage"
-            ) byte[] content,
-            @BindingName("name") String blobName,
-            final ExecutionContext context) {
-        
-        log.info("Java Blob trigger function processed a blob. Name: {}, Size: {} bytes", blobName, content.length);
-        
-        try {
-            // Initialize services
-            AzureStorageConfig storageConfig = new AzureStorageConfig();
-            storageConfig.setConnectionString(System.getenv("AzureWebJobsStorage"));
-            storageConfig.setContainerName("media");
-            storageConfig.setThumbnailContainerName("thumbnails");
-            storageConfig.setProcessedContainerName("processed");
-            
-            BlobStorageService blobService = new BlobStorageService(storageConfig);
-            ImageProcessingService imageService = new ImageProcessingService();
-            
-            // Generate thumbnail (200x200)
-            byte[] thumbnailData = imageService.generateThumbnail(content, 200, 200);
-            blobService.uploadThumbnail(thumbnailData, blobName, "image/jpeg");
-            
-            log.info("Generated thumbnail for blob: {}", blobName);
-            
-        } catch (Exception e) {
-            log.error("Error processing image: {}", e.getMessage(), e);
-        }
-    }
-    
     @FunctionName("ProcessImageOnDemand")
     public HttpResponseMessage processImageOnDemand(
             @HttpTrigger(
@@ -58,7 +30,15 @@ public class ImageProcessingFunction {
                 route = "image/process"
             ) HttpRequestMessage<Optional<ProcessingRequest>> request,
             final ExecutionContext context) {
-        
+        Timer.Sample sample = MediaMetrics.start();
+        HttpResponseMessage response = processOnDemand(request);
+        FunctionResources.recordInvocation(sample, "ProcessImageOnDemand",
+                request.getBody().map(ProcessingRequest::getProcessingType).orElse(null),
+                FunctionResources.outcome(response));
+        return response;
+    }
+    
+    private HttpResponseMessage processOnDemand(HttpRequestMessage<Optional<ProcessingRequest>> request) {
         log.info("HTTP trigger function for on-demand image processing");
         
         ProcessingRequest processingRequest = request.getBody().orElse(null);
@@ -79,76 +59,123 @@ public class ImageProcessingFunction {
             BlobStorageService blobService = new BlobStorageService(storageConfig);
             ImageProcessingService imageService = new ImageProcessingService();
             
+            if (ContentModerationService.isFlagged(blobService.getBlobMetadata(processingRequest.getBlobName()))) {
+                return request.createResponseBuilder(HttpStatus.FORBIDDEN)
+                        .body("Media was flagged by content moderation")
+                        .build();
+            }
+            
+            // Identical requests running on this worker wait for one job and share its result
+            Map<String, Object> result = FunctionResources.processingFlights().execute(
+                    ProcessingLedger.jobKey(processingRequest.getBlobName(), processingRequest.getProcessingType(),
+                            processingRequest.getParameters()),
+                    () -> process(processingRequest, blobService, imageService));
+            return request.createResponseBuilder(HttpStatus.OK)
+                    .header("Content-Type", "application/json")
+                    .body(result)
+                    .build();
+            
+        } catch (IllegalArgumentException e) {
+            return request.createResponseBuilder(HttpStatus.BAD_REQUEST)
+                    .body(Map.of("error", String.valueOf(e.getMessage())))
+                    .build();
+        } catch (ResourceGovernor.JobTooLargeException e) {
+            log.warn("Rejecting image request that can never fit: {}", e.getMessage());
+            return request.createResponseBuilder(HttpStatus.PAYLOAD_TOO_LARGE)
+                    .body(Map.of("error", e.getMessage()))
+                    .build();
+        } catch (ResourceGovernor.AdmissionRejectedException e) {
+            log.warn("Rejecting image request: {}", e.getMessage());
+            return request.createResponseBuilder(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header("Retry-After", "30")
+                    .body(Map.of("error", e.getMessage()))
+                    .build();
+        } catch (Exception e) {
+            log.error("Error processing image: {}", e.getMessage(), e);
+            return request.createResponseBuilder(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(Map.of("error", e.getMessage()))
+                    .build();
+        }
+    }
+
+    private Map<String, Object> process(ProcessingRequest processingRequest, BlobStorageService blobService,
+                                        ImageProcessingService imageService) throws Exception {
+        ResourceGovernor governor = FunctionResources.governor();
+        MediaMetadataProber.RangeReader reader = blobService.getMediaRangeReader(processingRequest.getBlobName());
+        ResourceGovernor.JobEstimate estimate = governor.estimate(
+                processingRequest.getProcessingType(),
+                processingRequest.getParameters(),
+                FunctionResources.prober().probe(reader),
+                reader.size());
+        
+        try (ResourceGovernor.Permit permit = governor.admit(
+                processingRequest.getBlobName() + ":" + processingRequest.getProcessingType(), estimate)) {
             // Download the original image
             byte[] imageData = blobService.downloadMedia(processingRequest.getBlobName());
             byte[] processedData;
             String suffix;
-            
+            String contentType = imageService.getContentType(imageService.getImageFormat(imageData));
+        
             // Process based on request type
             switch (processingRequest.getProcessingType()) {
                 case THUMBNAIL:
                     int width = Integer.parseInt(processingRequest.getParameters().getOrDefault("width", "200"));
                     int height = Integer.parseInt(processingRequest.getParameters().getOrDefault("height", "200"));
-                    processedData = imageService.generateThumbnail(imageData, width, height);
-                    suffix = "thumb";
+                    String thumbnailFormat = processingRequest.getParameters().getOrDefault("format", "jpg");
+                    float thumbnailQuality = Float.parseFloat(processingRequest.getParameters().getOrDefault("quality", "-1"));
+                    processedData = imageService.generateThumbnail(imageData, width, height, thumbnailFormat, thumbnailQuality);
+                    suffix = thumbnailFormat.equalsIgnoreCase("jpg") ? "thumb" : "thumb-" + thumbnailFormat;
+                    contentType = imageService.getContentType(thumbnailFormat);
                     break;
-                    
+                
                 case WATERMARK:
                     String watermarkText = processingRequest.getParameters().getOrDefault("text", "Copyright");
                     processedData = imageService.addWatermark(imageData, watermarkText);
                     suffix = "watermark";
                     break;
-                    
+                
                 case RESIZE:
                     int resizeWidth = Integer.parseInt(processingRequest.getParameters().getOrDefault("width", "800"));
                     int resizeHeight = Integer.parseInt(processingRequest.getParameters().getOrDefault("height", "600"));
                     processedData = imageService.resizeImage(imageData, resizeWidth, resizeHeight);
                     suffix = "resize";
                     break;
-                    
+                
                 case FILTER:
                     String filterType = processingRequest.getParameters().getOrDefault("type", "grayscale");
                     processedData = imageService.applyFilter(imageData, filterType);
                     suffix = "filter-" + filterType;
                     break;
-                    
+                
                 case FORMAT_CONVERSION:
                     String targetFormat = processingRequest.getParameters().getOrDefault("format", "jpg");
-                    processedData = imageService.convertFormat(imageData, targetFormat);
+                    float quality = Float.parseFloat(processingRequest.getParameters().getOrDefault("quality", "-1"));
+                    int effort = Integer.parseInt(processingRequest.getParameters().getOrDefault("effort", "-1"));
+                    processedData = imageService.convertFormat(imageData, targetFormat, quality, effort);
                     suffix = "convert-" + targetFormat;
+                    contentType = imageService.getContentType(targetFormat);
                     break;
-                    
+                
                 default:
-                    return request.createResponseBuilder(HttpStatus.BAD_REQUEST)
-                            .body("Unsupported processing type: " + processingRequest.getProcessingType())
-                            .build();
+                    throw new IllegalArgumentException("Unsupported processing type: " + processingRequest.getProcessingType());
             }
-            
+        
             // Upload the processed image
             String processedBlobName = blobService.uploadProcessedMedia(
                     processedData, 
                     processingRequest.getBlobName(), 
                     suffix, 
-                    "image/jpeg"
+                    contentType
             );
-            
+        
             // Return the URL of the processed image
             String processedUrl = blobService.getProcessedMediaUrl(processingRequest.getBlobName(), suffix);
-            
-            return request.createResponseBuilder(HttpStatus.OK)
-                    .header("Content-Type", "application/json")
-                    .body(Map.of(
-                            "status", "success",
-                            "processedUrl", processedUrl,
-                            "blobName", processedBlobName
-                    ))
-                    .build();
-            
-        } catch (Exception e) {
-            log.error("Error processing image: {}", e.getMessage(), e);
-            return request.createResponseBuilder(HttpStatus.INTERNAL_SERVER_ERROR)
-                    .body(Map.of("error", e.getMessage()))
-                    .build();
+        
+            return Map.of(
+                    "status", "success",
+                    "processedUrl", processedUrl,
+                    "blobName", processedBlobName
+            );
         }
     }
 }
@@ -0,0 +1,39 @@
+package com.mediaprocessing.functions.metrics;
+
+import com.microsoft.azure.functions.*;
+import com.microsoft.azure.functions.annotation.*;
+import com.mediaprocessing.functions.FunctionResources;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+
+import java.util.Optional;
+
+public class MetricsFunction {
+
+    /**
+     * Prometheus scrape endpoint for this worker's metrics. Each instance
+     * serves only its own, so every instance must be scraped.
+     */
+    @FunctionName("GetMetrics")
+    public HttpResponseMessage getMetrics(
+            @HttpTrigger(
+                name = "req",
+                methods = {HttpMethod.GET},
+                authLevel = AuthorizationLevel.FUNCTION,
+                route = "metrics"
+            ) HttpRequestMessage<Optional<String>> request,
+            final ExecutionContext context) {
+
+        PrometheusMeterRegistry registry = FunctionResources.prometheusRegistry();
+        if (registry == null) {
+            return request.createResponseBuilder(HttpStatus.NOT_FOUND)
+                    .body("Prometheus metrics are not enabled (MetricsRegistry)")
+                    .build();
+        }
+
+        return request.createResponseBuilder(HttpStatus.OK)
+                .header("Content-Type", TextFormat.CONTENT_TYPE_004)
+                .body(registry.scrape())
+                .build();
+    }
+}
@@ -0,0 +1,259 @@
+package com.mediaprocessing.functions.trigger;
+
+import com.azure.core.http.rest.PagedResponse;
+import com.azure.core.http.rest.Response;
+import com.azure.core.util.BinaryData;
+import com.azure.core.util.Context;
+import com.azure.storage.blob.BlobClient;
+import com.azure.storage.blob.BlobContainerClient;
+import com.azure.storage.blob.BlobServiceClient;
+import com.azure.storage.blob.batch.BlobBatch;
+import com.azure.storage.blob.batch.BlobBatchClient;
+import com.azure.storage.blob.batch.BlobBatchClientBuilder;
+import com.azure.storage.blob.models.BlobItem;
+import com.azure.storage.blob.models.ListBlobsOptions;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Streams a container page by page and deletes expired or orphaned blobs with
+ * the Blob Batch API. Only one listing page is held in memory at a time, and the
+ * continuation token is saved after each page so a run cut short by the time
+ * budget resumes where it stopped on the next invocation.
+ */
+@Slf4j
+public class BlobCleaner {
+
+    // Blob Batch API limit on sub-requests per batch
+    private static final int MAX_BATCH_SIZE = 256;
+    private static final int PAGE_SIZE = 5000;
+    private static final String STATE_CONTAINER = "cleanup-state";
+
+    // Media blobs are named "<uuid>-<fileName>"; derived blobs embed that name after their prefix
+    private static final Pattern SOURCE_BLOB_PATTERN = Pattern.compile(
+            "[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}-[^/]+");
+
+    // Derived blobs younger than this are never treated as orphans, so in-flight uploads are left alone
+    private static final Duration ORPHAN_GRACE_PERIOD = Duration.ofDays(1);
+
+    private final BlobServiceClient blobServiceClient;
+    private final BlobBatchClient blobBatchClient;
+    private final int parallelism;
+    private final boolean dryRun;
+    private final Instant deadline;
+
+    public BlobCleaner(BlobServiceClient blobServiceClient, int parallelism, boolean dryRun, Instant deadline) {
+        this.blobServiceClient = blobServiceClient;
+        this.blobBatchClient = new BlobBatchClientBuilder(blobServiceClient).buildClient();
+        this.parallelism = parallelism;
+        this.dryRun = dryRun;
+        this.deadline = deadline;
+    }
+
+    /**
+     * Cleans one container.
+     *
+     * @param cutoff          blobs last modified before this are deleted, or {@code null} to skip age-based deletion
+     * @param sourceContainer container holding the originals; when set, blobs whose original is gone are deleted
+     */
+    public CleanupStats clean(String containerName, OffsetDateTime cutoff, String sourceContainer) throws Exception {
+        CleanupStats stats = new CleanupStats(containerName);
+        BlobContainerClient containerClient = blobServiceClient.getBlobContainerClient(containerName);
+
+        if (!containerClient.exists()) {
+            log.info("Container {} does not exist. Nothing to clean up.", containerName);
+            return stats;
+        }
+
+        BlobContainerClient sourceClient = sourceContainer != null
+                ? blobServiceClient.getBlobContainerClient(sourceContainer)
+                : null;
+        OffsetDateTime orphanCutoff = OffsetDateTime.now().minus(ORPHAN_GRACE_PERIOD);
+
+        String continuationToken = loadContinuationToken(containerName);
+        if (continuationToken != null) {
+            log.info("Resuming cleanup of {} from saved continuation token", containerName);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        // Bounds the number of batches queued or in flight so listing cannot outrun deletion
+        Semaphore inFlight = new Semaphore(parallelism * 2);
+
+        try {
+            ListBlobsOptions options = new ListBlobsOptions().setMaxResultsPerPage(PAGE_SIZE);
+            Iterable<PagedResponse<BlobItem>> pages = containerClient
+                    .listBlobs(options, continuationToken, null)
+                    .iterableByPage(continuationToken);
+
+            for (PagedResponse<BlobItem> page : pages) {
+                List<Future<?>> pageBatches = new ArrayList<>();
+                List<String> pending = new ArrayList<>(MAX_BATCH_SIZE);
+                Map<String, Boolean> sourceExists = new HashMap<>();
+
+                for (BlobItem blobItem : page.getValue()) {
+                    stats.scanned.incrementAndGet();
+                    if (!shouldDelete(blobItem, cutoff, sourceClient, orphanCutoff, sourceExists)) {
+                        continue;
+                    }
+
+                    stats.bytesMatched.addAndGet(blobItem.getProperties().getContentLength());
+                    pending.add(blobItem.getName());
+                    if (pending.size() == MAX_BATCH_SIZE) {
+                        pageBatches.add(submitBatch(executor, inFlight, containerName, pending, stats));
+                        pending = new ArrayList<>(MAX_BATCH_SIZE);
+                    }
+                }
+                if (!pending.isEmpty()) {
+                    pageBatches.add(submitBatch(executor, inFlight, containerName, pending, stats));
+                }
+
+                // Only advance the saved cursor once every delete from this page has completed
+                for (Future<?> batch : pageBatches) {
+                    batch.get();
+                }
+                continuationToken = page.getContinuationToken();
+                saveContinuationToken(containerName, continuationToken);
+
+                if (continuationToken != null && Instant.now().isAfter(deadline)) {
+                    log.info("Cleanup of {} reached its time budget; will resume on the next run", containerName);
+                    stats.completed = false;
+                    break;
+                }
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+
+        stats.elapsed = Duration.between(stats.startedAt, Instant.now());
+        return stats;
+    }
+
+    private boolean shouldDelete(BlobItem blobItem, OffsetDateTime cutoff, BlobContainerClient sourceClient,
+                                 OffsetDateTime orphanCutoff, Map<String, Boolean> sourceExists) {
+        OffsetDateTime lastModified = blobItem.getProperties().getLastModified();
+        if (cutoff != null && lastModified.isBefore(cutoff)) {
+            return true;
+        }
+
+        if (sourceClient == null || !lastModified.isBefore(orphanCutoff)) {
+            return false;
+        }
+
+        Matcher matcher = SOURCE_BLOB_PATTERN.matcher(blobItem.getName());
+        if (!matcher.find()) {
+            return false;
+        }
+        // Renditions of the same source are usually listed together, so remember the lookup for this page
+        String sourceBlobName = matcher.group();
+        return !sourceExists.computeIfAbsent(sourceBlobName,
+                name -> sourceClient.getBlobClient(name).exists());
+    }
+
+    private Future<?> submitBatch(ExecutorService executor, Semaphore inFlight, String containerName,
+                                  List<String> blobNames, CleanupStats stats) throws InterruptedException {
+        inFlight.acquire();
+        return executor.submit(() -> {
+            try {
+                deleteBatch(containerName, blobNames, stats);
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    private void deleteBatch(String containerName, List<String> blobNames, CleanupStats stats) {
+        if (dryRun) {
+            stats.deleted.addAndGet(blobNames.size());
+            blobNames.forEach(blobName -> log.debug("[dry-run] Would delete {}/{}", containerName, blobName));
+            return;
+        }
+
+        BlobBatch batch = blobBatchClient.getBlobBatch();
+        List<Response<Void>> responses = new ArrayList<>(blobNames.size());
+        for (String blobName : blobNames) {
+            responses.add(batch.deleteBlob(containerName, blobName));
+        }
+
+        try {
+            blobBatchClient.submitBatchWithResponse(batch, false, null, Context.NONE);
+        } catch (Exception e) {
+            log.error("Batch delete of {} blobs in {} failed: {}", blobNames.size(), containerName, e.getMessage());
+            stats.failed.addAndGet(blobNames.size());
+            return;
+        }
+
+        for (Response<Void> response : responses) {
+            int status = response.getStatusCode();
+            if (status == 202 || status == 404) {
+                // 404: already deleted by someone else, which is the outcome we wanted
+                stats.deleted.incrementAndGet();
+            } else {
+                stats.failed.incrementAndGet();
+            }
+        }
+    }
+
+    private String loadContinuationToken(String containerName) {
+        BlobClient stateBlob = getStateBlob(containerName);
+        return stateBlob.exists() ? stateBlob.downloadContent().toString() : null;
+    }
+
+    private void saveContinuationToken(String containerName, String continuationToken) {
+        if (dryRun) {
+            return;
+        }
+        BlobClient stateBlob = getStateBlob(containerName);
+        if (continuationToken == null) {
+            stateBlob.deleteIfExists();
+        } else {
+            stateBlob.upload(BinaryData.fromString(continuationToken), true);
+        }
+    }
+
+    private BlobClient getStateBlob(String containerName) {
+        BlobContainerClient stateContainer = blobServiceClient.getBlobContainerClient(STATE_CONTAINER);
+        stateContainer.createIfNotExists();
+        return stateContainer.getBlobClient(containerName + ".token");
+    }
+
+    public static class CleanupStats {
+        private final String containerName;
+        private final Instant startedAt = Instant.now();
+        private final AtomicLong scanned = new AtomicLong();
+        private final AtomicLong deleted = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong bytesMatched = new AtomicLong();
+        private Duration elapsed = Duration.ZERO;
+        private boolean completed = true;
+
+        CleanupStats(String containerName) {
+            this.containerName = containerName;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = Math.max(elapsed.toMillis(), 1) / 1000.0;
+            return String.format(
+                    "container=%s, scanned=%d, deleted=%d, failed=%d, bytes=%d, elapsed=%.1fs, "
+                            + "scanRate=%.0f blobs/s, deleteRate=%.0f blobs/s, completed=%s",
+                    containerName, scanned.get(), deleted.get(), failed.get(), bytesMatched.get(), seconds,
+                    scanned.get() / seconds, deleted.get() / seconds, completed);
+        }
+    }
+}
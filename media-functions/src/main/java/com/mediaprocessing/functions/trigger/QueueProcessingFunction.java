@@ -1,39 +1,160 @@
 package com.mediaprocessing.functions.trigger;
 
 import com.microsoft.azure.functions.ExecutionContext;
+import com.microsoft.azure.functions.OutputBinding;
 import com.microsoft.azure.functions.annotation.FunctionName;
+import com.microsoft.azure.functions.annotation.QueueOutput;
 import com.microsoft.azure.functions.annotation.QueueTrigger;
+import com.azure.ai.vision.imageanalysis.models.VisualFeatures;
+import com.azure.storage.blob.models.BlobProperties;
+import com.azure.storage.blob.models.BlobStorageException;
+import com.mediaprocessing.functions.FunctionResources;
 import com.mediaprocessing.common.config.AzureStorageConfig;
 import com.mediaprocessing.common.config.AzureAiConfig;
+import com.mediaprocessing.common.metrics.MediaMetrics;
+import com.mediaprocessing.common.metrics.MediaTracing;
+import com.mediaprocessing.common.model.EncodingProfile;
+import com.mediaprocessing.common.model.HlsSpec;
 import com.mediaprocessing.common.model.ProcessingRequest;
+import com.mediaprocessing.common.model.ProcessingRequestCodec;
+import com.mediaprocessing.common.model.SpriteSheetSpec;
 import com.mediaprocessing.common.service.AzureAiService;
 import com.mediaprocessing.common.service.BlobStorageService;
+import com.mediaprocessing.common.service.ContentModerationService;
 import com.mediaprocessing.common.service.ImageProcessingService;
+import com.mediaprocessing.common.service.MediaMetadataProber;
+import com.mediaprocessing.common.service.ProcessingLedger;
+import com.mediaprocessing.common.service.ResourceGovernor;
+import com.mediaprocessing.common.service.UploadRouter;
+import com.mediaprocessing.common.service.VideoAnalysisService;
 import com.mediaprocessing.common.service.VideoProcessingService;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Timer;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.context.Scope;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
+/**
+ * Runs queued processing requests. Each job is claimed in the
+ * {@link ProcessingLedger} before anything is downloaded, so a redelivered or
+ * duplicated message for a job that has run, or is running on another worker,
+ * is acknowledged without repeating it. Failures the next delivery would hit
+ * too, such as a malformed message or a deleted blob, are acknowledged; any
+ * other failure is rethrown so the host retries the message and, after
+ * {@code maxDequeueCount} attempts, moves it to the poison queue.
+ * <p>
+ * Large videos are compressed a segment at a time, with a cursor in the
+ * ledger, so no single invocation has to outlast the function timeout: one
+ * that runs out of time queues a continuation, and a retry after a crash
+ * picks up after the last finished segment.
+ */
 @Slf4j
 public class QueueProcessingFunction {
 
+    // Outlasts an invocation, which the host ends after functionTimeout
+    private static final Duration SOURCE_URL_VALIDITY = Duration.ofMinutes(30);
+
     private final ObjectMapper objectMapper = new ObjectMapper();
 
+    /**
+     * Runs each request in the message, which holds one in JSON or a batch
+     * in the compact format. A request that fails is rethrown after the rest
+     * have run; the ledger skips those that completed when the host retries
+     * the message.
+     */
     @FunctionName("ProcessMediaQueue")
     public void processMediaQueue(
             @QueueTrigger(
                 name = "message",
                 queueName = "media-processing-queue",
+                connection = "AzureWebJobsStorage",
+                dataType = "binary"
+            ) byte[] message,
+            @QueueOutput(
+                name = "continuation",
+                queueName = "media-processing-queue",
                 connection = "AzureWebJobsStorage"
-            ) String message,
-            final ExecutionContext context) {
+            ) OutputBinding<List<String>> continuation,
+            final ExecutionContext context) throws Exception {
+        
+        Instant deadline = Instant.now().plus(FunctionResources.segmentTimeBudget());
+        List<ProcessingRequest> requests;
+        try {
+            requests = ProcessingRequestCodec.decode(message);
+        } catch (IOException | IllegalArgumentException e) {
+            log.error("Rejecting queue message that cannot be read: {}", e.getMessage(), e);
+            FunctionResources.recordInvocation(MediaMetrics.start(), "ProcessMediaQueue", null, "rejected");
+            return;
+        }
         
-        log.info("Queue trigger function processed a message: {}", message);
+        List<String> continuations = new ArrayList<>();
+        Exception failure = null;
+        for (ProcessingRequest request : requests) {
+            try {
+                processRequest(request, continuations, deadline, context);
+            } catch (Exception e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (!continuations.isEmpty()) {
+            continuation.setValue(continuations);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+    
+    private void processRequest(ProcessingRequest request, List<String> continuations, Instant deadline,
+                                ExecutionContext context) throws Exception {
+        log.info("Queue trigger function processed a message: {}", request);
         
+        Timer.Sample sample = MediaMetrics.start();
+        String outcome = MediaMetrics.SUCCESS;
+        ProcessingRequest.ProcessingType type = null;
+        Span span = Span.getInvalid();
+        Scope scope = Scope.noop();
+        ProcessingLedger.Claim claim = null;
+        String sourceEtag = null;
+        Exception failure = null;
+        boolean paused = false;
         try {
-            // Parse the message to get the processing request
-            ProcessingRequest request = objectMapper.readValue(message, ProcessingRequest.class);
+            type = request.getProcessingType();
+            
+            // Continue the trace of the request that queued this message
+            span = FunctionResources.startInvocation("ProcessMediaQueue", context, SpanKind.CONSUMER,
+                    MediaTracing.extract(request.getTraceContext()),
+                    "messaging.system", "azure_queue",
+                    "messaging.destination.name", "media-processing-queue",
+                    "messaging.operation", "process",
+                    "media.id", request.getMediaId(),
+                    "media.blob", request.getBlobName(),
+                    "media.processing.type", String.valueOf(type));
+            scope = span.makeCurrent();
+            if (request.getEnqueuedAt() != null) {
+                long lagMillis = Math.max(0, System.currentTimeMillis() - request.getEnqueuedAt());
+                MediaMetrics.record("media.queue.lag", Duration.ofMillis(lagMillis), "type", String.valueOf(type));
+                span.setAttribute("media.queue.lag_ms", lagMillis);
+            }
             
             // Initialize services
             AzureStorageConfig storageConfig = new AzureStorageConfig();
@@ -44,55 +165,283 @@ public class QueueProcessingFunction {
             
             BlobStorageService blobService = new BlobStorageService(storageConfig);
             
-            // Download the media
-            byte[] mediaData = blobService.downloadMedia(request.getBlobName());
+            BlobProperties properties = blobService.getMediaProperties(request.getBlobName());
+            sourceEtag = properties.getETag();
+            Map<String, String> blobMetadata = request.getProcessingType().isRendition()
+                    ? new HashMap<>(properties.getMetadata() != null ? properties.getMetadata() : Map.of())
+                    : null;
+            if (blobMetadata != null && ContentModerationService.isFlagged(blobMetadata)) {
+                log.warn("Dropping {} for blob flagged by content moderation: {}",
+                        request.getProcessingType(), request.getBlobName());
+                outcome = "flagged";
+                return;
+            }
+            
+            // Jobs that have run for this version of the blob, or are running elsewhere, end here
+            claim = FunctionResources.ledger().claim(request.getBlobName(), sourceEtag, type,
+                    request.getParameters(), context.getInvocationId());
+            span.setAttribute("media.ledger.claim", claim.getOutcome().name().toLowerCase());
+            if (!claim.isOwned()) {
+                log.info("Skipping {} for blob {}: {}", type, request.getBlobName(), claim.getOutcome());
+                outcome = "duplicate";
+                return;
+            }
+            
+            // Estimate the job's memory from a ranged header read before downloading anything
+            ResourceGovernor governor = FunctionResources.governor();
+            MediaMetadataProber.RangeReader reader = blobService.getMediaRangeReader(request.getBlobName());
+            Map<String, String> mediaMetadata = FunctionResources.prober().probe(reader);
+            boolean segmented = isSegmented(request, properties.getBlobSize(), blobMetadata);
+            int segmentSeconds = segmented && request.getParameters() != null
+                    && request.getParameters().containsKey("segmentSeconds")
+                    ? Integer.parseInt(request.getParameters().get("segmentSeconds"))
+                    : FunctionResources.videoSegmentSeconds();
+            ResourceGovernor.JobEstimate estimate = governor.estimate(
+                    request.getProcessingType(),
+                    request.getParameters(),
+                    mediaMetadata,
+                    segmented ? segmentBytes(reader.size(), mediaMetadata, segmentSeconds) : reader.size());
             
-            // Process based on request type
-            switch (request.getProcessingType()) {
-                case THUMBNAIL:
-                case WATERMARK:
-                case RESIZE:
-                case FILTER:
-                case FORMAT_CONVERSION:
-                    processImage(request, blobService, mediaData);
-                    break;
+            String jobName = request.getBlobName() + ":" + request.getProcessingType();
+            try (ResourceGovernor.Permit permit = MediaTracing.trace("governor admit",
+                    () -> governor.admit(jobName, estimate))) {
+                if (segmented) {
+                    span.setAttribute("media.segmented", true);
+                    if (!processVideoInSegments(request, blobService, properties.getBlobSize(), claim,
+                            segmentSeconds, deadline)) {
+                        // Out of time: hand the rest to another invocation, which resumes from the cursor
+                        request.setEnqueuedAt(System.currentTimeMillis());
+                        continuations.add(ProcessingRequestCodec.toJson(request));
+                        paused = true;
+                        outcome = "continued";
+                    }
+                    return;
+                }
+                
+                // Download the media
+                byte[] mediaData = blobService.downloadMedia(request.getBlobName());
+                
+                // Blobs that did not come through the web app are moderated before their first rendition
+                if (blobMetadata != null && !ContentModerationService.isModerated(blobMetadata)) {
+                    ContentModerationService.recordResult(request.getProcessingType().isVideo()
+                            ? FunctionResources.moderationService().moderateVideo(mediaData)
+                            : FunctionResources.moderationService().moderateImage(mediaData), blobMetadata);
+                    sourceEtag = blobService.setBlobMetadata(request.getBlobName(), blobMetadata);
+                    if (ContentModerationService.isFlagged(blobMetadata)) {
+                        log.warn("Dropping {} for blob flagged by content moderation: {}",
+                                request.getProcessingType(), request.getBlobName());
+                        outcome = "flagged";
+                        return;
+                    }
+                }
+                
+                // Process based on request type
+                switch (request.getProcessingType()) {
+                    case THUMBNAIL:
+                    case WATERMARK:
+                    case RESIZE:
+                    case FILTER:
+                    case FORMAT_CONVERSION:
+                        processImage(request, blobService, mediaData);
+                        break;
+                    
+                    case VIDEO_THUMBNAIL:
+                    case VIDEO_WATERMARK:
+                    case VIDEO_COMPRESS:
+                    case AUDIO_EXTRACT:
+                    case VIDEO_PREVIEW:
+                    case VIDEO_HLS:
+                    case VIDEO_SPRITE:
+                        processVideo(request, blobService, mediaData);
+                        break;
                     
-                case VIDEO_THUMBNAIL:
-                case VIDEO_WATERMARK:
-                case VIDEO_COMPRESS:
-                case AUDIO_EXTRACT:
-                case VIDEO_PREVIEW:
-                    processVideo(request, blobService, mediaData);
-                    break;
+                    case CONTENT_MODERATION:
+                        // Moderation runs locally and needs no Azure AI configuration
+                        sourceEtag = processModeration(request, blobService, mediaData,
+                                MediaMetadataProber.isVideo(mediaMetadata, properties.getContentType()));
+                        break;
                     
-                case IMAGE_ANALYSIS:
-                case FACE_DETECTION:
-                case TEXT_EXTRACTION:
-                case CONTENT_MODERATION:
-                case OBJECT_RECOGNITION:
-                    processAiAnalysis(request, blobService, mediaData);
-                    break;
+                    case IMAGE_ANALYSIS:
+                    case FACE_DETECTION:
+                    case TEXT_EXTRACTION:
+                    case OBJECT_RECOGNITION:
+                    case VIDEO_ANALYSIS:
+                        processAiAnalysis(request, blobService, mediaData,
+                                MediaMetadataProber.isVideo(mediaMetadata, properties.getContentType()));
+                        break;
                     
-                default:
-                    log.warn("Unsupported processing type in queue: {}", request.getProcessingType());
+                    default:
+                        log.warn("Unsupported processing type in queue: {}", request.getProcessingType());
+                }
             }
             
+        } catch (ResourceGovernor.JobTooLargeException e) {
+            // No amount of waiting frees enough memory; retrying would only poison the message later
+            failure = e;
+            MediaTracing.fail(span, e);
+            log.error("Rejecting queue message that can never be admitted: {}", e.getMessage());
+            outcome = "rejected";
+        } catch (ResourceGovernor.AdmissionRejectedException e) {
+            // Rethrow so the message becomes visible again and is retried once memory frees up
+            log.warn("Deferring queue message: {}", e.getMessage());
+            outcome = "deferred";
+            failure = e;
+            throw e;
         } catch (Exception e) {
+            failure = e;
+            MediaTracing.fail(span, e);
+            if (isPermanent(e)) {
+                log.error("Rejecting queue message that cannot succeed: {}", e.getMessage(), e);
+                outcome = "rejected";
+                return;
+            }
+            // Rethrow so the host retries the message, then moves it to the poison queue
             log.error("Error processing queue message: {}", e.getMessage(), e);
+            outcome = MediaMetrics.ERROR;
+            throw e;
+        } finally {
+            if (claim != null && claim.isOwned()) {
+                if (paused) {
+                    FunctionResources.ledger().pause(claim);
+                } else if (failure == null) {
+                    FunctionResources.ledger().complete(claim, request.getBlobName(), sourceEtag, type,
+                            request.getParameters());
+                } else {
+                    FunctionResources.ledger().release(claim, failure);
+                }
+            }
+            span.setAttribute("media.outcome", outcome);
+            scope.close();
+            span.end();
+            FunctionResources.recordInvocation(sample, "ProcessMediaQueue", type, outcome);
+        }
+    }
+    
+    /**
+     * Whether to compress a video in segments: when the request asks for it
+     * with {@code segmentSeconds}, or the video is too large to compress in
+     * one invocation. The blob must have been moderated already, since
+     * moderation needs the whole video in memory.
+     */
+    private static boolean isSegmented(ProcessingRequest request, long blobSize, Map<String, String> blobMetadata) {
+        if (request.getProcessingType() != ProcessingRequest.ProcessingType.VIDEO_COMPRESS
+                || blobMetadata == null || !ContentModerationService.isModerated(blobMetadata)) {
+            return false;
         }
+        return request.getParameters() != null && request.getParameters().containsKey("segmentSeconds")
+                || blobSize >= FunctionResources.segmentedVideoMinBytes();
+    }
+    
+    /**
+     * The part of the source one segment holds in memory: its share of the
+     * duration, doubled as segments run on to the next keyframe.
+     */
+    private static long segmentBytes(long size, Map<String, String> mediaMetadata, int segmentSeconds) {
+        double duration = Double.parseDouble(mediaMetadata.getOrDefault("duration", "0"));
+        return duration > 0 ? Math.min(size, (long) (size * 2.0 * segmentSeconds / duration)) : size;
+    }
+    
+    /**
+     * Compresses a video a segment at a time, staging each segment as a
+     * block of the output and recording a cursor in the ledger after it, and
+     * commits the blocks after the last one. The output is MPEG-TS, so it is
+     * stored under its own suffix, {@code compress-<profile>-ts}, rather than
+     * the MP4 one. The source is read by range through a short-lived URL, so
+     * a continuation fetches only the part after its checkpoint and the size
+     * is not limited by memory or disk. Returns false if the deadline
+     * passed before the last segment; at least one segment is always done, so
+     * every invocation makes progress.
+     */
+    private boolean processVideoInSegments(ProcessingRequest request, BlobStorageService blobService, long sourceSize,
+                                           ProcessingLedger.Claim claim, int segmentSeconds, Instant deadline)
+            throws Exception {
+        EncodingProfile profile = EncodingProfile.fromParameters(request.getParameters());
+        String suffix = "compress-" + profile.name().toLowerCase() + "-ts";
+        
+        // The cursor is "<segments staged>:<start of the next one in microseconds, -1 after the last>"
+        int segment = 0;
+        long startMicros = 0;
+        if (claim.getCursor() != null) {
+            String[] cursor = claim.getCursor().split(":");
+            int staged = Integer.parseInt(cursor[0]);
+            // Uncommitted blocks are discarded after a week
+            Set<String> blocks = blobService.getStagedProcessedBlocks(request.getBlobName(), suffix);
+            if (IntStream.range(0, staged).mapToObj(QueueProcessingFunction::blockId).allMatch(blocks::contains)) {
+                segment = staged;
+                startMicros = Long.parseLong(cursor[1]);
+                log.info("Resuming {} of {} at segment {}", suffix, request.getBlobName(), segment);
+            } else {
+                log.warn("Staged segments of {} are gone, starting {} again", request.getBlobName(), suffix);
+            }
+        }
+        
+        VideoProcessingService videoService = new VideoProcessingService();
+        String source = blobService.getMediaReadUrl(request.getBlobName(), SOURCE_URL_VALIDITY);
+        int firstSegment = segment;
+        while (startMicros >= 0) {
+            if (segment > firstSegment && Instant.now().isAfter(deadline)) {
+                log.info("Pausing {} of {} after segment {}", suffix, request.getBlobName(), segment);
+                return false;
+            }
+            VideoProcessingService.VideoSegment part = videoService.compressSegment(
+                    source, sourceSize, profile, startMicros, segmentSeconds);
+            blobService.stageProcessedBlock(request.getBlobName(), suffix, blockId(segment), part.getData());
+            segment++;
+            startMicros = part.getNextStartMicros();
+            if (!FunctionResources.ledger().checkpoint(claim, segment + ":" + startMicros)) {
+                throw new IllegalStateException("Lost the claim on " + claim.getEntryName());
+            }
+        }
+        
+        blobService.commitProcessedBlocks(request.getBlobName(), suffix,
+                IntStream.range(0, segment).mapToObj(QueueProcessingFunction::blockId).collect(Collectors.toList()),
+                "video/mp2t");
+        MediaTracing.attribute("media.segments", segment);
+        log.info("Processed video from queue in {} segments: {}, type: {}", segment, request.getBlobName(),
+                request.getProcessingType());
+        return true;
+    }
+    
+    // Block IDs must have the same length within a blob
+    private static String blockId(int segment) {
+        return Base64.getEncoder().encodeToString(String.format("segment-%06d", segment).getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * Errors every delivery of the message would hit: it cannot be parsed,
+     * its parameters are invalid, or its blob has been deleted.
+     */
+    private static boolean isPermanent(Exception e) {
+        return e instanceof JsonProcessingException
+                || e instanceof IllegalArgumentException
+                || e instanceof BlobStorageException && ((BlobStorageException) e).getStatusCode() == 404;
     }
     
     private void processImage(ProcessingRequest request, BlobStorageService blobService, byte[] imageData) throws Exception {
         ImageProcessingService imageService = new ImageProcessingService();
         byte[] processedData;
         String suffix;
+        String contentType = imageService.getContentType(imageService.getImageFormat(imageData));
+        
+        if (UploadRouter.isUploadThumbnail(request)) {
+            // The upload's own thumbnails, where the gallery and the WebP negotiation look for them
+            blobService.uploadThumbnail(imageService.generateThumbnail(imageData, 200, 200),
+                    request.getBlobName(), "image/jpeg");
+            blobService.uploadProcessedMedia(imageService.generateThumbnail(imageData, 200, 200, "webp", -1),
+                    request.getBlobName(), "thumb-webp", "image/webp");
+            log.info("Generated upload thumbnails for blob: {}", request.getBlobName());
+            return;
+        }
         
         switch (request.getProcessingType()) {
             case THUMBNAIL:
                 int width = Integer.parseInt(request.getParameters().getOrDefault("width", "200"));
                 int height = Integer.parseInt(request.getParameters().getOrDefault("height", "200"));
-                processedData = imageService.generateThumbnail(imageData, width, height);
-                suffix = "thumb";
+                String thumbnailFormat = request.getParameters().getOrDefault("format", "jpg");
+                float thumbnailQuality = Float.parseFloat(request.getParameters().getOrDefault("quality", "-1"));
+                processedData = imageService.generateThumbnail(imageData, width, height, thumbnailFormat, thumbnailQuality);
+                suffix = thumbnailFormat.equalsIgnoreCase("jpg") ? "thumb" : "thumb-" + thumbnailFormat;
+                contentType = imageService.getContentType(thumbnailFormat);
                 break;
                 
             case WATERMARK:
@@ -116,8 +465,11 @@ public class QueueProcessingFunction {
                 
             case FORMAT_CONVERSION:
                 String targetFormat = request.getParameters().getOrDefault("format", "jpg");
-                processedData = imageService.convertFormat(imageData, targetFormat);
+                float quality = Float.parseFloat(request.getParameters().getOrDefault("quality", "-1"));
+                int effort = Integer.parseInt(request.getParameters().getOrDefault("effort", "-1"));
+                processedData = imageService.convertFormat(imageData, targetFormat, quality, effort);
                 suffix = "convert-" + targetFormat;
+                contentType = imageService.getContentType(targetFormat);
                 break;
                 
             default:
@@ -126,7 +478,7 @@ public class QueueProcessingFunction {
         }
         
         // Upload the processed image
-        blobService.uploadProcessedMedia(processedData, request.getBlobName(), suffix, "image/jpeg");
+        blobService.uploadProcessedMedia(processedData, request.getBlobName(), suffix, contentType);
         log.info("Processed image from queue: {}, type: {}", request.getBlobName(), request.getProcessingType());
     }
     
@@ -136,6 +488,12 @@ public class QueueProcessingFunction {
         String suffix;
         String contentType;
         
+        if (UploadRouter.isUploadThumbnail(request)) {
+            blobService.uploadThumbnail(videoService.extractThumbnail(videoData), request.getBlobName(), "image/jpeg");
+            log.info("Generated upload thumbnail for video: {}", request.getBlobName());
+            return;
+        }
+        
         switch (request.getProcessingType()) {
             case VIDEO_THUMBNAIL:
                 processedData = videoService.extractThumbnail(videoData);
@@ -151,9 +509,9 @@ public class QueueProcessingFunction {
                 break;
                 
             case VIDEO_COMPRESS:
-                String quality = request.getParameters().getOrDefault("quality", "medium");
-                processedData = videoService.compressVideo(videoData, quality);
-                suffix = "compress-" + quality;
+                EncodingProfile profile = EncodingProfile.fromParameters(request.getParameters());
+                processedData = videoService.compressVideo(videoData, profile);
+                suffix = "compress-" + profile.name().toLowerCase();
                 contentType = "video/mp4";
                 break;
                 
@@ -170,6 +528,21 @@ public class QueueProcessingFunction {
                 contentType = "video/mp4";
                 break;
                 
+            case VIDEO_HLS:
+                // Multi-file output: master playlist plus one media playlist and segments per rung
+                Map<String, byte[]> files = videoService.createHlsPackage(videoData, HlsSpec.fromParameters(request.getParameters()));
+                blobService.uploadProcessedMediaSet(files, request.getBlobName(), "hls", "master.m3u8");
+                log.info("Processed video from queue: {}, type: {}", request.getBlobName(), request.getProcessingType());
+                return;
+                
+            case VIDEO_SPRITE:
+                // Multi-file output: sprite sheets plus a WebVTT thumbnail track
+                Map<String, byte[]> sprites = videoService.createSpriteSheets(
+                        videoData, SpriteSheetSpec.fromParameters(request.getParameters()));
+                blobService.uploadProcessedMediaSet(sprites, request.getBlobName(), "sprite", "thumbnails.vtt");
+                log.info("Processed video from queue: {}, type: {}", request.getBlobName(), request.getProcessingType());
+                return;
+                
             default:
                 log.warn("Unsupported video processing type: {}", request.getProcessingType());
                 return;
@@ -180,18 +553,45 @@ public class QueueProcessingFunction {
         log.info("Processed video from queue: {}, type: {}", request.getBlobName(), request.getProcessingType());
     }
     
-    private void processAiAnalysis(ProcessingRequest request, BlobStorageService blobService, byte[] mediaData) throws Exception {
+    private void processAiAnalysis(ProcessingRequest request, BlobStorageService blobService, byte[] mediaData,
+                                   boolean video) throws Exception {
         // Initialize Azure AI configuration
         AzureAiConfig aiConfig = new AzureAiConfig();
         aiConfig.setComputerVisionEndpoint(System.getenv("ComputerVisionEndpoint"));
         aiConfig.setComputerVisionKey(System.getenv("ComputerVisionKey"));
         aiConfig.setTextAnalyticsEndpoint(System.getenv("TextAnalyticsEndpoint"));
         aiConfig.setTextAnalyticsKey(System.getenv("TextAnalyticsKey"));
+        if (System.getenv("AiDeadlineMillis") != null) {
+            aiConfig.setAnalysisDeadlineMillis(Long.parseLong(System.getenv("AiDeadlineMillis")));
+        }
+        if (System.getenv("AiHedgeDelayMillis") != null) {
+            aiConfig.setHedgeDelayMillis(Long.parseLong(System.getenv("AiHedgeDelayMillis")));
+        }
+        if (System.getenv("AiMaxPixels") != null) {
+            aiConfig.setAnalysisMaxPixels(Long.parseLong(System.getenv("AiMaxPixels")));
+        }
+        if (System.getenv("AiReadMaxPixels") != null) {
+            aiConfig.setReadMaxPixels(Long.parseLong(System.getenv("AiReadMaxPixels")));
+        }
+        if (System.getenv("AiVideoMaxFrames") != null) {
+            aiConfig.setVideoMaxFrames(Integer.parseInt(System.getenv("AiVideoMaxFrames")));
+        }
+        if (System.getenv("AiVideoConcurrency") != null) {
+            aiConfig.setVideoFrameConcurrency(Integer.parseInt(System.getenv("AiVideoConcurrency")));
+        }
         
-        AzureAiService aiService = new AzureAiService(aiConfig);
+        AzureAiService aiService = new AzureAiService(aiConfig,
+                FunctionResources.localAnalysisBackend(request.getProcessingType()));
         Map<String, Object> results;
         String suffix;
         
+        // Videos are analyzed as a timeline of their distinct frames; image types pick the features
+        if (request.getProcessingType() == ProcessingRequest.ProcessingType.VIDEO_ANALYSIS
+                || video) {
+            processVideoAnalysis(request, blobService, mediaData, aiService, aiConfig);
+            return;
+        }
+        
         switch (request.getProcessingType()) {
             case IMAGE_ANALYSIS:
                 results = aiService.analyzeImage(mediaData);
@@ -208,11 +608,6 @@ public class QueueProcessingFunction {
                 suffix = "text";
                 break;
                 
-            case CONTENT_MODERATION:
-                results = aiService.moderateContent(mediaData);
-                suffix = "moderation";
-                break;
-                
             case OBJECT_RECOGNITION:
                 results = aiService.analyzeImage(mediaData); // Uses the same method as IMAGE_ANALYSIS
                 suffix = "objects";
@@ -231,4 +626,70 @@ public class QueueProcessingFunction {
         blobService.uploadProcessedMedia(resultsData, request.getBlobName(), suffix, "application/json");
         log.info("Processed AI analysis from queue: {}, type: {}", request.getBlobName(), request.getProcessingType());
     }
+    
+    private void processVideoAnalysis(ProcessingRequest request, BlobStorageService blobService, byte[] videoData,
+                                      AzureAiService aiService, AzureAiConfig aiConfig) throws Exception {
+        Map<String, String> parameters = request.getParameters() != null ? request.getParameters() : Map.of();
+        List<VisualFeatures> features;
+        String suffix;
+        
+        switch (request.getProcessingType()) {
+            case FACE_DETECTION:
+                features = List.of(VisualFeatures.PEOPLE);
+                suffix = "faces";
+                break;
+                
+            case TEXT_EXTRACTION:
+                features = List.of(VisualFeatures.READ);
+                suffix = "text";
+                break;
+                
+            case IMAGE_ANALYSIS:
+            case OBJECT_RECOGNITION:
+                features = List.of(VisualFeatures.TAGS, VisualFeatures.OBJECTS, VisualFeatures.CAPTION);
+                suffix = request.getProcessingType() == ProcessingRequest.ProcessingType.IMAGE_ANALYSIS ? "analysis" : "objects";
+                break;
+                
+            case VIDEO_ANALYSIS:
+                // e.g. "tags,caption,read"
+                features = Arrays.stream(parameters.getOrDefault("features", "tags,caption,read").split(","))
+                        .map(String::trim)
+                        .map(VisualFeatures::fromString)
+                        .collect(Collectors.toList());
+                suffix = "video-analysis";
+                break;
+                
+            default:
+                log.warn("Unsupported AI processing type for video: {}", request.getProcessingType());
+                return;
+        }
+        
+        VideoAnalysisService videoAnalysisService = new VideoAnalysisService(aiService, aiConfig);
+        Map<String, Object> results = videoAnalysisService.analyzeVideo(
+                videoData, features, Integer.parseInt(parameters.getOrDefault("interval", "0")));
+        
+        blobService.uploadProcessedMedia(objectMapper.writeValueAsBytes(results), request.getBlobName(), suffix, "application/json");
+        log.info("Processed video AI analysis from queue: {}, type: {}", request.getBlobName(), request.getProcessingType());
+    }
+    
+    /**
+     * Moderates the blob and records the verdict in its metadata, returning
+     * the blob's new ETag.
+     */
+    private String processModeration(ProcessingRequest request, BlobStorageService blobService, byte[] mediaData,
+                                     boolean video) throws Exception {
+        ContentModerationService moderationService = FunctionResources.moderationService();
+        Map<String, Object> results = video
+                ? moderationService.moderateVideo(mediaData)
+                : moderationService.moderateImage(mediaData);
+        
+        // Re-moderating replaces the upload's verdict, so later renditions follow it
+        Map<String, String> blobMetadata = blobService.getBlobMetadata(request.getBlobName());
+        ContentModerationService.recordResult(results, blobMetadata);
+        String etag = blobService.setBlobMetadata(request.getBlobName(), blobMetadata);
+        
+        blobService.uploadProcessedMedia(objectMapper.writeValueAsBytes(results), request.getBlobName(), "moderation", "application/json");
+        log.info("Moderated media from queue: {}, score: {}", request.getBlobName(), results.get("score"));
+        return etag;
+    }
 }
@@ -3,64 +3,102 @@ package com.mediaprocessing.functions.trigger;
 import com.microsoft.azure.functions.ExecutionContext;
 import com.microsoft.azure.functions.annotation.FunctionName;
 import com.microsoft.azure.functions.annotation.TimerTrigger;
-import com.azure.storage.blob.BlobContainerClient;
 import com.azure.storage.blob.BlobServiceClient;
 import com.azure.storage.blob.BlobServiceClientBuilder;
-import com.azure.storage.blob.models.BlobItem;
+import com.mediaprocessing.common.metrics.MediaMetrics;
+import com.mediaprocessing.functions.FunctionResources;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 
 import java.time.Duration;
+import java.time.Instant;
 import java.time.OffsetDateTime;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 @Slf4j
 public class ScheduledCleanupFunction {
 
+    private static final String SOURCE_CONTAINER = "media";
+
     @FunctionName("CleanupTemporaryFiles")
     public void cleanupTemporaryFiles(
             @TimerTrigger(name = "timerInfo", schedule = "0 0 0 * * *") // Run at midnight every day
             String timerInfo,
             final ExecutionContext context) {
-        
+
         log.info("Scheduled cleanup function executed at: {}", OffsetDateTime.now());
-        
+
+        Timer.Sample sample = MediaMetrics.start();
+        String outcome = MediaMetrics.SUCCESS;
         try {
             String connectionString = System.getenv("AzureWebJobsStorage");
-            String tempContainerName = "temp";
-            int retentionDays = 7; // Keep files for 7 days
-            
+
+            // Retention per container, e.g. "temp=7,processed=90" (days)
+            Map<String, Integer> retentionDays = parseRetention(getSetting("CleanupRetentionDays", "temp=7"));
+            // Containers whose blobs are deleted once their source media is gone, e.g. "processed,thumbnails"
+            Set<String> orphanContainers = parseList(getSetting("CleanupOrphanContainers", ""));
+            boolean dryRun = Boolean.parseBoolean(getSetting("CleanupDryRun", "false"));
+            int parallelism = Integer.parseInt(getSetting("CleanupParallelism", "4"));
+            // Stay inside the 10 minute functionTimeout; unfinished containers resume next run
+            int timeBudgetMinutes = Integer.parseInt(getSetting("CleanupTimeBudgetMinutes", "8"));
+
             BlobServiceClient blobServiceClient = new BlobServiceClientBuilder()
                     .connectionString(connectionString)
                     .buildClient();
-            
-            BlobContainerClient containerClient = blobServiceClient.getBlobContainerClient(tempContainerName);
-            
-            if (!containerClient.exists()) {
-                log.info("Temp container does not exist. Nothing to clean up.");
-                return;
-            }
-            
-            OffsetDateTime cutoffTime = OffsetDateTime.now().minusDays(retentionDays);
-            List<String> blobsToDelete = new ArrayList<>();
-            
-            // List all blobs in the container
-            for (BlobItem blobItem : containerClient.listBlobs()) {
-                if (blobItem.getProperties().getLastModified().isBefore(cutoffTime)) {
-                    blobsToDelete.add(blobItem.getName());
+
+            Instant deadline = Instant.now().plus(Duration.ofMinutes(timeBudgetMinutes));
+            BlobCleaner cleaner = new BlobCleaner(blobServiceClient, parallelism, dryRun, deadline);
+
+            Set<String> containers = new LinkedHashSet<>(retentionDays.keySet());
+            containers.addAll(orphanContainers);
+
+            for (String containerName : containers) {
+                if (Instant.now().isAfter(deadline)) {
+                    log.info("Cleanup time budget exhausted before container: {}", containerName);
+                    break;
                 }
+
+                Integer days = retentionDays.get(containerName);
+                OffsetDateTime cutoff = days != null ? OffsetDateTime.now().minusDays(days) : null;
+                String sourceContainer = orphanContainers.contains(containerName) ? SOURCE_CONTAINER : null;
+
+                BlobCleaner.CleanupStats stats = cleaner.clean(containerName, cutoff, sourceContainer);
+                log.info("Cleanup {}: {}", dryRun ? "dry run" : "completed", stats);
             }
-            
-            // Delete old blobs
-            for (String blobName : blobsToDelete) {
-                containerClient.getBlobClient(blobName).delete();
-                log.info("Deleted old blob: {}", blobName);
-            }
-            
-            log.info("Cleanup completed. Deleted {} old files.", blobsToDelete.size());
-            
+
         } catch (Exception e) {
             log.error("Error during scheduled cleanup: {}", e.getMessage(), e);
+            outcome = MediaMetrics.ERROR;
+        } finally {
+            FunctionResources.recordInvocation(sample, "CleanupTemporaryFiles", "CLEANUP", outcome);
+        }
+    }
+
+    private String getSetting(String name, String defaultValue) {
+        String value = System.getenv(name);
+        return value != null && !value.isBlank() ? value : defaultValue;
+    }
+
+    private Map<String, Integer> parseRetention(String setting) {
+        Map<String, Integer> retention = new LinkedHashMap<>();
+        for (String entry : setting.split(",")) {
+            String[] parts = entry.trim().split("=");
+            if (parts.length == 2) {
+                retention.put(parts[0].trim(), Integer.parseInt(parts[1].trim()));
+            }
         }
+        return retention;
+    }
+
+    private Set<String> parseList(String setting) {
+        return Arrays.stream(setting.split(","))
+                .map(String::trim)
+                .filter(value -> !value.isEmpty())
+                .collect(Collectors.toCollection(LinkedHashSet::new));
     }
 }
@@ -0,0 +1,158 @@
+package com.mediaprocessing.functions.trigger;
+
+import com.azure.storage.blob.models.BlobProperties;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mediaprocessing.common.config.AzureStorageConfig;
+import com.mediaprocessing.common.metrics.MediaMetrics;
+import com.mediaprocessing.common.metrics.MediaTracing;
+import com.mediaprocessing.common.model.BlobCreatedEvent;
+import com.mediaprocessing.common.model.ProcessingRequest;
+import com.mediaprocessing.common.model.ProcessingRequestCodec;
+import com.mediaprocessing.common.service.BlobStorageService;
+import com.mediaprocessing.common.service.MediaMetadataProber;
+import com.mediaprocessing.common.service.UploadRouter;
+import com.mediaprocessing.functions.FunctionResources;
+import com.microsoft.azure.functions.ExecutionContext;
+import com.microsoft.azure.functions.OutputBinding;
+import com.microsoft.azure.functions.annotation.EventGridTrigger;
+import com.microsoft.azure.functions.annotation.FunctionName;
+import com.microsoft.azure.functions.annotation.QueueOutput;
+import com.microsoft.azure.functions.annotation.QueueTrigger;
+import io.micrometer.core.instrument.Timer;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.Scope;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Routes new uploads to the processing queue from their blob-created
+ * notifications, pushed by Event Grid or read from the upload event queue.
+ * Unlike a blob trigger, nothing scans the container, so the delay does not
+ * grow with the number of blobs, and the blob is not downloaded: only its
+ * properties and first bytes are read. The queue function then does the
+ * work under admission control. Blobs the web app uploaded are skipped, as
+ * it has thumbnailed them or queued their thumbnails already.
+ */
+@Slf4j
+public class UploadDispatchFunction {
+
+    public static final String EVENT_QUEUE_NAME = "media-upload-events";
+    private static final String CONTAINER_NAME = "media";
+
+    // Reads Event Grid payloads; requests are written by ProcessingRequestCodec
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @FunctionName("DispatchBlobCreated")
+    public void dispatchBlobCreated(
+            @EventGridTrigger(name = "event") String event,
+            @QueueOutput(
+                name = "requests",
+                queueName = "media-processing-queue",
+                connection = "AzureWebJobsStorage"
+            ) OutputBinding<List<String>> requests,
+            final ExecutionContext context) throws IOException {
+        dispatchEvent("DispatchBlobCreated", "eventgrid", event, requests, context);
+    }
+
+    @FunctionName("DispatchUploadEvent")
+    public void dispatchUploadEvent(
+            @QueueTrigger(
+                name = "message",
+                queueName = EVENT_QUEUE_NAME,
+                connection = "AzureWebJobsStorage"
+            ) String message,
+            @QueueOutput(
+                name = "requests",
+                queueName = "media-processing-queue",
+                connection = "AzureWebJobsStorage"
+            ) OutputBinding<List<String>> requests,
+            final ExecutionContext context) throws IOException {
+        dispatchEvent("DispatchUploadEvent", "azure_queue", message, requests, context);
+    }
+
+    private void dispatchEvent(String function, String source, String json, OutputBinding<List<String>> requests,
+                               ExecutionContext context) throws IOException {
+        Timer.Sample sample = MediaMetrics.start();
+        String outcome = MediaMetrics.SUCCESS;
+        UploadRouter.Route route = null;
+        Span span = FunctionResources.startInvocation(function, context, SpanKind.CONSUMER, Context.root(),
+                "messaging.system", source,
+                "media.container", CONTAINER_NAME);
+        try (Scope ignored = span.makeCurrent()) {
+            BlobCreatedEvent event = objectMapper.readValue(json, BlobCreatedEvent.class);
+            if (!BlobCreatedEvent.BLOB_CREATED.equals(event.getEventType())
+                    || !CONTAINER_NAME.equals(event.containerName())) {
+                // Subscriptions should filter these out; acknowledge rather than retry them
+                log.debug("Ignoring {} for {}", event.getEventType(), event.getSubject());
+                outcome = "ignored";
+                return;
+            }
+            String blobName = event.blobName();
+            span.setAttribute("media.blob", blobName);
+            long lagMillis = Math.max(0, System.currentTimeMillis() - event.eventTimeMillis());
+            MediaMetrics.record("media.ingest.lag", Duration.ofMillis(lagMillis), "source", source);
+            span.setAttribute("media.ingest.lag_ms", lagMillis);
+
+            AzureStorageConfig storageConfig = new AzureStorageConfig();
+            storageConfig.setConnectionString(System.getenv("AzureWebJobsStorage"));
+            storageConfig.setContainerName(CONTAINER_NAME);
+            storageConfig.setThumbnailContainerName("thumbnails");
+            storageConfig.setProcessedContainerName("processed");
+            BlobStorageService blobService = new BlobStorageService(storageConfig);
+
+            route = dispatch(blobService, CONTAINER_NAME, blobName, blobService.getMediaRangeReader(blobName), requests);
+        } catch (IOException | RuntimeException e) {
+            // Rethrow so the event is redelivered rather than losing the upload's thumbnails
+            log.error("Error dispatching upload event: {}", e.getMessage(), e);
+            outcome = MediaMetrics.ERROR;
+            MediaTracing.fail(span, e);
+            throw e;
+        } finally {
+            span.setAttribute("media.outcome", outcome);
+            span.end();
+            FunctionResources.recordInvocation(sample, function, route, outcome);
+        }
+    }
+
+    /**
+     * Routes {@code blobName} and sets the queue messages for its route on
+     * {@code output}. The content is only read, through {@code reader}, when
+     * the properties do not settle the route, and then only its first
+     * {@value MediaMetadataProber#SNIFF_LENGTH} bytes.
+     */
+    public UploadRouter.Route dispatch(BlobStorageService blobService, String containerName, String blobName,
+                                       MediaMetadataProber.RangeReader reader, OutputBinding<List<String>> output)
+            throws IOException {
+        BlobProperties properties = blobService.getMediaProperties(blobName);
+        Map<String, String> metadata = properties.getMetadata();
+        UploadRouter.Route route = UploadRouter.skippedRoute(metadata);
+        if (route == null) {
+            byte[] head = reader.read(0, MediaMetadataProber.SNIFF_LENGTH);
+            route = UploadRouter.route(MediaMetadataProber.sniff(head), properties.getContentType(), metadata);
+        }
+        MediaMetrics.count("media.dispatch", "route", route.name());
+        MediaTracing.attribute("media.route", route.name());
+
+        List<String> messages = new ArrayList<>();
+        for (ProcessingRequest request : UploadRouter.requests(route, containerName, blobName)) {
+            request.setEnqueuedAt(System.currentTimeMillis());
+            Map<String, String> traceContext = MediaTracing.inject();
+            if (!traceContext.isEmpty()) {
+                request.setTraceContext(traceContext);
+            }
+            messages.add(ProcessingRequestCodec.toJson(request));
+        }
+        if (!messages.isEmpty()) {
+            output.setValue(messages);
+        }
+        log.info("Dispatched upload {} as {} with {} request(s)", blobName, route, messages.size());
+        return route;
+    }
+}
@@ -2,10 +2,20 @@ package com.mediaprocessing.functions.video;
 
 import com.microsoft.azure.functions.*;
 import com.microsoft.azure.functions.annotation.*;
+import com.mediaprocessing.functions.FunctionResources;
 import com.mediaprocessing.common.config.AzureStorageConfig;
+import com.mediaprocessing.common.metrics.MediaMetrics;
+import com.mediaprocessing.common.model.EncodingProfile;
+import com.mediaprocessing.common.model.HlsSpec;
 import com.mediaprocessing.common.model.ProcessingRequest;
+import com.mediaprocessing.common.model.SpriteSheetSpec;
 import com.mediaprocessing.common.service.BlobStorageService;
+import com.mediaprocessing.common.service.ContentModerationService;
+import com.mediaprocessing.common.service.MediaMetadataProber;
+import com.mediaprocessing.common.service.ProcessingLedger;
+import com.mediaprocessing.common.service.ResourceGovernor;
 import com.mediaprocessing.common.service.VideoProcessingService;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.Map;
@@ -14,47 +24,6 @@ import java.util.Optional;
 @Slf4j
 public class VideoProcessingFunction {
 
-    @FunctionName("ProcessVideoOnUpload")
-    public void processVideoOnUpload(
-            @BlobTrigger(
-                name = "blob",
-                path = "media/{name}",
-                dataType = "binary",
-                connection = "AzureWebJobsStorage"
-            ) byte[] content,
-            @BindingName("name") String blobName,
-            final ExecutionContext context) {
-        
-        // Only process video files
-        if (!isVideoFile(blobName)) {
-            log.info("Skipping non-video file: {}", blobName);
-            return;
-        }
-        
-        log.info("Java Blob trigger function processed a video blob. Name: {}, Size: {} bytes", blobName, content.length);
-        
-        try {
-            // Initialize services
-            AzureStorageConfig storageConfig = new AzureStorageConfig();
-            storageConfig.setConnectionString(System.getenv("AzureWebJobsStorage"));
-            storageConfig.setContainerName("media");
-            storageConfig.setThumbnailContainerName("thumbnails");
-            storageConfig.setProcessedContainerName("processed");
-            
-            BlobStorageService blobService = new BlobStorageService(storageConfig);
-            VideoProcessingService videoService = new VideoProcessingService();
-            
-            // Generate thumbnail from video
-            byte[] thumbnailData = videoService.extractThumbnail(content);
-            blobService.uploadThumbnail(thumbnailData, blobName, "image/jpeg");
-            
-            log.info("Generated thumbnail for video: {}", blobName);
-            
-        } catch (Exception e) {
-            log.error("Error processing video: {}", e.getMessage(), e);
-        }
-    }
-    
     @FunctionName("ProcessVideoOnDemand")
     public HttpResponseMessage processVideoOnDemand(
             @HttpTrigger(
@@ -64,7 +33,15 @@ public class VideoProcessingFunction {
                 route = "video/process"
             ) HttpRequestMessage<Optional<ProcessingRequest>> request,
             final ExecutionContext context) {
-        
+        Timer.Sample sample = MediaMetrics.start();
+        HttpResponseMessage response = processOnDemand(request);
+        FunctionResources.recordInvocation(sample, "ProcessVideoOnDemand",
+                request.getBody().map(ProcessingRequest::getProcessingType).orElse(null),
+                FunctionResources.outcome(response));
+        return response;
+    }
+    
+    private HttpResponseMessage processOnDemand(HttpRequestMessage<Optional<ProcessingRequest>> request) {
         log.info("HTTP trigger function for on-demand video processing");
         
         ProcessingRequest processingRequest = request.getBody().orElse(null);
@@ -85,12 +62,63 @@ public class VideoProcessingFunction {
             BlobStorageService blobService = new BlobStorageService(storageConfig);
             VideoProcessingService videoService = new VideoProcessingService();
             
+            if (ContentModerationService.isFlagged(blobService.getBlobMetadata(processingRequest.getBlobName()))) {
+                return request.createResponseBuilder(HttpStatus.FORBIDDEN)
+                        .body("Media was flagged by content moderation")
+                        .build();
+            }
+            
+            // Identical requests running on this worker wait for one job and share its result
+            Map<String, Object> result = FunctionResources.processingFlights().execute(
+                    ProcessingLedger.jobKey(processingRequest.getBlobName(), processingRequest.getProcessingType(),
+                            processingRequest.getParameters()),
+                    () -> process(processingRequest, blobService, videoService));
+            return request.createResponseBuilder(HttpStatus.OK)
+                    .header("Content-Type", "application/json")
+                    .body(result)
+                    .build();
+            
+        } catch (IllegalArgumentException e) {
+            return request.createResponseBuilder(HttpStatus.BAD_REQUEST)
+                    .body(Map.of("error", String.valueOf(e.getMessage())))
+                    .build();
+        } catch (ResourceGovernor.JobTooLargeException e) {
+            log.warn("Rejecting video request that can never fit: {}", e.getMessage());
+            return request.createResponseBuilder(HttpStatus.PAYLOAD_TOO_LARGE)
+                    .body(Map.of("error", e.getMessage()))
+                    .build();
+        } catch (ResourceGovernor.AdmissionRejectedException e) {
+            log.warn("Rejecting video request: {}", e.getMessage());
+            return request.createResponseBuilder(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header("Retry-After", "30")
+                    .body(Map.of("error", e.getMessage()))
+                    .build();
+        } catch (Exception e) {
+            log.error("Error processing video: {}", e.getMessage(), e);
+            return request.createResponseBuilder(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(Map.of("error", e.getMessage()))
+                    .build();
+        }
+    }
+
+    private Map<String, Object> process(ProcessingRequest processingRequest, BlobStorageService blobService,
+                                        VideoProcessingService videoService) throws Exception {
+        ResourceGovernor governor = FunctionResources.governor();
+        MediaMetadataProber.RangeReader reader = blobService.getMediaRangeReader(processingRequest.getBlobName());
+        ResourceGovernor.JobEstimate estimate = governor.estimate(
+                processingRequest.getProcessingType(),
+                processingRequest.getParameters(),
+                FunctionResources.prober().probe(reader),
+                reader.size());
+        
+        try (ResourceGovernor.Permit permit = governor.admit(
+                processingRequest.getBlobName() + ":" + processingRequest.getProcessingType(), estimate)) {
             // Download the original video
             byte[] videoData = blobService.downloadMedia(processingRequest.getBlobName());
             byte[] processedData;
             String suffix;
             String contentType;
-            
+        
             // Process based on request type
             switch (processingRequest.getProcessingType()) {
                 case VIDEO_THUMBNAIL:
@@ -98,40 +126,65 @@ public class VideoProcessingFunction {
                     suffix = "thumb";
                     contentType = "image/jpeg";
                     break;
-                    
+                
                 case VIDEO_WATERMARK:
                     String watermarkText = processingRequest.getParameters().getOrDefault("text", "Copyright");
                     processedData = videoService.addWatermarkToVideo(videoData, watermarkText);
                     suffix = "watermark";
                     contentType = "video/mp4";
                     break;
-                    
+                
                 case VIDEO_COMPRESS:
-                    String quality = processingRequest.getParameters().getOrDefault("quality", "medium");
-                    processedData = videoService.compressVideo(videoData, quality);
-                    suffix = "compress-" + quality;
+                    EncodingProfile profile = EncodingProfile.fromParameters(processingRequest.getParameters());
+                    processedData = videoService.compressVideo(videoData, profile);
+                    suffix = "compress-" + profile.name().toLowerCase();
                     contentType = "video/mp4";
                     break;
-                    
+                
                 case AUDIO_EXTRACT:
                     processedData = videoService.extractAudio(videoData);
                     suffix = "audio";
                     contentType = "audio/mp3";
                     break;
-                    
+                
                 case VIDEO_PREVIEW:
                     int duration = Integer.parseInt(processingRequest.getParameters().getOrDefault("duration", "10"));
                     processedData = videoService.createPreviewClip(videoData, duration);
                     suffix = "preview-" + duration + "s";
                     contentType = "video/mp4";
                     break;
-                    
+                
+                case VIDEO_HLS:
+                    // Multi-file output: respond with the master playlist URL
+                    Map<String, byte[]> files = videoService.createHlsPackage(videoData, HlsSpec.fromParameters(processingRequest.getParameters()));
+                    String masterBlobName = blobService.uploadProcessedMediaSet(
+                            files, processingRequest.getBlobName(), "hls", "master.m3u8");
+                
+                    return Map.of(
+                            "status", "success",
+                            "processedUrl", blobService.getProcessedMediaSetUrl(
+                                    processingRequest.getBlobName(), "hls", "master.m3u8"),
+                            "blobName", masterBlobName
+                    );
+                
+                case VIDEO_SPRITE:
+                    // Multi-file output: respond with the WebVTT thumbnail track URL
+                    Map<String, byte[]> sprites = videoService.createSpriteSheets(
+                            videoData, SpriteSheetSpec.fromParameters(processingRequest.getParameters()));
+                    String trackBlobName = blobService.uploadProcessedMediaSet(
+                            sprites, processingRequest.getBlobName(), "sprite", "thumbnails.vtt");
+                
+                    return Map.of(
+                            "status", "success",
+                            "processedUrl", blobService.getProcessedMediaSetUrl(
+                                    processingRequest.getBlobName(), "sprite", "thumbnails.vtt"),
+                            "blobName", trackBlobName
+                    );
+                
                 default:
-                    return request.createResponseBuilder(HttpStatus.BAD_REQUEST)
-                            .body("Unsupported processing type: " + processingRequest.getProcessingType())
-                            .build();
+                    throw new IllegalArgumentException("Unsupported processing type: " + processingRequest.getProcessingType());
             }
-            
+        
             // Upload the processed video
             String processedBlobName = blobService.uploadProcessedMedia(
                     processedData, 
@@ -139,33 +192,15 @@ public class VideoProcessingFunction {
                     suffix, 
                     contentType
             );
-            
+        
             // Return the URL of the processed video
             String processedUrl = blobService.getProcessedMediaUrl(processingRequest.getBlobName(), suffix);
-            
-            return request.createResponseBuilder(HttpStatus.OK)
-                    .header("Content-Type", "application/json")
-                    .body(Map.of(
-                            "status", "success",
-                            "processedUrl", processedUrl,
-                            "blobName", processedBlobName
-                    ))
-                    .build();
-            
-        } catch (Exception e) {
-            log.error("Error processing video: {}", e.getMessage(), e);
-            return request.createResponseBuilder(HttpStatus.INTERNAL_SERVER_ERROR)
-                    .body(Map.of("error", e.getMessage()))
-                    .build();
+        
+            return Map.of(
+                    "status", "success",
+                    "processedUrl", processedUrl,
+                    "blobName", processedBlobName
+            );
         }
     }
-    
-    private boolean isVideoFile(String fileName) {
-        String lowerCaseName = fileName.toLowerCase();
-        return lowerCaseName.endsWith(".mp4") || 
-               lowerCaseName.endsWith(".avi") || 
-               lowerCaseName.endsWith(".mov") || 
-               lowerCaseName.endsWith(".wmv") || 
-               lowerCaseName.endsWith(".mkv");
-    }
 }
@@ -0,0 +1,381 @@
+package com.mediaprocessing.loadtest;
+
+import com.azure.storage.blob.BlobContainerClient;
+import com.azure.storage.blob.BlobServiceClientBuilder;
+import com.azure.storage.blob.models.BlobItem;
+import com.azure.storage.queue.QueueClient;
+import com.azure.storage.queue.QueueClientBuilder;
+import com.azure.storage.queue.models.QueueMessageItem;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mediaprocessing.common.config.AzureStorageConfig;
+import com.mediaprocessing.common.metrics.MediaMetrics;
+import com.mediaprocessing.common.model.BlobCreatedEvent;
+import com.mediaprocessing.common.model.ProcessingRequest;
+import com.mediaprocessing.common.model.ProcessingRequestCodec;
+import com.mediaprocessing.common.service.BlobStorageService;
+import com.mediaprocessing.common.service.MediaMetadataProber;
+import com.mediaprocessing.functions.trigger.QueueProcessingFunction;
+import com.mediaprocessing.functions.trigger.UploadDispatchFunction;
+import com.microsoft.azure.functions.ExecutionContext;
+import com.microsoft.azure.functions.OutputBinding;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Runs the function handlers in-process the way the Functions host would:
+ * queue workers dequeue from {@code media-processing-queue} and call the
+ * queue trigger, and new uploads reach the upload dispatcher, whose queue
+ * output is sent once it returns. With {@code events} ingestion, workers
+ * dequeue blob-created events from {@code media-upload-events}; with
+ * {@code polling}, a poller lists the {@code media} container and downloads
+ * each new blob, as a blob trigger would, to compare the two. Failed
+ * invocations are retried five times, as {@code maxDequeueCount} in host.json
+ * sets, after which the message is moved to the queue's {@code -poison}
+ * queue, or the blob given up on.
+ */
+@Slf4j
+public class FunctionHost implements AutoCloseable {
+
+    static final String QUEUE_NAME = "media-processing-queue";
+    private static final String CONTAINER_NAME = "media";
+    private static final int MAX_DEQUEUE_COUNT = 5;
+    private static final String POISON_SUFFIX = "-poison";
+    private static final Duration VISIBILITY_TIMEOUT = Duration.ofMinutes(10);
+    private static final long IDLE_POLL_MILLIS = 200;
+
+    private final String connectionString;
+    private final QueueClient queueClient;
+    private final QueueClient eventQueueClient;
+    private final BlobContainerClient containerClient;
+    private final BlobStorageService blobService;
+    private final int workers;
+    private final int blobPollMillis;
+    private final boolean polling;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final QueueProcessingFunction queueFunction = new QueueProcessingFunction();
+    private final UploadDispatchFunction dispatchFunction = new UploadDispatchFunction();
+
+    private final Map<String, QueueClient> poisonQueues = new ConcurrentHashMap<>();
+    private final Set<String> seenBlobs = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger pendingBlobs = new AtomicInteger();
+    private volatile long lastBlobPoll;
+    private volatile boolean running;
+
+    private ExecutorService queueWorkers;
+    private ExecutorService blobWorkers;
+    private ScheduledExecutorService blobPoller;
+
+    public FunctionHost(String connectionString, int workers, int blobPollMillis, String ingestion) {
+        this.connectionString = connectionString;
+        this.queueClient = new QueueClientBuilder()
+                .connectionString(connectionString)
+                .queueName(QUEUE_NAME)
+                .buildClient();
+        this.eventQueueClient = new QueueClientBuilder()
+                .connectionString(connectionString)
+                .queueName(UploadDispatchFunction.EVENT_QUEUE_NAME)
+                .buildClient();
+        this.containerClient = new BlobServiceClientBuilder()
+                .connectionString(connectionString)
+                .buildClient()
+                .getBlobContainerClient(CONTAINER_NAME);
+        AzureStorageConfig storageConfig = new AzureStorageConfig();
+        storageConfig.setConnectionString(connectionString);
+        storageConfig.setContainerName(CONTAINER_NAME);
+        storageConfig.setThumbnailContainerName("thumbnails");
+        storageConfig.setProcessedContainerName("processed");
+        this.blobService = new BlobStorageService(storageConfig);
+        this.workers = workers;
+        this.blobPollMillis = blobPollMillis;
+        this.polling = "polling".equals(ingestion);
+    }
+
+    public void start() {
+        queueClient.createIfNotExists();
+        eventQueueClient.createIfNotExists();
+        if (!containerClient.exists()) {
+            containerClient.create();
+        }
+        running = true;
+        queueWorkers = Executors.newFixedThreadPool(workers, named("queue-worker"));
+        for (int i = 0; i < workers; i++) {
+            queueWorkers.submit(() -> pollQueue(queueClient, this::handleMessage));
+        }
+        blobWorkers = Executors.newFixedThreadPool(workers, named("blob-worker"));
+        blobPoller = Executors.newSingleThreadScheduledExecutor(named("blob-poller"));
+        if (polling) {
+            blobPoller.scheduleWithFixedDelay(this::pollBlobs, 0, blobPollMillis, TimeUnit.MILLISECONDS);
+        } else {
+            for (int i = 0; i < workers; i++) {
+                blobWorkers.submit(() -> pollQueue(eventQueueClient, this::handleEvent));
+            }
+        }
+    }
+
+    /**
+     * Whether no invocation is running or pending: the queues are empty, no
+     * blob is waiting and, when polling, a blob poll has run since the last
+     * invocation.
+     */
+    public boolean isIdle() {
+        long checkedAt = System.currentTimeMillis();
+        return inFlight.get() == 0
+                && pendingBlobs.get() == 0
+                && queueClient.getProperties().getApproximateMessagesCount() == 0
+                && eventQueueClient.getProperties().getApproximateMessagesCount() == 0
+                && (!polling || lastBlobPoll > checkedAt - 2L * blobPollMillis);
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        running = false;
+        if (blobPoller != null) {
+            blobPoller.shutdownNow();
+        }
+        for (ExecutorService executor : new ExecutorService[] {queueWorkers, blobWorkers}) {
+            if (executor != null) {
+                executor.shutdown();
+                executor.awaitTermination(30, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface MessageHandler {
+        void handle(QueueClient client, QueueMessageItem message);
+    }
+
+    private void pollQueue(QueueClient client, MessageHandler handler) {
+        while (running) {
+            try {
+                QueueMessageItem message = null;
+                for (QueueMessageItem item : client.receiveMessages(1, VISIBILITY_TIMEOUT, null, null)) {
+                    message = item;
+                }
+                if (message == null) {
+                    Thread.sleep(IDLE_POLL_MILLIS);
+                    continue;
+                }
+                inFlight.incrementAndGet();
+                try {
+                    handler.handle(client, message);
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                if (running) {
+                    log.warn("Queue poll failed: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void handleMessage(QueueClient client, QueueMessageItem message) {
+        // The web app Base64-encodes messages, as the Functions host expects
+        byte[] body = Base64.getDecoder().decode(message.getBody().toString());
+        String type = "unknown";
+        Long enqueuedAt = null;
+        try {
+            // A compact batch is timed by its first request
+            ProcessingRequest request = ProcessingRequestCodec.decode(body).get(0);
+            type = String.valueOf(request.getProcessingType());
+            enqueuedAt = request.getEnqueuedAt();
+        } catch (Exception e) {
+            log.warn("Unreadable queue message {}: {}", message.getMessageId(), e.getMessage());
+        }
+
+        String outcome = MediaMetrics.SUCCESS;
+        try {
+            String stage = "function:queue:" + type;
+            QueueOutput<List<String>> continuation = new QueueOutput<>();
+            StageProfiler.measure(stage, () -> {
+                queueFunction.processMediaQueue(body, continuation, new LocalExecutionContext("ProcessMediaQueue"));
+                return null;
+            });
+            send(continuation.getValue());
+            client.deleteMessage(message.getMessageId(), message.getPopReceipt());
+        } catch (Exception e) {
+            outcome = MediaMetrics.ERROR;
+            retryOrPoison(client, message, "queue");
+        }
+        if (enqueuedAt != null) {
+            MediaMetrics.record("loadtest.pipeline",
+                    Duration.ofMillis(Math.max(0, System.currentTimeMillis() - enqueuedAt)),
+                    "type", type, "outcome", outcome);
+        }
+    }
+
+    private void handleEvent(QueueClient client, QueueMessageItem message) {
+        String json = decode(message);
+        try {
+            BlobCreatedEvent event = objectMapper.readValue(json, BlobCreatedEvent.class);
+            long createdAt = event.eventTimeMillis();
+            if (message.getDequeueCount() == 1) {
+                MediaMetrics.record("loadtest.blob.trigger.lag",
+                        Duration.ofMillis(Math.max(0, System.currentTimeMillis() - createdAt)), "ingestion", "events");
+            }
+            QueueOutput<List<String>> requests = new QueueOutput<>();
+            StageProfiler.measure("function:event:dispatch", () -> {
+                dispatchFunction.dispatchUploadEvent(json, requests, new LocalExecutionContext("DispatchUploadEvent"));
+                return null;
+            });
+            send(requests.getValue());
+            client.deleteMessage(message.getMessageId(), message.getPopReceipt());
+            MediaMetrics.record("loadtest.blob.pipeline",
+                    Duration.ofMillis(Math.max(0, System.currentTimeMillis() - createdAt)), "ingestion", "events");
+        } catch (Exception e) {
+            retryOrPoison(client, message, "event");
+        }
+    }
+
+    private void retryOrPoison(QueueClient client, QueueMessageItem message, String trigger) {
+        if (message.getDequeueCount() >= MAX_DEQUEUE_COUNT) {
+            QueueClient poisonQueue = poisonQueues.computeIfAbsent(client.getQueueName() + POISON_SUFFIX, name -> {
+                QueueClient queue = new QueueClientBuilder()
+                        .connectionString(connectionString)
+                        .queueName(name)
+                        .buildClient();
+                queue.createIfNotExists();
+                return queue;
+            });
+            log.warn("Moving poison message {} to {} after {} attempts", message.getMessageId(),
+                    poisonQueue.getQueueName(), message.getDequeueCount());
+            MediaMetrics.count("loadtest.poison", "trigger", trigger);
+            poisonQueue.sendMessage(message.getBody().toString());
+            client.deleteMessage(message.getMessageId(), message.getPopReceipt());
+        } else {
+            client.updateMessage(message.getMessageId(), message.getPopReceipt(), message.getBody().toString(),
+                    Duration.ZERO);
+        }
+    }
+
+    private static String decode(QueueMessageItem message) {
+        return new String(Base64.getDecoder().decode(message.getBody().toString()), StandardCharsets.UTF_8);
+    }
+
+    private void send(List<String> messages) {
+        if (messages != null) {
+            for (String json : messages) {
+                queueClient.sendMessage(Base64.getEncoder().encodeToString(json.getBytes(StandardCharsets.UTF_8)));
+            }
+        }
+    }
+
+    private void pollBlobs() {
+        try {
+            for (BlobItem blob : containerClient.listBlobs()) {
+                if (seenBlobs.add(blob.getName())) {
+                    pendingBlobs.incrementAndGet();
+                    long createdAt = blob.getProperties().getLastModified().toInstant().toEpochMilli();
+                    blobWorkers.submit(() -> handleBlob(blob.getName(), createdAt, 1));
+                }
+            }
+            lastBlobPoll = System.currentTimeMillis();
+        } catch (Exception e) {
+            log.warn("Blob poll failed: {}", e.getMessage());
+        }
+    }
+
+    private void handleBlob(String blobName, long createdAt, int attempt) {
+        inFlight.incrementAndGet();
+        pendingBlobs.decrementAndGet();
+        try {
+            if (attempt == 1) {
+                MediaMetrics.record("loadtest.blob.trigger.lag",
+                        Duration.ofMillis(Math.max(0, System.currentTimeMillis() - createdAt)), "ingestion", "polling");
+            }
+            // The host binds the whole blob to a Java blob trigger
+            byte[] content = containerClient.getBlobClient(blobName).downloadContent().toBytes();
+            QueueOutput<List<String>> requests = new QueueOutput<>();
+            StageProfiler.measure("function:blob:dispatch", () -> dispatchFunction.dispatch(blobService, CONTAINER_NAME,
+                    blobName, MediaMetadataProber.RangeReader.of(content), requests));
+            send(requests.getValue());
+            MediaMetrics.record("loadtest.blob.pipeline",
+                    Duration.ofMillis(Math.max(0, System.currentTimeMillis() - createdAt)), "ingestion", "polling");
+        } catch (Exception e) {
+            if (attempt >= MAX_DEQUEUE_COUNT || !running) {
+                log.warn("Giving up on blob {} after {} attempts: {}", blobName, attempt, e.getMessage());
+                MediaMetrics.count("loadtest.poison", "trigger", "blob");
+            } else {
+                pendingBlobs.incrementAndGet();
+                blobPoller.schedule(() -> blobWorkers.submit(() -> handleBlob(blobName, createdAt, attempt + 1)),
+                        blobPollMillis, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    private static ThreadFactory named(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * A queue output binding, sent by the caller after the invocation succeeds.
+     */
+    private static class QueueOutput<T> implements OutputBinding<T> {
+        private T value;
+
+        @Override
+        public T getValue() {
+            return value;
+        }
+
+        @Override
+        public void setValue(T value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * The parts of the Functions execution context the handlers use.
+     */
+    private static class LocalExecutionContext implements ExecutionContext {
+        private final String functionName;
+        private final String invocationId = UUID.randomUUID().toString();
+
+        LocalExecutionContext(String functionName) {
+            this.functionName = functionName;
+        }
+
+        @Override
+        public Logger getLogger() {
+            return Logger.getLogger(functionName);
+        }
+
+        @Override
+        public String getInvocationId() {
+            return invocationId;
+        }
+
+        @Override
+        public String getFunctionName() {
+            return functionName;
+        }
+    }
+}
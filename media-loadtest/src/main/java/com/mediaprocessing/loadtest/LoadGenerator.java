@@ -0,0 +1,295 @@
+package com.mediaprocessing.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mediaprocessing.benchmarks.MediaCorpus;
+import com.mediaprocessing.common.metrics.MediaMetrics;
+import com.mediaprocessing.common.model.ProcessingRequest.ProcessingType;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Replays a mix of uploads, each followed by processing requests, against the
+ * web app's REST API at a fixed rate. Arrivals are open-loop: each upload is
+ * due at its slot whatever the earlier ones are doing, and its latency is
+ * counted from that slot, so a saturated server shows up as latency rather
+ * than as a quietly lower rate.
+ */
+@Slf4j
+public class LoadGenerator {
+
+    private static final Duration REQUEST_TIMEOUT = Duration.ofMinutes(5);
+
+    private final LoadTestOptions options;
+    private final String baseUrl;
+    private final HttpClient httpClient;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Random random;
+    private final Semaphore inFlight;
+    private final AtomicInteger started = new AtomicInteger();
+
+    private final List<Upload> uploads = new ArrayList<>();
+    private final double uploadWeight;
+    private final Map<ProcessingType, Double> processMix = new LinkedHashMap<>();
+
+    /**
+     * One entry of the upload mix, with its pre-generated content.
+     */
+    private static class Upload {
+        final String key;
+        final boolean video;
+        final double weight;
+        final byte[] content;
+
+        Upload(String key, boolean video, double weight, byte[] content) {
+            this.key = key;
+            this.video = video;
+            this.weight = weight;
+            this.content = content;
+        }
+    }
+
+    public LoadGenerator(LoadTestOptions options, String baseUrl) {
+        this.options = options;
+        this.baseUrl = baseUrl;
+        this.random = new Random(options.getSeed());
+        this.inFlight = new Semaphore(options.getConcurrency());
+        this.httpClient = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(10))
+                .executor(Executors.newCachedThreadPool())
+                .build();
+
+        double total = 0;
+        for (Map.Entry<String, Double> entry : LoadTestOptions.parseMix(options.getUploads()).entrySet()) {
+            String[] parts = entry.getKey().split(":");
+            boolean video = "video".equalsIgnoreCase(parts[0]);
+            MediaCorpus.Resolution resolution = MediaCorpus.Resolution.valueOf(parts[1].toUpperCase());
+            log.info("Generating {} corpus item", entry.getKey());
+            byte[] content = video
+                    ? MediaCorpus.video(resolution, options.getVideoSeconds())
+                    : MediaCorpus.image(resolution, "jpg");
+            uploads.add(new Upload(entry.getKey().toLowerCase(), video, entry.getValue(), content));
+            total += entry.getValue();
+        }
+        this.uploadWeight = total;
+        LoadTestOptions.parseMix(options.getProcess())
+                .forEach((type, weight) -> processMix.put(ProcessingType.valueOf(type), weight));
+    }
+
+    /**
+     * Sends uploads at the configured rate for {@code duration}, then waits
+     * for the requests still in flight.
+     */
+    public void run(Duration duration) throws InterruptedException {
+        long periodNanos = (long) (1_000_000_000L / options.getRate());
+        long count = duration.toNanos() / periodNanos;
+        long start = System.nanoTime();
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        AtomicInteger sent = new AtomicInteger();
+        try {
+            scheduler.scheduleAtFixedRate(() -> {
+                int slot = sent.getAndIncrement();
+                if (slot >= count) {
+                    return;
+                }
+                long intendedStart = start + slot * periodNanos;
+                if (!inFlight.tryAcquire()) {
+                    MediaMetrics.count("loadtest.dropped");
+                    return;
+                }
+                started.incrementAndGet();
+                runUpload(pick(), intendedStart).whenComplete((ignored, error) -> inFlight.release());
+            }, 0, periodNanos, TimeUnit.NANOSECONDS);
+
+            while (sent.get() < count) {
+                Thread.sleep(100);
+            }
+        } finally {
+            scheduler.shutdownNow();
+        }
+        // Let the requests already sent finish
+        inFlight.acquire(options.getConcurrency());
+        inFlight.release(options.getConcurrency());
+    }
+
+    public int getStarted() {
+        return started.get();
+    }
+
+    private CompletableFuture<Void> runUpload(Upload upload, long intendedStart) {
+        String extension = upload.video ? "mp4" : "jpg";
+        String boundary = "loadtest-" + UUID.randomUUID();
+        HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/api/media/upload"))
+                .timeout(REQUEST_TIMEOUT)
+                .header("Content-Type", "multipart/form-data; boundary=" + boundary)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(multipart(boundary,
+                        upload.key.replace(':', '-') + "." + extension,
+                        upload.video ? "video/mp4" : "image/jpeg", upload.content)))
+                .build();
+
+        int processCount = processCount();
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                .handle((response, error) -> {
+                    Duration latency = Duration.ofNanos(System.nanoTime() - intendedStart);
+                    MediaMetrics.record("loadtest.request", latency,
+                            "operation", "upload", "media", upload.key, "status", status(response, error));
+                    if (error != null || response.statusCode() != 200) {
+                        log.debug("Upload of {} failed: {}", upload.key,
+                                error != null ? error.getMessage() : response.statusCode());
+                        return null;
+                    }
+                    try {
+                        return objectMapper.readTree(response.body()).path("id").asText(null);
+                    } catch (Exception e) {
+                        return null;
+                    }
+                })
+                .thenCompose(id -> {
+                    if (id == null || processCount == 0) {
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    List<CompletableFuture<Void>> requests = new ArrayList<>();
+                    for (int i = 0; i < processCount; i++) {
+                        ProcessingType type = pickType(upload.video);
+                        if (type != null) {
+                            requests.add(runProcess(id, type));
+                        }
+                    }
+                    return CompletableFuture.allOf(requests.toArray(new CompletableFuture[0]));
+                });
+    }
+
+    private CompletableFuture<Void> runProcess(String id, ProcessingType type) {
+        String body;
+        try {
+            body = objectMapper.writeValueAsString(parameters(type));
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/api/media/" + id + "/process?type=" + type))
+                .timeout(REQUEST_TIMEOUT)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+        long start = System.nanoTime();
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                .handle((response, error) -> {
+                    MediaMetrics.record("loadtest.request", Duration.ofNanos(System.nanoTime() - start),
+                            "operation", "process", "type", type.name(), "status", status(response, error));
+                    return null;
+                });
+    }
+
+    /**
+     * Parameters that keep each type's work representative but bounded.
+     */
+    private static Map<String, String> parameters(ProcessingType type) {
+        switch (type) {
+            case RESIZE:
+                return Map.of("width", "800", "height", "600");
+            case FILTER:
+                return Map.of("type", "sepia");
+            case FORMAT_CONVERSION:
+                return Map.of("format", "webp");
+            case WATERMARK:
+            case VIDEO_WATERMARK:
+                return Map.of("text", "Load test");
+            case VIDEO_COMPRESS:
+                return Map.of("profile", "LOW");
+            case VIDEO_PREVIEW:
+                return Map.of("duration", "3");
+            case VIDEO_SPRITE:
+                return Map.of("interval", "1");
+            case VIDEO_HLS:
+                return Map.of("renditions", "360,720", "segmentSeconds", "2");
+            default:
+                return Map.of();
+        }
+    }
+
+    private synchronized Upload pick() {
+        double point = random.nextDouble() * uploadWeight;
+        for (Upload upload : uploads) {
+            point -= upload.weight;
+            if (point < 0) {
+                return upload;
+            }
+        }
+        return uploads.get(uploads.size() - 1);
+    }
+
+    private synchronized int processCount() {
+        double perUpload = options.getProcessPerUpload();
+        int count = (int) perUpload;
+        return random.nextDouble() < perUpload - count ? count + 1 : count;
+    }
+
+    /**
+     * A processing type from the mix that applies to the media kind, or null
+     * if none does.
+     */
+    private synchronized ProcessingType pickType(boolean video) {
+        double total = 0;
+        for (Map.Entry<ProcessingType, Double> entry : processMix.entrySet()) {
+            if (appliesTo(entry.getKey(), video)) {
+                total += entry.getValue();
+            }
+        }
+        double point = random.nextDouble() * total;
+        ProcessingType last = null;
+        for (Map.Entry<ProcessingType, Double> entry : processMix.entrySet()) {
+            if (appliesTo(entry.getKey(), video)) {
+                last = entry.getKey();
+                point -= entry.getValue();
+                if (point < 0) {
+                    return last;
+                }
+            }
+        }
+        return last;
+    }
+
+    private static boolean appliesTo(ProcessingType type, boolean video) {
+        if (type == ProcessingType.CONTENT_MODERATION) {
+            return true;
+        }
+        boolean videoType = type.name().startsWith("VIDEO_") || type == ProcessingType.AUDIO_EXTRACT;
+        return videoType == video;
+    }
+
+    private static String status(HttpResponse<?> response, Throwable error) {
+        if (error != null) {
+            return "failed";
+        }
+        return response.statusCode() / 100 + "xx";
+    }
+
+    private static byte[] multipart(String boundary, String fileName, String contentType, byte[] content) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(content.length + 256);
+        String head = "--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"" + fileName + "\"\r\n"
+                + "Content-Type: " + contentType + "\r\n\r\n";
+        body.writeBytes(head.getBytes(StandardCharsets.UTF_8));
+        body.writeBytes(content);
+        body.writeBytes(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+        return body.toByteArray();
+    }
+}
@@ -0,0 +1,206 @@
+package com.mediaprocessing.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.config.MeterFilter;
+import io.micrometer.core.instrument.distribution.DistributionStatisticConfig;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Collects the run's measurements and reports them. The registry joins the
+ * global one only when the measured phase starts, so warmup traffic is not
+ * counted, and keeps exact p50/p95/p99 for every timer and summary over the
+ * whole phase. Resource use is sampled every second for the same window.
+ */
+@Slf4j
+public class LoadReport {
+
+    private static final double[] PERCENTILES = {0.5, 0.95, 0.99};
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "resource-sampler");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final List<Supplier<Map<String, Object>>> componentStats = new ArrayList<>();
+    private final List<String> componentPrefixes = new ArrayList<>();
+    private long startNanos;
+    private long endNanos;
+
+    public LoadReport() {
+        registry.config().meterFilter(new MeterFilter() {
+            @Override
+            public DistributionStatisticConfig configure(Meter.Id id, DistributionStatisticConfig config) {
+                // One window spanning the run, so percentiles cover every sample
+                return DistributionStatisticConfig.builder()
+                        .percentiles(PERCENTILES)
+                        .expiry(Duration.ofDays(1))
+                        .bufferLength(1)
+                        .build()
+                        .merge(config);
+            }
+        });
+    }
+
+    /**
+     * Adds a component's stats map to the per-second resource samples.
+     */
+    public void sample(String prefix, Supplier<Map<String, Object>> stats) {
+        componentPrefixes.add(prefix);
+        componentStats.add(stats);
+    }
+
+    public void start() {
+        Metrics.addRegistry(registry);
+        startNanos = System.nanoTime();
+        sampler.scheduleAtFixedRate(this::sampleResources, 1, 1, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        sampler.shutdownNow();
+        endNanos = System.nanoTime();
+        Metrics.removeRegistry(registry);
+    }
+
+    private void sampleResources() {
+        try {
+            MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+            record("loadtest.resource.heap.used", "bytes", memory.getHeapMemoryUsage().getUsed());
+            record("loadtest.resource.nonheap.used", "bytes", memory.getNonHeapMemoryUsage().getUsed());
+            record("loadtest.resource.threads", null, ManagementFactory.getThreadMXBean().getThreadCount());
+            if (ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean) {
+                com.sun.management.OperatingSystemMXBean os =
+                        (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+                record("loadtest.resource.process.cpu", "percent", os.getProcessCpuLoad() * 100);
+                record("loadtest.resource.system.cpu", "percent", os.getCpuLoad() * 100);
+            }
+            for (int i = 0; i < componentStats.size(); i++) {
+                for (Map.Entry<String, Object> entry : componentStats.get(i).get().entrySet()) {
+                    if (entry.getValue() instanceof Number) {
+                        record("loadtest.resource." + componentPrefixes.get(i) + "." + entry.getKey(), null,
+                                ((Number) entry.getValue()).doubleValue());
+                    }
+                }
+            }
+        } catch (Exception e) {
+            log.debug("Resource sample failed: {}", e.getMessage());
+        }
+    }
+
+    private void record(String name, String unit, double value) {
+        if (value >= 0) {
+            DistributionSummary.builder(name).baseUnit(unit).register(registry).record(value);
+        }
+    }
+
+    /**
+     * The measurements as a map: run settings, then one entry per meter with
+     * its tags and statistics. Timer values are in milliseconds.
+     */
+    public Map<String, Object> toMap(LoadTestOptions options, Map<String, Object> extra) {
+        double seconds = Math.max(1e-9, (endNanos - startNanos) / 1e9);
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("options", options);
+        report.put("measuredSeconds", seconds);
+        report.putAll(extra);
+
+        List<Map<String, Object>> meters = new ArrayList<>();
+        registry.getMeters().stream()
+                .sorted(Comparator.comparing((Meter meter) -> meter.getId().getName())
+                        .thenComparing(meter -> meter.getId().getTags().toString()))
+                .forEach(meter -> {
+                    Map<String, Object> entry = new LinkedHashMap<>();
+                    entry.put("name", meter.getId().getName());
+                    entry.put("tags", meter.getId().getTags().stream()
+                            .collect(Collectors.toMap(Tag::getKey, Tag::getValue, (a, b) -> a, LinkedHashMap::new)));
+                    if (meter instanceof Timer) {
+                        describe(entry, ((Timer) meter).takeSnapshot(), seconds, true);
+                    } else if (meter instanceof DistributionSummary) {
+                        describe(entry, ((DistributionSummary) meter).takeSnapshot(), seconds, false);
+                        entry.put("unit", meter.getId().getBaseUnit());
+                    } else if (meter instanceof Counter) {
+                        entry.put("count", ((Counter) meter).count());
+                        entry.put("rate", ((Counter) meter).count() / seconds);
+                    } else if (meter instanceof Gauge) {
+                        entry.put("value", ((Gauge) meter).value());
+                    } else {
+                        return;
+                    }
+                    meters.add(entry);
+                });
+        report.put("meters", meters);
+        return report;
+    }
+
+    public void write(Path path, Map<String, Object> report) throws IOException {
+        new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(path.toFile(), report);
+    }
+
+    /**
+     * Prints the timers and summaries as a table, skipping empty ones.
+     */
+    @SuppressWarnings("unchecked")
+    public void print(PrintStream out, Map<String, Object> report) {
+        out.printf("%nMeasured %.0f s%n", (Double) report.get("measuredSeconds"));
+        out.printf("%-90s %8s %9s %10s %10s %10s %10s %10s%n",
+                "meter", "count", "rate/s", "mean", "p50", "p95", "p99", "max");
+        for (Map<String, Object> meter : (List<Map<String, Object>>) report.get("meters")) {
+            if (!meter.containsKey("p50") || ((Number) meter.get("count")).longValue() == 0) {
+                continue;
+            }
+            String name = meter.get("name") + ((Map<String, String>) meter.get("tags")).entrySet().stream()
+                    .filter(tag -> !"app".equals(tag.getKey()))
+                    .map(tag -> tag.getKey() + "=" + tag.getValue())
+                    .collect(Collectors.joining(",", "{", "}"));
+            out.printf("%-90s %8d %9.2f %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                    name.length() > 90 ? name.substring(0, 87) + "..." : name,
+                    ((Number) meter.get("count")).longValue(), meter.get("rate"), meter.get("mean"),
+                    meter.get("p50"), meter.get("p95"), meter.get("p99"), meter.get("max"));
+        }
+        for (Map<String, Object> meter : (List<Map<String, Object>>) report.get("meters")) {
+            if (meter.containsKey("rate") && !meter.containsKey("p50")) {
+                out.printf("%-90s %8.0f %9.2f%n", meter.get("name") + String.valueOf(meter.get("tags")),
+                        meter.get("count"), meter.get("rate"));
+            }
+        }
+    }
+
+    private static void describe(Map<String, Object> entry, HistogramSnapshot snapshot, double seconds, boolean time) {
+        entry.put("count", snapshot.count());
+        entry.put("rate", snapshot.count() / seconds);
+        entry.put("mean", time ? snapshot.mean(TimeUnit.MILLISECONDS) : snapshot.mean());
+        for (ValueAtPercentile percentile : snapshot.percentileValues()) {
+            entry.put("p" + Math.round(percentile.percentile() * 100),
+                    time ? percentile.value(TimeUnit.MILLISECONDS) : percentile.value());
+        }
+        entry.put("max", time ? snapshot.max(TimeUnit.MILLISECONDS) : snapshot.max());
+    }
+}
@@ -0,0 +1,282 @@
+package com.mediaprocessing.loadtest;
+
+import ch.qos.logback.classic.Level;
+import com.azure.core.util.BinaryData;
+import com.azure.storage.blob.BlobContainerClient;
+import com.azure.storage.blob.BlobServiceClientBuilder;
+import com.azure.storage.blob.models.BlobHttpHeaders;
+import com.azure.storage.blob.options.BlobParallelUploadOptions;
+import com.mediaprocessing.common.service.UploadRouter;
+import com.mediaprocessing.common.service.RasterBufferPool;
+import com.mediaprocessing.common.service.ResourceGovernor;
+import com.mediaprocessing.functions.FunctionResources;
+import com.mediaprocessing.functions.trigger.UploadDispatchFunction;
+import com.mediaprocessing.web.MediaWebApplication;
+import com.mediaprocessing.web.cache.RenditionCache;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * End-to-end load test: the web app and the function handlers run in this JVM
+ * against local stand-ins for storage and Image Analysis, while a load
+ * generator replays an upload and processing mix at a fixed rate. After a
+ * warmup, one measured phase runs for the configured duration and then until
+ * the functions drain; the report covers request latency, pipeline latency,
+ * per-stage CPU and allocation, and sampled resource use.
+ * <p>
+ * The functions read their settings from environment variables, so the test
+ * starts by re-launching itself with those set.
+ */
+@Slf4j
+public class LoadTest {
+
+    private static final String CHILD_ENV = "LOADTEST_CHILD";
+    private static final String BLOB_PORT_ENV = "LOADTEST_BLOB_PORT";
+    private static final String QUEUE_PORT_ENV = "LOADTEST_QUEUE_PORT";
+    private static final String VISION_PORT_ENV = "LOADTEST_VISION_PORT";
+    private static final String KEYSTORE_ENV = "LOADTEST_KEYSTORE";
+    private static final char[] KEYSTORE_PASSWORD = "loadtest".toCharArray();
+    private static final long DRAIN_CHECK_MILLIS = 500;
+
+    public static void main(String[] args) throws Exception {
+        LoadTestOptions options;
+        try {
+            options = LoadTestOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+        System.exit(System.getenv(CHILD_ENV) == null ? relaunch(options) : run(options));
+    }
+
+    /**
+     * Starts this class again in a JVM whose environment points the functions
+     * at the stand-ins, and trusts the Vision stub's self-signed certificate.
+     */
+    private static int relaunch(LoadTestOptions options) throws IOException, InterruptedException {
+        Path workDir = Files.createTempDirectory("loadtest");
+        try {
+            Path keyStore = workDir.resolve("vision-stub.p12");
+            Path javaBin = Paths.get(System.getProperty("java.home"), "bin");
+            exec(List.of(javaBin.resolve("keytool").toString(), "-genkeypair", "-alias", "vision-stub",
+                    "-keyalg", "RSA", "-keysize", "2048", "-validity", "2", "-dname", "CN=127.0.0.1",
+                    "-ext", "SAN=ip:127.0.0.1", "-storetype", "PKCS12", "-keystore", keyStore.toString(),
+                    "-storepass", new String(KEYSTORE_PASSWORD)));
+
+            int blobPort = freePort();
+            int queuePort = freePort();
+            int visionPort = freePort();
+            String storage = !options.getStorage().isBlank()
+                    ? options.getStorage()
+                    : LocalStorageEmulator.connectionString(blobPort, queuePort);
+            String visionEndpoint = "https://127.0.0.1:" + visionPort + "/";
+
+            List<String> command = new ArrayList<>();
+            command.add(javaBin.resolve("java").toString());
+            command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+            command.addAll(List.of(
+                    "-Djavax.net.ssl.trustStore=" + keyStore,
+                    "-Djavax.net.ssl.trustStorePassword=" + new String(KEYSTORE_PASSWORD),
+                    "-Djavax.net.ssl.trustStoreType=PKCS12",
+                    "-cp", System.getProperty("java.class.path"),
+                    LoadTest.class.getName()));
+            command.addAll(Arrays.asList(options.toArgs()));
+
+            ProcessBuilder builder = new ProcessBuilder(command).inheritIO();
+            Map<String, String> env = builder.environment();
+            env.put(CHILD_ENV, "true");
+            env.put(BLOB_PORT_ENV, String.valueOf(blobPort));
+            env.put(QUEUE_PORT_ENV, String.valueOf(queuePort));
+            env.put(VISION_PORT_ENV, String.valueOf(visionPort));
+            env.put(KEYSTORE_ENV, keyStore.toString());
+            env.put("AzureWebJobsStorage", storage);
+            env.put("ComputerVisionEndpoint", visionEndpoint);
+            env.put("ComputerVisionKey", "loadtest");
+            env.put("TextAnalyticsEndpoint", visionEndpoint);
+            env.put("TextAnalyticsKey", "loadtest");
+            // The load test reads the global registry itself
+            env.put("MetricsRegistry", "none");
+            return builder.start().waitFor();
+        } finally {
+            LocalStorageEmulator.deleteRecursively(workDir);
+        }
+    }
+
+    private static int run(LoadTestOptions options) throws Exception {
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME))
+                .setLevel(Level.toLevel(options.getLogLevel(), Level.WARN));
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(LoadTest.class.getPackageName()))
+                .setLevel(Level.INFO);
+
+        String storage = System.getenv("AzureWebJobsStorage");
+        Path dataDir = Files.createTempDirectory("loadtest-data");
+        LocalStorageEmulator emulator = null;
+        VisionStub visionStub = new VisionStub(options.getVisionLatencyMillis(), options.getVisionJitterMillis(),
+                options.getVisionErrorRate());
+        ConfigurableApplicationContext webApp = null;
+        FunctionHost functionHost = null;
+        try {
+            if (options.getStorage().isBlank()) {
+                emulator = new LocalStorageEmulator(dataDir.resolve("storage"));
+                emulator.start(Integer.parseInt(System.getenv(BLOB_PORT_ENV)),
+                        Integer.parseInt(System.getenv(QUEUE_PORT_ENV)));
+                if ("events".equals(options.getIngestion())) {
+                    // In Azure, an Event Grid subscription on the storage account does this
+                    emulator.publishBlobCreated("media", UploadDispatchFunction.EVENT_QUEUE_NAME);
+                }
+            }
+            visionStub.start(Integer.parseInt(System.getenv(VISION_PORT_ENV)),
+                    Paths.get(System.getenv(KEYSTORE_ENV)), KEYSTORE_PASSWORD);
+
+            // As command line arguments, which win over application.properties
+            Map<String, Object> properties = new LinkedHashMap<>();
+            properties.put("server.port", 0);
+            properties.put("spring.main.banner-mode", "off");
+            properties.put("azure.storage.connection-string", storage);
+            properties.put("azure.ai.computer-vision.endpoint", visionStub.getEndpoint());
+            properties.put("azure.ai.computer-vision.key", "loadtest");
+            properties.put("azure.ai.text-analytics.endpoint", visionStub.getEndpoint());
+            properties.put("azure.ai.text-analytics.key", "loadtest");
+            properties.put("media.cache.directory", dataDir.resolve("cache").toString());
+            properties.put("logging.level.root", options.getLogLevel());
+            properties.put("logging.level.com.mediaprocessing", options.getLogLevel());
+            properties.put("logging.level.com.mediaprocessing.loadtest", "INFO");
+            webApp = new SpringApplicationBuilder(MediaWebApplication.class, LoadTestWebConfig.class)
+                    .run(properties.entrySet().stream()
+                            .map(property -> "--" + property.getKey() + "=" + property.getValue())
+                            .toArray(String[]::new));
+            String baseUrl = "http://127.0.0.1:" + webApp.getEnvironment().getProperty("local.server.port");
+            log.info("Web app listening on {}", baseUrl);
+
+            functionHost = new FunctionHost(storage, options.getQueueWorkers(), options.getBlobPollMillis(),
+                    options.getIngestion());
+            functionHost.start();
+            if (options.getPreloadBlobs() > 0) {
+                preload(storage, options.getPreloadBlobs());
+                drain(functionHost, options);
+            }
+
+            LoadReport report = new LoadReport();
+            report.sample("web.governor", webApp.getBean(ResourceGovernor.class)::getStats);
+            report.sample("web.cache", webApp.getBean(RenditionCache.class)::getStats);
+            report.sample("functions.governor", FunctionResources.governor()::getStats);
+            report.sample("buffer.pool", RasterBufferPool.shared()::getStats);
+
+            LoadGenerator generator = new LoadGenerator(options, baseUrl);
+            if (options.getWarmupSeconds() > 0) {
+                log.info("Warming up for {} s at {} uploads/s", options.getWarmupSeconds(), options.getRate());
+                generator.run(Duration.ofSeconds(options.getWarmupSeconds()));
+                drain(functionHost, options);
+            }
+
+            log.info("Measuring for {} s at {} uploads/s", options.getDurationSeconds(), options.getRate());
+            int warmupUploads = generator.getStarted();
+            report.start();
+            long loadStart = System.nanoTime();
+            generator.run(Duration.ofSeconds(options.getDurationSeconds()));
+            long drainStart = System.nanoTime();
+            boolean drained = drain(functionHost, options);
+            report.stop();
+
+            Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("loadSeconds", (drainStart - loadStart) / 1e9);
+            summary.put("drainSeconds", (System.nanoTime() - drainStart) / 1e9);
+            summary.put("drained", drained);
+            summary.put("uploadsStarted", generator.getStarted() - warmupUploads);
+            summary.put("visionCalls", visionStub.getCalls());
+            summary.put("visionErrors", visionStub.getErrors());
+            Map<String, Object> results = report.toMap(options, summary);
+            report.print(System.out, results);
+            report.write(Paths.get(options.getReport()), results);
+            log.info("Report written to {}", options.getReport());
+            return drained ? 0 : 1;
+        } finally {
+            if (functionHost != null) {
+                functionHost.close();
+            }
+            if (webApp != null) {
+                webApp.close();
+            }
+            visionStub.close();
+            if (emulator != null) {
+                emulator.close();
+            }
+            LocalStorageEmulator.deleteRecursively(dataDir);
+        }
+    }
+
+    /**
+     * Waits until the functions have been idle for two checks in a row, or the
+     * drain timeout passes.
+     */
+    private static boolean drain(FunctionHost functionHost, LoadTestOptions options) throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(options.getDrainTimeoutSeconds()).toNanos();
+        int idleChecks = 0;
+        while (System.nanoTime() < deadline) {
+            idleChecks = functionHost.isIdle() ? idleChecks + 1 : 0;
+            if (idleChecks == 2) {
+                return true;
+            }
+            Thread.sleep(DRAIN_CHECK_MILLIS);
+        }
+        log.warn("Functions still busy after the {} s drain timeout", options.getDrainTimeoutSeconds());
+        return false;
+    }
+
+    /**
+     * Fills the media container with small blobs marked as web uploads, so
+     * they are dispatched without work but make every container listing
+     * longer, as in a long-lived account.
+     */
+    private static void preload(String storage, int count) throws InterruptedException {
+        log.info("Preloading {} blobs", count);
+        BlobContainerClient container = new BlobServiceClientBuilder()
+                .connectionString(storage)
+                .buildClient()
+                .getBlobContainerClient("media");
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            IntStream.range(0, count).forEach(i -> executor.submit(() -> container.getBlobClient("preload-" + i + ".bin")
+                    .uploadWithResponse(new BlobParallelUploadOptions(BinaryData.fromBytes(new byte[64]))
+                            .setHeaders(new BlobHttpHeaders().setContentType("application/octet-stream"))
+                            .setMetadata(Map.of(UploadRouter.INGESTED_BY_METADATA, UploadRouter.WEB)), null, null)));
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.MINUTES);
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void exec(List<String> command) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        byte[] output = process.getInputStream().readAllBytes();
+        if (process.waitFor() != 0) {
+            throw new IOException("Command failed: " + command.get(0) + "\n" + new String(output));
+        }
+    }
+}
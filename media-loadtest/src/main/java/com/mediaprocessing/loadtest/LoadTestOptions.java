@@ -0,0 +1,175 @@
+package com.mediaprocessing.loadtest;
+
+import com.mediaprocessing.benchmarks.MediaCorpus;
+import lombok.Data;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Command line of a load test run. Every option is {@code --name=value} or
+ * {@code --name value}; mixes are comma-separated {@code key:weight} lists.
+ */
+@Data
+public class LoadTestOptions {
+
+    // Uploads per second, sent open-loop whatever the response times
+    private double rate = 2;
+    private int warmupSeconds = 15;
+    private int durationSeconds = 60;
+    private int drainTimeoutSeconds = 120;
+    // Client requests in flight at most; ticks beyond it are counted as dropped
+    private int concurrency = 64;
+
+    // kind:resolution:weight, kind being image or video
+    private String uploads = "image:SD:45,image:FHD:30,image:UHD:5,video:SD:15,video:HD:5";
+    // ProcessingType:weight, each request drawn from the types that apply to the upload
+    private String process = "RESIZE:15,FILTER:15,FORMAT_CONVERSION:10,WATERMARK:5,IMAGE_ANALYSIS:15,"
+            + "OBJECT_RECOGNITION:5,VIDEO_COMPRESS:10,VIDEO_PREVIEW:5,VIDEO_SPRITE:5,VIDEO_ANALYSIS:5";
+    // Average processing requests per upload; the fraction is drawn at random
+    private double processPerUpload = 1.0;
+    private int videoSeconds = 6;
+
+    private int queueWorkers = Runtime.getRuntime().availableProcessors();
+    // "events" for blob-created notifications, "polling" for container listing like a blob trigger
+    private String ingestion = "events";
+    private int blobPollMillis = 1000;
+    // Blobs written to the media container before the run, so polling scans a realistic container
+    private int preloadBlobs = 0;
+
+    private int visionLatencyMillis = 300;
+    private int visionJitterMillis = 150;
+    private double visionErrorRate = 0;
+
+    // Storage connection string; empty for the in-process stand-in
+    private String storage = "";
+    private String report = "loadtest-report.json";
+    private String logLevel = "WARN";
+    private long seed = MediaCorpus.SEED;
+
+    public static LoadTestOptions parse(String[] args) {
+        LoadTestOptions options = new LoadTestOptions();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + arg);
+            }
+            String name;
+            String value;
+            int equals = arg.indexOf('=');
+            if (equals > 0) {
+                name = arg.substring(2, equals);
+                value = arg.substring(equals + 1);
+            } else if (i + 1 < args.length) {
+                name = arg.substring(2);
+                value = args[++i];
+            } else {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            options.set(name, value);
+        }
+        return options;
+    }
+
+    /**
+     * The options as command line arguments, for the re-launched JVM.
+     */
+    public String[] toArgs() {
+        return new String[] {
+                "--rate=" + rate, "--warmup-seconds=" + warmupSeconds, "--duration-seconds=" + durationSeconds,
+                "--drain-timeout-seconds=" + drainTimeoutSeconds, "--concurrency=" + concurrency,
+                "--uploads=" + uploads, "--process=" + process, "--process-per-upload=" + processPerUpload,
+                "--video-seconds=" + videoSeconds, "--queue-workers=" + queueWorkers,
+                "--ingestion=" + ingestion, "--blob-poll-millis=" + blobPollMillis, "--preload-blobs=" + preloadBlobs,
+                "--vision-latency-millis=" + visionLatencyMillis,
+                "--vision-jitter-millis=" + visionJitterMillis, "--vision-error-rate=" + visionErrorRate,
+                "--storage=" + storage, "--report=" + report, "--log-level=" + logLevel, "--seed=" + seed
+        };
+    }
+
+    public static Map<String, Double> parseMix(String mix) {
+        Map<String, Double> weights = new LinkedHashMap<>();
+        for (String entry : mix.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int colon = entry.lastIndexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("Expected key:weight in mix: " + entry);
+            }
+            weights.put(entry.substring(0, colon), Double.parseDouble(entry.substring(colon + 1)));
+        }
+        return weights;
+    }
+
+    private void set(String name, String value) {
+        switch (name) {
+            case "rate":
+                rate = Double.parseDouble(value);
+                break;
+            case "warmup-seconds":
+                warmupSeconds = Integer.parseInt(value);
+                break;
+            case "duration-seconds":
+                durationSeconds = Integer.parseInt(value);
+                break;
+            case "drain-timeout-seconds":
+                drainTimeoutSeconds = Integer.parseInt(value);
+                break;
+            case "concurrency":
+                concurrency = Integer.parseInt(value);
+                break;
+            case "uploads":
+                uploads = value;
+                break;
+            case "process":
+                process = value;
+                break;
+            case "process-per-upload":
+                processPerUpload = Double.parseDouble(value);
+                break;
+            case "video-seconds":
+                videoSeconds = Integer.parseInt(value);
+                break;
+            case "queue-workers":
+                queueWorkers = Integer.parseInt(value);
+                break;
+            case "ingestion":
+                if (!"events".equals(value) && !"polling".equals(value)) {
+                    throw new IllegalArgumentException("Expected events or polling for --ingestion: " + value);
+                }
+                ingestion = value;
+                break;
+            case "blob-poll-millis":
+                blobPollMillis = Integer.parseInt(value);
+                break;
+            case "preload-blobs":
+                preloadBlobs = Integer.parseInt(value);
+                break;
+            case "vision-latency-millis":
+                visionLatencyMillis = Integer.parseInt(value);
+                break;
+            case "vision-jitter-millis":
+                visionJitterMillis = Integer.parseInt(value);
+                break;
+            case "vision-error-rate":
+                visionErrorRate = Double.parseDouble(value);
+                break;
+            case "storage":
+                storage = value;
+                break;
+            case "report":
+                report = value;
+                break;
+            case "log-level":
+                logLevel = value;
+                break;
+            case "seed":
+                seed = Long.parseLong(value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: --" + name);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.mediaprocessing.loadtest;
+
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Added to the web app when it runs inside the load test: profiles each API
+ * request as a {@code web:*} stage, from multipart parsing to the response.
+ */
+@Configuration
+public class LoadTestWebConfig {
+
+    @Bean
+    public FilterRegistrationBean<OncePerRequestFilter> stageProfilingFilter() {
+        FilterRegistrationBean<OncePerRequestFilter> registration = new FilterRegistrationBean<>(new OncePerRequestFilter() {
+            @Override
+            protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response,
+                                            FilterChain chain) throws ServletException, IOException {
+                StageProfiler.Span span = StageProfiler.start();
+                try {
+                    chain.doFilter(request, response);
+                } finally {
+                    span.end(stage(request), response.getStatus() < 400 ? "success" : "error");
+                }
+            }
+        });
+        registration.addUrlPatterns("/api/media/*");
+        // Ahead of multipart resolution, so parsing the upload counts
+        registration.setOrder(Integer.MIN_VALUE);
+        return registration;
+    }
+
+    private static String stage(HttpServletRequest request) {
+        String uri = request.getRequestURI();
+        if (uri.endsWith("/upload")) {
+            return "web:upload";
+        } else if (uri.endsWith("/process")) {
+            return "web:process";
+        }
+        return "web:other";
+    }
+}
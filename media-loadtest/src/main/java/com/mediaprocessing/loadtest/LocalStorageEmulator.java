@@ -0,0 +1,863 @@
+package com.mediaprocessing.loadtest;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mediaprocessing.common.model.BlobCreatedEvent;
+import io.netty.handler.codec.http.HttpMethod;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+import reactor.netty.http.server.HttpServerRequest;
+import reactor.netty.http.server.HttpServerResponse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * In-process stand-in for Blob and Queue storage, speaking the subset of the
+ * REST API the Azure SDK uses in this project, on two local ports like
+ * Azurite. Blob contents live in files under a temporary directory; blob
+ * properties and queue messages are kept in memory. Requests are not
+ * authenticated, so the development storage key works. It can also stand
+ * in for an Event Grid subscription, queueing a blob-created event for each
+ * blob put in a container. Blocks can be staged and committed as a blob, by
+ * their latest uncommitted version only.
+ */
+@Slf4j
+public class LocalStorageEmulator implements AutoCloseable {
+
+    public static final String ACCOUNT = "devstoreaccount1";
+    // Well-known development storage key, as used with Azurite
+    private static final String ACCOUNT_KEY =
+            "Eby8vdM02xNOcqFlqUwJPLlmEtlCDXJ1OUzFT50uSRZ6IFsuFq2UVErCz4I6tq/K1SZFPTOtr/KBHBeksoGMGw==";
+    private static final String API_VERSION = "2021-12-02";
+    private static final String META_PREFIX = "x-ms-meta-";
+    private static final int MAX_LIST_RESULTS = 5000;
+    private static final DateTimeFormatter RFC_1123 =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+    private static final Pattern MESSAGE_TEXT = Pattern.compile("<MessageText>(.*?)</MessageText>", Pattern.DOTALL);
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+    private static final Pattern BLOCK_LIST_ENTRY = Pattern.compile("<(Latest|Uncommitted)>(.*?)</\\1>");
+
+    private final Path root;
+    private final Map<String, Container> containers = new ConcurrentHashMap<>();
+    private final Map<String, MessageQueue> queues = new ConcurrentHashMap<>();
+    private final AtomicLong etags = new AtomicLong(System.nanoTime());
+    // Container to the queue its blob-created events go to
+    private final Map<String, String> eventQueues = new ConcurrentHashMap<>();
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private DisposableServer blobServer;
+    private DisposableServer queueServer;
+
+    public LocalStorageEmulator(Path root) {
+        this.root = root;
+    }
+
+    public void start(int blobPort, int queuePort) {
+        blobServer = HttpServer.create().host("127.0.0.1").port(blobPort)
+                .handle((request, response) -> serve(request, response, this::handleBlob))
+                .bindNow();
+        queueServer = HttpServer.create().host("127.0.0.1").port(queuePort)
+                .handle((request, response) -> serve(request, response, this::handleQueue))
+                .bindNow();
+        log.info("Storage stand-in listening on blob port {} and queue port {}, data in {}",
+                blobServer.port(), queueServer.port(), root);
+    }
+
+    /**
+     * Connection string for a stand-in on the given ports.
+     */
+    public static String connectionString(int blobPort, int queuePort) {
+        return "DefaultEndpointsProtocol=http;AccountName=" + ACCOUNT + ";AccountKey=" + ACCOUNT_KEY
+                + ";BlobEndpoint=http://127.0.0.1:" + blobPort + "/" + ACCOUNT
+                + ";QueueEndpoint=http://127.0.0.1:" + queuePort + "/" + ACCOUNT + ";";
+    }
+
+    /**
+     * Queues a {@code Microsoft.Storage.BlobCreated} event in the Event Grid
+     * schema on {@code queueName} for every blob put in {@code containerName},
+     * Base64-encoded as the functions' queue trigger expects.
+     */
+    public void publishBlobCreated(String containerName, String queueName) {
+        eventQueues.put(containerName, queueName);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (blobServer != null) {
+            blobServer.disposeNow();
+        }
+        if (queueServer != null) {
+            queueServer.disposeNow();
+        }
+        deleteRecursively(root);
+    }
+
+    @FunctionalInterface
+    private interface Handler {
+        Reply handle(Call call) throws IOException;
+    }
+
+    /**
+     * One parsed request: path segments after the account, query and body.
+     */
+    private static class Call {
+        HttpMethod method;
+        String[] segments;
+        Map<String, String> query;
+        HttpServerRequest request;
+        byte[] body;
+
+        String header(String name) {
+            return request.requestHeaders().get(name);
+        }
+
+        Map<String, String> metadata() {
+            Map<String, String> metadata = new LinkedHashMap<>();
+            // Netty keeps header names as sent, so metadata keys keep their case
+            for (Map.Entry<String, String> header : request.requestHeaders()) {
+                if (header.getKey().regionMatches(true, 0, META_PREFIX, 0, META_PREFIX.length())) {
+                    metadata.put(header.getKey().substring(META_PREFIX.length()), header.getValue());
+                }
+            }
+            return metadata;
+        }
+    }
+
+    private static class Reply {
+        final int status;
+        final Map<String, String> headers = new LinkedHashMap<>();
+        byte[] body;
+
+        Reply(int status) {
+            this.status = status;
+        }
+
+        Reply header(String name, Object value) {
+            headers.put(name, String.valueOf(value));
+            return this;
+        }
+
+        Reply xml(String xml) {
+            body = ("<?xml version=\"1.0\" encoding=\"utf-8\"?>" + xml).getBytes(StandardCharsets.UTF_8);
+            headers.put("Content-Type", "application/xml");
+            return this;
+        }
+    }
+
+    private static class Container {
+        final NavigableMap<String, Blob> blobs = new ConcurrentSkipListMap<>();
+        // Blob name to its staged blocks by ID, in staging order
+        final Map<String, Map<String, Path>> uncommittedBlocks = new ConcurrentHashMap<>();
+        final Instant created = Instant.now();
+        final String etag;
+
+        Container(String etag) {
+            this.etag = etag;
+        }
+    }
+
+    private static class Blob {
+        Path file;
+        long length;
+        String contentType;
+        String cacheControl;
+        String contentDisposition;
+        Map<String, String> metadata;
+        String etag;
+        Instant created;
+        Instant lastModified;
+    }
+
+    private static class Message {
+        final String id = UUID.randomUUID().toString();
+        final String text;
+        final Instant inserted = Instant.now();
+        final Instant expires;
+        Instant visibleAt;
+        String popReceipt = UUID.randomUUID().toString();
+        int dequeueCount;
+
+        Message(String text, Instant visibleAt, Duration ttl) {
+            this.text = text;
+            this.visibleAt = visibleAt;
+            this.expires = inserted.plus(ttl);
+        }
+    }
+
+    private static class MessageQueue {
+        final Map<String, Message> messages = new LinkedHashMap<>();
+    }
+
+    private Mono<Void> serve(HttpServerRequest request, HttpServerResponse response, Handler handler) {
+        return request.receive().aggregate().asByteArray()
+                .defaultIfEmpty(new byte[0])
+                // File access stays off the event loop
+                .publishOn(Schedulers.boundedElastic())
+                .map(body -> {
+                    Call call = new Call();
+                    call.method = request.method();
+                    call.request = request;
+                    call.body = body;
+                    String uri = request.uri();
+                    int question = uri.indexOf('?');
+                    call.query = parseQuery(question >= 0 ? uri.substring(question + 1) : "");
+                    String path = question >= 0 ? uri.substring(0, question) : uri;
+                    // Drop the leading "/account"
+                    String[] parts = path.split("/", 3);
+                    call.segments = parts.length > 2 && !parts[2].isEmpty()
+                            ? parts[2].split("/", 2) : new String[0];
+                    for (int i = 0; i < call.segments.length; i++) {
+                        call.segments[i] = URLDecoder.decode(call.segments[i], StandardCharsets.UTF_8);
+                    }
+                    try {
+                        return handler.handle(call);
+                    } catch (Exception e) {
+                        log.warn("Storage stand-in failed on {} {}", request.method(), uri, e);
+                        return error(500, "InternalError", e.getMessage());
+                    }
+                })
+                .flatMap(reply -> {
+                    response.status(reply.status);
+                    response.header("x-ms-request-id", UUID.randomUUID().toString());
+                    response.header("x-ms-version", API_VERSION);
+                    response.header("Date", RFC_1123.format(Instant.now()));
+                    reply.headers.forEach(response::header);
+                    byte[] body = reply.body != null ? reply.body : new byte[0];
+                    if (request.method() == HttpMethod.HEAD) {
+                        return response.send().then();
+                    }
+                    response.header("Content-Length", String.valueOf(body.length));
+                    return response.sendByteArray(Mono.just(body)).then();
+                });
+    }
+
+    // ---- Blob service ----
+
+    private Reply handleBlob(Call call) throws IOException {
+        if (call.segments.length == 0) {
+            return error(400, "UnsupportedOperation", "Account-level operations are not supported");
+        }
+        String containerName = call.segments[0];
+        if (call.segments.length == 1) {
+            return handleContainer(call, containerName);
+        }
+        Container container = containers.get(containerName);
+        if (container == null) {
+            return error(404, "ContainerNotFound", "The specified container does not exist.");
+        }
+        String blobName = call.segments[1];
+        String comp = call.query.get("comp");
+        Blob blob = container.blobs.get(blobName);
+
+        if (call.method == HttpMethod.PUT && "block".equals(comp)) {
+            return putBlock(call, container, blobName);
+        }
+        if (call.method == HttpMethod.PUT && "blocklist".equals(comp)) {
+            return putBlockList(call, container, blobName, blob);
+        }
+        if (call.method == HttpMethod.GET && "blocklist".equals(comp)) {
+            return getBlockList(container, blobName, blob);
+        }
+        if (call.method == HttpMethod.PUT && comp == null) {
+            Reply unmet = checkConditions(call, blob);
+            return unmet != null ? unmet : putBlob(call, container, blobName, blob);
+        }
+        if (blob == null) {
+            return error(404, "BlobNotFound", "The specified blob does not exist.");
+        }
+        if (call.method == HttpMethod.PUT && "properties".equals(comp)) {
+            synchronized (blob) {
+                readHttpHeaders(call, blob);
+                touch(blob);
+            }
+            return blobWriteReply(200, blob);
+        }
+        if (call.method == HttpMethod.PUT && "metadata".equals(comp)) {
+            synchronized (blob) {
+                Reply unmet = checkConditions(call, container.blobs.get(blobName) == blob ? blob : null);
+                if (unmet != null) {
+                    return unmet;
+                }
+                blob.metadata = call.metadata();
+                touch(blob);
+            }
+            return blobWriteReply(200, blob);
+        }
+        if (call.method == HttpMethod.HEAD || (call.method == HttpMethod.GET && comp == null)) {
+            return getBlob(call, blob);
+        }
+        if (call.method == HttpMethod.DELETE) {
+            container.blobs.remove(blobName, blob);
+            Files.deleteIfExists(blob.file);
+            return new Reply(202);
+        }
+        return error(400, "UnsupportedOperation", "Unsupported blob operation");
+    }
+
+    private Reply handleContainer(Call call, String name) {
+        boolean isContainer = "container".equals(call.query.get("restype"));
+        if (!isContainer) {
+            return error(400, "UnsupportedOperation", "Missing restype=container");
+        }
+        Container container = containers.get(name);
+        if (call.method == HttpMethod.PUT) {
+            Container created = new Container(nextEtag());
+            if (containers.putIfAbsent(name, created) != null) {
+                return error(409, "ContainerAlreadyExists", "The specified container already exists.");
+            }
+            return new Reply(201).header("ETag", created.etag).header("Last-Modified", RFC_1123.format(created.created));
+        }
+        if (container == null) {
+            return error(404, "ContainerNotFound", "The specified container does not exist.");
+        }
+        if (call.method == HttpMethod.GET && "list".equals(call.query.get("comp"))) {
+            return listBlobs(call, name, container);
+        }
+        if (call.method == HttpMethod.GET || call.method == HttpMethod.HEAD) {
+            return new Reply(200)
+                    .header("ETag", container.etag)
+                    .header("Last-Modified", RFC_1123.format(container.created))
+                    .header("x-ms-lease-status", "unlocked")
+                    .header("x-ms-lease-state", "available")
+                    .header("x-ms-has-immutability-policy", false)
+                    .header("x-ms-has-legal-hold", false);
+        }
+        if (call.method == HttpMethod.DELETE) {
+            containers.remove(name);
+            container.blobs.values().forEach(blob -> blob.file.toFile().delete());
+            return new Reply(202);
+        }
+        return error(400, "UnsupportedOperation", "Unsupported container operation");
+    }
+
+    /**
+     * The error for an unmet If-None-Match: * or If-Match condition against
+     * {@code blob}, the current version or null, or null if they are met.
+     */
+    private Reply checkConditions(Call call, Blob blob) {
+        if (blob != null && "*".equals(call.header("If-None-Match"))) {
+            return error(409, "BlobAlreadyExists", "The specified blob already exists.");
+        }
+        String ifMatch = call.header("If-Match");
+        // Clients may send the ETag with or without its quotes
+        if (ifMatch != null && (blob == null || !"*".equals(ifMatch)
+                && !ifMatch.replace("\"", "").equals(blob.etag.replace("\"", "")))) {
+            return error(412, "ConditionNotMet", "The condition specified using HTTP conditional header(s) is not met.");
+        }
+        return null;
+    }
+
+    private Reply putBlob(Call call, Container container, String name, Blob previous) throws IOException {
+        String blobType = call.header("x-ms-blob-type");
+        if (blobType != null && !"BlockBlob".equals(blobType)) {
+            return error(400, "UnsupportedBlobType", "Only block blobs are supported");
+        }
+        Path directory = root.resolve(call.segments[0]);
+        Files.createDirectories(directory);
+        Blob blob = new Blob();
+        blob.file = directory.resolve(UUID.randomUUID().toString());
+        Files.write(blob.file, call.body);
+        blob.length = call.body.length;
+        readHttpHeaders(call, blob);
+        blob.metadata = call.metadata();
+        blob.created = previous != null ? previous.created : Instant.now();
+        touch(blob);
+        if (call.header("If-None-Match") != null || call.header("If-Match") != null) {
+            // Conditional puts replace only the version their conditions were checked against
+            Reply unmet = previous == null
+                    ? container.blobs.putIfAbsent(name, blob) == null ? null
+                            : error(409, "BlobAlreadyExists", "The specified blob already exists.")
+                    : replace(call, container, name, previous, blob);
+            if (unmet != null) {
+                Files.deleteIfExists(blob.file);
+                return unmet;
+            }
+        } else {
+            container.blobs.put(name, blob);
+        }
+        if (previous != null) {
+            Files.deleteIfExists(previous.file);
+        }
+        publishBlobCreated(call.segments[0], name, blob);
+        return blobWriteReply(201, blob);
+    }
+
+    private Reply replace(Call call, Container container, String name, Blob previous, Blob blob) {
+        // Metadata writes change the ETag under the same lock
+        synchronized (previous) {
+            Reply unmet = checkConditions(call, container.blobs.get(name) == previous ? previous : null);
+            if (unmet == null && !container.blobs.replace(name, previous, blob)) {
+                unmet = error(412, "ConditionNotMet", "The condition specified using HTTP conditional header(s) is not met.");
+            }
+            return unmet;
+        }
+    }
+
+    private Reply putBlock(Call call, Container container, String name) throws IOException {
+        String blockId = call.query.get("blockid");
+        if (blockId == null) {
+            return error(400, "InvalidQueryParameterValue", "Missing blockid");
+        }
+        Path directory = root.resolve(call.segments[0]);
+        Files.createDirectories(directory);
+        Path file = directory.resolve(UUID.randomUUID().toString());
+        Files.write(file, call.body);
+        Map<String, Path> blocks = container.uncommittedBlocks.computeIfAbsent(name, key -> new LinkedHashMap<>());
+        Path replaced;
+        synchronized (blocks) {
+            replaced = blocks.put(blockId, file);
+        }
+        if (replaced != null) {
+            Files.deleteIfExists(replaced);
+        }
+        return new Reply(201).header("x-ms-request-server-encrypted", false);
+    }
+
+    private Reply putBlockList(Call call, Container container, String name, Blob previous) throws IOException {
+        Map<String, Path> blocks = container.uncommittedBlocks.getOrDefault(name, Map.of());
+        List<Path> parts = new ArrayList<>();
+        synchronized (blocks) {
+            Matcher matcher = BLOCK_LIST_ENTRY.matcher(new String(call.body, StandardCharsets.UTF_8));
+            while (matcher.find()) {
+                Path part = blocks.get(matcher.group(2));
+                if (part == null) {
+                    return error(400, "InvalidBlockList", "The specified block list is invalid.");
+                }
+                parts.add(part);
+            }
+        }
+        Path directory = root.resolve(call.segments[0]);
+        Blob blob = new Blob();
+        blob.file = directory.resolve(UUID.randomUUID().toString());
+        try (OutputStream out = Files.newOutputStream(blob.file)) {
+            for (Path part : parts) {
+                Files.copy(part, out);
+            }
+        }
+        blob.length = Files.size(blob.file);
+        readHttpHeaders(call, blob);
+        blob.metadata = call.metadata();
+        blob.created = previous != null ? previous.created : Instant.now();
+        touch(blob);
+        container.blobs.put(name, blob);
+        if (previous != null) {
+            Files.deleteIfExists(previous.file);
+        }
+        // Committing discards the blocks not in the list, as the service does
+        Map<String, Path> staged = container.uncommittedBlocks.remove(name);
+        if (staged != null) {
+            for (Path part : staged.values()) {
+                Files.deleteIfExists(part);
+            }
+        }
+        publishBlobCreated(call.segments[0], name, blob);
+        return blobWriteReply(201, blob);
+    }
+
+    private Reply getBlockList(Container container, String name, Blob blob) throws IOException {
+        Map<String, Path> blocks = container.uncommittedBlocks.get(name);
+        if (blob == null && blocks == null) {
+            return error(404, "BlobNotFound", "The specified blob does not exist.");
+        }
+        // Committed blocks are not tracked; a committed blob lists none
+        StringBuilder xml = new StringBuilder("<BlockList><CommittedBlocks /><UncommittedBlocks>");
+        if (blocks != null) {
+            synchronized (blocks) {
+                for (Map.Entry<String, Path> block : blocks.entrySet()) {
+                    xml.append("<Block><Name>").append(escape(block.getKey())).append("</Name><Size>")
+                            .append(Files.size(block.getValue())).append("</Size></Block>");
+                }
+            }
+        }
+        xml.append("</UncommittedBlocks></BlockList>");
+        Reply reply = new Reply(200).xml(xml.toString());
+        if (blob != null) {
+            reply.header("ETag", blob.etag).header("Last-Modified", RFC_1123.format(blob.lastModified))
+                    .header("x-ms-blob-content-length", blob.length);
+        }
+        return reply;
+    }
+
+    private void publishBlobCreated(String containerName, String name, Blob blob) throws JsonProcessingException {
+        String queueName = eventQueues.get(containerName);
+        if (queueName == null) {
+            return;
+        }
+        BlobCreatedEvent event = BlobCreatedEvent.builder()
+                .id(UUID.randomUUID().toString())
+                .eventType(BlobCreatedEvent.BLOB_CREATED)
+                .subject(BlobCreatedEvent.CONTAINER_PREFIX + containerName + BlobCreatedEvent.BLOB_SEPARATOR + name)
+                .eventTime(blob.lastModified.toString())
+                .data(BlobCreatedEvent.BlobData.builder()
+                        .api("PutBlob")
+                        .url("http://127.0.0.1:" + blobServer.port() + "/" + ACCOUNT + "/" + containerName + "/"
+                                + URLEncoder.encode(name, StandardCharsets.UTF_8).replace("+", "%20"))
+                        .contentType(blob.contentType)
+                        .contentLength(blob.length)
+                        .etag(blob.etag)
+                        .build())
+                .build();
+        String text = Base64.getEncoder().encodeToString(objectMapper.writeValueAsBytes(event));
+        MessageQueue queue = queues.computeIfAbsent(queueName, key -> new MessageQueue());
+        synchronized (queue) {
+            Message message = new Message(text, Instant.now(), Duration.ofDays(7));
+            queue.messages.put(message.id, message);
+        }
+    }
+
+    private Reply getBlob(Call call, Blob blob) throws IOException {
+        Blob snapshot;
+        synchronized (blob) {
+            snapshot = copy(blob);
+        }
+        // Revalidation of a cached copy
+        String ifNoneMatch = call.header("If-None-Match");
+        if (ifNoneMatch != null && ifNoneMatch.replace("\"", "").equals(snapshot.etag.replace("\"", ""))) {
+            return new Reply(304).header("ETag", snapshot.etag);
+        }
+        long start = 0;
+        long end = snapshot.length - 1;
+        String range = call.header("x-ms-range") != null ? call.header("x-ms-range") : call.header("Range");
+        boolean partial = false;
+        if (range != null) {
+            Matcher matcher = RANGE.matcher(range);
+            if (matcher.matches()) {
+                start = Long.parseLong(matcher.group(1));
+                if (!matcher.group(2).isEmpty()) {
+                    end = Math.min(end, Long.parseLong(matcher.group(2)));
+                }
+                if (start >= snapshot.length && snapshot.length > 0) {
+                    return error(416, "InvalidRange", "The range specified is invalid for the current size of the resource.");
+                }
+                partial = true;
+            }
+        }
+        long length = Math.max(0, end - start + 1);
+
+        Reply reply = new Reply(partial ? 206 : 200)
+                .header("Content-Type", snapshot.contentType)
+                .header("ETag", snapshot.etag)
+                .header("Last-Modified", RFC_1123.format(snapshot.lastModified))
+                .header("x-ms-creation-time", RFC_1123.format(snapshot.created))
+                .header("x-ms-blob-type", "BlockBlob")
+                .header("x-ms-lease-status", "unlocked")
+                .header("x-ms-lease-state", "available")
+                .header("x-ms-server-encrypted", false)
+                .header("Accept-Ranges", "bytes");
+        if (snapshot.cacheControl != null) {
+            reply.header("Cache-Control", snapshot.cacheControl);
+        }
+        if (snapshot.contentDisposition != null) {
+            reply.header("Content-Disposition", snapshot.contentDisposition);
+        }
+        snapshot.metadata.forEach((key, value) -> reply.header(META_PREFIX + key, value));
+        if (partial) {
+            reply.header("Content-Range", "bytes " + start + "-" + end + "/" + snapshot.length);
+        }
+        if (call.method == HttpMethod.HEAD) {
+            reply.header("Content-Length", snapshot.length);
+            return reply;
+        }
+        reply.body = read(snapshot.file, start, (int) length);
+        return reply;
+    }
+
+    private Reply listBlobs(Call call, String name, Container container) {
+        String prefix = call.query.getOrDefault("prefix", "");
+        String marker = call.query.get("marker");
+        int maxResults = Integer.parseInt(call.query.getOrDefault("maxresults", String.valueOf(MAX_LIST_RESULTS)));
+        boolean includeMetadata = call.query.getOrDefault("include", "").contains("metadata");
+
+        StringBuilder xml = new StringBuilder("<EnumerationResults ServiceEndpoint=\"\" ContainerName=\"")
+                .append(escape(name)).append("\"><Prefix>").append(escape(prefix)).append("</Prefix>")
+                .append("<MaxResults>").append(maxResults).append("</MaxResults><Blobs>");
+        NavigableMap<String, Blob> candidates = marker != null
+                ? container.blobs.tailMap(marker, true) : container.blobs;
+        String nextMarker = "";
+        int count = 0;
+        for (Map.Entry<String, Blob> entry : candidates.entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) {
+                continue;
+            }
+            if (count == maxResults) {
+                nextMarker = entry.getKey();
+                break;
+            }
+            Blob blob;
+            synchronized (entry.getValue()) {
+                blob = copy(entry.getValue());
+            }
+            xml.append("<Blob><Name>").append(escape(entry.getKey())).append("</Name><Properties>")
+                    .append("<Creation-Time>").append(RFC_1123.format(blob.created)).append("</Creation-Time>")
+                    .append("<Last-Modified>").append(RFC_1123.format(blob.lastModified)).append("</Last-Modified>")
+                    .append("<Etag>").append(escape(blob.etag)).append("</Etag>")
+                    .append("<Content-Length>").append(blob.length).append("</Content-Length>")
+                    .append("<Content-Type>").append(escape(blob.contentType)).append("</Content-Type>")
+                    .append("<BlobType>BlockBlob</BlobType><LeaseStatus>unlocked</LeaseStatus>")
+                    .append("<LeaseState>available</LeaseState><ServerEncrypted>false</ServerEncrypted>")
+                    .append("</Properties>");
+            if (includeMetadata) {
+                xml.append("<Metadata>");
+                blob.metadata.forEach((key, value) ->
+                        xml.append('<').append(key).append('>').append(escape(value)).append("</").append(key).append('>'));
+                xml.append("</Metadata>");
+            }
+            xml.append("</Blob>");
+            count++;
+        }
+        xml.append("</Blobs><NextMarker>").append(escape(nextMarker)).append("</NextMarker></EnumerationResults>");
+        return new Reply(200).xml(xml.toString());
+    }
+
+    private void readHttpHeaders(Call call, Blob blob) {
+        String contentType = call.header("x-ms-blob-content-type");
+        blob.contentType = contentType != null ? contentType : "application/octet-stream";
+        blob.cacheControl = call.header("x-ms-blob-cache-control");
+        blob.contentDisposition = call.header("x-ms-blob-content-disposition");
+    }
+
+    private void touch(Blob blob) {
+        blob.etag = nextEtag();
+        blob.lastModified = Instant.now();
+    }
+
+    private Reply blobWriteReply(int status, Blob blob) {
+        return new Reply(status)
+                .header("ETag", blob.etag)
+                .header("Last-Modified", RFC_1123.format(blob.lastModified))
+                .header("x-ms-request-server-encrypted", false);
+    }
+
+    private static Blob copy(Blob blob) {
+        Blob copy = new Blob();
+        copy.file = blob.file;
+        copy.length = blob.length;
+        copy.contentType = blob.contentType;
+        copy.cacheControl = blob.cacheControl;
+        copy.contentDisposition = blob.contentDisposition;
+        copy.metadata = new LinkedHashMap<>(blob.metadata);
+        copy.etag = blob.etag;
+        copy.created = blob.created;
+        copy.lastModified = blob.lastModified;
+        return copy;
+    }
+
+    private static byte[] read(Path file, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (buffer.hasRemaining() && channel.read(buffer, offset + buffer.position()) >= 0) {
+                // Keep reading until the range is filled
+            }
+        }
+        return buffer.array();
+    }
+
+    // ---- Queue service ----
+
+    private Reply handleQueue(Call call) {
+        if (call.segments.length == 0) {
+            return error(400, "UnsupportedOperation", "Account-level operations are not supported");
+        }
+        String queueName = call.segments[0];
+        if (call.segments.length == 1) {
+            if (call.method == HttpMethod.PUT) {
+                return queues.putIfAbsent(queueName, new MessageQueue()) == null ? new Reply(201) : new Reply(204);
+            }
+            MessageQueue queue = queues.get(queueName);
+            if (queue == null) {
+                return error(404, "QueueNotFound", "The specified queue does not exist.");
+            }
+            if (call.method == HttpMethod.DELETE) {
+                queues.remove(queueName);
+                return new Reply(204);
+            }
+            synchronized (queue) {
+                expire(queue);
+                return new Reply(200).header("x-ms-approximate-messages-count", queue.messages.size());
+            }
+        }
+
+        MessageQueue queue = queues.get(queueName);
+        if (queue == null) {
+            return error(404, "QueueNotFound", "The specified queue does not exist.");
+        }
+        String rest = call.segments[1];
+        String messageId = rest.startsWith("messages/") ? rest.substring("messages/".length()) : null;
+        if (!rest.equals("messages") && messageId == null) {
+            return error(400, "UnsupportedOperation", "Unsupported queue operation");
+        }
+        synchronized (queue) {
+            expire(queue);
+            if (messageId == null) {
+                if (call.method == HttpMethod.POST) {
+                    return putMessage(call, queue);
+                }
+                if (call.method == HttpMethod.GET) {
+                    return getMessages(call, queue);
+                }
+                if (call.method == HttpMethod.DELETE) {
+                    queue.messages.clear();
+                    return new Reply(204);
+                }
+            } else {
+                Message message = queue.messages.get(messageId);
+                if (message == null || !message.popReceipt.equals(call.query.get("popreceipt"))) {
+                    return error(404, "MessageNotFound", "The specified message does not exist.");
+                }
+                if (call.method == HttpMethod.DELETE) {
+                    queue.messages.remove(messageId);
+                    return new Reply(204);
+                }
+                if (call.method == HttpMethod.PUT) {
+                    // Update: only the visibility matters here
+                    message.visibleAt = Instant.now().plusSeconds(
+                            Long.parseLong(call.query.getOrDefault("visibilitytimeout", "0")));
+                    message.popReceipt = UUID.randomUUID().toString();
+                    return new Reply(204)
+                            .header("x-ms-popreceipt", message.popReceipt)
+                            .header("x-ms-time-next-visible", RFC_1123.format(message.visibleAt));
+                }
+            }
+        }
+        return error(400, "UnsupportedOperation", "Unsupported queue operation");
+    }
+
+    private Reply putMessage(Call call, MessageQueue queue) {
+        Matcher matcher = MESSAGE_TEXT.matcher(new String(call.body, StandardCharsets.UTF_8));
+        String text = matcher.find() ? unescape(matcher.group(1)) : "";
+        long ttl = Long.parseLong(call.query.getOrDefault("messagettl", String.valueOf(Duration.ofDays(7).getSeconds())));
+        Message message = new Message(text,
+                Instant.now().plusSeconds(Long.parseLong(call.query.getOrDefault("visibilitytimeout", "0"))),
+                ttl < 0 ? Duration.ofDays(365 * 100) : Duration.ofSeconds(ttl));
+        queue.messages.put(message.id, message);
+        return new Reply(201).xml("<QueueMessagesList>" + messageXml(message, false) + "</QueueMessagesList>");
+    }
+
+    private Reply getMessages(Call call, MessageQueue queue) {
+        int count = Integer.parseInt(call.query.getOrDefault("numofmessages", "1"));
+        boolean peek = "true".equals(call.query.get("peekonly"));
+        long visibilityTimeout = Long.parseLong(call.query.getOrDefault("visibilitytimeout", "30"));
+        Instant now = Instant.now();
+        StringBuilder xml = new StringBuilder("<QueueMessagesList>");
+        int found = 0;
+        for (Message message : queue.messages.values()) {
+            if (found == count) {
+                break;
+            }
+            if (message.visibleAt.isAfter(now)) {
+                continue;
+            }
+            if (!peek) {
+                message.dequeueCount++;
+                message.visibleAt = now.plusSeconds(visibilityTimeout);
+                message.popReceipt = UUID.randomUUID().toString();
+            }
+            xml.append(messageXml(message, true));
+            found++;
+        }
+        return new Reply(200).xml(xml.append("</QueueMessagesList>").toString());
+    }
+
+    private static String messageXml(Message message, boolean withText) {
+        StringBuilder xml = new StringBuilder("<QueueMessage><MessageId>").append(message.id).append("</MessageId>")
+                .append("<InsertionTime>").append(RFC_1123.format(message.inserted)).append("</InsertionTime>")
+                .append("<ExpirationTime>").append(RFC_1123.format(message.expires)).append("</ExpirationTime>")
+                .append("<PopReceipt>").append(message.popReceipt).append("</PopReceipt>")
+                .append("<TimeNextVisible>").append(RFC_1123.format(message.visibleAt)).append("</TimeNextVisible>");
+        if (withText) {
+            xml.append("<DequeueCount>").append(message.dequeueCount).append("</DequeueCount>")
+                    .append("<MessageText>").append(escape(message.text)).append("</MessageText>");
+        }
+        return xml.append("</QueueMessage>").toString();
+    }
+
+    private static void expire(MessageQueue queue) {
+        Instant now = Instant.now();
+        Iterator<Message> messages = queue.messages.values().iterator();
+        while (messages.hasNext()) {
+            if (messages.next().expires.isBefore(now)) {
+                messages.remove();
+            }
+        }
+    }
+
+    // ---- Helpers ----
+
+    private String nextEtag() {
+        return "\"0x" + Long.toHexString(etags.incrementAndGet()).toUpperCase(Locale.ROOT) + "\"";
+    }
+
+    private static Reply error(int status, String code, String message) {
+        return new Reply(status)
+                .header("x-ms-error-code", code)
+                .xml("<Error><Code>" + code + "</Code><Message>" + escape(message) + "</Message></Error>");
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> parameters = new HashMap<>();
+        for (String pair : query.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int equals = pair.indexOf('=');
+            String key = URLDecoder.decode(equals >= 0 ? pair.substring(0, equals) : pair, StandardCharsets.UTF_8);
+            String value = equals >= 0 ? URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8) : "";
+            parameters.put(key.toLowerCase(Locale.ROOT), value);
+        }
+        return parameters;
+    }
+
+    private static String escape(String text) {
+        if (text == null) {
+            return "";
+        }
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;")
+                .replace("\"", "&quot;").replace("'", "&apos;");
+    }
+
+    private static String unescape(String text) {
+        return text.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"")
+                .replace("&apos;", "'").replace("&amp;", "&");
+    }
+
+    static void deleteRecursively(Path directory) throws IOException {
+        if (Files.exists(directory)) {
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.mediaprocessing.loadtest;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.concurrent.Callable;
+
+/**
+ * Wall time, CPU time and allocated bytes of one pipeline stage, measured on
+ * the thread that runs it. Work the stage hands to other threads (the Azure
+ * SDK's reactor threads, FFmpeg's native threads) is not included.
+ */
+final class StageProfiler {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    static {
+        if (THREADS.isThreadAllocatedMemorySupported()) {
+            THREADS.setThreadAllocatedMemoryEnabled(true);
+        }
+        if (THREADS.isCurrentThreadCpuTimeSupported()) {
+            THREADS.setThreadCpuTimeEnabled(true);
+        }
+    }
+
+    private StageProfiler() {
+    }
+
+    /**
+     * A measurement started on the current thread.
+     */
+    static final class Span {
+        private final long startNanos = System.nanoTime();
+        private final long startCpu = THREADS.getCurrentThreadCpuTime();
+        private final long startAllocated = THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+
+        /**
+         * Records the stage; must be called on the thread that started it.
+         */
+        void end(String stage, String outcome) {
+            long cpu = THREADS.getCurrentThreadCpuTime() - startCpu;
+            long allocated = THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()) - startAllocated;
+            Timer.builder("loadtest.stage")
+                    .tags("stage", stage, "outcome", outcome)
+                    .register(Metrics.globalRegistry)
+                    .record(Duration.ofNanos(System.nanoTime() - startNanos));
+            DistributionSummary.builder("loadtest.stage.cpu")
+                    .baseUnit("milliseconds")
+                    .tags("stage", stage)
+                    .register(Metrics.globalRegistry)
+                    .record(cpu / 1_000_000.0);
+            DistributionSummary.builder("loadtest.stage.allocated")
+                    .baseUnit("bytes")
+                    .tags("stage", stage)
+                    .register(Metrics.globalRegistry)
+                    .record(allocated);
+        }
+    }
+
+    static Span start() {
+        return new Span();
+    }
+
+    static <T> T measure(String stage, Callable<T> work) throws Exception {
+        Span span = start();
+        String outcome = "error";
+        try {
+            T result = work.call();
+            outcome = "success";
+            return result;
+        } finally {
+            span.end(stage, outcome);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.mediaprocessing.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stand-in for the Image Analysis endpoint: answers
+ * {@code /computervision/imageanalysis:analyze} with a fixed result for the
+ * requested features after a configurable latency, and fails a configurable
+ * share of calls with 503. The SDK only sends keys over HTTPS, so the stub
+ * serves TLS with the load test's self-signed certificate.
+ */
+@Slf4j
+public class VisionStub implements AutoCloseable {
+
+    private static final String ANALYZE_PATH = "/computervision/imageanalysis:analyze";
+
+    private final int latencyMillis;
+    private final int jitterMillis;
+    private final double errorRate;
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    private HttpsServer server;
+    private ExecutorService executor;
+
+    public VisionStub(int latencyMillis, int jitterMillis, double errorRate) {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        this.errorRate = errorRate;
+    }
+
+    public void start(int port, Path keyStore, char[] password) throws IOException, GeneralSecurityException {
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        try (InputStream inputStream = Files.newInputStream(keyStore)) {
+            store.load(inputStream, password);
+        }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(store, password);
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagers.getKeyManagers(), null, null);
+
+        server = HttpsServer.create(new InetSocketAddress("127.0.0.1", port), 256);
+        server.setHttpsConfigurator(new HttpsConfigurator(sslContext));
+        // Threads mostly sleep out the simulated latency
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+        log.info("Vision stub listening on port {}", server.getAddress().getPort());
+    }
+
+    public String getEndpoint() {
+        return "https://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    public long getCalls() {
+        return calls.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    @Override
+    public void close() {
+        if (server != null) {
+            server.stop(0);
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            byte[] image = exchange.getRequestBody().readAllBytes();
+            calls.incrementAndGet();
+            // Endpoints end in a slash, so the request line has //computervision/..., which URI reads as a host
+            String target = exchange.getRequestURI().toString().split("\\?", 2)[0];
+            if (!"POST".equals(exchange.getRequestMethod()) || !target.endsWith(ANALYZE_PATH)) {
+                send(exchange, 404, "{\"error\":{\"code\":\"NotFound\",\"message\":\"Resource not found\"}}");
+                return;
+            }
+
+            int delay = latencyMillis + (jitterMillis > 0 ? ThreadLocalRandom.current().nextInt(jitterMillis + 1) : 0);
+            Thread.sleep(delay);
+
+            if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                errors.incrementAndGet();
+                send(exchange, 503, "{\"error\":{\"code\":\"ServiceUnavailable\",\"message\":\"Simulated failure\"}}");
+                return;
+            }
+            send(exchange, 200, analysis(features(exchange.getRequestURI().getRawQuery()), dimensions(image)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Set<String> features(String query) {
+        Set<String> features = new HashSet<>();
+        if (query == null) {
+            return features;
+        }
+        for (String parameter : query.split("&")) {
+            if (parameter.startsWith("features=")) {
+                features.addAll(Arrays.asList(parameter.substring("features=".length()).toLowerCase().split("%2c|,")));
+            }
+        }
+        return features;
+    }
+
+    private static int[] dimensions(byte[] image) {
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(image))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (readers.hasNext()) {
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(input);
+                    return new int[] {reader.getWidth(0), reader.getHeight(0)};
+                } finally {
+                    reader.dispose();
+                }
+            }
+        } catch (IOException e) {
+            log.debug("Could not read image dimensions: {}", e.getMessage());
+        }
+        return new int[] {1, 1};
+    }
+
+    private static String analysis(Set<String> features, int[] size) {
+        int width = size[0];
+        int height = size[1];
+        String box = "{\"x\":" + width / 4 + ",\"y\":" + height / 4 + ",\"w\":" + Math.max(1, width / 2)
+                + ",\"h\":" + Math.max(1, height / 2) + "}";
+        String polygon = "[{\"x\":10,\"y\":10},{\"x\":200,\"y\":10},{\"x\":200,\"y\":40},{\"x\":10,\"y\":40}]";
+
+        StringBuilder json = new StringBuilder("{\"modelVersion\":\"2023-10-01\",\"metadata\":{\"width\":")
+                .append(width).append(",\"height\":").append(height).append('}');
+        if (features.contains("caption")) {
+            json.append(",\"captionResult\":{\"text\":\"a colorful abstract pattern\",\"confidence\":0.82}");
+        }
+        if (features.contains("densecaptions")) {
+            json.append(",\"denseCaptionsResult\":{\"values\":[{\"text\":\"a colorful abstract pattern\",")
+                    .append("\"confidence\":0.82,\"boundingBox\":").append(box).append("}]}");
+        }
+        if (features.contains("tags")) {
+            json.append(",\"tagsResult\":{\"values\":[{\"name\":\"abstract\",\"confidence\":0.97},")
+                    .append("{\"name\":\"colorfulness\",\"confidence\":0.91},{\"name\":\"pattern\",\"confidence\":0.88},")
+                    .append("{\"name\":\"art\",\"confidence\":0.74}]}");
+        }
+        if (features.contains("objects")) {
+            json.append(",\"objectsResult\":{\"values\":[{\"boundingBox\":").append(box)
+                    .append(",\"tags\":[{\"name\":\"circle\",\"confidence\":0.66}]}]}");
+        }
+        if (features.contains("people")) {
+            json.append(",\"peopleResult\":{\"values\":[]}");
+        }
+        if (features.contains("read")) {
+            json.append(",\"readResult\":{\"blocks\":[{\"lines\":[{\"text\":\"Media benchmark corpus\",")
+                    .append("\"boundingPolygon\":").append(polygon).append(",\"words\":[{\"text\":\"Media\",")
+                    .append("\"boundingPolygon\":").append(polygon).append(",\"confidence\":0.99}]}]}]}");
+        }
+        if (features.contains("smartcrops")) {
+            json.append(",\"smartCropsResult\":{\"values\":[{\"aspectRatio\":1.0,\"boundingBox\":").append(box).append("}]}");
+        }
+        return json.append('}').toString();
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(bytes);
+        }
+    }
+}
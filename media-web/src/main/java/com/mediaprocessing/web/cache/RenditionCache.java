@@ -0,0 +1,327 @@
+package com.mediaprocessing.web.cache;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded local disk cache for thumbnail and processed media bytes.
+ * Eviction is segmented LRU: new entries land in a probation segment and are
+ * promoted to the protected segment when they are requested again, so a burst of
+ * one-off requests cannot flush the thumbnails the gallery keeps asking for.
+ * <p>
+ * Each entry keeps the ETag of the blob it was read from. Once an entry is
+ * older than the revalidation time, the caller checks the blob's ETag again,
+ * so a thumbnail or rendition regenerated by the functions replaces the
+ * cached copy instead of being shadowed by it.
+ */
+@Component
+@Slf4j
+public class RenditionCache {
+
+    @Value("${media.cache.directory:${java.io.tmpdir}/media-cache}")
+    private String cacheDirectory;
+
+    @Value("${media.cache.max-size-mb:512}")
+    private long maxSizeMb;
+
+    @Value("${media.cache.protected-ratio:0.8}")
+    private double protectedRatio;
+
+    @Value("${media.cache.revalidate-seconds:30}")
+    private long revalidateSeconds;
+
+    // Both segments are kept in access order; the eldest entry is the LRU victim
+    private final LinkedHashMap<String, CacheEntry> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, CacheEntry> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+
+    private Path directory;
+    private long maxSizeBytes;
+    private long maxProtectedBytes;
+    private long probationBytes;
+    private long protectedBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong bytesServed = new AtomicLong();
+
+    @PostConstruct
+    public void init() throws IOException {
+        directory = Paths.get(cacheDirectory);
+        Files.createDirectories(directory);
+        maxSizeBytes = maxSizeMb * 1024 * 1024;
+        maxProtectedBytes = (long) (maxSizeBytes * protectedRatio);
+
+        // Files left over from a previous run are not indexed, so remove them
+        try (var files = Files.list(directory)) {
+            files.forEach(this::deleteQuietly);
+        }
+
+        log.info("Rendition cache initialized: directory={}, maxSize={} MB", directory, maxSizeMb);
+    }
+
+    public void put(String key, byte[] data, String contentType, String etag) throws IOException {
+        if (data.length > maxSizeBytes) {
+            log.debug("Rendition too large to cache: {} ({} bytes)", key, data.length);
+            return;
+        }
+        store(key, data, contentType, etag);
+    }
+
+    /**
+     * Stores freshly loaded bytes and opens them for the request that loaded them,
+     * without counting that read as a repeat access.
+     *
+     * @return an open handle, or {@code null} if the data could not be kept in the cache
+     */
+    public CachedRendition putAndOpen(String key, byte[] data, String contentType, String etag) throws IOException {
+        if (data.length > maxSizeBytes) {
+            log.debug("Rendition too large to cache: {} ({} bytes)", key, data.length);
+            return null;
+        }
+        CacheEntry entry = store(key, data, contentType, etag);
+        try {
+            return new CachedRendition(FileChannel.open(entry.file, StandardOpenOption.READ), entry);
+        } catch (NoSuchFileException e) {
+            // Evicted by concurrent inserts before we could open it
+            return null;
+        }
+    }
+
+    private CacheEntry store(String key, byte[] data, String contentType, String etag) throws IOException {
+        // Every entry gets its own file, so replacing or evicting an older entry for the key never touches it
+        Path file = Files.createTempFile(directory, "entry", ".bin");
+        Files.write(file, data);
+
+        CacheEntry entry = new CacheEntry(file, data.length, contentType, etag);
+        synchronized (this) {
+            removeEntry(key, true);
+            probation.put(key, entry);
+            probationBytes += data.length;
+            evictIfNeeded();
+        }
+        return entry;
+    }
+
+    /**
+     * Opens a cached entry for reading, counting the lookup as a hit or miss.
+     * The file stays readable through the returned handle even if the entry is
+     * evicted while the caller is still streaming it.
+     *
+     * @return an open handle that must be closed, or {@code null} if the key is not cached
+     */
+    public CachedRendition open(String key) throws IOException {
+        synchronized (this) {
+            CacheEntry entry = lookup(key);
+            if (entry == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            // Open under the lock so eviction cannot remove the file between lookup and open
+            try {
+                CachedRendition rendition = new CachedRendition(FileChannel.open(entry.file, StandardOpenOption.READ), entry);
+                hits.incrementAndGet();
+                return rendition;
+            } catch (NoSuchFileException e) {
+                // Deleted behind the cache's back; forget it and load the blob again
+                log.warn("Cached file for {} is missing, dropping the entry", key);
+                removeEntry(key, false);
+                misses.incrementAndGet();
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Records that the entry's blob still has the ETag it was cached with,
+     * so it is not checked again for another revalidation time.
+     */
+    public void revalidated(CachedRendition rendition) {
+        rendition.entry.validatedAt = System.currentTimeMillis();
+        revalidations.incrementAndGet();
+    }
+
+    public synchronized void invalidate(String key) {
+        removeEntry(key, true);
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        long hitCount = hits.get();
+        long missCount = misses.get();
+        long requests = hitCount + missCount;
+
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("hits", hitCount);
+        stats.put("misses", missCount);
+        stats.put("hitRate", requests == 0 ? 0.0 : (double) hitCount / requests);
+        stats.put("evictions", evictions.get());
+        stats.put("revalidations", revalidations.get());
+        stats.put("bytesServedFromCache", bytesServed.get());
+        stats.put("entries", probation.size() + protectedSegment.size());
+        stats.put("sizeBytes", probationBytes + protectedBytes);
+        stats.put("maxSizeBytes", maxSizeBytes);
+        return stats;
+    }
+
+    // Must be called while holding the lock
+    private CacheEntry lookup(String key) {
+        CacheEntry entry = protectedSegment.get(key);
+        if (entry != null) {
+            return entry;
+        }
+
+        entry = probation.remove(key);
+        if (entry == null) {
+            return null;
+        }
+
+        // Repeat access: promote to the protected segment, demoting its LRU entries back to probation
+        probationBytes -= entry.size;
+        protectedSegment.put(key, entry);
+        protectedBytes += entry.size;
+
+        Iterator<Map.Entry<String, CacheEntry>> iterator = protectedSegment.entrySet().iterator();
+        while (protectedBytes > maxProtectedBytes && iterator.hasNext()) {
+            Map.Entry<String, CacheEntry> eldest = iterator.next();
+            if (eldest.getKey().equals(key)) {
+                continue;
+            }
+            iterator.remove();
+            protectedBytes -= eldest.getValue().size;
+            probation.put(eldest.getKey(), eldest.getValue());
+            probationBytes += eldest.getValue().size;
+        }
+
+        evictIfNeeded();
+        return entry;
+    }
+
+    // Must be called while holding the lock
+    private void evictIfNeeded() {
+        evictFrom(probation, true);
+        evictFrom(protectedSegment, false);
+    }
+
+    private void evictFrom(LinkedHashMap<String, CacheEntry> segment, boolean isProbation) {
+        Iterator<Map.Entry<String, CacheEntry>> iterator = segment.entrySet().iterator();
+        while (probationBytes + protectedBytes > maxSizeBytes && iterator.hasNext()) {
+            CacheEntry victim = iterator.next().getValue();
+            iterator.remove();
+            if (isProbation) {
+                probationBytes -= victim.size;
+            } else {
+                protectedBytes -= victim.size;
+            }
+            deleteQuietly(victim.file);
+            evictions.incrementAndGet();
+        }
+    }
+
+    // Must be called while holding the lock
+    private void removeEntry(String key, boolean deleteFile) {
+        CacheEntry entry = probation.remove(key);
+        if (entry != null) {
+            probationBytes -= entry.size;
+        } else {
+            entry = protectedSegment.remove(key);
+            if (entry != null) {
+                protectedBytes -= entry.size;
+            }
+        }
+
+        if (entry != null && deleteFile) {
+            deleteQuietly(entry.file);
+        }
+    }
+
+    private void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Could not delete cached file {}: {}", file, e.getMessage());
+        }
+    }
+
+    private static class CacheEntry {
+        private final Path file;
+        private final long size;
+        private final String contentType;
+        // Of the blob the bytes were read from; null if unknown, which always revalidates
+        private final String etag;
+        private volatile long validatedAt;
+
+        CacheEntry(Path file, long size, String contentType, String etag) {
+            this.file = file;
+            this.size = size;
+            this.contentType = contentType;
+            this.etag = etag;
+            this.validatedAt = System.currentTimeMillis();
+        }
+    }
+
+    public class CachedRendition implements Closeable {
+        private final FileChannel channel;
+        private final CacheEntry entry;
+
+        private CachedRendition(FileChannel channel, CacheEntry entry) {
+            this.channel = channel;
+            this.entry = entry;
+        }
+
+        public long getSize() {
+            return entry.size;
+        }
+
+        public String getContentType() {
+            return entry.contentType;
+        }
+
+        public String getEtag() {
+            return entry.etag;
+        }
+
+        /**
+         * Whether the blob's ETag should be checked before serving the entry.
+         */
+        public boolean needsRevalidation() {
+            return entry.etag == null
+                    || System.currentTimeMillis() - entry.validatedAt >= revalidateSeconds * 1000;
+        }
+
+        /**
+         * Copies the entry to the target through a buffer. The target is a
+         * servlet stream, not a file or socket channel, so the bytes pass
+         * through the heap either way.
+         */
+        public void writeTo(OutputStream target) throws IOException {
+            InputStream source = Channels.newInputStream(channel);
+            source.transferTo(target);
+            bytesServed.addAndGet(entry.size);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
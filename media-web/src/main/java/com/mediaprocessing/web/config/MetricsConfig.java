@@ -0,0 +1,27 @@
+package com.mediaprocessing.web.config;
+
+import com.mediaprocessing.common.metrics.MediaMetrics;
+import com.mediaprocessing.common.service.RasterBufferPool;
+import com.mediaprocessing.common.service.ResourceGovernor;
+import com.mediaprocessing.web.cache.RenditionCache;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Exposes the stats of the shared components as gauges. The services record
+ * their timers on the global registry, which Spring Boot's Prometheus registry
+ * is part of.
+ */
+@Configuration
+public class MetricsConfig {
+
+    @Bean
+    public MeterBinder mediaComponentMetrics(ResourceGovernor resourceGovernor, RenditionCache renditionCache) {
+        return registry -> {
+            MediaMetrics.registerStats(registry, "media.governor", resourceGovernor::getStats);
+            MediaMetrics.registerStats(registry, "media.buffer.pool", RasterBufferPool.shared()::getStats);
+            MediaMetrics.registerStats(registry, "media.cache", renditionCache::getStats);
+        };
+    }
+}
@@ -0,0 +1,72 @@
+package com.mediaprocessing.web.config;
+
+import com.mediaprocessing.common.metrics.MediaTracing;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.context.Scope;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.Ordered;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Exports the services' spans and opens a server span for each request,
+ * so an upload's blob, image and queue spans, and the function spans that
+ * continue from its queue message, share one trace. An incoming
+ * {@code traceparent} header is continued.
+ */
+@Configuration
+public class TracingConfig {
+
+    @Value("${media.tracing.exporter:none}")
+    private String exporter;
+
+    @Value("${media.tracing.endpoint:http://localhost:4318/v1/traces}")
+    private String endpoint;
+
+    @Bean
+    public FilterRegistrationBean<OncePerRequestFilter> tracingFilter() {
+        MediaTracing.configure(exporter, endpoint, "media-web");
+        FilterRegistrationBean<OncePerRequestFilter> registration = new FilterRegistrationBean<>(new OncePerRequestFilter() {
+            @Override
+            protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+                    throws ServletException, IOException {
+                String traceparent = request.getHeader("traceparent");
+                Span span = MediaTracing.start(request.getMethod() + " " + request.getRequestURI(), SpanKind.SERVER,
+                        MediaTracing.extract(traceparent != null ? Map.of("traceparent", traceparent) : null),
+                        "http.request.method", request.getMethod(),
+                        "url.path", request.getRequestURI());
+                try (Scope ignored = span.makeCurrent()) {
+                    chain.doFilter(request, response);
+                } catch (IOException | ServletException | RuntimeException e) {
+                    MediaTracing.fail(span, e);
+                    throw e;
+                } finally {
+                    // Name by route rather than path once Spring MVC has matched it, so names stay few
+                    Object route = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+                    if (route != null) {
+                        span.updateName(request.getMethod() + " " + route);
+                        span.setAttribute("http.route", route.toString());
+                    }
+                    span.setAttribute("http.response.status_code", response.getStatus());
+                    span.end();
+                }
+            }
+        });
+        registration.setName("tracingFilter");
+        // Outermost, so the span covers the other filters too
+        registration.setOrder(Ordered.HIGHEST_PRECEDENCE);
+        registration.addUrlPatterns("/api/*", "/upload", "/media/*");
+        return registration;
+    }
+}
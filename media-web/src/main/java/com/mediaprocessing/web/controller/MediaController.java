@@ -2,7 +2,9 @@ package com.mediaprocessing.web.controller;
 
 import com.mediaprocessing.common.model.MediaItem;
 import com.mediaprocessing.common.model.ProcessingRequest;
+import com.mediaprocessing.common.service.ResourceGovernor;
 import com.mediaprocessing.web.service.MediaService;
+import com.mediaprocessing.web.service.RenditionService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.HttpStatus;
@@ -13,6 +15,7 @@ import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.server.ResponseStatusException;
 
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
@@ -24,6 +27,7 @@ import java.util.Map;
 public class MediaController {
 
     private final MediaService mediaService;
+    private final RenditionService renditionService;
     
     @GetMapping("/")
     public String home(Model model) {
@@ -58,6 +62,43 @@ public class MediaController {
         return "media-detail";
     }
     
+    @GetMapping("/media/{id}/thumbnail")
+    public void getThumbnail(@PathVariable String id,
+                             @RequestHeader(value = "Accept", required = false) String accept,
+                             HttpServletResponse response) throws IOException {
+        if (!renditionService.serveThumbnail(id, accept, response)) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Thumbnail not found");
+        }
+    }
+    
+    @GetMapping("/media/{id}/processed/{suffix}")
+    public void getProcessedMedia(@PathVariable String id, @PathVariable String suffix,
+                                  HttpServletResponse response) throws IOException {
+        if (!renditionService.serveProcessedMedia(id, suffix, response)) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Processed media not found");
+        }
+    }
+
+    @GetMapping("/media/{id}/r/{spec}")
+    public void getRendition(@PathVariable String id, @PathVariable String spec,
+                             HttpServletResponse response) throws IOException {
+        try {
+            if (!renditionService.serveRendition(id, spec, response)) {
+                throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Media not found");
+            }
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        } catch (ResourceGovernor.JobTooLargeException e) {
+            throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, e.getMessage());
+        } catch (ResourceGovernor.AdmissionRejectedException e) {
+            response.setHeader("Retry-After", "10");
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while generating rendition", e);
+        }
+    }
+    
     @PostMapping("/api/media/upload")
     @ResponseBody
     public ResponseEntity<MediaItem> uploadMediaApi(@RequestParam("file") MultipartFile file) {
@@ -92,6 +133,16 @@ public class MediaController {
         return ResponseEntity.noContent().build();
     }
     
+    @DeleteMapping("/api/media/{id}/moderation-flag")
+    @ResponseBody
+    public ResponseEntity<MediaItem> clearModerationFlag(@PathVariable String id) {
+        try {
+            return ResponseEntity.ok(mediaService.clearModerationFlag(id));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.notFound().build();
+        }
+    }
+
     @PostMapping("/api/media/{id}/process")
     @ResponseBody
     public ResponseEntity<Map<String, String>> processMedia(
@@ -106,10 +157,11 @@ public class MediaController {
                 parameters = new HashMap<>();
             }
             
-            mediaService.processMedia(id, type, parameters);
+            MediaService.JobStatus status = mediaService.processMedia(id, type, parameters);
             
             Map<String, String> response = new HashMap<>();
-            response.put("status", "Processing request queued");
+            response.put("status", statusMessage(status));
+            response.put("jobStatus", status.name());
             response.put("mediaId", id);
             response.put("processingType", processingType);
             
@@ -119,4 +171,56 @@ public class MediaController {
             return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
         }
     }
+
+    @PostMapping("/api/media/process")
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> processMediaBatch(
+            @RequestParam("ids") List<String> ids,
+            @RequestParam("type") String processingType,
+            @RequestBody(required = false) Map<String, String> parameters) {
+
+        try {
+            ProcessingRequest.ProcessingType type = ProcessingRequest.ProcessingType.valueOf(processingType);
+
+            if (parameters == null) {
+                parameters = new HashMap<>();
+            }
+
+            Map<String, MediaService.JobStatus> statuses = mediaService.processMedia(ids, type, parameters);
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("status", "Processing requests queued");
+            response.put("count", count(statuses, MediaService.JobStatus.QUEUED));
+            response.put("alreadyQueued", count(statuses, MediaService.JobStatus.ALREADY_QUEUED));
+            response.put("alreadyRunning", count(statuses, MediaService.JobStatus.ALREADY_RUNNING));
+            response.put("jobStatuses", statuses);
+            response.put("processingType", processingType);
+
+            return ResponseEntity.accepted().body(response);
+        } catch (IllegalArgumentException e) {
+            log.error("Error processing media: {}", e.getMessage(), e);
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        }
+    }
+
+    private static String statusMessage(MediaService.JobStatus status) {
+        switch (status) {
+            case ALREADY_QUEUED:
+                return "Processing request already queued";
+            case ALREADY_RUNNING:
+                return "Processing request already running";
+            default:
+                return "Processing request queued";
+        }
+    }
+
+    private static long count(Map<String, MediaService.JobStatus> statuses, MediaService.JobStatus status) {
+        return statuses.values().stream().filter(status::equals).count();
+    }
+
+    @GetMapping("/api/cache/stats")
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> getCacheStats() {
+        return ResponseEntity.ok(renditionService.getCacheStats());
+    }
 }
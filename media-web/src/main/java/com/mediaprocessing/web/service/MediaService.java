@@ -1,13 +1,26 @@
 package com.mediaprocessing.web.service;
 
+import com.azure.storage.blob.models.BlobStorageException;
 import com.azure.storage.queue.QueueClient;
 import com.azure.storage.queue.QueueClientBuilder;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mediaprocessing.common.metrics.MediaMetrics;
+import com.mediaprocessing.common.metrics.MediaTracing;
 import com.mediaprocessing.common.model.MediaItem;
 import com.mediaprocessing.common.model.ProcessingRequest;
+import com.mediaprocessing.common.model.ProcessingRequestCodec;
 import com.mediaprocessing.common.service.BlobStorageService;
+import com.mediaprocessing.common.service.ContentModerationService;
 import com.mediaprocessing.common.service.ImageProcessingService;
+import com.mediaprocessing.common.service.MediaMetadataProber;
+import com.mediaprocessing.common.service.ProcessingLedger;
+import com.mediaprocessing.common.service.ResourceGovernor;
+import com.mediaprocessing.common.service.UploadRouter;
 import com.mediaprocessing.common.service.VideoProcessingService;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.Scope;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
@@ -15,6 +28,8 @@ import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
@@ -24,9 +39,30 @@ import java.util.concurrent.ConcurrentHashMap;
 @Slf4j
 public class MediaService {
 
+    // Ledger entries are stamped by storage, whose clock may run behind ours
+    private static final Duration CLOCK_SKEW = Duration.ofSeconds(5);
+    // Tracked jobs not requested again for this long are forgotten; at worst the ledger then skips a duplicate
+    private static final Duration FORGET_AFTER = Duration.ofHours(24);
+
+    /**
+     * Where a requested job stands once the request has been handled.
+     */
+    public enum JobStatus {
+        // This request queued the job
+        QUEUED,
+        // An identical job is waiting in the queue
+        ALREADY_QUEUED,
+        // An identical job is running, or paused between segments
+        ALREADY_RUNNING
+    }
+
     private final BlobStorageService blobStorageService;
     private final ImageProcessingService imageProcessingService;
     private final VideoProcessingService videoProcessingService;
+    private final MediaMetadataProber mediaMetadataProber;
+    private final ResourceGovernor resourceGovernor;
+    private final ContentModerationService contentModerationService;
+    private final ProcessingLedger processingLedger;
     private final ObjectMapper objectMapper = new ObjectMapper();
     
     @Value("${azure.storage.connection-string}")
@@ -38,48 +74,96 @@ public class MediaService {
     @Value("${azure.functions.base-url}")
     private String functionsBaseUrl;
     
+    @Value("${media.moderation.enabled:true}")
+    private boolean moderationEnabled;
+    
+    // json, or compact for the binary format, which also packs bulk requests into shared messages
+    @Value("${media.queue.format:json}")
+    private String queueFormat;
+    
+    // How long a queued job that no worker has claimed yet still counts as in flight
+    @Value("${media.processing.coalesce-seconds:300}")
+    private long coalesceSeconds;
+    
     // In-memory storage for media items (in a real app, this would be a database)
     private final Map<String, MediaItem> mediaItems = new ConcurrentHashMap<>();
     
+    // When each job was last queued, by job key, so identical requests while it is in flight queue it once
+    private final Map<String, Long> queuedJobs = new ConcurrentHashMap<>();
+    
     public MediaItem uploadMedia(MultipartFile file) throws IOException {
+        MediaItem.MediaType mediaType = mediaType(file.getContentType());
+        MediaMetrics.bytes("media.upload.bytes", file.getSize(), "type", mediaType.name());
+        return MediaTracing.trace("media upload", () -> {
+            MediaTracing.attribute(MediaTracing.BYTES_IN, file.getSize());
+            return MediaMetrics.time("media.upload", () -> upload(file, mediaType),
+                    "type", mediaType.name(), "size", MediaMetrics.sizeBucket(file.getSize()));
+        }, "media.type", mediaType.name());
+    }
+    
+    private MediaItem upload(MultipartFile file, MediaItem.MediaType mediaType) throws IOException {
         String fileName = file.getOriginalFilename();
         String contentType = file.getContentType();
         byte[] fileContent = file.getBytes();
         
+        // Read dimensions and duration from the headers only; nothing is decoded here
+        Map<String, String> metadata = new HashMap<>(mediaMetadataProber.probe(fileContent));
+        
+        // Moderate before anything is generated; the result travels with the blob
+        Map<String, Object> moderation = moderate(fileContent, fileName, mediaType, metadata);
+        boolean flagged = moderation != null && Boolean.TRUE.equals(moderation.get("flagged"));
+        if (moderation != null) {
+            ContentModerationService.recordResult(moderation, metadata);
+        }
+        // Tells the upload dispatcher the thumbnails are handled here
+        metadata.put(UploadRouter.INGESTED_BY_METADATA, UploadRouter.WEB);
+        
         // Upload to blob storage
-        String blobName = blobStorageService.uploadMedia(fileContent, fileName, contentType);
+        String blobName = blobStorageService.uploadMedia(fileContent, fileName, contentType, metadata);
         
-        // Determine media type
-        MediaItem.MediaType mediaType;
-        if (contentType != null) {
-            if (contentType.startsWith("image/")) {
-                mediaType = MediaItem.MediaType.IMAGE;
-            } else if (contentType.startsWith("video/")) {
-                mediaType = MediaItem.MediaType.VIDEO;
-            } else if (contentType.startsWith("audio/")) {
-                mediaType = MediaItem.MediaType.AUDIO;
-            } else {
-                mediaType = MediaItem.MediaType.IMAGE; // Default to image
-            }
-        } else {
-            mediaType = MediaItem.MediaType.IMAGE; // Default to image
+        if (flagged) {
+            log.warn("Upload {} flagged by content moderation (score {}); skipping thumbnails",
+                    blobName, moderation.get("score"));
         }
         
         // Generate thumbnail for images immediately
         String thumbnailUrl = null;
-        if (mediaType == MediaItem.MediaType.IMAGE) {
-            try {
-                byte[] thumbnailData = imageProcessingService.generateThumbnail(fileContent, 200, 200);
-                blobStorageService.uploadThumbnail(thumbnailData, blobName, "image/jpeg");
+        if (mediaType == MediaItem.MediaType.IMAGE && !flagged) {
+            ResourceGovernor.JobEstimate estimate = resourceGovernor.estimate(
+                    ProcessingRequest.ProcessingType.THUMBNAIL, null, metadata, fileContent.length);
+            
+            try (ResourceGovernor.Permit permit = resourceGovernor.admit(blobName + ":THUMBNAIL", estimate)) {
+                try {
+                    byte[] thumbnailData = imageProcessingService.generateThumbnail(fileContent, 200, 200);
+                    blobStorageService.uploadThumbnail(thumbnailData, blobName, "image/jpeg");
+                    thumbnailUrl = blobStorageService.getThumbnailUrl(blobName);
+                } catch (Exception e) {
+                    log.error("Error generating thumbnail: {}", e.getMessage(), e);
+                }
+                
+                // WebP variant, served to browsers that accept it
+                try {
+                    byte[] webpThumbnailData = imageProcessingService.generateThumbnail(fileContent, 200, 200, "webp", -1);
+                    blobStorageService.uploadProcessedMedia(webpThumbnailData, blobName, "thumb-webp", "image/webp");
+                } catch (Exception e) {
+                    log.warn("Error generating WebP thumbnail: {}", e.getMessage());
+                }
+            } catch (ResourceGovernor.AdmissionRejectedException e) {
+                // Too large to decode here right now; the queue function generates the thumbnails instead
+                log.info("Deferring thumbnail to functions: {}", e.getMessage());
+                queueProcessingRequest(UploadRouter.thumbnailRequest(
+                        ProcessingRequest.ProcessingType.THUMBNAIL, containerName, blobName));
                 thumbnailUrl = blobStorageService.getThumbnailUrl(blobName);
-            } catch (Exception e) {
-                log.error("Error generating thumbnail: {}", e.getMessage(), e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting to generate thumbnail", e);
             }
         }
         
         // For videos, queue thumbnail generation
-        if (mediaType == MediaItem.MediaType.VIDEO) {
-            queueProcessingRequest(blobName, ProcessingRequest.ProcessingType.VIDEO_THUMBNAIL);
+        if (mediaType == MediaItem.MediaType.VIDEO && !flagged) {
+            queueProcessingRequest(UploadRouter.thumbnailRequest(
+                    ProcessingRequest.ProcessingType.VIDEO_THUMBNAIL, containerName, blobName));
         }
         
         // Create media item
@@ -94,8 +178,10 @@ public class MediaService {
                 .contentType(contentType)
                 .uploadedAt(LocalDateTime.now())
                 .processedUrls(new ArrayList<>())
-                .metadata(new HashMap<>())
+                .metadata(metadata)
                 .aiAnalysis(new HashMap<>())
+                .moderationScore(moderation != null ? (Double) moderation.get("score") : null)
+                .moderationFlagged(flagged)
                 .build();
         
         // Store media item
@@ -116,44 +202,263 @@ public class MediaService {
         mediaItems.remove(id);
     }
     
-    public void processMedia(String id, ProcessingRequest.ProcessingType processingType, Map<String, String> parameters) {
+    /**
+     * Clears a moderation flag after review, in the blob's metadata as well,
+     * so the functions stop refusing its renditions, and queues the
+     * thumbnails that were skipped at upload.
+     */
+    public MediaItem clearModerationFlag(String id) {
         MediaItem mediaItem = mediaItems.get(id);
         if (mediaItem == null) {
             throw new IllegalArgumentException("Media item not found: " + id);
         }
-        
+        if (!mediaItem.isModerationFlagged()) {
+            return mediaItem;
+        }
+    
+        String blobName = getBlobName(mediaItem);
+        Map<String, String> metadata = blobStorageService.getBlobMetadata(blobName);
+        ContentModerationService.clearFlag(metadata);
+        blobStorageService.setBlobMetadata(blobName, metadata);
+        if (mediaItem.getMetadata() != null) {
+            ContentModerationService.clearFlag(mediaItem.getMetadata());
+        }
+        mediaItem.setModerationFlagged(false);
+        log.info("Moderation flag cleared for {} (score {})", blobName, mediaItem.getModerationScore());
+    
+        if (mediaItem.getType() == MediaItem.MediaType.IMAGE) {
+            queueProcessingRequest(UploadRouter.thumbnailRequest(
+                    ProcessingRequest.ProcessingType.THUMBNAIL, containerName, blobName));
+            mediaItem.setThumbnailUrl(blobStorageService.getThumbnailUrl(blobName));
+        } else if (mediaItem.getType() == MediaItem.MediaType.VIDEO) {
+            queueProcessingRequest(UploadRouter.thumbnailRequest(
+                    ProcessingRequest.ProcessingType.VIDEO_THUMBNAIL, containerName, blobName));
+        }
+        return mediaItem;
+    }
+    
+    public String getBlobName(MediaItem mediaItem) {
         // Extract blob name from URL
         String originalUrl = mediaItem.getOriginalUrl();
-        String blobName = originalUrl.substring(originalUrl.lastIndexOf('/') + 1);
+        return originalUrl.substring(originalUrl.lastIndexOf('/') + 1);
+    }
+    
+    /**
+     * Queues the processing, unless the same job, with the same parameters,
+     * is already queued or running; the caller then shares that job's output.
+     * Returns where the job stands.
+     */
+    public JobStatus processMedia(String id, ProcessingRequest.ProcessingType processingType, Map<String, String> parameters) {
+        ProcessingRequest request = processingRequest(id, processingType, parameters);
+        log.info("Processing media: id={}, type={}, blobName={}", id, processingType, request.getBlobName());
+        
+        JobStatus status = claimJobs(List.of(request)).get(0);
+        if (status != JobStatus.QUEUED) {
+            log.info("Processing of {} as {} is {}", request.getBlobName(), processingType, status);
+            return status;
+        }
+        queueClaimedJobs(List.of(request));
+        return status;
+    }
+    
+    /**
+     * Queues the same processing for many media items. Every item is checked
+     * before any request is queued, so a bad id queues nothing. Returns where
+     * each item's job stands, by id; items whose job is already queued or
+     * running are not queued again.
+     */
+    public Map<String, JobStatus> processMedia(List<String> ids, ProcessingRequest.ProcessingType processingType,
+                                               Map<String, String> parameters) {
+        List<ProcessingRequest> requests = new ArrayList<>();
+        for (String id : ids) {
+            requests.add(processingRequest(id, processingType, parameters));
+        }
+        List<JobStatus> statuses = claimJobs(requests);
+        
+        Map<String, JobStatus> results = new LinkedHashMap<>();
+        List<ProcessingRequest> claimed = new ArrayList<>();
+        for (int i = 0; i < requests.size(); i++) {
+            results.putIfAbsent(ids.get(i), statuses.get(i));
+            if (statuses.get(i) == JobStatus.QUEUED) {
+                claimed.add(requests.get(i));
+            }
+        }
+        log.info("Processing {} media items: type={}, {} already queued or running", ids.size(), processingType,
+                ids.size() - claimed.size());
+        if (!claimed.isEmpty()) {
+            queueClaimedJobs(claimed);
+        }
+        return results;
+    }
+    
+    /**
+     * Where each request's job stands, marking the jobs this caller is to
+     * queue as queued. A job is in flight from when it is queued until its
+     * ledger entry says it is done or failed, or, if no worker has claimed it,
+     * for {@code media.processing.coalesce-seconds}. Identical requests in one
+     * call count once.
+     */
+    private List<JobStatus> claimJobs(List<ProcessingRequest> requests) {
+        long now = System.currentTimeMillis();
+        long forgetBefore = now - FORGET_AFTER.toMillis();
+        queuedJobs.values().removeIf(queuedAt -> queuedAt < forgetBefore);
+        
+        List<JobStatus> statuses = new ArrayList<>();
+        Set<String> keys = new HashSet<>();
+        for (ProcessingRequest request : requests) {
+            String key = jobKey(request);
+            Long queuedAt = queuedJobs.putIfAbsent(key, now);
+            JobStatus status = JobStatus.QUEUED;
+            if (!keys.add(key)) {
+                status = JobStatus.ALREADY_QUEUED;
+            } else if (queuedAt != null) {
+                status = inFlightStatus(request, queuedAt, now);
+                if (status == null) {
+                    // The earlier job has finished; whoever replaces its entry queues the job again
+                    status = queuedJobs.replace(key, queuedAt, now) ? JobStatus.QUEUED : JobStatus.ALREADY_QUEUED;
+                }
+            }
+            MediaMetrics.count("media.singleflight", "name", "queue",
+                    "role", status == JobStatus.QUEUED ? "leader" : "follower");
+            statuses.add(status);
+        }
+        return statuses;
+    }
+    
+    /**
+     * The status of a job queued at {@code queuedAt}, or null if it has
+     * completed, failed, or never been claimed within the coalescing window.
+     */
+    private JobStatus inFlightStatus(ProcessingRequest request, long queuedAt, long now) {
+        boolean withinWindow = now - queuedAt < coalesceSeconds * 1000;
+        ProcessingLedger.State state;
+        try {
+            state = processingLedger.latestState(request.getBlobName(), request.getProcessingType(),
+                    request.getParameters(), Instant.ofEpochMilli(queuedAt).minus(CLOCK_SKEW));
+        } catch (BlobStorageException e) {
+            log.warn("Could not read the ledger for {}: {}", request.getBlobName(), e.getMessage());
+            return withinWindow ? JobStatus.ALREADY_QUEUED : null;
+        }
+        if (state == null) {
+            return withinWindow ? JobStatus.ALREADY_QUEUED : null;
+        }
+        switch (state) {
+            case RUNNING:
+            case PAUSED:
+                return JobStatus.ALREADY_RUNNING;
+            default:
+                return null;
+        }
+    }
+    
+    private void queueClaimedJobs(List<ProcessingRequest> requests) {
+        try {
+            queueProcessingRequests(requests);
+        } catch (RuntimeException e) {
+            // Not queued after all, so a retry must not be coalesced away
+            requests.forEach(request -> queuedJobs.remove(jobKey(request)));
+            throw e;
+        }
+    }
+    
+    private static String jobKey(ProcessingRequest request) {
+        return ProcessingLedger.jobKey(request.getBlobName(), request.getProcessingType(), request.getParameters());
+    }
+    
+    private ProcessingRequest processingRequest(String id, ProcessingRequest.ProcessingType processingType,
+                                                Map<String, String> parameters) {
+        MediaItem mediaItem = mediaItems.get(id);
+        if (mediaItem == null) {
+            throw new IllegalArgumentException("Media item not found: " + id);
+        }
+        
+        if (mediaItem.isModerationFlagged() && processingType.isRendition()) {
+            throw new IllegalArgumentException("Media item was flagged by content moderation: " + id);
+        }
+        
+        MediaMetrics.count("media.processing.requests", "type", processingType.name());
         
         // Create processing request
-        ProcessingRequest request = ProcessingRequest.builder()
+        return ProcessingRequest.builder()
                 .mediaId(id)
-                .blobName(blobName)
+                .blobName(getBlobName(mediaItem))
                 .containerName(containerName)
                 .processingType(processingType)
                 .parameters(parameters)
                 .build();
-        
-        log.info("Processing media: id={}, type={}, blobName={}", id, processingType, blobName);
-        
-        // Queue the processing request
-        queueProcessingRequest(request);
     }
     
-    private void queueProcessingRequest(String blobName, ProcessingRequest.ProcessingType processingType) {
-        ProcessingRequest request = ProcessingRequest.builder()
-                .blobName(blobName)
-                .containerName(containerName)
-                .processingType(processingType)
-                .parameters(new HashMap<>())
-                .build();
-        
-        queueProcessingRequest(request);
+    /**
+     * Scores the upload for unsafe content on a downscaled copy, or returns
+     * null if moderation is off, the type is not moderated, or a video is too
+     * large to decode here now; the queue function then moderates it before
+     * its first rendition.
+     */
+    private Map<String, Object> moderate(byte[] fileContent, String fileName, MediaItem.MediaType mediaType,
+                                         Map<String, String> metadata) throws IOException {
+        if (!moderationEnabled || mediaType == MediaItem.MediaType.AUDIO) {
+            return null;
+        }
+        try {
+            if (mediaType == MediaItem.MediaType.IMAGE) {
+                return MediaTracing.trace("media moderation",
+                        () -> MediaMetrics.time("media.moderation", () -> contentModerationService.moderateImage(fileContent),
+                                "type", mediaType.name()),
+                        "media.type", mediaType.name());
+            }
+            ResourceGovernor.JobEstimate estimate = resourceGovernor.estimate(
+                    ProcessingRequest.ProcessingType.CONTENT_MODERATION, null, metadata, fileContent.length);
+            try (ResourceGovernor.Permit permit = resourceGovernor.admit(fileName + ":CONTENT_MODERATION", estimate)) {
+                return MediaTracing.trace("media moderation",
+                        () -> MediaMetrics.time("media.moderation", () -> contentModerationService.moderateVideo(fileContent),
+                                "type", mediaType.name()),
+                        "media.type", mediaType.name());
+            }
+        } catch (ResourceGovernor.AdmissionRejectedException e) {
+            log.info("Deferring moderation to functions: {}", e.getMessage());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting to moderate upload", e);
+        } catch (Exception e) {
+            log.warn("Error moderating upload {}: {}", fileName, e.getMessage());
+            return null;
+        }
+    }
+    
+    private static MediaItem.MediaType mediaType(String contentType) {
+        if (contentType != null) {
+            if (contentType.startsWith("image/")) {
+                return MediaItem.MediaType.IMAGE;
+            } else if (contentType.startsWith("video/")) {
+                return MediaItem.MediaType.VIDEO;
+            } else if (contentType.startsWith("audio/")) {
+                return MediaItem.MediaType.AUDIO;
+            }
+        }
+        return MediaItem.MediaType.IMAGE; // Default to image
     }
     
     private void queueProcessingRequest(ProcessingRequest request) {
-        try {
+        queueProcessingRequests(List.of(request));
+    }
+    
+    /**
+     * Sends the requests in a producer span whose context travels in the
+     * messages, so the function's spans join this trace. In the compact
+     * format, requests share messages up to the queue's size limit.
+     */
+    private void queueProcessingRequests(List<ProcessingRequest> requests) {
+        ProcessingRequest first = requests.get(0);
+        Span span = MediaTracing.start("media-processing-queue send", SpanKind.PRODUCER, Context.current(),
+                "messaging.system", "azure_queue",
+                "messaging.destination.name", "media-processing-queue",
+                "messaging.operation", "publish",
+                "media.id", first.getMediaId(),
+                "media.blob", first.getBlobName(),
+                "media.processing.type", String.valueOf(first.getProcessingType()),
+                "media.queue.format", queueFormat);
+        try (Scope ignored = span.makeCurrent()) {
             // Create queue client
             QueueClient queueClient = new QueueClientBuilder()
                     .connectionString(storageConnectionString)
@@ -167,16 +472,40 @@ public class MediaService {
                 log.warn("Queue may already exist: {}", e.getMessage());
             }
             
-            // Convert request to JSON
-            String messageJson = objectMapper.writeValueAsString(request);
+            Map<String, String> traceContext = MediaTracing.inject();
+            for (ProcessingRequest request : requests) {
+                request.setEnqueuedAt(System.currentTimeMillis());
+                if (!traceContext.isEmpty()) {
+                    request.setTraceContext(traceContext);
+                }
+            }
             
-            // Send message to queue
-            queueClient.sendMessage(Base64.getEncoder().encodeToString(messageJson.getBytes()));
+            // Messages are Base64-encoded, as the Functions host expects
+            List<byte[]> bodies = new ArrayList<>();
+            if ("compact".equalsIgnoreCase(queueFormat)) {
+                bodies.addAll(ProcessingRequestCodec.encodeBatches(requests));
+            } else {
+                for (ProcessingRequest request : requests) {
+                    bodies.add(objectMapper.writeValueAsBytes(request));
+                }
+            }
+            span.setAttribute("messaging.batch.message_count", requests.size());
+            long bodySize = 0;
+            for (byte[] body : bodies) {
+                String message = Base64.getEncoder().encodeToString(body);
+                bodySize += message.length();
+                queueClient.sendMessage(message);
+            }
+            span.setAttribute("messaging.message.body.size", bodySize);
             
-            log.info("Queued processing request: {}", messageJson);
+            log.info("Queued {} processing request(s) in {} {} message(s): {}", requests.size(), bodies.size(),
+                    queueFormat, requests.size() == 1 ? first : first.getProcessingType());
         } catch (Exception e) {
+            MediaTracing.fail(span, e);
             log.error("Error queueing processing request: {}", e.getMessage(), e);
             throw new RuntimeException("Failed to queue processing request", e);
+        } finally {
+            span.end();
         }
     }
 }
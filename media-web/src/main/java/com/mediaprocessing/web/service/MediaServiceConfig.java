@@ -1,14 +1,28 @@
 package com.mediaprocessing.web.service;
 
 import com.mediaprocessing.common.config.AzureStorageConfig;
+import com.mediaprocessing.common.metrics.MediaMetrics;
 import com.mediaprocessing.common.service.BlobStorageService;
+import com.mediaprocessing.common.service.ContentModerationService;
 import com.mediaprocessing.common.service.ImageProcessingService;
+import com.mediaprocessing.common.service.MediaMetadataProber;
+import com.mediaprocessing.common.service.OnnxAnalysisBackend;
+import com.mediaprocessing.common.service.ProcessingLedger;
+import com.mediaprocessing.common.service.ResourceGovernor;
 import com.mediaprocessing.common.service.VideoProcessingService;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+
 @Configuration
+@Slf4j
 public class MediaServiceConfig {
 
     @Bean
@@ -25,4 +39,47 @@ public class MediaServiceConfig {
     public VideoProcessingService videoProcessingService() {
         return new VideoProcessingService();
     }
+    
+    @Bean
+    public MediaMetadataProber mediaMetadataProber() {
+        return new MediaMetadataProber();
+    }
+    
+    /**
+     * The functions' ledger of processing jobs, read here to tell whether a
+     * queued job is still in flight. The web app never claims jobs, so the
+     * claim and done times are only the functions' defaults.
+     */
+    @Bean
+    public ProcessingLedger processingLedger(AzureStorageConfig azureStorageConfig) {
+        return new ProcessingLedger(azureStorageConfig.createBlobServiceClient(), Duration.ofSeconds(60), Duration.ofHours(24));
+    }
+    
+    @Bean
+    public ResourceGovernor resourceGovernor(
+            @Value("${media.admission.heap-budget-mb:0}") long heapBudgetMb,
+            @Value("${media.admission.native-budget-mb:1024}") long nativeBudgetMb,
+            @Value("${media.admission.timeout-seconds:10}") long timeoutSeconds) {
+        long heapBudgetBytes = heapBudgetMb > 0
+                ? heapBudgetMb * 1024 * 1024
+                : ResourceGovernor.defaultHeapBudgetBytes();
+        return new ResourceGovernor(heapBudgetBytes, nativeBudgetMb * 1024 * 1024, Duration.ofSeconds(timeoutSeconds));
+    }
+    
+    @Bean
+    public ContentModerationService contentModerationService(
+            @Value("${media.moderation.model-path:}") String modelPath,
+            @Value("${media.moderation.labels-path:}") String labelsPath,
+            @Value("${media.moderation.unsafe-labels:porn,hentai,sexy}") String unsafeLabels,
+            @Value("${media.moderation.threshold:0.5}") double threshold) throws Exception {
+        if (modelPath.isBlank()) {
+            log.warn("No moderation model configured; uploads are scored but never flagged");
+            return new ContentModerationService(threshold);
+        }
+        // One session is plenty at upload rates; concurrent uploads share its batches
+        OnnxAnalysisBackend classifier = new OnnxAnalysisBackend(
+                Paths.get(modelPath), Paths.get(labelsPath), 1, 8, Duration.ofMillis(5));
+        MediaMetrics.registerStats("media.onnx", classifier::getStats, "model", "moderation");
+        return new ContentModerationService(classifier, Set.copyOf(List.of(unsafeLabels.split(","))), threshold);
+    }
 }
@@ -0,0 +1,330 @@
+package com.mediaprocessing.web.service;
+
+import com.azure.storage.blob.models.BlobStorageException;
+import com.mediaprocessing.common.metrics.MediaMetrics;
+import com.mediaprocessing.common.metrics.MediaTracing;
+import com.mediaprocessing.common.model.MediaItem;
+import com.mediaprocessing.common.model.ProcessingRequest;
+import com.mediaprocessing.common.service.BlobStorageService;
+import com.mediaprocessing.common.service.ImageProcessingService;
+import com.mediaprocessing.common.service.MediaMetadataProber;
+import com.mediaprocessing.common.service.ResourceGovernor;
+import com.mediaprocessing.common.service.SingleFlight;
+import com.mediaprocessing.web.cache.RenditionCache;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class RenditionService {
+
+    private final MediaService mediaService;
+    private final BlobStorageService blobStorageService;
+    private final RenditionCache renditionCache;
+    private final ImageProcessingService imageProcessingService;
+    private final MediaMetadataProber mediaMetadataProber;
+    private final ResourceGovernor resourceGovernor;
+    // Concurrent first requests for one rendition share a single generation
+    private final SingleFlight<String, BlobStorageService.VersionedContent> renditionFlights = new SingleFlight<>("rendition");
+
+    @Value("${media.cache.warm-count:50}")
+    private int warmCount;
+
+    @Value("${media.renditions.max-dimension:2048}")
+    private int maxRenditionDimension;
+
+    /**
+     * Serves a media item's thumbnail, preferring the WebP variant when the
+     * client's Accept header allows it and falling back to JPEG.
+     */
+    public boolean serveThumbnail(String id, String accept, HttpServletResponse response) throws IOException {
+        Optional<MediaItem> mediaItem = mediaService.getMediaById(id);
+        if (mediaItem.isEmpty() || mediaItem.get().getThumbnailUrl() == null) {
+            return false;
+        }
+
+        String blobName = mediaService.getBlobName(mediaItem.get());
+        response.setHeader("Vary", "Accept");
+
+        if (accept != null && accept.contains("image/webp")
+                && serve(processedKey(blobName, "thumb-webp"), response,
+                        etag -> blobStorageService.downloadProcessedMediaIfChanged(blobName, "thumb-webp", etag))) {
+            return true;
+        }
+
+        return serve(thumbnailKey(blobName), response,
+                etag -> blobStorageService.downloadThumbnailIfChanged(blobName, etag));
+    }
+
+    public boolean serveProcessedMedia(String id, String suffix, HttpServletResponse response) throws IOException {
+        Optional<MediaItem> mediaItem = mediaService.getMediaById(id);
+        if (mediaItem.isEmpty()) {
+            return false;
+        }
+
+        String blobName = mediaService.getBlobName(mediaItem.get());
+        return serve(processedKey(blobName, suffix), response,
+                etag -> blobStorageService.downloadProcessedMediaIfChanged(blobName, suffix, etag));
+    }
+
+    /**
+     * Serves a rendition of an image addressed by its spec, such as
+     * {@code w=480,fmt=webp}, generating it on the first request. The result
+     * is stored in the processed container, so later requests, here or on
+     * another instance, are served like any other processed media.
+     *
+     * @throws IllegalArgumentException if the spec is malformed
+     */
+    public boolean serveRendition(String id, String specText, HttpServletResponse response)
+            throws IOException, InterruptedException {
+        RenditionSpec spec = RenditionSpec.parse(specText, maxRenditionDimension);
+        Optional<MediaItem> mediaItem = mediaService.getMediaById(id);
+        if (mediaItem.isEmpty() || mediaItem.get().getType() != MediaItem.MediaType.IMAGE
+                || mediaItem.get().isModerationFlagged()) {
+            return false;
+        }
+
+        String blobName = mediaService.getBlobName(mediaItem.get());
+        String suffix = spec.suffix();
+        String key = processedKey(blobName, suffix);
+        if (serve(key, response,
+                etag -> blobStorageService.downloadProcessedMediaIfChanged(blobName, suffix, etag))) {
+            MediaMetrics.count("media.rendition.ondemand", "format", spec.getFormat(), "outcome", "stored");
+            return true;
+        }
+
+        BlobStorageService.VersionedContent rendition;
+        try {
+            rendition = renditionFlights.execute(key, () -> generate(mediaItem.get(), blobName, spec));
+        } catch (BlobStorageException e) {
+            if (e.getStatusCode() == HttpServletResponse.SC_NOT_FOUND) {
+                return false;
+            }
+            throw e;
+        }
+        // Cached without an ETag, so the next request reads the stored copy and its ETag
+        return serve(key, response, etag -> rendition);
+    }
+
+    private BlobStorageService.VersionedContent generate(MediaItem mediaItem, String blobName, RenditionSpec spec) throws IOException {
+        String suffix = spec.suffix();
+        // Estimate from the blob's size and headers; the original is only downloaded once admitted
+        MediaMetadataProber.RangeReader reader = blobStorageService.getMediaRangeReader(blobName);
+        long size = reader.size();
+        Map<String, String> metadata = mediaItem.getMetadata() != null && mediaItem.getMetadata().containsKey("width")
+                ? mediaItem.getMetadata()
+                : mediaMetadataProber.probe(reader);
+        ResourceGovernor.JobEstimate estimate = resourceGovernor.estimate(
+                ProcessingRequest.ProcessingType.RESIZE, null, metadata, size);
+        byte[] data;
+        try (ResourceGovernor.Permit permit = resourceGovernor.admit(blobName + ":" + suffix, estimate)) {
+            byte[] original = blobStorageService.downloadMedia(blobName);
+            data = MediaTracing.trace("rendition generate",
+                    () -> imageProcessingService.generateThumbnail(original,
+                            spec.getWidth() > 0 ? spec.getWidth() : maxRenditionDimension,
+                            spec.getHeight() > 0 ? spec.getHeight() : maxRenditionDimension,
+                            spec.getFormat(), spec.getQuality() > 0 ? spec.getQuality() / 100f : -1),
+                    "media.rendition", suffix);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to generate rendition " + suffix);
+        }
+        String contentType = imageProcessingService.getContentType(spec.getFormat());
+        blobStorageService.uploadProcessedMedia(data, blobName, suffix, contentType);
+        MediaMetrics.count("media.rendition.ondemand", "format", spec.getFormat(), "outcome", "generated");
+        log.info("Generated rendition {} of {} on demand ({} bytes)", suffix, blobName, data.length);
+        return new BlobStorageService.VersionedContent(data, contentType, null);
+    }
+
+    public Map<String, Object> getCacheStats() {
+        return renditionCache.getStats();
+    }
+
+    /**
+     * Pre-loads thumbnails of the most recently uploaded media so the first
+     * gallery view after a restart is served locally.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmCache() {
+        if (warmCount <= 0) {
+            return;
+        }
+
+        try {
+            List<String> recentBlobs = blobStorageService.listRecentMedia(warmCount);
+            int warmed = 0;
+            for (String blobName : recentBlobs) {
+                try {
+                    BlobStorageService.VersionedContent thumbnail = blobStorageService.downloadThumbnailIfChanged(blobName, null);
+                    renditionCache.put(thumbnailKey(blobName), thumbnail.getData(), thumbnail.getContentType(),
+                            thumbnail.getEtag());
+                    warmed++;
+                } catch (BlobStorageException e) {
+                    log.debug("No thumbnail to warm for blob: {}", blobName);
+                }
+            }
+            log.info("Warmed rendition cache with {} thumbnails", warmed);
+        } catch (Exception e) {
+            log.warn("Error warming rendition cache: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Serves the key from the cache, revalidating the entry against its blob's
+     * ETag once it is older than the revalidation time, and loading and
+     * caching the blob on a miss. Returns false if the blob does not exist.
+     */
+    private boolean serve(String key, HttpServletResponse response, Loader loader) throws IOException {
+        RenditionCache.CachedRendition rendition = renditionCache.open(key);
+        BlobStorageService.VersionedContent content = null;
+        try {
+            if (rendition == null) {
+                content = loader.load(null);
+            } else if (rendition.needsRevalidation()) {
+                content = loader.load(rendition.getEtag());
+                if (content == null) {
+                    renditionCache.revalidated(rendition);
+                } else {
+                    // Regenerated since it was cached
+                    rendition.close();
+                    rendition = null;
+                }
+            }
+        } catch (BlobStorageException e) {
+            if (rendition != null) {
+                rendition.close();
+            }
+            if (e.getStatusCode() == HttpServletResponse.SC_NOT_FOUND) {
+                renditionCache.invalidate(key);
+                return false;
+            }
+            throw e;
+        }
+
+        if (rendition == null) {
+            rendition = renditionCache.putAndOpen(key, content.getData(), content.getContentType(), content.getEtag());
+            if (rendition == null) {
+                // Could not be cached; serve the bytes we already have
+                response.setContentType(content.getContentType());
+                response.setContentLength(content.getData().length);
+                response.getOutputStream().write(content.getData());
+                return true;
+            }
+        }
+
+        try (RenditionCache.CachedRendition cached = rendition) {
+            response.setContentType(cached.getContentType());
+            response.setContentLengthLong(cached.getSize());
+            cached.writeTo(response.getOutputStream());
+        }
+        return true;
+    }
+
+    @FunctionalInterface
+    private interface Loader {
+        /**
+         * The blob's content, or null if it still has {@code etag}; a null
+         * ETag loads it unconditionally.
+         */
+        BlobStorageService.VersionedContent load(String etag);
+    }
+
+    /**
+     * A rendition as addressed in its URL: comma-separated {@code w} and
+     * {@code h} in pixels, at least one of them, {@code fmt} (jpg, png or
+     * webp; jpg by default) and {@code q} from 1 to 100. The image is scaled
+     * to fit, keeping its aspect ratio. Equivalent specs have one suffix, so
+     * they share a stored rendition.
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class RenditionSpec {
+        private static final List<String> FORMATS = List.of("jpg", "png", "webp");
+
+        // 0 when unconstrained
+        private final int width;
+        private final int height;
+        private final String format;
+        // 0 for the format default
+        private final int quality;
+
+        public static RenditionSpec parse(String spec, int maxDimension) {
+            Map<String, String> values = new HashMap<>();
+            for (String part : spec.split(",")) {
+                String[] pair = part.split("=", 2);
+                if (pair.length != 2 || values.put(pair[0].trim(), pair[1].trim()) != null) {
+                    throw new IllegalArgumentException("Malformed rendition spec: " + spec);
+                }
+            }
+            int width = number(values.remove("w"), "w", maxDimension);
+            int height = number(values.remove("h"), "h", maxDimension);
+            int quality = number(values.remove("q"), "q", 100);
+            String format = values.getOrDefault("fmt", "jpg").toLowerCase();
+            values.remove("fmt");
+            if ("jpeg".equals(format)) {
+                format = "jpg";
+            }
+            if (!values.isEmpty()) {
+                throw new IllegalArgumentException("Unknown rendition parameters: " + values.keySet());
+            } else if (width == 0 && height == 0) {
+                throw new IllegalArgumentException("Rendition needs a width or a height: " + spec);
+            } else if (!FORMATS.contains(format)) {
+                throw new IllegalArgumentException("Unsupported rendition format: " + format);
+            }
+            return new RenditionSpec(width, height, format, quality);
+        }
+
+        private static int number(String value, String name, int max) {
+            if (value == null) {
+                return 0;
+            }
+            try {
+                int number = Integer.parseInt(value);
+                if (number >= 1 && number <= max) {
+                    return number;
+                }
+            } catch (NumberFormatException e) {
+                // Reported below
+            }
+            throw new IllegalArgumentException("Rendition " + name + " must be between 1 and " + max + ": " + value);
+        }
+
+        public String suffix() {
+            StringBuilder suffix = new StringBuilder("r");
+            if (width > 0) {
+                suffix.append("-w").append(width);
+            }
+            if (height > 0) {
+                suffix.append("-h").append(height);
+            }
+            suffix.append('-').append(format);
+            if (quality > 0) {
+                suffix.append("-q").append(quality);
+            }
+            return suffix.toString();
+        }
+    }
+
+    private String thumbnailKey(String blobName) {
+        return "thumb/" + blobName;
+    }
+
+    private String processedKey(String blobName, String suffix) {
+        return "processed/" + suffix + "/" + blobName;
+    }
+}